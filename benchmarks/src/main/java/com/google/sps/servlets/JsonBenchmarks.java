@@ -0,0 +1,110 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON the servlets write and read: dataset name lists, as Gson used to build them and as
+ * DatasetNamesServlet streams them, and coordinates.json documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmarks {
+
+  private static final Gson GSON = new Gson();
+
+  @Param({"1000", "100000"})
+  public int size;
+
+  private List<String> datasetNames;
+  private EmbeddingMatrix matrix;
+  private float[] positions;
+  private String coordinatesJson;
+  private final CharArrayWriter out = new CharArrayWriter();
+
+  @Setup
+  public void setUp() throws IOException {
+    datasetNames = new ArrayList<String>();
+    String[] imageNames = new String[size];
+    positions = new float[3 * size];
+    Random random = new Random(1);
+    for (int i = 0; i < size; i++) {
+      datasetNames.add("dataset_" + i);
+      imageNames[i] = "photo" + i + ".jpg";
+    }
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = random.nextFloat() * 100 - 50;
+    }
+    // Only the names are written out, so the vectors can be empty
+    matrix = EmbeddingMatrix.of(imageNames, new float[0], 0);
+
+    out.reset();
+    TsneCoordinates.writePoints(out, matrix, positions);
+    coordinatesJson = out.toString();
+  }
+
+  @Benchmark
+  public String datasetNamesGson() {
+    return GSON.toJson(datasetNames);
+  }
+
+  @Benchmark
+  public int datasetNamesStreamed() throws IOException {
+    out.reset();
+    JsonWriter writer = new JsonWriter(out);
+    writer.beginArray();
+    for (String name : datasetNames) {
+      writer.value(name);
+    }
+    writer.endArray().flush();
+    return out.size();
+  }
+
+  @Benchmark
+  public int writeCoordinates() throws IOException {
+    out.reset();
+    TsneCoordinates.writePoints(out, matrix, positions);
+    return out.size();
+  }
+
+  @Benchmark
+  public float[] parseCoordinates() throws IOException {
+    return PackedCoordinates.parsePoints(new StringReader(coordinatesJson));
+  }
+}
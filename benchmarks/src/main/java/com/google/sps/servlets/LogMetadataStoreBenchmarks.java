@@ -0,0 +1,107 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LogMetadataStore throughput with six reader threads running alongside two writers, for a user
+ * with a growing number of datasets. Writes overwrite existing datasets, so the log is
+ * compacted as it runs. Each group method's score is its own operations per second.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogMetadataStoreBenchmarks {
+
+  private static final String USER = "heavy@example.com";
+  private static final int PAGE_SIZE = 50;
+
+  @Param({"100", "1000", "10000"})
+  public int datasets;
+
+  @Param({"false", "true"})
+  public boolean sync;
+
+  private Path directory;
+  private LogMetadataStore store;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("metadata-log");
+    store = LogMetadataStore.open(directory.resolve("metadata.log"), sync, 16 << 20);
+    List<Metadata> metadata = new ArrayList<Metadata>();
+    for (int i = 0; i < datasets; i++) {
+      metadata.add(Metadata.of(USER, "dataset" + i, "DELG", "t-SNE", i, i));
+    }
+    store.storeAll(metadata);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    store.close();
+    Files.deleteIfExists(directory.resolve("metadata.log"));
+    Files.deleteIfExists(directory);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(4)
+  public Metadata retrieveMetadata() {
+    return store.retrieveMetadata(randomName(), USER);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public DatasetPage firstPage() {
+    return store.getUsersDatasets(USER, null, PAGE_SIZE);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public void storeData() {
+    store.storeData(Metadata.of(USER, randomName(), "DELG", "t-SNE", 1, System.nanoTime()));
+  }
+
+  private String randomName() {
+    return "dataset" + ThreadLocalRandom.current().nextInt(datasets);
+  }
+}
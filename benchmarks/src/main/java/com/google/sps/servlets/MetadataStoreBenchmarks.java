@@ -0,0 +1,128 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DatastoreMetadataStore operations against the local Datastore stub, for a user with a growing
+ * number of datasets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+// The stub's API environment is per thread
+@Threads(1)
+public class MetadataStoreBenchmarks {
+
+  private static final String USER = "heavy@example.com";
+  private static final int PAGE_SIZE = 50;
+  private static final int BATCH_SIZE = 100;
+
+  @Param({"100", "1000", "10000"})
+  public int datasets;
+
+  private LocalServiceTestHelper helper;
+  private ApiProxy.Environment environment;
+  private DatastoreMetadataStore store;
+  private List<String> names;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    environment = ApiProxy.getCurrentEnvironment();
+    store = new DatastoreMetadataStore(false);
+
+    names = new ArrayList<String>();
+    List<Metadata> metadata = new ArrayList<Metadata>();
+    for (int i = 0; i < datasets; i++) {
+      names.add("dataset" + i);
+      metadata.add(Metadata.of(USER, "dataset" + i, "DELG", "t-SNE", i, i));
+    }
+    store.storeAll(metadata);
+  }
+
+  /** JMH may run each iteration on a different thread, so hand it the stub's environment. */
+  @Setup(Level.Iteration)
+  public void attachEnvironment() {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public Metadata retrieveMetadata() {
+    return store.retrieveMetadata(nextName(), USER);
+  }
+
+  @Benchmark
+  public boolean metadataExists() {
+    return store.metadataExists(nextName(), USER);
+  }
+
+  @Benchmark
+  public Map<String, Metadata> retrieveMany() {
+    int start = next++ % Math.max(1, datasets - BATCH_SIZE);
+    return store.retrieveMany(names.subList(start, Math.min(datasets, start + BATCH_SIZE)), USER);
+  }
+
+  @Benchmark
+  public DatasetPage firstPage() {
+    return store.getUsersDatasets(USER, null, PAGE_SIZE);
+  }
+
+  @Benchmark
+  public List<String> allDatasets() {
+    return store.getUsersDatasets(USER);
+  }
+
+  /** Overwrites an existing dataset, so the store doesn't grow between iterations. */
+  @Benchmark
+  public void storeData() {
+    store.storeData(Metadata.of(USER, nextName(), "DELG", "t-SNE", 1, 1));
+  }
+
+  private String nextName() {
+    return names.get(next++ % datasets);
+  }
+}
@@ -0,0 +1,58 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The object paths every retrieval request builds. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmarks {
+
+  // Fields rather than constants, so the paths can't be folded away
+  public String userEmail = "someone@example.com";
+  public String datasetName = "my_dataset";
+
+  @Benchmark
+  public String spritesheetPath() {
+    String[] paths = {userEmail, datasetName, "spritesheets", "spritesheet.png"};
+    return SpritesheetRetrievalServlet.joinFilePaths(paths);
+  }
+
+  @Benchmark
+  public String coordinatesPath() {
+    String[] paths = {userEmail, datasetName, "coordinates.json"};
+    return CoordinatesRetrievalServlet.joinFilePaths(paths);
+  }
+
+  /** What a plain concatenation of the same path costs, for comparison. */
+  @Benchmark
+  public String concatenatedPath() {
+    return userEmail + "/" + datasetName + "/spritesheets/spritesheet.png";
+  }
+}
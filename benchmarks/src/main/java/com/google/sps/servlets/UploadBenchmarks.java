@@ -0,0 +1,91 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.io.ByteSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The part-to-blob path of UploadServlet: a batch of uploaded files written through
+ * ParallelUploader into in-memory Cloud Storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadBenchmarks {
+
+  // The defaults in appengine-web.xml
+  private static final int THREADS = 16;
+  private static final int MAX_IN_FLIGHT = 32;
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long TIMEOUT_MILLIS = 50000;
+
+  @Param({"10", "100"})
+  public int images;
+
+  @Param({"16384", "262144"})
+  public int imageBytes;
+
+  private ExecutorService executor;
+  private ParallelUploader uploader;
+  private Map<String, ByteSource> objects;
+
+  @Setup
+  public void setUp() {
+    Storage storage = LocalStorageHelper.getOptions().getService();
+    executor = Executors.newFixedThreadPool(THREADS);
+    uploader = new ParallelUploader(storage, executor, MAX_IN_FLIGHT, MAX_ATTEMPTS, TIMEOUT_MILLIS);
+
+    Random random = new Random(1);
+    objects = new LinkedHashMap<String, ByteSource>();
+    for (int i = 0; i < images; i++) {
+      byte[] image = new byte[imageBytes];
+      random.nextBytes(image);
+      objects.put("user/set/original_images/photo" + i + ".jpg", ByteSource.wrap(image));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public ParallelUploader.UploadResult upload() {
+    return uploader.upload("bucket", objects);
+  }
+}
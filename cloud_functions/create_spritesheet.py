@@ -21,6 +21,7 @@ all thumbnails into a numpy array
 import os
 import tempfile
 from file_path_utils import get_user_and_dataset_name
+from dataset_status import is_enabled
 from google.cloud import storage, vision, datastore
 import numpy as np
 import cv2
@@ -49,6 +50,10 @@ def create_spritesheet(file_data, context):
         example:
     """
 
+    # The web app builds the spritesheet once every thumbnail has been reported
+    if is_enabled():
+        return
+
     file_name = file_data['name']
     user_name, dataset_name = get_user_and_dataset_name(file_name)
 
@@ -139,9 +144,7 @@ def save_image(bucket_name, file_name, image):
 
 
 def get_expected_thumbnail_number(dataset):
-    dataset_name, images_count_tuple, model, timestamp, user, viz_type = sorted(
-        dataset.item)()
-    return images_count_tuple[1]
+    return dataset['image-count']
 
 
 def list_blobs_with_prefix(bucket_name, prefix, delimiter=None):
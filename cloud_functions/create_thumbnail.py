@@ -21,6 +21,7 @@ bucket.
 import os
 import tempfile
 from file_path_utils import get_user_and_dataset_name, get_photo_name
+from dataset_status import report_progress
 from google.cloud import storage, vision, datastore
 from wand.image import Image
 
@@ -75,3 +76,4 @@ def process_image_input(file_data, context):
     thumbnail_blob.upload_from_filename(tmp_local_filename)
 
     os.remove(tmp_local_filename)
+    report_progress(user_name, dataset_name, 'thumbnailed', photo_name)
@@ -0,0 +1,59 @@
+# Copyright 2020 Google LLC
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     https:#www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+"""Reports an image's progress through processing to the web app.
+The web app counts each dataset's images through every stage and builds the
+spritesheet and t-SNE coordinates itself once a stage is complete, so the
+functions don't have to list a dataset's blobs to find out. Reporting is
+configured with the DATASET_STATUS_URL and DATASET_STATUS_TOKEN environment
+variables; without them nothing is reported.
+"""
+import os
+import urllib.parse
+import urllib.request
+
+STATUS_URL = os.environ.get('DATASET_STATUS_URL')
+STATUS_TOKEN = os.environ.get('DATASET_STATUS_TOKEN')
+
+
+def is_enabled():
+    """Returns whether progress is reported to, and acted on by, the web app."""
+    return bool(STATUS_URL and STATUS_TOKEN)
+
+
+def report_progress(user_name, dataset_name, stage, photo_name):
+    """Reports that a photo of a dataset has been through a stage.
+    Reporting the same photo twice is harmless, so a retried function can
+    report again.
+    Args:
+        user_name:
+            Name of the user that uploaded the photo.
+        dataset_name:
+            Name of the dataset the photo belongs to.
+        stage:
+            'thumbnailed' or 'embedded'.
+        photo_name:
+            Name of the photo, without file path.
+    """
+    if not is_enabled():
+        return
+    data = urllib.parse.urlencode({
+        'user': user_name,
+        'dataset': dataset_name,
+        'stage': stage,
+        'image': photo_name,
+    }).encode('utf-8')
+    request = urllib.request.Request(
+        STATUS_URL, data=data,
+        headers={'Authorization': 'Bearer ' + STATUS_TOKEN})
+    urllib.request.urlopen(request, timeout=30).close()
@@ -23,6 +23,7 @@ import tempfile
 import file_path_utils as fp
 from google.cloud import storage
 from file_path_utils import get_user_and_dataset_name, get_photo_name
+from dataset_status import report_progress
 import cv2
 import numpy as np
 import tensorflow as tf
@@ -141,3 +142,4 @@ def save_embedding(image_name, embedding):
     blob = bucket.blob(embeddings_file_name)
     blob.upload_from_filename(tmp_name)
     os.remove(tmp_name)
+    report_progress(user_name, dataset_name, 'embedded', photo_name)
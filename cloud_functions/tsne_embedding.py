@@ -19,6 +19,7 @@ s have been uploaded, then gets the coordinates.
 import numpy as np
 import os
 from file_path_utils import get_user_and_dataset_name
+from dataset_status import is_enabled
 from sklearn.manifold import TSNE
 from google.cloud import storage, datastore
 import json
@@ -45,6 +46,11 @@ def run_tsne(trigger_file, _):
                 Cloud functions event metadata.
     """
 
+    # The web app computes the coordinates once every embedding has been report
+    # ed
+    if is_enabled():
+        return
+
     # Looks for all embeddings in the embedding folder to ensure they are all t
     # here
     folder = os.path.dirname(trigger_file)
@@ -154,9 +160,7 @@ def get_expected_num_embeddings(metadata):
     Returns:
         The amount of images from the upload. 
     """
-    dataset_name, images_count_tuple, model, timestamp, user, viz_type = (
-        sorted(metadata.items()))
-    return images_count_tuple[1]
+    return metadata['image-count']
 
 
 def tsne_embed(embedding_container):
@@ -0,0 +1,433 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.ByteStreams;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Runs scripted multi-user scenarios against a LocalServer and prints, per endpoint, the
+ * throughput, p50/p99/p99.9 latency and how much the server allocated. See README.md for the
+ * scenarios and the system properties that size them.
+ *
+ * <p>Each scenario drives one endpoint, with every simulated user on a thread of its own sending
+ * requests back to back, first for a warm-up period and then for the measured one. Latencies are
+ * kept whole and sorted, so the percentiles are exact. Allocation is the growth of
+ * ThreadMXBean's allocated bytes over every thread but the clients', so it covers the container,
+ * the servlets and their pools, and not the load generator itself.
+ */
+public final class LoadTest {
+
+  private static final int USERS = Integer.getInteger("loadtest.users", 16);
+  private static final int SECONDS = Integer.getInteger("loadtest.seconds", 20);
+  private static final int WARMUP_SECONDS = Integer.getInteger("loadtest.warmup-seconds", 5);
+  private static final int IMAGES_PER_UPLOAD =
+      Integer.getInteger("loadtest.images-per-upload", 20);
+  private static final int IMAGE_BYTES = Integer.getInteger("loadtest.image-bytes", 50000);
+  private static final int DATASETS = Integer.getInteger("loadtest.datasets", 10);
+  private static final int THUMBNAILS = Integer.getInteger("loadtest.thumbnails", 100);
+  private static final int LISTED_DATASETS = Integer.getInteger("loadtest.listed-datasets", 500);
+  private static final int SERVER_THREADS = Integer.getInteger("loadtest.server-threads", 200);
+  private static final boolean ADMISSION = Boolean.getBoolean("loadtest.admission");
+  private static final String ACCEPT_ENCODING =
+      System.getProperty("loadtest.accept-encoding", "gzip");
+
+  private static final String THUMBNAIL_BUCKET = "embeddings_visualizer_output_bucket";
+  private static final String COORDINATES_BUCKET = "coordinates_json_bucket";
+  private static final int THUMBNAIL_SIZE = 32;
+  private static final int PAGE_SIZE = 50;
+  private static final byte[] JPEG_SIGNATURE = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+
+  private LoadTest() {}
+
+  /** What the simulated users do: one endpoint, requested over and over. */
+  enum Scenario {
+    LIST_DATASETS("list-datasets", "/dataset-names") {
+      @Override
+      int request(URI server, String user, Random random) throws IOException {
+        return get(server, "/dataset-names?limit=" + PAGE_SIZE, user);
+      }
+    },
+    VIEW_SPRITESHEETS("view-spritesheets", "/spritesheet-retrieval") {
+      @Override
+      int request(URI server, String user, Random random) throws IOException {
+        return get(server, "/spritesheet-retrieval?dataset=" + viewedDataset(random), user);
+      }
+    },
+    VIEW_COORDINATES("view-coordinates", "/coordinates-retrieval") {
+      @Override
+      int request(URI server, String user, Random random) throws IOException {
+        return get(server, "/coordinates-retrieval?dataset=" + viewedDataset(random), user);
+      }
+    },
+    UPLOAD_BURST("upload-burst", "/upload") {
+      @Override
+      int request(URI server, String user, Random random) throws IOException {
+        return upload(server, user, "burst-" + UUID.randomUUID(), random);
+      }
+    };
+
+    final String label;
+    final String endpoint;
+
+    Scenario(String label, String endpoint) {
+      this.label = label;
+      this.endpoint = endpoint;
+    }
+
+    /** Sends one request as user and returns its status code, having read the whole body. */
+    abstract int request(URI server, String user, Random random) throws IOException;
+
+    static Scenario forLabel(String label) {
+      for (Scenario scenario : values()) {
+        if (scenario.label.equals(label)) {
+          return scenario;
+        }
+      }
+      throw new IllegalArgumentException("Unknown scenario " + label + ", expected one of "
+          + Arrays.toString(Arrays.stream(values()).map(s -> s.label).toArray()));
+    }
+  }
+
+  /** Runs the scenarios named in args, or all of them, and prints a line for each. */
+  public static void main(String[] args) throws Exception {
+    List<Scenario> scenarios = new ArrayList<Scenario>();
+    for (String arg : args) {
+      scenarios.add(Scenario.forLabel(arg));
+    }
+    if (scenarios.isEmpty()) {
+      scenarios.addAll(Arrays.asList(Scenario.values()));
+    }
+
+    // The servlets log every request; that would be most of what is measured
+    Logger.getLogger("").setLevel(Level.WARNING);
+    // Lets every user keep its connection open between requests
+    System.setProperty("http.maxConnections", String.valueOf(USERS));
+
+    try (LocalServer server = LocalServer.start(SERVER_THREADS, ADMISSION)) {
+      System.out.printf("Seeding %d users with %d viewable datasets of %d thumbnails each%n",
+          USERS, DATASETS, THUMBNAILS);
+      seed(server);
+      System.out.printf("%d users, %ds warm-up, %ds measured, server at %s%n%n",
+          USERS, WARMUP_SECONDS, SECONDS, server.uri());
+      System.out.printf("%-18s %-24s %8s %6s %9s %9s %9s %9s %10s %10s%n", "scenario",
+          "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms",
+          "alloc MB/s", "KB/req");
+      for (Scenario scenario : scenarios) {
+        run(server.uri(), scenario, WARMUP_SECONDS);
+        Result result = run(server.uri(), scenario, SECONDS);
+        System.out.println(result);
+      }
+    }
+  }
+
+  /** Drives the scenario with every user for the given number of seconds. */
+  private static Result run(URI server, Scenario scenario, int seconds)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    List<Client> clients = new ArrayList<Client>();
+    Set<Long> clientIds = new HashSet<Long>();
+    for (int i = 0; i < USERS; i++) {
+      Client client = new Client(server, scenario, user(i), deadline, i);
+      clients.add(client);
+      clientIds.add(client.getId());
+    }
+
+    long allocatedBefore = serverAllocatedBytes(clientIds);
+    long start = System.nanoTime();
+    for (Client client : clients) {
+      client.start();
+    }
+    for (Client client : clients) {
+      client.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = serverAllocatedBytes(clientIds) - allocatedBefore;
+
+    Result result = new Result(scenario, elapsed, allocated);
+    for (Client client : clients) {
+      result.add(client);
+    }
+    return result;
+  }
+
+  /**
+   * Bytes allocated so far by the live threads that aren't clients. Threads that end while a
+   * scenario runs take their share with them, so pools that shrink are undercounted.
+   */
+  private static long serverAllocatedBytes(Set<Long> clientIds) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long total = 0;
+    long[] ids = threads.getAllThreadIds();
+    long[] allocated = threads.getThreadAllocatedBytes(ids);
+    for (int i = 0; i < ids.length; i++) {
+      if (allocated[i] > 0 && !clientIds.contains(ids[i])) {
+        total += allocated[i];
+      }
+    }
+    return total;
+  }
+
+  /** One simulated user, sending its scenario's requests back to back until the deadline. */
+  private static final class Client extends Thread {
+    private final URI server;
+    private final Scenario scenario;
+    private final String user;
+    private final long deadline;
+    private final Random random;
+    private long[] latencies = new long[1024];
+    private int count;
+    private int errors;
+
+    Client(URI server, Scenario scenario, String user, long deadline, long seed) {
+      super("loadtest-" + user);
+      this.server = server;
+      this.scenario = scenario;
+      this.user = user;
+      this.deadline = deadline;
+      this.random = new Random(seed);
+    }
+
+    @Override
+    public void run() {
+      while (System.nanoTime() < deadline) {
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+          int status = scenario.request(server, user, random);
+          ok = status < 400;
+        } catch (IOException e) {
+          ok = false;
+        }
+        if (count == latencies.length) {
+          latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = System.nanoTime() - start;
+        if (!ok) {
+          errors++;
+        }
+      }
+    }
+  }
+
+  /** What a scenario's clients measured, merged. */
+  private static final class Result {
+    private final Scenario scenario;
+    private final long elapsedNanos;
+    private final long allocatedBytes;
+    private long[] latencies = new long[0];
+    private int errors;
+
+    Result(Scenario scenario, long elapsedNanos, long allocatedBytes) {
+      this.scenario = scenario;
+      this.elapsedNanos = elapsedNanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    void add(Client client) {
+      int offset = latencies.length;
+      latencies = Arrays.copyOf(latencies, offset + client.count);
+      System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+      errors += client.errors;
+    }
+
+    /** The latency in milliseconds that the given fraction of requests took at most. */
+    private double percentileMillis(double fraction) {
+      if (latencies.length == 0) {
+        return Double.NaN;
+      }
+      int rank = (int) Math.ceil(fraction * latencies.length) - 1;
+      return latencies[Math.max(rank, 0)] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      Arrays.sort(latencies);
+      double seconds = elapsedNanos / 1e9;
+      int requests = latencies.length;
+      return String.format("%-18s %-24s %8d %6d %9.1f %9.2f %9.2f %9.2f %10.1f %10.1f",
+          scenario.label, scenario.endpoint, requests, errors, requests / seconds,
+          percentileMillis(0.5), percentileMillis(0.99), percentileMillis(0.999),
+          allocatedBytes / seconds / (1 << 20),
+          requests == 0 ? Double.NaN : allocatedBytes / (double) requests / 1024);
+    }
+  }
+
+  /**
+   * Gives every user DATASETS datasets to view, each with THUMBNAILS thumbnails and its
+   * coordinates.json, and LISTED_DATASETS more that only have metadata, to be listed.
+   */
+  private static void seed(LocalServer server) throws IOException {
+    Storage storage = server.storage();
+    MetadataStore metadataStore = server.services().metadataStore();
+    List<byte[]> thumbnails = new ArrayList<byte[]>();
+    String[] imageNames = new String[THUMBNAILS];
+    for (int i = 0; i < THUMBNAILS; i++) {
+      thumbnails.add(thumbnail(i));
+      imageNames[i] = "image" + i + ".jpg";
+    }
+    byte[] coordinates = coordinatesJson(imageNames);
+
+    for (int u = 0; u < USERS; u++) {
+      String user = user(u);
+      List<Metadata> metadata = new ArrayList<Metadata>();
+      for (int d = 0; d < DATASETS; d++) {
+        String dataset = "view-" + d;
+        metadata.add(Metadata.of(user, dataset, "DELG", "t-SNE", THUMBNAILS, d));
+        for (int i = 0; i < THUMBNAILS; i++) {
+          storage.create(BlobInfo.newBuilder(THUMBNAIL_BUCKET,
+              user + "/" + dataset + "/thumbnails/" + imageNames[i]).build(), thumbnails.get(i));
+        }
+        // Written through a channel, which gives it a generation as Cloud Storage would
+        try (WriteChannel writer = storage.writer(BlobInfo.newBuilder(COORDINATES_BUCKET,
+            user + "/" + dataset + "/coordinates.json").setContentType("application/json")
+            .build())) {
+          writer.write(ByteBuffer.wrap(coordinates));
+        }
+      }
+      for (int d = 0; d < LISTED_DATASETS; d++) {
+        metadata.add(Metadata.of(user, "listed-" + d, "DELG", "t-SNE", THUMBNAILS, DATASETS + d));
+      }
+      metadataStore.storeAll(metadata);
+    }
+  }
+
+  private static String user(int index) {
+    return "user" + index + "@example.com";
+  }
+
+  private static String viewedDataset(Random random) {
+    return "view-" + random.nextInt(DATASETS);
+  }
+
+  /** A small PNG of a different color for every index. */
+  private static byte[] thumbnail(int index) throws IOException {
+    BufferedImage image =
+        new BufferedImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setColor(Color.getHSBColor(index / (float) THUMBNAILS, 0.8f, 0.9f));
+    graphics.fillRect(0, 0, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+    graphics.dispose();
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", png);
+    return png.toByteArray();
+  }
+
+  private static byte[] coordinatesJson(String[] imageNames) throws IOException {
+    Random random = new Random(1);
+    float[] positions = new float[3 * imageNames.length];
+    for (int i = 0; i < positions.length; i++) {
+      positions[i] = random.nextFloat() * 100 - 50;
+    }
+    CharArrayWriter out = new CharArrayWriter();
+    // Only the names are written out, so the vectors can be empty
+    TsneCoordinates.writePoints(out, EmbeddingMatrix.of(imageNames, new float[0], 0), positions);
+    return out.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int get(URI server, String pathAndQuery, String user) throws IOException {
+    HttpURLConnection connection = open(server, pathAndQuery, user);
+    return finish(connection);
+  }
+
+  /**
+   * Posts the upload form with IMAGES_PER_UPLOAD random images, which never match an image
+   * seen before, so every one of them is written.
+   */
+  private static int upload(URI server, String user, String dataset, Random random)
+      throws IOException {
+    String boundary = "----loadtest" + Long.toHexString(random.nextLong());
+    ByteArrayOutputStream body = new ByteArrayOutputStream(IMAGES_PER_UPLOAD * IMAGE_BYTES + 1024);
+    writeAscii(body, "--" + boundary + "\r\nContent-Disposition: form-data; "
+        + "name=\"dataset-namer\"\r\n\r\n" + dataset + "\r\n");
+    byte[] image = new byte[IMAGE_BYTES];
+    for (int i = 0; i < IMAGES_PER_UPLOAD; i++) {
+      random.nextBytes(image);
+      System.arraycopy(JPEG_SIGNATURE, 0, image, 0, JPEG_SIGNATURE.length);
+      writeAscii(body, "--" + boundary + "\r\nContent-Disposition: form-data; "
+          + "name=\"file-upload-dialog\"; filename=\"image" + i + ".jpg\"\r\n"
+          + "Content-Type: image/jpeg\r\n\r\n");
+      body.write(image);
+      writeAscii(body, "\r\n");
+    }
+    writeAscii(body, "--" + boundary + "--\r\n");
+
+    HttpURLConnection connection = open(server, "/upload", user);
+    connection.setRequestMethod("POST");
+    connection.setInstanceFollowRedirects(false);
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+    connection.setFixedLengthStreamingMode(body.size());
+    try (OutputStream out = connection.getOutputStream()) {
+      body.writeTo(out);
+    }
+    return finish(connection);
+  }
+
+  private static HttpURLConnection open(URI server, String pathAndQuery, String user)
+      throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(server.resolve(pathAndQuery).toString()).openConnection();
+    connection.setRequestProperty(LocalServer.USER_HEADER, user);
+    if (!ACCEPT_ENCODING.isEmpty()) {
+      connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+    }
+    return connection;
+  }
+
+  /** Reads the whole response, so the connection can be kept for the next request. */
+  private static int finish(HttpURLConnection connection) throws IOException {
+    int status = connection.getResponseCode();
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    if (in != null) {
+      try (InputStream body = in) {
+        ByteStreams.exhaust(body);
+      }
+    }
+    return status;
+  }
+
+  private static void writeAscii(ByteArrayOutputStream out, String text) throws IOException {
+    out.write(text.getBytes(StandardCharsets.US_ASCII));
+  }
+}
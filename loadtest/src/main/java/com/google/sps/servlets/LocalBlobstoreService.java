@@ -0,0 +1,162 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.appengine.api.blobstore.FileInfo;
+import com.google.appengine.api.blobstore.UploadOptions;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A BlobstoreService that serves Cloud Storage keys ("/gs/bucket/object") by copying the object
+ * from Storage into the response on the calling thread. On App Engine the frontend streams the
+ * object after the servlet returns; here those bytes are part of the measured request. Only what
+ * ConditionalBlobServer needs is supported.
+ */
+final class LocalBlobstoreService implements BlobstoreService {
+
+  private static final String GS_PREFIX = "/gs/";
+
+  private final Storage storage;
+
+  LocalBlobstoreService(Storage storage) {
+    this.storage = storage;
+  }
+
+  @Override
+  public BlobKey createGsBlobKey(String filename) {
+    if (!filename.startsWith(GS_PREFIX) || filename.indexOf('/', GS_PREFIX.length()) < 0) {
+      throw new IllegalArgumentException("Not a Cloud Storage file name: " + filename);
+    }
+    return new BlobKey(filename);
+  }
+
+  @Override
+  public void serve(BlobKey blobKey, HttpServletResponse response) throws IOException {
+    Blob blob = blob(blobKey);
+    if (blob == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    copy(blob, 0, blob.getSize(), response);
+  }
+
+  @Override
+  public void serve(BlobKey blobKey, ByteRange byteRange, HttpServletResponse response)
+      throws IOException {
+    Blob blob = blob(blobKey);
+    if (blob == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    long end = byteRange.hasEnd() ? Math.min(byteRange.getEnd(), blob.getSize() - 1)
+        : blob.getSize() - 1;
+    copy(blob, byteRange.getStart(), end - byteRange.getStart() + 1, response);
+  }
+
+  @Override
+  public void serve(BlobKey blobKey, String rangeHeader, HttpServletResponse response)
+      throws IOException {
+    serve(blobKey, ByteRange.parse(rangeHeader), response);
+  }
+
+  @Override
+  public byte[] fetchData(BlobKey blobKey, long startIndex, long endIndex) {
+    Blob blob = blob(blobKey);
+    if (blob == null) {
+      throw new IllegalArgumentException("No such object: " + blobKey.getKeyString());
+    }
+    try (ReadChannel reader = blob.reader()) {
+      reader.seek(startIndex);
+      return ByteStreams.toByteArray(
+          ByteStreams.limit(Channels.newInputStream(reader), endIndex - startIndex + 1));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Blob blob(BlobKey blobKey) {
+    String name = blobKey.getKeyString().substring(GS_PREFIX.length());
+    int slash = name.indexOf('/');
+    return storage.get(BlobId.of(name.substring(0, slash), name.substring(slash + 1)));
+  }
+
+  private static void copy(Blob blob, long start, long length, HttpServletResponse response)
+      throws IOException {
+    if (blob.getContentType() != null) {
+      response.setContentType(blob.getContentType());
+    }
+    response.setContentLengthLong(length);
+    try (ReadChannel reader = blob.reader()) {
+      reader.seek(start);
+      InputStream in = ByteStreams.limit(Channels.newInputStream(reader), length);
+      ByteStreams.copy(in, response.getOutputStream());
+    }
+  }
+
+  @Override
+  public String createUploadUrl(String successPath) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public String createUploadUrl(String successPath, UploadOptions uploadOptions) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ByteRange getByteRange(HttpServletRequest request) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void delete(BlobKey... blobKeys) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Map<String, BlobKey> getUploadedBlobs(HttpServletRequest request) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Map<String, List<BlobKey>> getUploads(HttpServletRequest request) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Map<String, List<BlobInfo>> getBlobInfos(HttpServletRequest request) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Map<String, List<FileInfo>> getFileInfos(HttpServletRequest request) {
+    throw new UnsupportedOperationException();
+  }
+}
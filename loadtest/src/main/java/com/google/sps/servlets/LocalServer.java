@@ -0,0 +1,179 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * The Visualizer's upload, listing and retrieval servlets running in an embedded Jetty on an
+ * ephemeral port, backed by the local Datastore stub and in-memory Cloud Storage. Each request
+ * runs as the user named in its X-Load-User header, so one server can take many users at once.
+ */
+final class LocalServer implements Closeable {
+
+  static final String USER_HEADER = "X-Load-User";
+
+  private final Helper helper;
+  private final Storage storage;
+  private final ServiceRegistry services;
+  private final Server server;
+
+  private LocalServer(Helper helper, Storage storage, ServiceRegistry services, Server server) {
+    this.helper = helper;
+    this.storage = storage;
+    this.services = services;
+    this.server = server;
+  }
+
+  /**
+   * Starts a server with at most maxThreads container threads. AdmissionFilter is only installed
+   * on request, since its per-user rate would turn most of an upload burst away.
+   */
+  static LocalServer start(int maxThreads, boolean admission) throws Exception {
+    Helper helper = new Helper();
+    helper.setUp();
+    // Container and pool threads get an environment of their own on first use
+    ApiProxy.setEnvironmentFactory(helper::environment);
+
+    Storage storage = concurrentStorage();
+    LocalUserService userService = new LocalUserService();
+    ServiceRegistry services = new ServiceRegistry(storage,
+        DatastoreServiceFactory.getDatastoreService(), userService,
+        new LocalBlobstoreService(storage));
+
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/");
+    context.setAttribute(ServiceRegistry.ATTRIBUTE, services);
+
+    Filter userFilter = (request, response, chain) -> {
+      userService.setCurrentUser(((HttpServletRequest) request).getHeader(USER_HEADER));
+      try {
+        chain.doFilter(request, response);
+      } finally {
+        userService.setCurrentUser(null);
+      }
+    };
+    addFilter(context, userFilter, "/*");
+    addFilter(context, new MetricsFilter(), "/*");
+    if (admission) {
+      addFilter(context, new AdmissionFilter(), "/upload");
+    }
+
+    ServletHolder upload = addServlet(context, new UploadServlet(), "/upload");
+    upload.getRegistration().setMultipartConfig(new MultipartConfigElement(
+        Files.createTempDirectory("loadtest-upload").toString()));
+    addServlet(context, new DatasetNamesServlet(), "/dataset-names");
+    addServlet(context, new SpritesheetRetrievalServlet(), "/spritesheet-retrieval");
+    addServlet(context, new CoordinatesRetrievalServlet(), "/coordinates-retrieval");
+
+    Server server = new Server(new QueuedThreadPool(maxThreads));
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(0);
+    server.addConnector(connector);
+    server.setHandler(context);
+    server.start();
+    return new LocalServer(helper, storage, services, server);
+  }
+
+  URI uri() {
+    return server.getURI();
+  }
+
+  Storage storage() {
+    return storage;
+  }
+
+  ServiceRegistry services() {
+    return services;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      server.stop();
+    } catch (Exception e) {
+      throw new IOException(e);
+    } finally {
+      services.shutdown();
+      helper.tearDown();
+    }
+  }
+
+  private static void addFilter(ServletContextHandler context, Filter filter, String path) {
+    FilterHolder holder = new FilterHolder(filter);
+    holder.setAsyncSupported(true);
+    context.addFilter(holder, path, EnumSet.of(DispatcherType.REQUEST));
+  }
+
+  private static ServletHolder addServlet(ServletContextHandler context, HttpServlet servlet,
+      String path) {
+    ServletHolder holder = new ServletHolder(servlet);
+    holder.setAsyncSupported(true);
+    holder.setInitOrder(0);
+    context.addServlet(holder, path);
+    return holder;
+  }
+
+  /**
+   * In-memory Cloud Storage that many threads can use at once. LocalStorageHelper's fake keeps
+   * its objects in plain HashMaps, which are swapped for concurrent ones here.
+   */
+  private static Storage concurrentStorage() throws ReflectiveOperationException {
+    StorageOptions options = LocalStorageHelper.getOptions();
+    Object rpc = options.getRpc();
+    for (String name : new String[] {"metadata", "contents", "futureContents"}) {
+      Field field = rpc.getClass().getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(rpc, new ConcurrentHashMap<Object, Object>((Map<?, ?>) field.get(rpc)));
+    }
+    return options.getService();
+  }
+
+  /** The local Datastore, with a way to give every thread an environment that reaches it. */
+  private static final class Helper extends LocalServiceTestHelper {
+    Helper() {
+      super(new LocalDatastoreServiceTestConfig());
+    }
+
+    ApiProxy.Environment environment() {
+      return newEnvironment();
+    }
+  }
+}
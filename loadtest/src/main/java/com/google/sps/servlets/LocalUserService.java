@@ -0,0 +1,81 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import java.util.Set;
+
+/**
+ * A UserService whose current user is whoever LocalServer's filter says made the request on
+ * this thread, so many simulated users can share one server without logging in.
+ */
+final class LocalUserService implements UserService {
+
+  private static final String AUTH_DOMAIN = "example.com";
+
+  private final ThreadLocal<String> email = new ThreadLocal<String>();
+
+  /** Makes email the current user of this thread, or nobody if it is null. */
+  void setCurrentUser(String email) {
+    if (email == null) {
+      this.email.remove();
+    } else {
+      this.email.set(email);
+    }
+  }
+
+  @Override
+  public User getCurrentUser() {
+    String current = email.get();
+    return current == null ? null : new User(current, AUTH_DOMAIN);
+  }
+
+  @Override
+  public boolean isUserLoggedIn() {
+    return email.get() != null;
+  }
+
+  @Override
+  public boolean isUserAdmin() {
+    return false;
+  }
+
+  @Override
+  public String createLoginURL(String destinationURL) {
+    return destinationURL;
+  }
+
+  @Override
+  public String createLoginURL(String destinationURL, String authDomain) {
+    return destinationURL;
+  }
+
+  @Override
+  public String createLoginURL(String destinationURL, String authDomain, String federatedIdentity,
+      Set<String> attributesRequest) {
+    return destinationURL;
+  }
+
+  @Override
+  public String createLogoutURL(String destinationURL) {
+    return destinationURL;
+  }
+
+  @Override
+  public String createLogoutURL(String destinationURL, String authDomain) {
+    return destinationURL;
+  }
+}
@@ -0,0 +1,279 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which uploads may start, so a few users running many large uploads at once can't
+ * take an instance's memory and GCS bandwidth from everyone else. Configured through system
+ * properties set in appengine-web.xml:
+ *
+ * <ul>
+ *   <li>admission.user-rate-per-minute: uploads each user may start per minute.
+ *   <li>admission.user-burst: how many of those may start at once after a quiet spell.
+ *   <li>admission.max-in-flight-bytes: request bytes, by Content-Length, of all uploads in
+ *       flight. A larger request is let in only once nothing else is in flight.
+ *   <li>admission.max-in-flight-requests: uploads of all users in flight at once.
+ *   <li>admission.max-wait-millis: how long an upload may queue for in-flight room before it is
+ *       turned away.
+ * </ul>
+ *
+ * <p>Each user's rate is a token bucket kept as one theoretical arrival time, advanced by
+ * compare-and-set (the generic cell rate algorithm), so a check takes no lock and tells exactly
+ * when the next upload would be let in. The global limits are counters only ever raised while
+ * they stay within their cap; an upload that doesn't fit queues until a release wakes it. Uploads
+ * turned away get a RejectedException saying when to retry, which AdmissionFilter answers with
+ * 429 and Retry-After. Admissions, rejections, queueing and what is in flight are on /metrics.
+ *
+ * <p>Only starting an upload costs a token. Further requests of an upload already started, such
+ * as the chunks of an upload session, are metered by their bytes against the global limits.
+ *
+ * <p>All of this is kept in memory, so it holds per instance, not across the application. The
+ * global limits bound what one instance takes on, which matters because threadsafe instances
+ * serve many uploads at once. Each instance keeps its own bucket for a user, so a user whose
+ * uploads are spread over n instances may start up to n times their rate.
+ */
+public class AdmissionControl {
+
+  static final String RATE_PROPERTY = "admission.user-rate-per-minute";
+  static final String BURST_PROPERTY = "admission.user-burst";
+  static final String MAX_BYTES_PROPERTY = "admission.max-in-flight-bytes";
+  static final String MAX_REQUESTS_PROPERTY = "admission.max-in-flight-requests";
+  static final String MAX_WAIT_PROPERTY = "admission.max-wait-millis";
+
+  private static final int DEFAULT_RATE_PER_MINUTE = 30;
+  private static final int DEFAULT_BURST = 10;
+  private static final long DEFAULT_MAX_BYTES = 512L << 20;
+  private static final int DEFAULT_MAX_REQUESTS = 16;
+  private static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+
+  // Users idle for longer than this have a full bucket anyway
+  private static final long BUCKET_IDLE_MINUTES = 10;
+  private static final long MAX_USERS = 100000;
+  // An upload that found no room can try again as soon as some has freed up
+  private static final long CAPACITY_RETRY_SECONDS = 1;
+
+  private final Ticker ticker;
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final long maxBytes;
+  private final long maxRequests;
+  private final long maxWaitNanos;
+
+  // Each user's theoretical arrival time: when their bucket will be full again
+  private final Cache<String, AtomicLong> arrivals;
+  private final AtomicLong inFlightBytes = new AtomicLong();
+  private final AtomicLong inFlightRequests = new AtomicLong();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final Object released = new Object();
+
+  private final LongAdder admitted;
+  private final LongAdder rateRejections;
+  private final LongAdder capacityRejections;
+  private final LatencyHistogram queueLatency;
+
+  public AdmissionControl(int ratePerMinute, int burst, long maxBytes, int maxRequests,
+      long maxWaitMillis, Metrics metrics, Ticker ticker) {
+    this.ticker = ticker;
+    this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / ratePerMinute;
+    this.burstNanos = intervalNanos * burst;
+    this.maxBytes = maxBytes;
+    this.maxRequests = maxRequests;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.arrivals = CacheBuilder.newBuilder().maximumSize(MAX_USERS)
+        .expireAfterAccess(BUCKET_IDLE_MINUTES, TimeUnit.MINUTES).ticker(ticker).build();
+    this.admitted = metrics.counter("admission_admitted_total", "Uploads let in.");
+    this.rateRejections = metrics.counter("admission_rejected_total",
+        "Uploads turned away with 429, by reason.", "reason", "rate");
+    this.capacityRejections = metrics.counter("admission_rejected_total",
+        "Uploads turned away with 429, by reason.", "reason", "capacity");
+    this.queueLatency = metrics.histogram("admission_queue_seconds",
+        "Time uploads that found no room waited for it, whether they got in or not.");
+    metrics.gauge("admission_in_flight_bytes", "Request bytes of the uploads in flight.",
+        inFlightBytes::get);
+    metrics.gauge("admission_in_flight_requests", "Uploads in flight.", inFlightRequests::get);
+    metrics.gauge("admission_queued_requests", "Uploads waiting for room.", waiting::get);
+  }
+
+  /**
+   * Creates an instance configured through the admission.* system properties set in
+   * appengine-web.xml.
+   */
+  public static AdmissionControl fromSystemProperties(ServiceRegistry services) {
+    return new AdmissionControl(Integer.getInteger(RATE_PROPERTY, DEFAULT_RATE_PER_MINUTE),
+        Integer.getInteger(BURST_PROPERTY, DEFAULT_BURST),
+        Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+        Integer.getInteger(MAX_REQUESTS_PROPERTY, DEFAULT_MAX_REQUESTS),
+        Long.getLong(MAX_WAIT_PROPERTY, DEFAULT_MAX_WAIT_MILLIS), services.metrics(),
+        Ticker.systemTicker());
+  }
+
+  /** An upload was turned away; it may be retried after retryAfterSeconds. */
+  public static class RejectedException extends Exception {
+    private final long retryAfterSeconds;
+
+    RejectedException(String message, long retryAfterSeconds) {
+      super(message);
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long retryAfterSeconds() {
+      return retryAfterSeconds;
+    }
+  }
+
+  /** The room an admitted upload holds, given back when it is closed. */
+  public final class Permit implements AutoCloseable {
+    private final long bytes;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Permit(long bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        release(bytes);
+      }
+    }
+  }
+
+  /**
+   * Lets a user start an upload of the given number of request bytes, queueing for room up to
+   * the maximum wait. Pass 0 bytes if the length isn't known.
+   *
+   * @throws RejectedException if the user is over their rate or no room freed up in time
+   */
+  public Permit admit(String user, long bytes) throws RejectedException {
+    long now = ticker.read();
+    AtomicLong arrival = takeToken(user, now);
+    try {
+      return reserve(bytes, now);
+    } catch (RejectedException e) {
+      // The user didn't get to upload, so the token is handed back
+      arrival.addAndGet(-intervalNanos);
+      throw e;
+    }
+  }
+
+  /**
+   * Lets in a further request of an upload already started, of the given number of request
+   * bytes, queueing for room like admit but costing no token.
+   *
+   * @throws RejectedException if no room freed up in time
+   */
+  public Permit admitChunk(long bytes) throws RejectedException {
+    return reserve(bytes, ticker.read());
+  }
+
+  /** Takes one of the user's tokens and returns their theoretical arrival time. */
+  private AtomicLong takeToken(String user, long now) throws RejectedException {
+    AtomicLong arrival = arrivals.asMap().computeIfAbsent(user, key -> new AtomicLong(now));
+    while (true) {
+      long current = arrival.get();
+      long next = Math.max(current, now) + intervalNanos;
+      long early = next - now - burstNanos;
+      if (early > 0) {
+        rateRejections.increment();
+        throw new RejectedException("Too many uploads", secondsRoundedUp(early));
+      }
+      if (arrival.compareAndSet(current, next)) {
+        return arrival;
+      }
+    }
+  }
+
+  private Permit reserve(long bytes, long now) throws RejectedException {
+    // A request larger than the cap can't ever fit, so it goes once nothing else is in flight
+    long reserved = Math.min(bytes, maxBytes);
+    if (!tryReserve(reserved) && !awaitRoom(reserved, now)) {
+      capacityRejections.increment();
+      throw new RejectedException("Too many uploads in flight", CAPACITY_RETRY_SECONDS);
+    }
+    admitted.increment();
+    return new Permit(reserved);
+  }
+
+  private boolean awaitRoom(long bytes, long start) {
+    long deadline = start + maxWaitNanos;
+    waiting.incrementAndGet();
+    try {
+      synchronized (released) {
+        while (!tryReserve(bytes)) {
+          long remaining = deadline - ticker.read();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(released, remaining);
+        }
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waiting.decrementAndGet();
+      queueLatency.record(ticker.read() - start);
+    }
+  }
+
+  private boolean tryReserve(long bytes) {
+    if (!tryAdd(inFlightRequests, 1, maxRequests)) {
+      return false;
+    }
+    if (!tryAdd(inFlightBytes, bytes, maxBytes)) {
+      inFlightRequests.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private void release(long bytes) {
+    inFlightBytes.addAndGet(-bytes);
+    inFlightRequests.decrementAndGet();
+    // Waiters count themselves before they check for room, so none misses this
+    if (waiting.get() > 0) {
+      synchronized (released) {
+        released.notifyAll();
+      }
+    }
+  }
+
+  /** Adds delta to the counter unless that would take it over the cap. */
+  private static boolean tryAdd(AtomicLong counter, long delta, long cap) {
+    while (true) {
+      long current = counter.get();
+      if (current + delta > cap) {
+        return false;
+      }
+      if (counter.compareAndSet(current, current + delta)) {
+        return true;
+      }
+    }
+  }
+
+  private static long secondsRoundedUp(long nanos) {
+    return (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the requests that send image data, POSTs and PUTs to /upload and /upload-session, past
+ * AdmissionControl, answering the ones it turns away with 429 and Retry-After before their body
+ * is read. A POST to /upload and opening an upload session count against the user's rate;
+ * chunks and commits of a session only take room by their bytes. Signed-out requests are
+ * limited by address. The retrieval servlets aren't held up, so viewers aren't queued behind
+ * bulk uploads.
+ */
+@WebFilter(urlPatterns = {"/upload", "/upload-session"}, asyncSupported = true)
+public class AdmissionFilter implements Filter {
+
+  static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private AdmissionControl admission;
+  private UserService userService;
+
+  @Override
+  public void init(FilterConfig config) {
+    ServiceRegistry services = ServiceRegistry.get(config.getServletContext());
+    admission = services.admissionControl();
+    userService = services.userService();
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    String method = ((HttpServletRequest) request).getMethod();
+    if (!"POST".equals(method) && !"PUT".equals(method)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    User user = userService.getCurrentUser();
+    String client = user != null ? user.getEmail() : request.getRemoteAddr();
+    long bytes = Math.max(0, request.getContentLengthLong());
+    AdmissionControl.Permit permit;
+    try {
+      permit = startsUpload((HttpServletRequest) request)
+          ? admission.admit(client, bytes) : admission.admitChunk(bytes);
+    } catch (AdmissionControl.RejectedException e) {
+      HttpServletResponse httpResponse = (HttpServletResponse) response;
+      httpResponse.setHeader("Retry-After", String.valueOf(e.retryAfterSeconds()));
+      httpResponse.sendError(SC_TOO_MANY_REQUESTS, e.getMessage());
+      return;
+    }
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      permit.close();
+    }
+  }
+
+  /**
+   * Whether a request starts an upload: a POST to /upload, or one opening an upload session
+   * rather than committing it. An /upload-session POST carries no body, so reading its
+   * parameters here costs nothing.
+   */
+  private static boolean startsUpload(HttpServletRequest request) {
+    if (!"POST".equals(request.getMethod())) {
+      return false;
+    }
+    return !"/upload-session".equals(request.getServletPath())
+        || !Boolean.parseBoolean(request.getParameter("commit"));
+  }
+
+  @Override
+  public void destroy() {}
+}
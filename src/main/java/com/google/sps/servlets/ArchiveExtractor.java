@@ -0,0 +1,162 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Writes the images of an archive uploaded to /upload into a dataset's folder, reading the
+ * archive as a stream, configured through a system property set in appengine-web.xml:
+ *
+ * <ul>
+ *   <li>upload.archive-buffer-bytes: how much of the archive's images may be held in memory
+ *       while they are written to GCS. A larger image is skipped.
+ * </ul>
+ *
+ * <p>Each entry is read into memory, checked and handed to a ParallelUploader batch, which
+ * writes it while the next entries are read; nothing is written to disk. Only files with an
+ * image extension whose contents start the way that kind of image does are kept. Folders in the
+ * archive are flattened, and of several images with the same name the first is kept.
+ */
+public class ArchiveExtractor {
+
+  static final String BUFFER_BYTES_PROPERTY = "upload.archive-buffer-bytes";
+
+  private static final int DEFAULT_BUFFER_BYTES = 64 << 20;
+
+  private final ParallelUploader uploader;
+  private final int maxBufferedBytes;
+
+  public ArchiveExtractor(ParallelUploader uploader, int maxBufferedBytes) {
+    this.uploader = uploader;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  /**
+   * Creates an extractor writing through the registry's uploader, configured through the
+   * upload.archive-buffer-bytes system property set in appengine-web.xml.
+   */
+  public static ArchiveExtractor fromSystemProperties(ServiceRegistry services) {
+    return new ArchiveExtractor(services.uploader(),
+        Integer.getInteger(BUFFER_BYTES_PROPERTY, DEFAULT_BUFFER_BYTES));
+  }
+
+  /**
+   * Writes the images of the archive into the bucket under the folder, which ends with a
+   * slash, and returns object name -> SHA-256 of every image that was written. If the archive
+   * turns out to be corrupt part way, the images written so far are deleted again before the
+   * error is thrown, so nothing of it is kept.
+   *
+   * @throws ArchiveReader.MalformedArchiveException if the stream isn't a ZIP or TAR archive
+   */
+  public ImmutableMap<String, String> extract(InputStream archive, String bucketName,
+      String folder) throws IOException {
+    return extract(archive, bucketName, folder, objectName -> true);
+  }
+
+  /**
+   * Like extract(), but only writes images whose object name isNew accepts, which is asked
+   * before the image is read.
+   */
+  public ImmutableMap<String, String> extract(InputStream archive, String bucketName,
+      String folder, Predicate<String> isNew) throws IOException {
+    Map<String, String> hashes = new LinkedHashMap<String, String>();
+    Set<String> fileNames = new HashSet<String>();
+    ParallelUploader.Batch batch = uploader.start(bucketName, maxBufferedBytes);
+    try (ArchiveReader reader = ArchiveReader.open(archive)) {
+      for (String path = reader.next(); path != null; path = reader.next()) {
+        String fileName = fileName(path);
+        if (fileName == null || fileNames.contains(fileName)
+            || reader.size() > maxBufferedBytes || !isNew.test(folder + fileName)) {
+          continue;
+        }
+        // One byte over the budget is enough to tell an entry whose size wasn't recorded is
+        // too large
+        byte[] contents =
+            ByteStreams.toByteArray(ByteStreams.limit(reader.entry(), maxBufferedBytes + 1L));
+        if (contents.length > maxBufferedBytes || !isImage(fileName, contents)) {
+          continue;
+        }
+        fileNames.add(fileName);
+        hashes.put(folder + fileName, ContentIndex.sha256(ByteSource.wrap(contents)));
+        batch.add(folder + fileName, contents);
+      }
+    } catch (IOException | RuntimeException e) {
+      // The user will send the archive again; what was written of this one would be orphaned
+      batch.finish();
+      uploader.delete(bucketName, hashes.keySet());
+      throw e;
+    }
+    ParallelUploader.UploadResult result = batch.finish();
+    hashes.keySet().retainAll(result.uploaded());
+    return ImmutableMap.copyOf(hashes);
+  }
+
+  /**
+   * Returns the name an archive entry is stored under, the last part of its path, or null for
+   * hidden files and the resource forks macOS adds to archives.
+   */
+  static String fileName(String path) {
+    String normalized = path.replace('\\', '/');
+    if (normalized.startsWith("__MACOSX/") || normalized.contains("/__MACOSX/")) {
+      return null;
+    }
+    String fileName = normalized.substring(normalized.lastIndexOf('/') + 1);
+    return fileName.isEmpty() || fileName.startsWith(".") ? null : fileName;
+  }
+
+  /** Checks that the contents start with the signature of the type the extension names. */
+  static boolean isImage(String fileName, byte[] contents) {
+    String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    switch (extension) {
+      case "jpg":
+      case "jpeg":
+        return startsWith(contents, 0, 0xff, 0xd8, 0xff);
+      case "png":
+        return startsWith(contents, 0, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n');
+      case "gif":
+        return startsWith(contents, 0, 'G', 'I', 'F', '8');
+      case "bmp":
+        return startsWith(contents, 0, 'B', 'M');
+      case "webp":
+        return startsWith(contents, 0, 'R', 'I', 'F', 'F')
+            && startsWith(contents, 8, 'W', 'E', 'B', 'P');
+      default:
+        return false;
+    }
+  }
+
+  private static boolean startsWith(byte[] contents, int offset, int... signature) {
+    if (contents.length < offset + signature.length) {
+      return false;
+    }
+    for (int i = 0; i < signature.length; i++) {
+      if ((contents[offset + i] & 0xff) != signature[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
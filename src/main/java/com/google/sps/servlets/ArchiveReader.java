@@ -0,0 +1,320 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the regular files of a ZIP, TAR or gzipped TAR archive from a stream, one entry at a
+ * time, without buffering the archive or writing it to disk. The format is told from the first
+ * bytes of the stream.
+ *
+ * <p>TAR archives may be ustar, GNU (with long names) or pax (with long paths); directories,
+ * links and other special entries are skipped.
+ */
+public final class ArchiveReader implements Closeable {
+
+  private static final int BLOCK_SIZE = 512;
+  private static final int GZIP_MAGIC_LENGTH = 2;
+  private static final int ZIP_MAGIC_LENGTH = 4;
+  // Long names and pax headers are read whole, so a corrupt size mustn't allocate much
+  private static final int MAX_METADATA_BYTES = 1 << 20;
+
+  private final InputStream in;
+  private final ZipInputStream zip;
+
+  // The TAR entry being read: its unread bytes, and the padding up to the next header
+  private long remaining;
+  private long padding;
+  private long size = -1;
+
+  private ArchiveReader(InputStream in, boolean isZip) {
+    this.in = in;
+    this.zip = isZip ? new ZipInputStream(in) : null;
+  }
+
+  /** The stream isn't a ZIP or TAR archive, or is corrupt. */
+  public static class MalformedArchiveException extends IOException {
+    MalformedArchiveException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Starts reading the archive in the stream, which is closed with the reader.
+   *
+   * @throws MalformedArchiveException if the stream isn't a ZIP, TAR or gzipped TAR archive
+   */
+  public static ArchiveReader open(InputStream in) throws IOException {
+    InputStream buffered = new BufferedInputStream(in);
+    byte[] magic = peek(buffered, GZIP_MAGIC_LENGTH);
+    if (magic.length == GZIP_MAGIC_LENGTH && (magic[0] & 0xff) == 0x1f
+        && (magic[1] & 0xff) == 0x8b) {
+      buffered = new BufferedInputStream(new GZIPInputStream(buffered));
+    }
+    magic = peek(buffered, ZIP_MAGIC_LENGTH);
+    if (magic.length == ZIP_MAGIC_LENGTH && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3
+        && magic[3] == 4) {
+      return new ArchiveReader(buffered, true);
+    }
+    byte[] header = peek(buffered, BLOCK_SIZE);
+    if (header.length == BLOCK_SIZE && hasValidChecksum(header)) {
+      return new ArchiveReader(buffered, false);
+    }
+    throw new MalformedArchiveException("Not a ZIP or TAR archive");
+  }
+
+  /**
+   * Moves to the next regular file of the archive and returns its path within the archive, or
+   * returns null after the last one.
+   */
+  public String next() throws IOException {
+    return zip != null ? nextZipEntry() : nextTarEntry();
+  }
+
+  /** The size of the current entry, or -1 if the archive doesn't record it up front. */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Returns the contents of the current entry. The stream ends with the entry, and closing it
+   * leaves the archive open.
+   */
+  public InputStream entry() {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int offset, int length) throws IOException {
+        if (zip != null) {
+          return zip.read(b, offset, length);
+        }
+        if (remaining == 0) {
+          return -1;
+        }
+        int read = in.read(b, offset, (int) Math.min(length, remaining));
+        if (read == -1) {
+          throw new MalformedArchiveException("Truncated TAR entry");
+        }
+        remaining -= read;
+        return read;
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    (zip != null ? zip : in).close();
+  }
+
+  private String nextZipEntry() throws IOException {
+    for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+      if (!entry.isDirectory()) {
+        size = entry.getSize();
+        return entry.getName();
+      }
+    }
+    return null;
+  }
+
+  private String nextTarEntry() throws IOException {
+    skipFully(remaining + padding);
+    String longName = null;
+    byte[] header = new byte[BLOCK_SIZE];
+    while (true) {
+      int read = ByteStreams.read(in, header, 0, BLOCK_SIZE);
+      // Archives end with zero blocks, though some writers leave them out
+      if (read == 0 || isZero(header)) {
+        return null;
+      }
+      if (read < BLOCK_SIZE || !hasValidChecksum(header)) {
+        throw new MalformedArchiveException("Corrupt TAR header");
+      }
+      long entrySize = number(header, 124, 12);
+      remaining = entrySize;
+      padding = (BLOCK_SIZE - entrySize % BLOCK_SIZE) % BLOCK_SIZE;
+      byte type = header[156];
+      if (type == 'L' || type == 'x') {
+        // A GNU long name or a pax header, applying to the entry that follows
+        byte[] data = readEntry(entrySize);
+        String name = type == 'L' ? string(data, 0, data.length) : paxPath(data);
+        longName = name != null ? name : longName;
+        continue;
+      }
+      if (type != '0' && type != 0 && type != '7') {
+        skipFully(remaining + padding);
+        longName = null;
+        continue;
+      }
+      size = entrySize;
+      if (longName != null) {
+        return longName;
+      }
+      String name = string(header, 0, 100);
+      String prefix = isUstar(header) ? string(header, 345, 155) : "";
+      return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+  }
+
+  /** Reads a small metadata entry whole. */
+  private byte[] readEntry(long entrySize) throws IOException {
+    if (entrySize > MAX_METADATA_BYTES) {
+      throw new MalformedArchiveException("Oversized TAR metadata entry");
+    }
+    byte[] data = new byte[(int) entrySize];
+    if (ByteStreams.read(in, data, 0, data.length) < data.length) {
+      throw new MalformedArchiveException("Truncated TAR entry");
+    }
+    remaining = 0;
+    skipFully(padding);
+    padding = 0;
+    return data;
+  }
+
+  private void skipFully(long count) throws IOException {
+    ByteStreams.skipFully(in, count);
+    remaining = 0;
+    padding = 0;
+  }
+
+  /** Returns the path of pax records, lines of "length key=value", or null if there is none. */
+  private static String paxPath(byte[] data) throws MalformedArchiveException {
+    String path = null;
+    int start = 0;
+    while (start < data.length) {
+      int space = start;
+      while (space < data.length && data[space] != ' ') {
+        space++;
+      }
+      int length;
+      try {
+        length = Integer.parseInt(new String(data, start, space - start, StandardCharsets.UTF_8));
+      } catch (NumberFormatException e) {
+        throw new MalformedArchiveException("Corrupt pax header");
+      }
+      if (length <= space - start || start + length > data.length) {
+        throw new MalformedArchiveException("Corrupt pax header");
+      }
+      String record = new String(data, space + 1, start + length - space - 2,
+          StandardCharsets.UTF_8);
+      if (record.startsWith("path=")) {
+        path = record.substring("path=".length());
+      }
+      start += length;
+    }
+    return path;
+  }
+
+  /**
+   * Parses a numeric header field: octal digits ending with a space or NUL, or, for large
+   * values, a GNU big-endian binary number flagged by the top bit of the first byte.
+   */
+  private static long number(byte[] header, int offset, int length)
+      throws MalformedArchiveException {
+    if ((header[offset] & 0x80) != 0) {
+      long value = 0;
+      for (int i = offset + 1; i < offset + length; i++) {
+        value = (value << 8) | (header[i] & 0xff);
+      }
+      if (value < 0) {
+        throw new MalformedArchiveException("Corrupt TAR header");
+      }
+      return value;
+    }
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = header[i];
+      if (b == 0 || (b == ' ' && value > 0)) {
+        break;
+      }
+      if (b == ' ') {
+        continue;
+      }
+      if (b < '0' || b > '7') {
+        throw new MalformedArchiveException("Corrupt TAR header");
+      }
+      value = value * 8 + (b - '0');
+    }
+    return value;
+  }
+
+  /** Checks the header sum, taken with the checksum field itself as spaces. */
+  private static boolean hasValidChecksum(byte[] header) {
+    long expected;
+    try {
+      expected = number(header, 148, 8);
+    } catch (MalformedArchiveException e) {
+      return false;
+    }
+    long unsigned = 0;
+    long signed = 0;
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      byte b = i >= 148 && i < 156 ? (byte) ' ' : header[i];
+      unsigned += b & 0xff;
+      // Some old writers summed signed bytes
+      signed += b;
+    }
+    return expected == unsigned || expected == signed;
+  }
+
+  /** Only POSIX ustar headers have a name prefix; GNU ones keep other fields there. */
+  private static boolean isUstar(byte[] header) {
+    return string(header, 257, 6).equals("ustar");
+  }
+
+  private static boolean isZero(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Reads a NUL terminated string field. */
+  private static String string(byte[] bytes, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && bytes[end] != 0) {
+      end++;
+    }
+    return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  /** Returns up to count bytes from the start of the stream without consuming them. */
+  private static byte[] peek(InputStream in, int count) throws IOException {
+    in.mark(count);
+    byte[] bytes = new byte[count];
+    int read = ByteStreams.read(in, bytes, 0, count);
+    in.reset();
+    return read == count ? bytes : Arrays.copyOf(bytes, read);
+  }
+}
@@ -0,0 +1,321 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the backend work of a retrieval request on a dedicated I/O pool instead of the container
+ * thread, configured through system properties set in appengine-web.xml:
+ *
+ * <ul>
+ *   <li>async.threads: size of the I/O pool shared by the retrieval servlets.
+ *   <li>async.timeout-seconds: how long a request may take before it is answered with 503 and
+ *       its work is cancelled.
+ * </ul>
+ *
+ * <p>The request is put into async mode and the container thread returns straight away. A
+ * Handler then does the Datastore and GCS calls on the pool; if it returns a BodySource, the body
+ * is written with a WriteListener, fetching the next piece on the pool only once the previous one
+ * has been accepted, so a slow client holds neither a thread nor more than one piece in memory.
+ * A client that disconnects or a request that times out has its pending work cancelled.
+ *
+ * <p>This frees capacity because the application is threadsafe (see appengine-web.xml): the
+ * instance takes other requests while the container thread is back in its pool. Without that,
+ * App Engine would send an instance nothing new until the async context completed.
+ *
+ * <p>The App Engine API environment of the request is carried over to the pool, so Datastore and
+ * Blobstore calls work from there. Requests that can't go async (a filter in front of the
+ * servlet doesn't support it) are served inline with blocking writes.
+ */
+public class AsyncRetrieval {
+
+  static final String THREADS_PROPERTY = "async.threads";
+  static final String TIMEOUT_PROPERTY = "async.timeout-seconds";
+
+  private static final int DEFAULT_THREADS = 16;
+  private static final long DEFAULT_TIMEOUT_SECONDS = 50;
+
+  private static final Logger log = Logger.getLogger(AsyncRetrieval.class.getName());
+
+  private final ExecutorService executor;
+  private final long timeoutMillis;
+
+  public AsyncRetrieval(ExecutorService executor, long timeoutMillis) {
+    this.executor = executor;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Creates an instance with a daemon I/O pool managed by the registry, configured through the
+   * async.* system properties set in appengine-web.xml.
+   */
+  public static AsyncRetrieval fromSystemProperties(ServiceRegistry services) {
+    ExecutorService executor = services.manage(Executors.newFixedThreadPool(
+        Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+        new ThreadFactoryBuilder().setNameFormat("retrieval-io-%d").setDaemon(true).build()));
+    return new AsyncRetrieval(executor,
+        TimeUnit.SECONDS.toMillis(Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_SECONDS)));
+  }
+
+  /** The blocking part of a request, run on the I/O pool. */
+  public interface Handler {
+    /**
+     * Responds to the request, or sets the headers and returns the source of the body to be
+     * written without blocking. Returns null once the response is complete.
+     */
+    BodySource handle() throws IOException, InterruptedException;
+  }
+
+  /** A response body produced a piece at a time on the I/O pool. */
+  public interface BodySource {
+    /** Returns the next piece of the body, or null after the last one. */
+    byte[] next() throws IOException, InterruptedException;
+  }
+
+  /**
+   * Serves the request with the handler, asynchronously when the request supports it.
+   */
+  public void serve(HttpServletRequest request, HttpServletResponse response, Handler handler)
+      throws IOException {
+    if (!request.isAsyncSupported()) {
+      serveInline(response, handler);
+      return;
+    }
+    AsyncContext context = request.startAsync(request, response);
+    context.setTimeout(timeoutMillis);
+    Exchange exchange = new Exchange(context, response);
+    context.addListener(exchange);
+    exchange.start(handler);
+  }
+
+  private static void serveInline(HttpServletResponse response, Handler handler)
+      throws IOException {
+    try {
+      BodySource source = handler.handle();
+      if (source == null) {
+        return;
+      }
+      ServletOutputStream out = response.getOutputStream();
+      for (byte[] chunk = source.next(); chunk != null; chunk = source.next()) {
+        out.write(chunk);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  /** The state of one async request, from starting the handler to completing the context. */
+  private final class Exchange implements AsyncListener, WriteListener {
+    private final AsyncContext context;
+    private final HttpServletResponse response;
+    private final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean fetching = new AtomicBoolean();
+    private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<byte[]>();
+    // The handler or body fetch currently running on the pool, cancelled if the request ends
+    private volatile Future<?> pending;
+    private volatile BodySource source;
+    private volatile boolean exhausted;
+    private volatile ServletOutputStream out;
+
+    Exchange(AsyncContext context, HttpServletResponse response) {
+      this.context = context;
+      this.response = response;
+    }
+
+    void start(Handler handler) {
+      submit(() -> {
+        BodySource body = handler.handle();
+        if (body == null) {
+          finish();
+          return;
+        }
+        source = body;
+        out = response.getOutputStream();
+        // The container calls onWritePossible once the stream can take the first piece
+        out.setWriteListener(this);
+      });
+    }
+
+    @Override
+    public void onWritePossible() {
+      drain();
+    }
+
+    /**
+     * Writes queued pieces while the stream is ready, then fetches the next piece if none is
+     * queued. Called by the container and by fetches; only one caller writes at a time.
+     */
+    private void drain() {
+      while (!done.get() && draining.compareAndSet(false, true)) {
+        try {
+          while (true) {
+            if (!out.isReady()) {
+              // The container calls onWritePossible again once the client has caught up
+              return;
+            }
+            byte[] chunk = chunks.poll();
+            if (chunk == null) {
+              break;
+            }
+            out.write(chunk);
+          }
+          if (exhausted) {
+            finish();
+            return;
+          }
+          if (fetching.compareAndSet(false, true)) {
+            fetch();
+          }
+        } catch (IOException e) {
+          onError(e);
+          return;
+        } finally {
+          draining.set(false);
+        }
+        // A fetch that finished while we held the flag couldn't drain itself, so go again
+        if (chunks.isEmpty() && !exhausted) {
+          return;
+        }
+      }
+    }
+
+    private void fetch() {
+      submit(() -> {
+        try {
+          byte[] chunk = source.next();
+          if (chunk == null) {
+            exhausted = true;
+          } else {
+            chunks.offer(chunk);
+          }
+        } finally {
+          fetching.set(false);
+        }
+        drain();
+      });
+    }
+
+    /** Runs work on the pool with the request's API environment. */
+    private void submit(Work work) {
+      pending = executor.submit(() -> {
+        if (environment != null) {
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+        }
+        try {
+          work.run();
+        } catch (InterruptedException e) {
+          // Cancelled by a timeout or disconnect, which has completed the request already
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+        } finally {
+          if (environment != null) {
+            ApiProxy.clearEnvironmentForCurrentThread();
+          }
+        }
+      });
+    }
+
+    private void finish() {
+      if (done.compareAndSet(false, true)) {
+        context.complete();
+      }
+    }
+
+    private void fail(Throwable e) {
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      log.log(Level.WARNING, "Retrieval failed", e);
+      try {
+        if (!response.isCommitted()) {
+          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+      } catch (IOException | IllegalStateException ignored) {
+        // The client is gone
+      }
+      context.complete();
+    }
+
+    /** Stops whatever is running for this request once it has ended. */
+    private void cancel() {
+      Future<?> work = pending;
+      if (work != null) {
+        work.cancel(true);
+      }
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      cancel();
+      if (!response.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      }
+      context.complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      onError(event.getThrowable());
+    }
+
+    /** The client disconnected or the write failed, so there is nobody left to respond to. */
+    @Override
+    public void onError(Throwable t) {
+      if (done.compareAndSet(false, true)) {
+        cancel();
+        context.complete();
+      }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      if (done.compareAndSet(false, true)) {
+        cancel();
+      }
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+  }
+
+  private interface Work {
+    void run() throws IOException, InterruptedException;
+  }
+}
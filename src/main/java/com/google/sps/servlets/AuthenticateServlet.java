@@ -15,7 +15,6 @@
 package com.google.sps.servlets;
 
 import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
 import java.io.IOException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -25,11 +24,18 @@ import javax.servlet.http.HttpServletResponse;
 @WebServlet("/authenticate")
 public class AuthenticateServlet extends HttpServlet {
 
+  private UserService userService;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+  }
+
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     response.setContentType("text/html");
 
-    UserService userService = UserServiceFactory.getUserService();
     if (userService.isUserLoggedIn()) {
       String urlToRedirectToAfterUserLogsOut = "/index.html";
       String logoutUrl = userService.createLogoutURL(urlToRedirectToAfterUserLogsOut);
@@ -0,0 +1,622 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes 3-D t-SNE coordinates for the rows of an EmbeddingMatrix, using the Barnes-Hut
+ * approximation (van der Maaten, 2014) so each iteration is O(n log n) rather than O(n^2).
+ *
+ * <p>Input similarities are computed over each row's 3 * perplexity nearest neighbours, found
+ * exactly for small datasets and with an HnswIndex for larger ones, and use the squared
+ * Euclidean distance of the unit-length rows. Each iteration rebuilds an octree over the
+ * current layout; attractive and repulsive forces for every point are then computed in
+ * parallel on a fork-join pool. All per-point state lives in primitive arrays that are
+ * allocated once per run.
+ *
+ * <p>The optimizer follows scikit-learn's: early exaggeration of 12 for the first 250
+ * iterations, momentum 0.5 then 0.8, per-coordinate adaptive gains and a learning rate of
+ * max(n / 48, 50).
+ *
+ * <p>embedIncremental() places new rows against a frozen layout: only the new rows move, their
+ * attractive forces use their own conditional similarities, and the normalization is updated
+ * from the change in the new rows' terms rather than recomputed over every pair.
+ */
+public final class BarnesHutTsne {
+
+  static final double DEFAULT_PERPLEXITY = 30;
+  static final double DEFAULT_THETA = 0.5;
+  static final int DEFAULT_ITERATIONS = 1000;
+
+  private static final int EXAGGERATION_ITERATIONS = 250;
+  private static final double EARLY_EXAGGERATION = 12;
+  private static final int INCREMENTAL_ITERATIONS = 250;
+  private static final double MIN_GAIN = 0.01;
+  private static final double INITIAL_SCALE = 1e-4;
+  private static final int PERPLEXITY_STEPS = 100;
+  private static final double PERPLEXITY_TOLERANCE = 1e-5;
+  // Below this many rows neighbours are found by exact search
+  static final int EXACT_NEIGHBOURS_BELOW = 2000;
+  // Rows handled by one fork-join leaf task
+  private static final int GRAIN = 128;
+  private static final long SEED = 42;
+
+  private final ForkJoinPool pool;
+  private final double perplexity;
+  private final double theta;
+  private final int iterations;
+
+  public BarnesHutTsne(ForkJoinPool pool, double perplexity, double theta, int iterations) {
+    this.pool = pool;
+    this.perplexity = perplexity;
+    this.theta = theta;
+    this.iterations = iterations;
+  }
+
+  /** Returns x, y, z for every row of the matrix, in row order. */
+  public float[] embed(EmbeddingMatrix matrix) throws InterruptedException {
+    int n = matrix.size();
+    if (n < 2) {
+      return new float[3 * n];
+    }
+    Sparse p = symmetrize(n, conditional(matrix, null));
+
+    double[] y = new double[3 * n];
+    Random random = new Random(SEED);
+    for (int i = 0; i < y.length; i++) {
+      y[i] = random.nextGaussian() * INITIAL_SCALE;
+    }
+
+    Optimizer optimizer = new Optimizer(n, null);
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      boolean early = iteration < EXAGGERATION_ITERATIONS;
+      double z = optimizer.forces(y, p, null);
+      optimizer.step(y, early ? EARLY_EXAGGERATION : 1, z, early ? 0.5 : 0.8,
+          learningRate(n));
+      recenter(y);
+    }
+    return toFloats(y);
+  }
+
+  /**
+   * Returns x, y, z for every row of the matrix, keeping rows marked frozen at their position
+   * in layout (x, y, z per row, in row order) and placing the others around them.
+   */
+  public float[] embedIncremental(EmbeddingMatrix matrix, float[] layout, boolean[] frozen)
+      throws InterruptedException {
+    int n = matrix.size();
+    int moving = 0;
+    for (int i = 0; i < n; i++) {
+      moving += frozen[i] ? 0 : 1;
+    }
+    if (moving == 0 || moving == n) {
+      return moving == 0 ? layout.clone() : embed(matrix);
+    }
+
+    boolean[] movers = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      movers[i] = !frozen[i];
+    }
+    Conditional conditional = conditional(matrix, movers);
+    Sparse p = rowsOnly(n, conditional);
+
+    // Start each new row at the similarity-weighted mean of its frozen neighbours
+    double[] y = new double[3 * n];
+    Random random = new Random(SEED);
+    for (int i = 0; i < n; i++) {
+      if (frozen[i]) {
+        for (int axis = 0; axis < 3; axis++) {
+          y[3 * i + axis] = layout[3 * i + axis];
+        }
+        continue;
+      }
+      double weight = 0;
+      for (int e = i * conditional.k; e < i * conditional.k + conditional.counts[i]; e++) {
+        int j = conditional.columns[e];
+        if (frozen[j]) {
+          weight += conditional.values[e];
+          for (int axis = 0; axis < 3; axis++) {
+            y[3 * i + axis] += conditional.values[e] * layout[3 * j + axis];
+          }
+        }
+      }
+      for (int axis = 0; axis < 3; axis++) {
+        y[3 * i + axis] = (weight > 0 ? y[3 * i + axis] / weight : 0)
+            + random.nextGaussian() * INITIAL_SCALE;
+      }
+    }
+
+    Optimizer optimizer = new Optimizer(n, movers);
+    double initialTotal = optimizer.forces(y, p, null);
+    double initialMovers = optimizer.forces(y, p, movers);
+    for (int iteration = 0; iteration < INCREMENTAL_ITERATIONS; iteration++) {
+      double movers2 = optimizer.forces(y, p, movers);
+      // Pairs between frozen rows don't change, so only the new rows' share of Z is updated
+      double z = Math.max(initialTotal + 2 * (movers2 - initialMovers), 1e-12);
+      optimizer.step(y, 1, z, iteration < INCREMENTAL_ITERATIONS / 4 ? 0.5 : 0.8,
+          learningRate(n));
+    }
+    return toFloats(y);
+  }
+
+  /**
+   * Conditional similarities p(j|i) of each selected row (all if rows is null) over its
+   * nearest neighbours, each row calibrated to the target perplexity.
+   */
+  Conditional conditional(EmbeddingMatrix matrix, boolean[] rows) throws InterruptedException {
+    int n = matrix.size();
+    int k = Math.min(n - 1, (int) (3 * perplexity));
+    HnswIndex index = n < EXACT_NEIGHBOURS_BELOW
+        ? null : HnswIndex.build(matrix, HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION,
+            pool);
+
+    Conditional conditional = new Conditional(n, k);
+    parallelSum(n, (from, to) -> {
+      double[] distances = new double[k];
+      for (int i = from; i < to; i++) {
+        if (rows != null && !rows[i]) {
+          continue;
+        }
+        int[] neighbours;
+        try {
+          neighbours = index == null
+              ? matrix.nearest(i, k, null) : index.nearest(i, k, Math.max(k, 64));
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        for (int e = 0; e < neighbours.length; e++) {
+          // Squared Euclidean distance between unit vectors
+          distances[e] = Math.max(0, 2 - 2 * matrix.similarity(i, neighbours[e]));
+        }
+        calibrate(distances, neighbours.length, conditional.values, i * k);
+        System.arraycopy(neighbours, 0, conditional.columns, i * k, neighbours.length);
+        conditional.counts[i] = neighbours.length;
+      }
+      return 0;
+    });
+    return conditional;
+  }
+
+  /**
+   * Binary searches the Gaussian precision whose conditional distribution over the given
+   * distances has the target perplexity, writing the normalized probabilities to out.
+   */
+  void calibrate(double[] distances, int count, float[] out, int offset) {
+    double targetEntropy = Math.log(perplexity);
+    double beta = 1;
+    double lower = 0;
+    double upper = Double.POSITIVE_INFINITY;
+    double minimum = Double.POSITIVE_INFINITY;
+    for (int e = 0; e < count; e++) {
+      minimum = Math.min(minimum, distances[e]);
+    }
+
+    double sum = 0;
+    for (int step = 0; step < PERPLEXITY_STEPS; step++) {
+      // Distances are shifted by the minimum so the largest weight is 1 and sum can't underflow
+      sum = 0;
+      double weighted = 0;
+      for (int e = 0; e < count; e++) {
+        double weight = Math.exp(-beta * (distances[e] - minimum));
+        sum += weight;
+        weighted += weight * (distances[e] - minimum);
+      }
+      double entropy = Math.log(sum) + beta * weighted / sum;
+      if (Math.abs(entropy - targetEntropy) < PERPLEXITY_TOLERANCE) {
+        break;
+      }
+      if (entropy > targetEntropy) {
+        lower = beta;
+        beta = upper == Double.POSITIVE_INFINITY ? beta * 2 : (beta + upper) / 2;
+      } else {
+        upper = beta;
+        beta = (beta + lower) / 2;
+      }
+    }
+    for (int e = 0; e < count; e++) {
+      out[offset + e] = (float) (Math.exp(-beta * (distances[e] - minimum)) / sum);
+    }
+  }
+
+  /** Builds P = (p(j|i) + p(i|j)) / 2n as a symmetric sparse matrix. */
+  static Sparse symmetrize(int n, Conditional conditional) {
+    int[] degrees = new int[n];
+    for (int i = 0; i < n; i++) {
+      for (int e = i * conditional.k; e < i * conditional.k + conditional.counts[i]; e++) {
+        degrees[i]++;
+        degrees[conditional.columns[e]]++;
+      }
+    }
+    int[] starts = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      starts[i + 1] = starts[i] + degrees[i];
+    }
+
+    // Each entry is packed as column << 32 | value bits, so sorting a row orders it by column
+    long[] entries = new long[starts[n]];
+    int[] fill = Arrays.copyOf(starts, n);
+    for (int i = 0; i < n; i++) {
+      for (int e = i * conditional.k; e < i * conditional.k + conditional.counts[i]; e++) {
+        int j = conditional.columns[e];
+        long bits = Float.floatToIntBits(conditional.values[e]) & 0xffffffffL;
+        entries[fill[i]++] = ((long) j << 32) | bits;
+        entries[fill[j]++] = ((long) i << 32) | bits;
+      }
+    }
+
+    Sparse p = new Sparse(n, entries.length);
+    int size = 0;
+    for (int i = 0; i < n; i++) {
+      Arrays.sort(entries, starts[i], starts[i + 1]);
+      p.starts[i] = size;
+      for (int e = starts[i]; e < starts[i + 1]; e++) {
+        int column = (int) (entries[e] >>> 32);
+        float value = Float.intBitsToFloat((int) entries[e]) / (2f * n);
+        if (size > p.starts[i] && p.columns[size - 1] == column) {
+          p.values[size - 1] += value;
+        } else {
+          p.columns[size] = column;
+          p.values[size++] = value;
+        }
+      }
+    }
+    p.starts[n] = size;
+    return p;
+  }
+
+  /** Uses p(j|i) / n of each row as its attractive weights, for incremental placement. */
+  static Sparse rowsOnly(int n, Conditional conditional) {
+    Sparse p = new Sparse(n, n * conditional.k);
+    int size = 0;
+    for (int i = 0; i < n; i++) {
+      p.starts[i] = size;
+      for (int e = i * conditional.k; e < i * conditional.k + conditional.counts[i]; e++) {
+        p.columns[size] = conditional.columns[e];
+        p.values[size++] = conditional.values[e] / n;
+      }
+    }
+    p.starts[n] = size;
+    return p;
+  }
+
+  private static double learningRate(int n) {
+    return Math.max(n / EARLY_EXAGGERATION / 4, 50);
+  }
+
+  private static void recenter(double[] y) {
+    int n = y.length / 3;
+    for (int axis = 0; axis < 3; axis++) {
+      double mean = 0;
+      for (int i = axis; i < y.length; i += 3) {
+        mean += y[i];
+      }
+      mean /= n;
+      for (int i = axis; i < y.length; i += 3) {
+        y[i] -= mean;
+      }
+    }
+  }
+
+  private static float[] toFloats(double[] y) {
+    float[] floats = new float[y.length];
+    for (int i = 0; i < y.length; i++) {
+      floats[i] = (float) y[i];
+    }
+    return floats;
+  }
+
+  /** Runs body over [0, size) split into fork-join tasks, summing what each range returns. */
+  private double parallelSum(int size, RangeBody body) {
+    return pool.invoke(new RangeTask(body, 0, size));
+  }
+
+  /** A body run over one range of rows. */
+  private interface RangeBody {
+    double apply(int from, int to);
+  }
+
+  private static final class RangeTask extends RecursiveTask<Double> {
+    private final RangeBody body;
+    private final int from;
+    private final int to;
+
+    RangeTask(RangeBody body, int from, int to) {
+      this.body = body;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Double compute() {
+      if (to - from <= GRAIN) {
+        return body.apply(from, to);
+      }
+      int middle = (from + to) >>> 1;
+      RangeTask left = new RangeTask(body, from, middle);
+      left.fork();
+      double right = new RangeTask(body, middle, to).compute();
+      return left.join() + right;
+    }
+  }
+
+  /** The gradient descent state of one run. */
+  final class Optimizer {
+    private final int n;
+    private final boolean[] moving;
+    private final double[] attractive;
+    private final double[] repulsive;
+    private final double[] update;
+    private final double[] gains;
+    private final Octree tree = new Octree();
+
+    Optimizer(int n, boolean[] moving) {
+      this.n = n;
+      this.moving = moving;
+      this.attractive = new double[3 * n];
+      this.repulsive = new double[3 * n];
+      this.update = new double[3 * n];
+      this.gains = new double[3 * n];
+      Arrays.fill(gains, 1);
+    }
+
+    /**
+     * Computes the attractive and (unnormalized) repulsive forces on the selected rows (all if
+     * rows is null), returning the sum of their unnormalized similarities to every other row.
+     */
+    double forces(double[] y, Sparse p, boolean[] rows) {
+      tree.build(y, n);
+      double thetaSquared = theta * theta;
+      return parallelSum(n, (from, to) -> {
+        int[] stack = new int[Octree.STACK_SIZE];
+        double[] force = new double[3];
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+          if (rows != null && !rows[i]) {
+            continue;
+          }
+          double ax = 0;
+          double ay = 0;
+          double az = 0;
+          for (int e = p.starts[i]; e < p.starts[i + 1]; e++) {
+            int j = p.columns[e];
+            double dx = y[3 * i] - y[3 * j];
+            double dy = y[3 * i + 1] - y[3 * j + 1];
+            double dz = y[3 * i + 2] - y[3 * j + 2];
+            double weight = p.values[e] / (1 + dx * dx + dy * dy + dz * dz);
+            ax += weight * dx;
+            ay += weight * dy;
+            az += weight * dz;
+          }
+          attractive[3 * i] = ax;
+          attractive[3 * i + 1] = ay;
+          attractive[3 * i + 2] = az;
+
+          sum += tree.repulsion(i, y, thetaSquared, stack, force);
+          repulsive[3 * i] = force[0];
+          repulsive[3 * i + 1] = force[1];
+          repulsive[3 * i + 2] = force[2];
+        }
+        return sum;
+      });
+    }
+
+    /** Takes one gradient step on the moving rows, from the last computed forces. */
+    void step(double[] y, double exaggeration, double z, double momentum, double learningRate) {
+      for (int d = 0; d < y.length; d++) {
+        if (moving != null && !moving[d / 3]) {
+          continue;
+        }
+        double gradient = 4 * (exaggeration * attractive[d] - repulsive[d] / z);
+        gains[d] = (gradient > 0) != (update[d] > 0)
+            ? gains[d] + 0.2 : Math.max(gains[d] * 0.8, MIN_GAIN);
+        update[d] = momentum * update[d] - learningRate * gains[d] * gradient;
+        y[d] += update[d];
+      }
+    }
+
+    /** The gradient of the selected row from the last computed forces, for tests. */
+    double gradient(int d, double exaggeration, double z) {
+      return 4 * (exaggeration * attractive[d] - repulsive[d] / z);
+    }
+  }
+
+  /** Conditional similarities: up to k (column, value) pairs per row, at row * k. */
+  static final class Conditional {
+    final int k;
+    final int[] counts;
+    final int[] columns;
+    final float[] values;
+
+    Conditional(int n, int k) {
+      this.k = k;
+      this.counts = new int[n];
+      this.columns = new int[n * k];
+      this.values = new float[n * k];
+    }
+  }
+
+  /** A sparse matrix in compressed row form. */
+  static final class Sparse {
+    final int[] starts;
+    final int[] columns;
+    final float[] values;
+
+    Sparse(int n, int capacity) {
+      this.starts = new int[n + 1];
+      this.columns = new int[capacity];
+      this.values = new float[capacity];
+    }
+  }
+
+  /**
+   * An octree over the current layout in flat arrays. Each node stores its cell's center and
+   * half width, and the number and center of mass of the points below it.
+   */
+  static final class Octree {
+    private static final int MAX_DEPTH = 32;
+    static final int STACK_SIZE = 8 * (MAX_DEPTH + 1);
+
+    private double[] centers = new double[3 * 64];
+    private double[] halfWidths = new double[64];
+    private double[] masses = new double[3 * 64];
+    private int[] counts = new int[64];
+    private int[] children = new int[64];
+    private int size;
+
+    void build(double[] y, int n) {
+      double[] bounds = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+          -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+      for (int i = 0; i < n; i++) {
+        for (int axis = 0; axis < 3; axis++) {
+          bounds[axis] = Math.min(bounds[axis], y[3 * i + axis]);
+          bounds[axis + 3] = Math.max(bounds[axis + 3], y[3 * i + axis]);
+        }
+      }
+      double halfWidth = 0;
+      for (int axis = 0; axis < 3; axis++) {
+        halfWidth = Math.max(halfWidth, (bounds[axis + 3] - bounds[axis]) / 2);
+      }
+      size = 0;
+      addNode((bounds[0] + bounds[3]) / 2, (bounds[1] + bounds[4]) / 2,
+          (bounds[2] + bounds[5]) / 2, halfWidth * (1 + 1e-6) + 1e-12);
+      for (int i = 0; i < n; i++) {
+        insert(y[3 * i], y[3 * i + 1], y[3 * i + 2]);
+      }
+    }
+
+    /**
+     * Sums the repulsion on point i into force and returns the sum of its unnormalized
+     * similarities q to all other points, treating any cell that is small relative to its
+     * distance (width / distance < theta) as a single point at its center of mass.
+     */
+    double repulsion(int i, double[] y, double thetaSquared, int[] stack, double[] force) {
+      double x0 = y[3 * i];
+      double y0 = y[3 * i + 1];
+      double z0 = y[3 * i + 2];
+      double fx = 0;
+      double fy = 0;
+      double fz = 0;
+      double sum = 0;
+
+      int top = 0;
+      stack[top++] = 0;
+      while (top > 0) {
+        int node = stack[--top];
+        int count = counts[node];
+        if (count == 0) {
+          continue;
+        }
+        double dx = x0 - masses[3 * node];
+        double dy = y0 - masses[3 * node + 1];
+        double dz = z0 - masses[3 * node + 2];
+        double distanceSquared = dx * dx + dy * dy + dz * dz;
+        boolean leaf = children[node] < 0;
+        double width = 2 * halfWidths[node];
+        if (leaf || width * width < thetaSquared * distanceSquared) {
+          // A leaf at distance 0 holds point i itself, which doesn't repel itself
+          int others = leaf && distanceSquared == 0 ? count - 1 : count;
+          double q = 1 / (1 + distanceSquared);
+          sum += others * q;
+          double strength = others * q * q;
+          fx += strength * dx;
+          fy += strength * dy;
+          fz += strength * dz;
+        } else {
+          for (int child = children[node]; child < children[node] + 8; child++) {
+            stack[top++] = child;
+          }
+        }
+      }
+      force[0] = fx;
+      force[1] = fy;
+      force[2] = fz;
+      return sum;
+    }
+
+    private void insert(double x, double y, double z) {
+      int node = 0;
+      for (int depth = 0; ; depth++) {
+        if (children[node] < 0) {
+          if (counts[node] == 0) {
+            addMass(node, x, y, z);
+            return;
+          }
+          boolean coincident = masses[3 * node] == x && masses[3 * node + 1] == y
+              && masses[3 * node + 2] == z;
+          if (coincident || depth >= MAX_DEPTH) {
+            addMass(node, x, y, z);
+            return;
+          }
+          subdivide(node);
+        }
+        addMass(node, x, y, z);
+        node = children[node] + octant(node, x, y, z);
+      }
+    }
+
+    /** Splits a leaf into eight children and moves its points into the matching one. */
+    private void subdivide(int node) {
+      int first = size;
+      double quarter = halfWidths[node] / 2;
+      for (int octant = 0; octant < 8; octant++) {
+        addNode(centers[3 * node] + ((octant & 1) != 0 ? quarter : -quarter),
+            centers[3 * node + 1] + ((octant & 2) != 0 ? quarter : -quarter),
+            centers[3 * node + 2] + ((octant & 4) != 0 ? quarter : -quarter), quarter);
+      }
+      children[node] = first;
+      int child = first + octant(node, masses[3 * node], masses[3 * node + 1],
+          masses[3 * node + 2]);
+      counts[child] = counts[node];
+      System.arraycopy(masses, 3 * node, masses, 3 * child, 3);
+    }
+
+    private int octant(int node, double x, double y, double z) {
+      return (x >= centers[3 * node] ? 1 : 0) | (y >= centers[3 * node + 1] ? 2 : 0)
+          | (z >= centers[3 * node + 2] ? 4 : 0);
+    }
+
+    private void addMass(int node, double x, double y, double z) {
+      int count = ++counts[node];
+      masses[3 * node] += (x - masses[3 * node]) / count;
+      masses[3 * node + 1] += (y - masses[3 * node + 1]) / count;
+      masses[3 * node + 2] += (z - masses[3 * node + 2]) / count;
+    }
+
+    private void addNode(double x, double y, double z, double halfWidth) {
+      if (size == counts.length) {
+        int capacity = size * 2;
+        centers = Arrays.copyOf(centers, 3 * capacity);
+        halfWidths = Arrays.copyOf(halfWidths, capacity);
+        masses = Arrays.copyOf(masses, 3 * capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        children = Arrays.copyOf(children, capacity);
+      }
+      centers[3 * size] = x;
+      centers[3 * size + 1] = y;
+      centers[3 * size + 2] = z;
+      halfWidths[size] = halfWidth;
+      masses[3 * size] = 0;
+      masses[3 * size + 1] = 0;
+      masses[3 * size + 2] = 0;
+      counts[size] = 0;
+      children[size] = -1;
+      size++;
+    }
+  }
+}
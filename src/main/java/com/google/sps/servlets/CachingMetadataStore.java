@@ -0,0 +1,276 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * A MetadataStore that wraps another MetadataStore and keeps recently read results in a bounded
+ * in-heap cache.
+ *
+ * <p>Entries are evicted once the cache holds more than its maximum size or once they are older
+ * than the TTL. Storing a dataset invalidates that user's dataset list and the entries for that
+ * dataset, so writes through this store are visible immediately. Writes made elsewhere (another
+ * instance, a cloud function) become visible once the TTL expires.
+ *
+ * <p>A read that started before a store's invalidation can finish after it with what it read
+ * before the store. Every invalidation therefore bumps a version stamp of the key's stripe first,
+ * and a read drops what it just cached if that stamp moved while it was loading.
+ *
+ * <p>Pages of a dataset listing aren't cached: their cursors belong to one run of the
+ * underlying query, so they're always read from the wrapped store.
+ * @implements {MetadataStore}
+ */
+public class CachingMetadataStore implements MetadataStore {
+
+  private static final int VERSION_STRIPES = 1024;
+
+  private final MetadataStore delegate;
+
+  // Bumped by every invalidation of a key hashing to the stripe, before its entries are dropped
+  private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+  // User email -> names of that user's datasets
+  private final Cache<String, List<String>> datasetsCache;
+
+  // (dataset, user) -> whether the dataset exists, including negative results
+  private final Cache<DatasetKey, Boolean> existsCache;
+
+  // (dataset, user) -> the dataset's metadata, or empty if it doesn't exist
+  private final Cache<DatasetKey, Optional<Metadata>> metadataCache;
+
+  /**
+   * Creates a cache in front of delegate holding at most maxEntries entries of each type, each
+   * for at most ttlMillis milliseconds.
+   */
+  public CachingMetadataStore(MetadataStore delegate, long maxEntries, long ttlMillis) {
+    this.delegate = delegate;
+    this.datasetsCache = newCache(maxEntries, ttlMillis);
+    this.existsCache = newCache(maxEntries, ttlMillis);
+    this.metadataCache = newCache(maxEntries, ttlMillis);
+  }
+
+  /**
+   * Stores the data through the wrapped store, then drops every cached entry it makes stale.
+   */
+  public void storeData(Metadata data) {
+    delegate.storeData(data);
+    invalidate(data.dataset(), data.user());
+  }
+
+  /**
+   * Stores the data through the wrapped store in one batch, then drops the stale entries.
+   */
+  public void storeAll(List<Metadata> data) {
+    delegate.storeAll(data);
+    for (Metadata metadata : data) {
+      invalidate(metadata.dataset(), metadata.user());
+    }
+  }
+
+  /**
+   * Stores the data through the wrapped store, which never reads from this cache, then drops
+   * the stale entries.
+   */
+  public boolean storeIfAbsent(Metadata data) {
+    boolean stored = delegate.storeIfAbsent(data);
+    invalidate(data.dataset(), data.user());
+    return stored;
+  }
+
+  /**
+   * Appends through the wrapped store, which never reads from this cache, then drops the stale
+   * entries.
+   */
+  public Metadata append(String datasetName, String user, long addedImages, long timestamp) {
+    Metadata appended = delegate.append(datasetName, user, addedImages, timestamp);
+    invalidate(datasetName, user);
+    return appended;
+  }
+
+  /**
+   * Retrieves the metadata for a dataset name without a user. This is not cached, since the
+   * result isn't tied to a single user and so can't be invalidated per user.
+   */
+  public Metadata retrieveMetadata(String datasetName) {
+    return delegate.retrieveMetadata(datasetName);
+  }
+
+  /**
+   * Retrieves the metadata information for a particular user's dataset.
+   */
+  public Metadata retrieveMetadata(String datasetName, String user) {
+    return load(metadataCache, DatasetKey.of(datasetName, user),
+        () -> Optional.ofNullable(delegate.retrieveMetadata(datasetName, user))).orElse(null);
+  }
+
+  /**
+   * Retrieves the metadata of several of a user's datasets, reading only the ones that aren't
+   * cached from the wrapped store, in one batch.
+   */
+  public Map<String, Metadata> retrieveMany(List<String> datasetNames, String user) {
+    Map<String, Metadata> found = new HashMap<String, Metadata>();
+    List<String> misses = new ArrayList<String>();
+    for (String datasetName : datasetNames) {
+      Optional<Metadata> metadata = metadataCache.getIfPresent(DatasetKey.of(datasetName, user));
+      if (metadata == null) {
+        misses.add(datasetName);
+      } else if (metadata.isPresent()) {
+        found.put(datasetName, metadata.get());
+      }
+    }
+    if (!misses.isEmpty()) {
+      long[] missVersions = new long[misses.size()];
+      for (int i = 0; i < misses.size(); i++) {
+        missVersions[i] = version(DatasetKey.of(misses.get(i), user));
+      }
+      Map<String, Metadata> loaded = delegate.retrieveMany(misses, user);
+      for (int i = 0; i < misses.size(); i++) {
+        String datasetName = misses.get(i);
+        Metadata metadata = loaded.get(datasetName);
+        cacheUnlessInvalidated(metadataCache, DatasetKey.of(datasetName, user),
+            Optional.ofNullable(metadata), missVersions[i]);
+        if (metadata != null) {
+          found.put(datasetName, metadata);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Retrieves all the names of datasets belonging to a particular user.
+   */
+  public List<String> getUsersDatasets(String user) {
+    return load(datasetsCache, user, () -> ImmutableList.copyOf(delegate.getUsersDatasets(user)));
+  }
+
+  /**
+   * Retrieves one page of a user's dataset names from the wrapped store.
+   */
+  public DatasetPage getUsersDatasets(String user, String cursor, int limit) {
+    return delegate.getUsersDatasets(user, cursor, limit);
+  }
+
+  /**
+   * Checks to see if a particular user already has a dataset with a particular name.
+   */
+  public boolean metadataExists(String datasetName, String user) {
+    return load(existsCache, DatasetKey.of(datasetName, user),
+        () -> delegate.metadataExists(datasetName, user));
+  }
+
+  /**
+   * Drops the cached entries for a user's dataset and that user's dataset list.
+   */
+  public void invalidate(String datasetName, String user) {
+    DatasetKey key = DatasetKey.of(datasetName, user);
+    // Bumped first, so a read that caches after this point sees it moved
+    versions.incrementAndGet(stripe(user));
+    versions.incrementAndGet(stripe(key));
+    datasetsCache.invalidate(user);
+    existsCache.invalidate(key);
+    metadataCache.invalidate(key);
+  }
+
+  /**
+   * Returns the number of lookups answered from the cache.
+   */
+  public long hitCount() {
+    return datasetsCache.stats().hitCount() + existsCache.stats().hitCount()
+        + metadataCache.stats().hitCount();
+  }
+
+  /**
+   * Returns the number of lookups that had to go to the wrapped store.
+   */
+  public long missCount() {
+    return datasetsCache.stats().missCount() + existsCache.stats().missCount()
+        + metadataCache.stats().missCount();
+  }
+
+  /**
+   * Returns the number of entries evicted for size or age. Explicit invalidations don't count.
+   */
+  public long evictionCount() {
+    return datasetsCache.stats().evictionCount() + existsCache.stats().evictionCount()
+        + metadataCache.stats().evictionCount();
+  }
+
+  /** Returns the cached value for key, or loads and caches it unless it was invalidated. */
+  private <K, V> V load(Cache<K, V> cache, K key, Supplier<V> loader) {
+    V value = cache.getIfPresent(key);
+    if (value == null) {
+      long version = version(key);
+      value = loader.get();
+      cacheUnlessInvalidated(cache, key, value, version);
+    }
+    return value;
+  }
+
+  /**
+   * Caches a value loaded while the key's stripe was at version, and drops it again if an
+   * invalidation has moved the stripe since, which it may have done just before the put.
+   */
+  private <K, V> void cacheUnlessInvalidated(Cache<K, V> cache, K key, V value, long version) {
+    if (version(key) != version) {
+      return;
+    }
+    cache.put(key, value);
+    if (version(key) != version) {
+      cache.invalidate(key);
+    }
+  }
+
+  private long version(Object key) {
+    return versions.get(stripe(key));
+  }
+
+  private static int stripe(Object key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+  }
+
+  private static <K, V> Cache<K, V> newCache(long maxEntries, long ttlMillis) {
+    return CacheBuilder.newBuilder()
+        .maximumSize(maxEntries)
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .recordStats()
+        .build();
+  }
+
+  /** Identifies a single user's dataset within the caches. */
+  @AutoValue
+  abstract static class DatasetKey {
+
+    static DatasetKey of(String dataset, String user) {
+      return new AutoValue_CachingMetadataStore_DatasetKey(dataset, user);
+    }
+
+    abstract String dataset();
+
+    abstract String user();
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps a gzip copy of compressible objects, such as coordinates.json, so they can be sent
+ * compressed without being compressed again on every request.
+ *
+ * <p>The copy is written next to the object as name.gz the first time it is asked for, and is
+ * tagged with the generation of the object it came from, so it is only rewritten when the object
+ * changes. It keeps the object's content type and has no Content-Encoding of its own, so its
+ * bytes are handed out as they are and ConditionalBlobServer sets the header. Which copy to send
+ * is remembered per object generation, so serving a hot object costs no extra lookups. Objects
+ * that gzip doesn't shrink by at least a tenth are sent as they are.
+ */
+public class CompressedVariants {
+
+  static final String GZIP_SUFFIX = ".gz";
+  static final String SOURCE_GENERATION = "source-generation";
+  // Smaller objects fit in a packet or two either way
+  static final long MIN_BYTES = 1024;
+
+  private static final int MAX_CACHED = 10000;
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  private final Storage storage;
+
+  // Object and generation -> its gzip copy, or empty if the object is better sent as it is
+  private final Cache<String, Optional<Blob>> variants =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED).build();
+
+  public CompressedVariants(Storage storage) {
+    this.storage = storage;
+  }
+
+  /** Whether an object is text that is worth keeping a gzip copy of. */
+  static boolean compressible(Blob blob) {
+    if (blob.getSize() == null || blob.getSize() < MIN_BYTES
+        || blob.getName().endsWith(GZIP_SUFFIX)) {
+      return false;
+    }
+    String contentType = blob.getContentType() == null
+        ? "" : blob.getContentType().toLowerCase(Locale.ROOT);
+    return contentType.startsWith("application/json") || contentType.startsWith("text/")
+        || (contentType.isEmpty() && blob.getName().endsWith(".json"));
+  }
+
+  /**
+   * Returns the gzip copy of this generation of a compressible object, writing it first if it is
+   * missing or stale, or null if the object is better sent as it is.
+   */
+  public Blob gzipVariant(Blob source) throws IOException {
+    String key = source.getBucket() + "/" + source.getName() + "#" + source.getGeneration();
+    Optional<Blob> variant = variants.getIfPresent(key);
+    if (variant == null) {
+      Blob gzip = gzipCopy(source);
+      // A copy that isn't much smaller isn't worth the client's time to decompress
+      variant = Optional.ofNullable(
+          gzip != null && gzip.getSize() * 10 <= source.getSize() * 9 ? gzip : null);
+      variants.put(key, variant);
+    }
+    return variant.orElse(null);
+  }
+
+  private Blob gzipCopy(Blob source) throws IOException {
+    String sourceGeneration = String.valueOf(source.getGeneration());
+    BlobId gzipId = BlobId.of(source.getBucket(), source.getName() + GZIP_SUFFIX);
+
+    Blob gzip = storage.get(gzipId);
+    if (gzip != null && gzip.getMetadata() != null
+        && sourceGeneration.equals(gzip.getMetadata().get(SOURCE_GENERATION))) {
+      return gzip;
+    }
+
+    BlobInfo gzipInfo = BlobInfo.newBuilder(gzipId)
+        .setContentType(source.getContentType())
+        .setMetadata(ImmutableMap.of(SOURCE_GENERATION, sourceGeneration))
+        .build();
+    // The source's id names its generation, so a rewrite while copying can't mix versions
+    try (ReadChannel reader = source.reader();
+        OutputStream out = new GZIPOutputStream(
+            Channels.newOutputStream(storage.writer(gzipInfo)), BUFFER_BYTES)) {
+      ByteStreams.copy(Channels.newInputStream(reader), out);
+    }
+    return storage.get(gzipId);
+  }
+}
@@ -0,0 +1,250 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves GCS objects with validators, conditional GET and single byte-range support.
+ *
+ * <p>The ETag is the object's generation, which changes every time the object is rewritten,
+ * and Last-Modified is its update time. A request whose If-None-Match or If-Modified-Since
+ * matches gets an empty 304, and a Range request (honouring If-Range) gets only the requested
+ * bytes. The body itself is still handed to the Blobstore service, so the instance never copies
+ * the object.
+ *
+ * <p>Objects are private to a user, so responses are never cached by shared caches. Requests
+ * that name the current generation in the "v" parameter get a long-lived immutable response,
+ * since that URL can never refer to different bytes; all others must revalidate.
+ *
+ * <p>Compressible objects are sent gzip-encoded to clients whose Accept-Encoding allows it, from
+ * the copy CompressedVariants keeps, so nothing is compressed per request. The gzip copy is a
+ * representation of its own: it has its own ETag and byte ranges, and every response for such an
+ * object carries Vary: Accept-Encoding.
+ */
+public class ConditionalBlobServer {
+
+  static final String REVALIDATE_CACHE_CONTROL = "private, no-cache";
+  static final String IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+  private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+  private final Storage storage;
+  private final BlobstoreService blobstoreService;
+  private final CompressedVariants compressedVariants;
+
+  public ConditionalBlobServer(Storage storage, BlobstoreService blobstoreService) {
+    this(storage, blobstoreService, null);
+  }
+
+  /** Creates a server that sends gzip copies from compressedVariants, unless that is null. */
+  public ConditionalBlobServer(Storage storage, BlobstoreService blobstoreService,
+      CompressedVariants compressedVariants) {
+    this.storage = storage;
+    this.blobstoreService = blobstoreService;
+    this.compressedVariants = compressedVariants;
+  }
+
+  /**
+   * Responds to a GET (or HEAD) for the given object.
+   */
+  public void serve(BlobId blobId, HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    Blob blob = storage.get(blobId);
+    if (blob == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    // The bytes sent, which are the gzip copy's if the client takes that
+    Blob served = blob;
+    if (compressedVariants != null && CompressedVariants.compressible(blob)) {
+      response.setHeader("Vary", "Accept-Encoding");
+      Blob gzip = acceptsGzip(request) ? compressedVariants.gzipVariant(blob) : null;
+      if (gzip != null) {
+        served = gzip;
+        response.setHeader("Content-Encoding", "gzip");
+      }
+    }
+
+    String etag = "\"" + blob.getGeneration() + (served == blob ? "" : "-gzip") + "\"";
+    // HTTP dates only have second precision
+    long lastModified = blob.getUpdateTime() == null ? -1 : blob.getUpdateTime() / 1000 * 1000;
+    long size = served.getSize();
+
+    response.setHeader("ETag", etag);
+    if (lastModified >= 0) {
+      response.setDateHeader("Last-Modified", lastModified);
+    }
+    response.setHeader("Accept-Ranges", "bytes");
+    response.setHeader("Cache-Control",
+        String.valueOf(blob.getGeneration()).equals(request.getParameter("v"))
+            ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL);
+
+    if (notModified(request, etag, lastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    BlobKey blobKey = blobstoreService.createGsBlobKey(
+        "/gs/" + served.getBucket() + "/" + served.getName());
+
+    String rangeHeader = request.getHeader("Range");
+    if (rangeHeader == null || !ifRangeMatches(request, etag, lastModified)) {
+      blobstoreService.serve(blobKey, response);
+      return;
+    }
+
+    ByteRange range = resolveRange(rangeHeader, size);
+    if (range == null) {
+      // Malformed or multi-range requests are answered with the whole object
+      blobstoreService.serve(blobKey, response);
+    } else if (range.getStart() >= size) {
+      response.setHeader("Content-Range", "bytes */" + size);
+      response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+    } else {
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      response.setHeader("Content-Range",
+          "bytes " + range.getStart() + "-" + range.getEnd() + "/" + size);
+      blobstoreService.serve(blobKey, range, response);
+    }
+  }
+
+  /**
+   * Checks whether Accept-Encoding allows a gzip-encoded response: gzip (or x-gzip) is listed
+   * with a non-zero q-value, or, if it isn't listed, "*" is.
+   */
+  static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    double gzipQuality = -1;
+    double anyQuality = -1;
+    for (String entry : acceptEncoding.split(",")) {
+      String[] parts = entry.split(";");
+      String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim().toLowerCase(Locale.ROOT);
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2).trim());
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (coding.equals("gzip") || coding.equals("x-gzip")) {
+        gzipQuality = quality;
+      } else if (coding.equals("*")) {
+        anyQuality = quality;
+      }
+    }
+    return gzipQuality >= 0 ? gzipQuality > 0 : anyQuality > 0;
+  }
+
+  /**
+   * Checks If-None-Match, or If-Modified-Since when there is no If-None-Match, against the
+   * object's current validators.
+   */
+  static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        // If-None-Match uses weak comparison
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals("*") || candidate.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModifiedSince = dateHeader(request, "If-Modified-Since");
+    return lastModified >= 0 && ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+  }
+
+  /**
+   * Checks whether a Range request should be honoured: either there is no If-Range, or it
+   * names the current strong ETag or exact modification date.
+   */
+  static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")) {
+      return ifRange.trim().equals(etag);
+    }
+    return lastModified >= 0 && dateHeader(request, "If-Range") == lastModified;
+  }
+
+  /**
+   * Resolves a single "bytes=" range against the object's size, returning null for a header
+   * that should be ignored. A range whose start is at or past the end of the object is returned
+   * as is, so the caller can answer 416.
+   */
+  static ByteRange resolveRange(String rangeHeader, long size) {
+    Matcher matcher = RANGE_PATTERN.matcher(rangeHeader.trim());
+    if (!matcher.matches()) {
+      return null;
+    }
+    String first = matcher.group(1);
+    String last = matcher.group(2);
+    try {
+      if (first.isEmpty()) {
+        // Suffix range: the last N bytes
+        if (last.isEmpty()) {
+          return null;
+        }
+        long suffixLength = Long.parseLong(last);
+        if (suffixLength == 0 || size == 0) {
+          return new ByteRange(size, size);
+        }
+        return new ByteRange(Math.max(0, size - suffixLength), size - 1);
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+      if (!last.isEmpty() && Long.parseLong(last) < start) {
+        return null;
+      }
+      return start >= size ? new ByteRange(start, start) : new ByteRange(start, end);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.cloud.storage.BlobId;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lets datasets share images by content, so an image uploaded again is neither written nor
+ * processed again.
+ *
+ * <p>Uploaded images are identified by their SHA-256. The "Content" kind maps each of a user's
+ * hashes, keyed as user/hash, to its origin, the original_images object the user last uploaded
+ * it as, whose thumbnail and embedding the cloud functions derive under the same user and
+ * dataset. When a later upload holds an image whose origin has been processed, the origin's
+ * thumbnail and embedding are copied within GCS into the new dataset instead, and the image
+ * itself isn't written, so the cloud functions aren't triggered. Each dataset records the hash
+ * of every one of its images in "ImageRef" children of its metadata key.
+ *
+ * <p>Content is only shared between one user's datasets. Sharing it across users would let an
+ * upload, and how fast its images show up as processed, tell whether anyone else holds them.
+ */
+public class ContentIndex {
+
+  // The bucket create_thumbnail and extract_embedding write to
+  public static final String DERIVED_BUCKET = "embeddings_visualizer_output_bucket";
+
+  static final String CONTENT_KIND = "Content";
+  static final String IMAGE_REF_KIND = "ImageRef";
+
+  private static final String ORIGINALS_FOLDER = "/original_images/";
+
+  // Datastore accepts at most 500 entities per put and 1000 keys per get
+  private static final int PUT_BATCH_SIZE = 500;
+  private static final int GET_BATCH_SIZE = 1000;
+
+  private final DatastoreService datastore;
+  private final ParallelUploader uploader;
+  private final String derivedBucket;
+
+  public ContentIndex(DatastoreService datastore, ParallelUploader uploader,
+      String derivedBucket) {
+    this.datastore = datastore;
+    this.uploader = uploader;
+    this.derivedBucket = derivedBucket;
+  }
+
+  /**
+   * Returns the hex SHA-256 of the source's contents, streaming through them once.
+   */
+  public static String sha256(ByteSource source) throws IOException {
+    return source.hash(Hashing.sha256()).toString();
+  }
+
+  /**
+   * Reuses what has already been derived from the images a user is about to upload, given as
+   * original_images object name -> hash. Returns the names of the images whose thumbnail and
+   * embedding were both copied; the others still have to be uploaded.
+   */
+  public Set<String> reuse(String user, Map<String, String> hashes) {
+    Map<String, String> origins = origins(user, new HashSet<String>(hashes.values()));
+    Map<String, BlobId> copies = new LinkedHashMap<String, BlobId>();
+    for (Map.Entry<String, String> image : hashes.entrySet()) {
+      String origin = origins.get(image.getValue());
+      List<String> targets = derivedNames(image.getKey());
+      List<String> sources = origin == null ? null : derivedNames(origin);
+      if (targets == null || sources == null || origin.equals(image.getKey())) {
+        continue;
+      }
+      for (int i = 0; i < targets.size(); i++) {
+        copies.put(targets.get(i), BlobId.of(derivedBucket, sources.get(i)));
+      }
+    }
+    if (copies.isEmpty()) {
+      return ImmutableSet.of();
+    }
+
+    // An origin that hasn't been processed yet is missing one or both, and the copy fails
+    Set<String> copied = new HashSet<String>(uploader.copy(derivedBucket, copies).uploaded());
+    ImmutableSet.Builder<String> reused = ImmutableSet.builder();
+    for (String objectName : hashes.keySet()) {
+      List<String> targets = derivedNames(objectName);
+      if (targets != null && copies.containsKey(targets.get(0))
+          && copied.containsAll(targets)) {
+        reused.add(objectName);
+      }
+    }
+    return reused.build();
+  }
+
+  /**
+   * Records the hash of every image of a user's dataset, given as original_images object name
+   * -> hash, and makes each image that was written rather than reused the origin of its
+   * content.
+   */
+  public void record(String user, String dataset, Map<String, String> hashes,
+      Collection<String> written) {
+    Key datasetKey = DatastoreMetadataStore.metadataKey(dataset, user);
+    List<Entity> entities = new ArrayList<Entity>();
+    for (Map.Entry<String, String> image : hashes.entrySet()) {
+      String objectName = image.getKey();
+      Entity ref = new Entity(IMAGE_REF_KIND,
+          objectName.substring(objectName.lastIndexOf('/') + 1), datasetKey);
+      ref.setProperty("sha256", image.getValue());
+      entities.add(ref);
+    }
+    for (String objectName : written) {
+      Entity content = new Entity(contentKey(user, hashes.get(objectName)));
+      content.setUnindexedProperty("origin", objectName);
+      entities.add(content);
+    }
+    for (List<Entity> batch : Lists.partition(entities, PUT_BATCH_SIZE)) {
+      datastore.put(batch);
+    }
+  }
+
+  /**
+   * Returns the hashes of a user's dataset's images, keyed by file name.
+   */
+  public Map<String, String> imageHashes(String user, String dataset) {
+    Map<String, String> hashes = new HashMap<String, String>();
+    Query query = new Query(IMAGE_REF_KIND)
+        .setAncestor(DatastoreMetadataStore.metadataKey(dataset, user));
+    for (Entity ref : datastore.prepare(query).asIterable()) {
+      hashes.put(ref.getKey().getName(), (String) ref.getProperty("sha256"));
+    }
+    return hashes;
+  }
+
+  /**
+   * Looks up the origin of each of a user's hashes with batched key gets. Unknown hashes are
+   * left out.
+   */
+  private Map<String, String> origins(String user, Set<String> hashes) {
+    Map<String, String> origins = new HashMap<String, String>();
+    for (List<String> batch : Lists.partition(new ArrayList<String>(hashes), GET_BATCH_SIZE)) {
+      Map<Key, String> keys = new HashMap<Key, String>();
+      for (String hash : batch) {
+        keys.put(contentKey(user, hash), hash);
+      }
+      for (Entity content : datastore.get(keys.keySet()).values()) {
+        origins.put(keys.get(content.getKey()), (String) content.getProperty("origin"));
+      }
+    }
+    return origins;
+  }
+
+  /** The key of a user's content with this hash. Hashes hold no slash, so users can't clash. */
+  static Key contentKey(String user, String hash) {
+    return KeyFactory.createKey(CONTENT_KIND, user + "/" + hash);
+  }
+
+  /**
+   * Returns the names of the thumbnail and the embedding the cloud functions derive from an
+   * original_images object, or null if the object isn't in an original_images folder.
+   */
+  static List<String> derivedNames(String objectName) {
+    int folder = objectName.lastIndexOf(ORIGINALS_FOLDER);
+    if (folder < 0) {
+      return null;
+    }
+    String datasetDir = objectName.substring(0, folder + 1);
+    String photoName = objectName.substring(folder + ORIGINALS_FOLDER.length());
+    return ImmutableList.of(datasetDir + "thumbnails/" + photoName,
+        datasetDir + "embeddings/" + photoName + ".npy");
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.cloud.storage.BlobId;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that answers spatial queries over a dataset's t-SNE coordinates, so the visualizer
+ * only has to fetch the points it is going to draw.
+ *
+ * <p>Parameters: dataset, and type with its arguments:
+ *
+ * <ul>
+ *   <li>box: box=minX,minY,minZ,maxX,maxY,maxZ
+ *   <li>frustum: planes=24 comma separated values, 6 planes of (a, b, c, d)
+ *   <li>knn: point=x,y,z and k
+ *   <li>sample: budget, and optionally box to sample within
+ * </ul>
+ *
+ * <p>Responds with {"indices": [...]}: positions of the matching points in coordinates.json,
+ * which are also their positions in the spritesheet.
+ */
+@WebServlet("/coordinates-query")
+public class CoordinatesQueryServlet extends HttpServlet {
+
+  // The ID of your GCS bucket
+  private static final String BUCKET_NAME = "coordinates_json_bucket";
+
+  // Upper bound on k and budget, so one request can't ask for an unbounded response
+  private static final int MAX_RESULTS = 1000000;
+
+  private UserService userService;
+
+  // Indexes built on demand and shared by every request on this instance
+  private PointIndexCache indexes;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    indexes = services.pointIndexes();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // Get current user logged in to webapp
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    // Get the name of the dataset they want to query
+    String datasetName = request.getParameter("dataset");
+
+    String[] coordinatesFilePath = {userEmail, datasetName, "coordinates.json"};
+    String userJsonFilePath = CoordinatesRetrievalServlet.joinFilePaths(coordinatesFilePath);
+
+    PointIndex index = indexes.get(BlobId.of(BUCKET_NAME, userJsonFilePath));
+    if (index == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    int[] indices;
+    try {
+      indices = query(index, request);
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    // Stream the indices rather than building the whole document in memory
+    response.setContentType("application/json;");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("indices").beginArray();
+    for (int pointIndex : indices) {
+      writer.value(pointIndex);
+    }
+    writer.endArray().endObject();
+    writer.flush();
+  }
+
+  /**
+   * Runs the query described by the request's parameters against the index.
+   */
+  static int[] query(PointIndex index, HttpServletRequest request) {
+    String type = request.getParameter("type");
+    if ("box".equals(type)) {
+      float[] box = floats(request, "box", 6);
+      return index.queryBox(box[0], box[1], box[2], box[3], box[4], box[5]);
+    } else if ("frustum".equals(type)) {
+      return index.queryFrustum(floats(request, "planes", 24));
+    } else if ("knn".equals(type)) {
+      float[] point = floats(request, "point", 3);
+      return index.nearest(point[0], point[1], point[2], count(request, "k"));
+    } else if ("sample".equals(type)) {
+      float[] box = request.getParameter("box") == null ? null : floats(request, "box", 6);
+      return index.sample(count(request, "budget"), box);
+    }
+    throw new IllegalArgumentException("Unknown query type: " + type);
+  }
+
+  private static float[] floats(HttpServletRequest request, String name, int length) {
+    String value = request.getParameter(name);
+    String[] parts = value == null ? new String[0] : value.split(",");
+    if (parts.length != length) {
+      throw new IllegalArgumentException(name + " needs " + length + " comma separated values");
+    }
+    float[] floats = new float[length];
+    for (int i = 0; i < length; i++) {
+      floats[i] = Float.parseFloat(parts[i].trim());
+    }
+    return floats;
+  }
+
+  private static int count(HttpServletRequest request, String name) {
+    int count = Integer.parseInt(String.valueOf(request.getParameter(name)));
+    if (count < 0 || count > MAX_RESULTS) {
+      throw new IllegalArgumentException(name + " must be between 0 and " + MAX_RESULTS);
+    }
+    return count;
+  }
+}
@@ -14,9 +14,6 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
@@ -24,7 +21,9 @@ import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -38,36 +37,68 @@ import javax.servlet.ServletException;
 import com.google.common.base.Joiner; 
 
 /** Servlet that returns some example content. TODO: modify this file to handle comments data */
-@WebServlet("/coordinates-retrieval")
+@WebServlet(urlPatterns = "/coordinates-retrieval", asyncSupported = true)
 public class CoordinatesRetrievalServlet extends HttpServlet {
    
   // The ID of your GCS bucket
   private static final String BUCKET_NAME = "coordinates_json_bucket";
+
   private static final Logger log = Logger.getLogger(CoordinatesRetrievalServlet.class.getName());
 
+  private UserService userService;
+
+  // Serves the file with ETag, Last-Modified and Range support
+  private ConditionalBlobServer blobServer;
+
+  // Transcodes coordinates.json for clients asking for format=binary
+  private PackedCoordinates packedCoordinates;
+
+  // Shared I/O pool for retrieval requests, see AsyncRetrieval for configuration
+  private AsyncRetrieval asyncRetrieval;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    blobServer = services.blobServer();
+    packedCoordinates = services.packedCoordinates();
+    asyncRetrieval = services.asyncRetrieval();
+  }
+
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
 
     // Get current user logged in to webapp 
-    UserService userService = UserServiceFactory.getUserService();
     String userEmail = userService.getCurrentUser().getEmail();
     
     // Get the name of the dataset they want to visualize
     String datasetName = request.getParameter("dataset"); 
 
-    String[] coordinatesFilePath = {BUCKET_NAME, userEmail, datasetName, "coordinates.json"}; 
+    String[] coordinatesFilePath = {userEmail, datasetName, "coordinates.json"}; 
     String userJsonFilePath = joinFilePaths(coordinatesFilePath);
 
-    log.info("OH HAI THAR! Downloading: " + userJsonFilePath);
+    log.info("OH HAI THAR! Downloading: " + BUCKET_NAME + "/" + userJsonFilePath);
+
+    // Looking up (and if need be packing) the object happens on the I/O pool
+    asyncRetrieval.serve(request, response, () -> {
+      try {
+        BlobId blobId = BlobId.of(BUCKET_NAME, userJsonFilePath);
 
-    try {
-      BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-      BlobKey blobKey = blobstoreService.createGsBlobKey("/gs/" + userJsonFilePath);
-      blobstoreService.serve(blobKey, response);
-      log.info("KTHNXBAI" + userJsonFilePath);
-    } catch(IOException e) {
-      log.info(e.toString());
-    }
+        // Clients that can load raw Float32 buffers get the packed copy instead of the JSON
+        if ("binary".equals(request.getParameter("format"))) {
+          blobId = packedCoordinates.packedBlob(blobId);
+          if (blobId == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+          }
+        }
+        blobServer.serve(blobId, request, response);
+        log.info("KTHNXBAI" + userJsonFilePath);
+      } catch(IOException e) {
+        log.info(e.toString());
+      }
+      return null;
+    });
   }
 
   /** Creates the path leading to the coordinates.json file needed for their visualization */
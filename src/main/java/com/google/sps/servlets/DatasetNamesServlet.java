@@ -14,49 +14,158 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.sps.servlets.Metadata;
+import com.google.sps.servlets.DatasetPage;
 import com.google.sps.servlets.MetadataStore;
-import com.google.sps.servlets.DatastoreMetadataStore;
 
-@WebServlet("/dataset-names")
+/**
+ * Servlet that returns the names of the logged in user's datasets, oldest first.
+ *
+ * <p>Without parameters it responds with a JSON array of every name. With limit (at most 1000)
+ * it responds with one page, {"datasets": [..], "cursor": ..}; pass the cursor back to get the
+ * next page, it's null on the last one. Either way names are read a page at a time on the
+ * AsyncRetrieval I/O pool, and each page is written once the client has taken the previous one.
+ * Responses of more than 1 KB are gzipped as they stream to clients that accept it.
+ */
+@WebServlet(urlPatterns = "/dataset-names", asyncSupported = true)
 public class DatasetNamesServlet extends HttpServlet {
 
+  private static final int PAGE_SIZE = 500;
+  private static final int MAX_LIMIT = 1000;
+  // Smaller responses fit in a packet or two either way
+  private static final int GZIP_THRESHOLD_BYTES = 1024;
+
   private static final Gson GSON = new Gson();
 
-  // Instance of DatastoreMetadatastore class 
-  private static final MetadataStore DATASTORE_STORAGE = new DatastoreMetadataStore();
+  private UserService userService;
+
+  // Shared MetadataStore instance, see ServiceRegistry
+  private MetadataStore datastoreStorage;
+
+  // Shared I/O pool for retrieval requests, see AsyncRetrieval for configuration
+  private AsyncRetrieval asyncRetrieval;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    datastoreStorage = services.metadataStore();
+    asyncRetrieval = services.asyncRetrieval();
+  }
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
     // Get current user logged in to webapp
-    UserService userService = UserServiceFactory.getUserService();
     String userEmail = userService.getCurrentUser().getEmail();
 
-    // Get the logged in user's datasets
-    List<String> userDatasets = DATASTORE_STORAGE.getUsersDatasets(userEmail);
+    String limitParameter = request.getParameter("limit");
+    String cursor = request.getParameter("cursor");
+    int parsedLimit;
+    try {
+      parsedLimit = limitParameter == null ? PAGE_SIZE : Integer.parseInt(limitParameter);
+    } catch (NumberFormatException e) {
+      parsedLimit = -1;
+    }
+    int limit = parsedLimit;
+    if (limit < 1 || limit > MAX_LIMIT) {
+      response.sendError(
+          HttpServletResponse.SC_BAD_REQUEST, "limit must be between 1 and " + MAX_LIMIT);
+      return;
+    }
+    boolean gzip = ConditionalBlobServer.acceptsGzip(request);
+
+    // Pages are read on the I/O pool and written as the client takes them
+    asyncRetrieval.serve(request, response, () -> {
+      // Read the first page before writing anything, so a bad cursor can still get a 400
+      DatasetPage page;
+      try {
+        page = datastoreStorage.getUsersDatasets(userEmail, cursor, limit);
+      } catch (IllegalArgumentException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid cursor");
+        return null;
+      }
+      response.setContentType("application/json;");
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Vary", "Accept-Encoding");
+      AsyncRetrieval.BodySource body = limitParameter != null
+          ? new SinglePage(page) : new AllPages(datastoreStorage, userEmail, page);
+      return gzip ? new GzipBodySource(body, response, GZIP_THRESHOLD_BYTES) : body;
+    });
+  }
+
+  /** The body of a limited request: one page and the cursor of the next. */
+  private static class SinglePage implements AsyncRetrieval.BodySource {
+    private DatasetPage page;
+
+    SinglePage(DatasetPage page) {
+      this.page = page;
+    }
+
+    @Override
+    public byte[] next() throws IOException {
+      if (page == null) {
+        return null;
+      }
+      StringWriter json = new StringWriter();
+      JsonWriter writer = new JsonWriter(json);
+      writer.beginObject().name("datasets").beginArray();
+      for (String name : page.names()) {
+        writer.value(name);
+      }
+      writer.endArray().name("cursor").value(page.nextCursor()).endObject().close();
+      page = null;
+      return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  /** The body of an unlimited request: one JSON array, written a page at a time. */
+  private static class AllPages implements AsyncRetrieval.BodySource {
+    private final MetadataStore store;
+    private final String userEmail;
+    private DatasetPage page;
+    private boolean opened;
+    private boolean wroteName;
 
-    // Convert userDatasets to exportable json format
-    String json = GSON.toJson(userDatasets);
+    AllPages(MetadataStore store, String userEmail, DatasetPage firstPage) {
+      this.store = store;
+      this.userEmail = userEmail;
+      this.page = firstPage;
+    }
 
-    // Send the JSON as the response.
-    response.setContentType("application/json;");
-    response.getWriter().println(json);
+    @Override
+    public byte[] next() {
+      if (page == null) {
+        return null;
+      }
+      StringBuilder json = new StringBuilder();
+      if (!opened) {
+        json.append('[');
+        opened = true;
+      } else {
+        page = store.getUsersDatasets(userEmail, page.nextCursor(), PAGE_SIZE);
+      }
+      for (String name : page.names()) {
+        if (wroteName) {
+          json.append(',');
+        }
+        json.append(GSON.toJson(name));
+        wroteName = true;
+      }
+      if (page.nextCursor() == null) {
+        json.append(']');
+        page = null;
+      }
+      return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
   }
 }
@@ -0,0 +1,37 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * One page of a user's dataset names, oldest first, and the cursor to pass back for the next
+ * page. The cursor is null on the last page.
+ */
+@AutoValue
+public abstract class DatasetPage {
+
+  public static DatasetPage of(List<String> names, @Nullable String nextCursor) {
+    return new AutoValue_DatasetPage(ImmutableList.copyOf(names), nextCursor);
+  }
+
+  public abstract ImmutableList<String> names();
+
+  @Nullable
+  public abstract String nextCursor();
+}
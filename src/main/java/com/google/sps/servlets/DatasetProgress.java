@@ -0,0 +1,346 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.auto.value.AutoValue;
+import com.google.cloud.storage.BlobId;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks how many of a dataset's images have been through each stage of processing, configured
+ * through a system property set in appengine-web.xml:
+ *
+ * <ul>
+ *   <li>dataset-status.shards: counter shards per dataset and stage.
+ * </ul>
+ *
+ * <p>Each stage is counted in sharded Datastore counters, "ProgressShard" entities, each
+ * increment going to a random shard in a transaction, so images finishing at once don't contend
+ * on one entity, and reading the progress of a dataset is a single batch get. Per-image reports
+ * are idempotent: a "ProgressEvent" per stage and image is written in the same transaction, so a
+ * retried report isn't counted twice.
+ *
+ * <p>Once a stage's count reaches the dataset's image count, exactly one caller manages to write
+ * its "ProgressDone" entity and runs the stage's triggers, on a worker pool. Finishing
+ * thumbnails builds the spritesheet and finishing embeddings computes the t-SNE coordinates, so
+ * nothing has to list the dataset's objects to find out whether it is complete.
+ *
+ * <p>Images appended to a dataset keep counting on the same counters, and the dataset's new
+ * Metadata generation needs done markers of its own, so each stage completes and fires its
+ * triggers again once the appended images have been through it as well.
+ */
+public class DatasetProgress {
+
+  static final String SHARDS_PROPERTY = "dataset-status.shards";
+
+  static final String SHARD_KIND = "ProgressShard";
+  static final String EVENT_KIND = "ProgressEvent";
+  static final String DONE_KIND = "ProgressDone";
+
+  private static final int DEFAULT_SHARDS = 16;
+
+  // Attempts at an increment that keeps colliding with others on the same shard
+  private static final int MAX_ATTEMPTS = 5;
+
+  private static final Logger log = Logger.getLogger(DatasetProgress.class.getName());
+
+  /** The stages an image goes through. */
+  public enum Stage {
+    UPLOADED, THUMBNAILED, EMBEDDED;
+
+    /** The stage's name as reported and returned by /dataset-status. */
+    public String label() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+
+    /** Returns the stage with the given label, or null. */
+    public static Stage forLabel(String label) {
+      for (Stage stage : values()) {
+        if (stage.label().equals(label)) {
+          return stage;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Work that runs once a dataset has completed a stage. */
+  public interface Trigger {
+    void fire(String user, String dataset, long images) throws IOException, InterruptedException;
+  }
+
+  /** The progress of one dataset. */
+  @AutoValue
+  public abstract static class Status {
+
+    static Status of(long images, long generation, Map<Stage, Long> counts,
+        ImmutableSet<Stage> complete) {
+      return new AutoValue_DatasetProgress_Status(
+          images, generation, ImmutableMap.copyOf(counts), complete);
+    }
+
+    /** The number of images in the dataset, or -1 while its metadata hasn't been stored. */
+    public abstract long images();
+
+    /** The generation of the dataset's metadata the progress is measured against. */
+    public abstract long generation();
+
+    /** How many images have been through each stage. */
+    public abstract ImmutableMap<Stage, Long> counts();
+
+    /** The stages every image of the current generation has been through. */
+    public abstract ImmutableSet<Stage> complete();
+  }
+
+  private final DatastoreService datastore;
+  private final MetadataStore metadataStore;
+  private final ExecutorService executor;
+  private final int shards;
+  private final Map<Stage, List<Trigger>> triggers = new EnumMap<Stage, List<Trigger>>(Stage.class);
+
+  /**
+   * The metadata store must not cache: a report can arrive before the dataset is stored, or after
+   * another instance appended to it, and a cached answer would leave the stage unclaimed.
+   */
+  public DatasetProgress(DatastoreService datastore, MetadataStore metadataStore,
+      ExecutorService executor, int shards) {
+    this.datastore = datastore;
+    this.metadataStore = metadataStore;
+    this.executor = executor;
+    this.shards = shards;
+    for (Stage stage : Stage.values()) {
+      triggers.put(stage, new CopyOnWriteArrayList<Trigger>());
+    }
+  }
+
+  /**
+   * Creates the progress tracker with a daemon worker pool for its triggers, managed by the
+   * registry, building spritesheets and t-SNE coordinates as datasets complete. Both reuse what
+   * an earlier generation of the dataset produced, placing only the appended images.
+   */
+  public static DatasetProgress fromSystemProperties(ServiceRegistry services) {
+    ExecutorService executor = services.manage(Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("dataset-progress-%d").setDaemon(true).build()));
+    DatasetProgress progress = new DatasetProgress(services.datastore(),
+        services.metadataBackend(), executor, Integer.getInteger(SHARDS_PROPERTY, DEFAULT_SHARDS));
+    progress.onComplete(Stage.THUMBNAILED, (user, dataset, images) -> {
+      String[] thumbnailPaths = {user, dataset, "thumbnails", ""};
+      String[] sheetPaths = {user, dataset, "spritesheets", "spritesheet.png"};
+      services.spritesheetAssembler().update(ContentIndex.DERIVED_BUCKET,
+          SpritesheetRetrievalServlet.joinFilePaths(thumbnailPaths),
+          BlobId.of(SpritesheetRetrievalServlet.BUCKET_NAME,
+              SpritesheetRetrievalServlet.joinFilePaths(sheetPaths)), images);
+    });
+    progress.onComplete(Stage.EMBEDDED, (user, dataset, images) -> {
+      String[] embeddingsPaths = {user, dataset, "embeddings", ""};
+      String[] coordinatesPaths = {user, dataset, "coordinates.json"};
+      services.tsneCoordinates().compute(ContentIndex.DERIVED_BUCKET,
+          SpritesheetRetrievalServlet.joinFilePaths(embeddingsPaths),
+          BlobId.of(TsneServlet.BUCKET_NAME,
+              SpritesheetRetrievalServlet.joinFilePaths(coordinatesPaths)), true);
+    });
+    return progress;
+  }
+
+  /** Registers work to run each time a dataset completes the stage. */
+  public void onComplete(Stage stage, Trigger trigger) {
+    triggers.get(stage).add(trigger);
+  }
+
+  /**
+   * Adds count images to a stage of a dataset, for callers that report each image only once,
+   * then fires the triggers of any stage this completed.
+   */
+  public void add(String user, String dataset, Stage stage, long count) {
+    if (count > 0) {
+      increment(user, dataset, stage, count, null);
+    }
+    checkComplete(user, dataset);
+  }
+
+  /**
+   * Counts one image of a dataset through a stage, unless it has been counted already, then
+   * fires the triggers of any stage this completed. Returns whether the image was counted.
+   */
+  public boolean record(String user, String dataset, Stage stage, String imageName) {
+    Key event = KeyFactory.createKey(EVENT_KIND,
+        datasetId(user, dataset) + "/" + stage.label() + "/" + imageName);
+    boolean counted = increment(user, dataset, stage, 1, event);
+    checkComplete(user, dataset);
+    return counted;
+  }
+
+  /** Returns how far a dataset has got, with a single batch get of its counters. */
+  public Status status(String user, String dataset) {
+    Metadata metadata = metadataStore.retrieveMetadata(dataset, user);
+    long generation = metadata == null ? 1 : metadata.generation();
+    List<Key> keys = new ArrayList<Key>();
+    for (Stage stage : Stage.values()) {
+      for (int shard = 0; shard < shards; shard++) {
+        keys.add(shardKey(user, dataset, stage, shard));
+      }
+      keys.add(doneKey(user, dataset, stage, generation));
+    }
+    Map<Key, Entity> entities = datastore.get(keys);
+
+    Map<Stage, Long> counts = new EnumMap<Stage, Long>(Stage.class);
+    ImmutableSet.Builder<Stage> complete = ImmutableSet.builder();
+    for (Stage stage : Stage.values()) {
+      long count = 0;
+      for (int shard = 0; shard < shards; shard++) {
+        Entity counter = entities.get(shardKey(user, dataset, stage, shard));
+        count += counter == null ? 0 : (Long) counter.getProperty("count");
+      }
+      counts.put(stage, count);
+      if (entities.containsKey(doneKey(user, dataset, stage, generation))) {
+        complete.add(stage);
+      }
+    }
+    return Status.of(metadata == null ? -1 : metadata.numberOfImages(), generation, counts,
+        complete.build());
+  }
+
+  /**
+   * Adds to a random shard of a stage's counter, and writes event in the same transaction if
+   * it is given and doesn't exist yet. Returns whether anything was added.
+   */
+  private boolean increment(String user, String dataset, Stage stage, long count, Key event) {
+    for (int attempt = 1; ; attempt++) {
+      Key shardKey = shardKey(user, dataset, stage, ThreadLocalRandom.current().nextInt(shards));
+      Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+      try {
+        if (event != null) {
+          try {
+            datastore.get(txn, event);
+            return false;
+          } catch (EntityNotFoundException e) {
+            datastore.put(txn, new Entity(event));
+          }
+        }
+        Entity shard;
+        try {
+          shard = datastore.get(txn, shardKey);
+        } catch (EntityNotFoundException e) {
+          shard = new Entity(shardKey);
+          shard.setUnindexedProperty("count", 0L);
+        }
+        shard.setUnindexedProperty("count", (Long) shard.getProperty("count") + count);
+        datastore.put(txn, shard);
+        txn.commit();
+        return true;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= MAX_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  /** Claims and fires every stage whose count has reached the dataset's image count. */
+  private void checkComplete(String user, String dataset) {
+    Status status = status(user, dataset);
+    if (status.images() < 0) {
+      return;
+    }
+    for (Stage stage : Stage.values()) {
+      if (!status.complete().contains(stage) && status.counts().get(stage) >= status.images()
+          && claim(user, dataset, stage, status.generation())) {
+        fire(user, dataset, stage, status.images());
+      }
+    }
+  }
+
+  /** Writes the stage's done marker, returning true only for the caller that created it. */
+  private boolean claim(String user, String dataset, Stage stage, long generation) {
+    Key doneKey = doneKey(user, dataset, stage, generation);
+    Transaction txn = datastore.beginTransaction();
+    try {
+      try {
+        datastore.get(txn, doneKey);
+        return false;
+      } catch (EntityNotFoundException e) {
+        Entity done = new Entity(doneKey);
+        done.setUnindexedProperty("timestamp", System.currentTimeMillis());
+        datastore.put(txn, done);
+      }
+      txn.commit();
+      return true;
+    } catch (ConcurrentModificationException e) {
+      // Someone else claimed it at the same time
+      return false;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  private void fire(String user, String dataset, Stage stage, long images) {
+    log.info(user + "/" + dataset + " has completed " + stage.label());
+    for (Trigger trigger : triggers.get(stage)) {
+      executor.execute(() -> {
+        try {
+          trigger.fire(user, dataset, images);
+        } catch (IOException | RuntimeException e) {
+          log.log(Level.WARNING, "Trigger for " + stage.label() + " failed", e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+  }
+
+  private static Key shardKey(String user, String dataset, Stage stage, int shard) {
+    return KeyFactory.createKey(SHARD_KIND,
+        datasetId(user, dataset) + "/" + stage.label() + "/" + shard);
+  }
+
+  /** The done marker of a stage for one generation; the first keeps the original name. */
+  private static Key doneKey(String user, String dataset, Stage stage, long generation) {
+    String name = datasetId(user, dataset) + "/" + stage.label();
+    return KeyFactory.createKey(DONE_KIND, generation <= 1 ? name : name + "/" + generation);
+  }
+
+  /** Names a dataset by its metadata key, so the counters are root entities of their own. */
+  private static String datasetId(String user, String dataset) {
+    return KeyFactory.keyToString(DatastoreMetadataStore.metadataKey(dataset, user));
+  }
+}
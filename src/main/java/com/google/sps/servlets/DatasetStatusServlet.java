@@ -0,0 +1,107 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.sps.servlets.DatasetProgress.Stage;
+import com.google.sps.servlets.DatasetProgress.Status;
+
+/**
+ * Reports and serves how far a dataset has got through processing, see DatasetProgress.
+ *
+ * <p>GET with dataset-name returns the signed-in user's dataset as {"images": n,
+ * "generation": n, "uploaded": n, "thumbnailed": n, "embedded": n, "complete": ["uploaded",
+ * ...]}, so clients can poll this instead of retrying retrieval. images is -1 while the
+ * dataset's metadata hasn't been stored, and complete only lists stages the images appended in
+ * the current generation have been through too.
+ *
+ * <p>POST with user, dataset, stage and image is how the cloud functions report an image
+ * through a stage. It requires the dataset-status.token system property, sent as
+ * "Authorization: Bearer token".
+ */
+@WebServlet("/dataset-status")
+public class DatasetStatusServlet extends HttpServlet {
+
+  static final String TOKEN_PROPERTY = "dataset-status.token";
+
+  // Clients and components shared across requests, see ServiceRegistry
+  private UserService userService;
+  private DatasetProgress progress;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    progress = services.datasetProgress();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String userEmail = userService.getCurrentUser().getEmail();
+    String datasetName = request.getParameter("dataset-name");
+    if (datasetName == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "dataset-name is required");
+      return;
+    }
+    Status status = progress.status(userEmail, datasetName);
+
+    response.setContentType("application/json;");
+    response.setHeader("Cache-Control", "no-store");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject();
+    writer.name("images").value(status.images());
+    writer.name("generation").value(status.generation());
+    for (Map.Entry<Stage, Long> count : status.counts().entrySet()) {
+      writer.name(count.getKey().label()).value(count.getValue());
+    }
+    writer.name("complete").beginArray();
+    for (Stage stage : status.complete()) {
+      writer.value(stage.label());
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String token = System.getProperty(TOKEN_PROPERTY, "");
+    if (token.isEmpty() || !MetricsServlet.hasBearerToken(request, token)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    String user = request.getParameter("user");
+    String dataset = request.getParameter("dataset");
+    Stage stage = Stage.forLabel(request.getParameter("stage"));
+    String image = request.getParameter("image");
+    if (user == null || dataset == null || stage == null || image == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+          "user, dataset, stage and image are required");
+      return;
+    }
+    progress.record(user, dataset, stage, image);
+    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+}
@@ -14,46 +14,223 @@
 
 package com.google.sps.servlets;
 
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.common.collect.Lists;
 import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * A class for storing and accessing Metadata entities within Datastore. 
+ * A class for storing and accessing Metadata entities within Datastore.
+ *
+ * <p>Entities are stored under a deterministic key, a "MetaData" child of a "User" parent keyed
+ * by the user's email and named after the dataset, so existence checks and lookups for a
+ * particular user's dataset are direct key gets instead of queries over the whole kind. Batch
+ * operations use batched puts and gets, and dataset listings are keys-only queries, since a
+ * keyed entity's name is its dataset name.
+ *
+ * <p>How many queries of each kind are run, and how many entities they read, is counted in the
+ * Metrics passed in, so a query that scans more than it should shows up on /metrics.
  * @implements {MetadataStore}
  */
 public class DatastoreMetadataStore implements MetadataStore {
 
-  public DatastoreMetadataStore() {}
+  private static final String METADATA_KIND = "MetaData";
+  private static final String USER_KIND = "User";
+
+  // Number of entities moved per batch when migrating legacy entities
+  private static final int MIGRATION_BATCH_SIZE = 500;
+
+  // Datastore accepts at most 500 entities per put and 1000 keys per get
+  private static final int PUT_BATCH_SIZE = 500;
+  private static final int GET_BATCH_SIZE = 1000;
+
+  // Attempts at an append that keeps colliding with others on the same dataset
+  private static final int MAX_APPEND_ATTEMPTS = 5;
+
+  // Page size used when a whole dataset list is read
+  private static final int LIST_PAGE_SIZE = 500;
+
+  // Client shared by every call, rather than looked up on each one
+  private final DatastoreService datastore;
+
+  // Whether to fall back to a property query when a keyed lookup misses
+  private final boolean legacyLookup;
+
+  private final QueryCounter byDatasetQueries;
+  private final QueryCounter legacyQueries;
+  private final QueryCounter listQueries;
+  private final QueryCounter migrationQueries;
+
+  public DatastoreMetadataStore() {
+    this(DatastoreServiceFactory.getDatastoreService());
+  }
+
+  public DatastoreMetadataStore(DatastoreService datastore) {
+    this(datastore, true);
+  }
+
+  public DatastoreMetadataStore(boolean legacyLookup) {
+    this(DatastoreServiceFactory.getDatastoreService(), legacyLookup);
+  }
+
+  /**
+   * Creates a store that, when legacyLookup is set, also finds entities written with
+   * auto-allocated IDs before keys were derived from the user and dataset name. Once
+   * migrateLegacyEntities() has run this can be turned off, through the
+   * metadata-store.legacy-lookup property, see MetadataMigrationServlet.
+   */
+  public DatastoreMetadataStore(DatastoreService datastore, boolean legacyLookup) {
+    this(datastore, legacyLookup, new Metrics());
+  }
+
+  /**
+   * Creates a store that counts its queries, and the entities they read, in metrics.
+   */
+  public DatastoreMetadataStore(DatastoreService datastore, boolean legacyLookup,
+      Metrics metrics) {
+    this.datastore = datastore;
+    this.legacyLookup = legacyLookup;
+    this.byDatasetQueries = new QueryCounter(metrics, "by-dataset");
+    this.legacyQueries = new QueryCounter(metrics, "legacy-lookup");
+    this.listQueries = new QueryCounter(metrics, "list-page");
+    this.migrationQueries = new QueryCounter(metrics, "migration");
+  }
+
+  /**
+   * Creates the key a particular user's dataset is stored under.
+   */
+  public static Key metadataKey(String datasetName, String user) {
+    Key userKey = KeyFactory.createKey(USER_KIND, user);
+    return KeyFactory.createKey(userKey, METADATA_KIND, datasetName);
+  }
 
   /**
    * Stores a valid Metadata type into Datastore
    */
   public void storeData(Metadata data) {
-    // Create service call to access Datastore
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    // Place entity withing Datastore
+    datastore.put(toEntity(data));
+  }
 
-    // Create a new Entity
-    Entity datasetEntity = new Entity("MetaData");
-    datasetEntity.setProperty("user-email", data.user());
-    datasetEntity.setProperty("dataset-name", data.dataset());
-    datasetEntity.setProperty("model", data.model());
-    datasetEntity.setProperty("visualizer-type", data.visualization());
-    datasetEntity.setProperty("image-count", data.numberOfImages());
-    datasetEntity.setProperty("timestamp", data.timestamp());
+  /**
+   * Stores several Metadata objects using batched puts.
+   */
+  public void storeAll(List<Metadata> data) {
+    for (List<Metadata> batch : Lists.partition(data, PUT_BATCH_SIZE)) {
+      List<Entity> entities = new ArrayList<Entity>(batch.size());
+      for (Metadata metadata : batch) {
+        entities.add(toEntity(metadata));
+      }
+      datastore.put(entities);
+    }
+  }
 
-    // Place entity withing Datastore
-    datastore.put(datasetEntity);
+  /**
+   * Stores the dataset in a transaction on its key that finds the key free, retrying a few
+   * times if another write commits first. A legacy entity of the name counts as the dataset.
+   */
+  public boolean storeIfAbsent(Metadata data) {
+    if (legacyKey(data.dataset(), data.user()) != null) {
+      return false;
+    }
+    Key key = metadataKey(data.dataset(), data.user());
+    for (int attempt = 1; ; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        try {
+          datastore.get(txn, key);
+          return false;
+        } catch (EntityNotFoundException e) {
+          // The name is still free
+        }
+        datastore.put(txn, toEntity(data));
+        txn.commit();
+        return true;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_APPEND_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the dataset and stores its next generation in one transaction on its key, retrying a
+   * few times if another append commits first. A dataset still under a legacy key is moved to
+   * its deterministic key in the same, cross-group, transaction.
+   */
+  public Metadata append(String datasetName, String user, long addedImages, long timestamp) {
+    Key legacyKey = null;
+    for (int attempt = 1; ; attempt++) {
+      Transaction txn = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+      try {
+        Entity entity;
+        try {
+          entity = datastore.get(txn, metadataKey(datasetName, user));
+        } catch (EntityNotFoundException e) {
+          if (legacyKey == null) {
+            legacyKey = legacyKey(datasetName, user);
+          }
+          if (legacyKey == null) {
+            return null;
+          }
+          entity = datastore.get(txn, legacyKey);
+        }
+        Metadata appended = fromEntity(entity).appended(addedImages, timestamp);
+        datastore.put(txn, toEntity(appended));
+        if (entity.getKey().equals(legacyKey)) {
+          datastore.delete(txn, legacyKey);
+        }
+        txn.commit();
+        return appended;
+      } catch (EntityNotFoundException e) {
+        // The legacy entity was moved to its key in the meantime, or the query is behind
+        if (attempt == MAX_APPEND_ATTEMPTS) {
+          return null;
+        }
+        legacyKey = null;
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_APPEND_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
   }
-  
+
   /**
    * Retrieves the metadata information stored withing Datastore using a given dataset name.
    */
@@ -61,25 +238,73 @@ public class DatastoreMetadataStore implements MetadataStore {
     // Check to see if any entity has the same matching dataset name
     Filter propertyFilter = new FilterPredicate("dataset-name", FilterOperator.EQUAL, datasetName);
 
-    Query query = new Query("MetaData").setFilter(propertyFilter);
-    
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery results = datastore.prepare(query);
-
-    for (Entity entity : results.asIterable()) {
-      String dataset = (String) entity.getProperty("dataset-name");
-      
-      if (dataset.equals(datasetName)) {
-        // Get the remaining properties
-        String email = (String) entity.getProperty("user-email");
-        String model = (String) entity.getProperty("model");
-        String visualizerType = (String) entity.getProperty("visualizer-type");
-        long imageCount = (Long) entity.getProperty("image-count");
-        long time = (Long) entity.getProperty("timestamp");
-        return new AutoValue_Metadata(email, dataset, model, visualizerType, imageCount, time);
+    Query query = new Query(METADATA_KIND).setFilter(propertyFilter);
+
+    List<Entity> results = datastore.prepare(query).asList(withLimit(1));
+    byDatasetQueries.record(results.size());
+
+    return results.isEmpty() ? null : fromEntity(results.get(0));
+  }
+
+  /**
+   * Retrieves the metadata information for a particular user's dataset with a single key get.
+   */
+  public Metadata retrieveMetadata(String datasetName, String user) {
+    try {
+      return fromEntity(datastore.get(metadataKey(datasetName, user)));
+    } catch (EntityNotFoundException e) {
+      if (!legacyLookup) {
+        return null;
       }
+      List<Entity> results =
+          datastore.prepare(legacyQuery(datasetName, user)).asList(withLimit(1));
+      legacyQueries.record(results.size());
+      return results.isEmpty() ? null : fromEntity(results.get(0));
     }
-    return null;
+  }
+
+  /**
+   * Retrieves the metadata of several of a user's datasets with batched key gets. Datasets not
+   * found by key are looked for among the user's legacy entities with a keys-only query each,
+   * then fetched in one more batch, so the cost stays with the names asked for however many
+   * datasets the user has.
+   */
+  public Map<String, Metadata> retrieveMany(List<String> datasetNames, String user) {
+    Map<String, Metadata> found = new HashMap<String, Metadata>();
+    Set<String> missing = new HashSet<String>();
+    for (List<String> batch : Lists.partition(datasetNames, GET_BATCH_SIZE)) {
+      List<Key> keys = new ArrayList<Key>(batch.size());
+      for (String datasetName : batch) {
+        keys.add(metadataKey(datasetName, user));
+      }
+      Map<Key, Entity> entities = datastore.get(keys);
+      for (String datasetName : batch) {
+        Entity entity = entities.get(metadataKey(datasetName, user));
+        if (entity == null) {
+          missing.add(datasetName);
+        } else {
+          found.put(datasetName, fromEntity(entity));
+        }
+      }
+    }
+
+    if (legacyLookup && !missing.isEmpty()) {
+      List<Key> legacyKeys = new ArrayList<Key>();
+      for (String datasetName : missing) {
+        List<Entity> keys = datastore.prepare(legacyQuery(datasetName, user).setKeysOnly())
+            .asList(withLimit(1));
+        legacyQueries.record(keys.size());
+        if (!keys.isEmpty()) {
+          legacyKeys.add(keys.get(0).getKey());
+        }
+      }
+      for (List<Key> batch : Lists.partition(legacyKeys, GET_BATCH_SIZE)) {
+        for (Entity entity : datastore.get(batch).values()) {
+          found.put((String) entity.getProperty("dataset-name"), fromEntity(entity));
+        }
+      }
+    }
+    return found;
   }
 
   /**
@@ -87,56 +312,207 @@ public class DatastoreMetadataStore implements MetadataStore {
    */
   public List<String> getUsersDatasets(String user) {
     List<String> userDatasets = new ArrayList<String>();
-    for (Entity entity : getAllDatastoreEntitiesForUser(user).asIterable()) {
-      // Get this the dataset-name for this entry and store it
-      String dataset = (String) entity.getProperty("dataset-name"); 
-      userDatasets.add(dataset);
-    }
+    String cursor = null;
+    do {
+      DatasetPage page = getUsersDatasets(user, cursor, LIST_PAGE_SIZE);
+      userDatasets.addAll(page.names());
+      cursor = page.nextCursor();
+    } while (cursor != null);
     return userDatasets;
   }
 
+  /**
+   * Retrieves one page of a user's dataset names with a keys-only query, so no entities are
+   * fetched except for legacy ones, whose keys don't carry the dataset name.
+   */
+  public DatasetPage getUsersDatasets(String user, String cursor, int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be positive");
+    }
+    Filter propertyFilter = new FilterPredicate("user-email", FilterOperator.EQUAL, user);
+    Query query = new Query(METADATA_KIND).setFilter(propertyFilter)
+        .addSort("timestamp", SortDirection.ASCENDING)
+        .setKeysOnly();
+
+    // One result past the limit tells whether there is another page
+    FetchOptions options = withLimit(limit + 1).chunkSize(limit + 1);
+    if (cursor != null) {
+      options.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultIterator<Entity> results =
+        datastore.prepare(query).asQueryResultIterator(options);
+
+    List<Key> keys = new ArrayList<Key>();
+    String nextCursor = null;
+    while (results.hasNext()) {
+      if (keys.size() == limit) {
+        nextCursor = results.getCursor().toWebSafeString();
+        break;
+      }
+      keys.add(results.next().getKey());
+    }
+    listQueries.record(keys.size());
+    return DatasetPage.of(datasetNames(datastore, keys), nextCursor);
+  }
+
   /**
    * Checks to see if a particular user already has a dataset with a particular name.
    */
-  public boolean metadataExists(String datasetName, String user) { 
-    for (Entity entity : getAllDatastoreEntities().asIterable()) {
-      String email = (String) entity.getProperty("user-email");
-      String dataset = (String) entity.getProperty("dataset-name");
+  public boolean metadataExists(String datasetName, String user) {
+    try {
+      datastore.get(metadataKey(datasetName, user));
+      return true;
+    } catch (EntityNotFoundException e) {
+      if (!legacyLookup) {
+        return false;
+      }
+      Query query = legacyQuery(datasetName, user).setKeysOnly();
+      int found = datastore.prepare(query).asList(withLimit(1)).size();
+      legacyQueries.record(found);
+      return found > 0;
+    }
+  }
 
-      if (email.equals(user)) {
-        if (dataset.equals(datasetName)) {
-          return true;
-        }
+  /**
+   * Moves every MetaData entity stored under an auto-allocated ID to its deterministic key and
+   * returns how many entities were moved. Safe to run more than once.
+   */
+  public int migrateLegacyEntities() {
+    PreparedQuery results = datastore.prepare(new Query(METADATA_KIND));
+
+    int migrated = 0;
+    List<Entity> keyedEntities = new ArrayList<Entity>();
+    List<Key> legacyKeys = new ArrayList<Key>();
+    int scanned = 0;
+    for (Entity entity : results.asIterable(withChunkSize(MIGRATION_BATCH_SIZE))) {
+      scanned++;
+      if (entity.getKey().getName() != null) {
+        continue;
+      }
+      keyedEntities.add(toEntity(fromEntity(entity)));
+      legacyKeys.add(entity.getKey());
+
+      if (legacyKeys.size() == MIGRATION_BATCH_SIZE) {
+        migrated += moveEntities(datastore, keyedEntities, legacyKeys);
       }
     }
-    return false;
+    if (!legacyKeys.isEmpty()) {
+      migrated += moveEntities(datastore, keyedEntities, legacyKeys);
+    }
+    migrationQueries.record(scanned);
+    return migrated;
   }
 
   /**
-   * Retrieves all of the entities from Datastore and returns them in a PreparedQuery.
+   * Writes the keyed copies before deleting the legacy entities, so a failure part way through
+   * never loses a dataset, then clears both batches.
    */
-  private static PreparedQuery getAllDatastoreEntities() {
-    Query query = new Query("MetaData").addSort("timestamp", SortDirection.ASCENDING);
+  private static int moveEntities(DatastoreService datastore, List<Entity> keyedEntities,
+      List<Key> legacyKeys) {
+    int moved = legacyKeys.size();
+    datastore.put(keyedEntities);
+    datastore.delete(legacyKeys);
+    keyedEntities.clear();
+    legacyKeys.clear();
+    return moved;
+  }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery results = datastore.prepare(query);
-    
-    return results;
+  /**
+   * Maps listed keys to dataset names, fetching the entities behind legacy keys in one batch.
+   */
+  private static List<String> datasetNames(DatastoreService datastore, List<Key> keys) {
+    List<Key> legacyKeys = new ArrayList<Key>();
+    for (Key key : keys) {
+      if (key.getName() == null) {
+        legacyKeys.add(key);
+      }
+    }
+    Map<Key, Entity> legacyEntities = legacyKeys.isEmpty()
+        ? new HashMap<Key, Entity>() : datastore.get(legacyKeys);
+
+    List<String> names = new ArrayList<String>(keys.size());
+    for (Key key : keys) {
+      if (key.getName() != null) {
+        names.add(key.getName());
+      } else if (legacyEntities.containsKey(key)) {
+        names.add((String) legacyEntities.get(key).getProperty("dataset-name"));
+      }
+    }
+    return names;
   }
-  
+
   /**
-   * Retrieves all of the entities from Datastore for a particular user and returns them 
-   * in a PreparedQuery.
+   * Creates the Datastore entity for a Metadata object under its deterministic key.
    */
-  private static PreparedQuery getAllDatastoreEntitiesForUser(String user) {
-    Filter propertyFilter = new FilterPredicate("user-email", FilterOperator.EQUAL, user);
+  private static Entity toEntity(Metadata data) {
+    Entity datasetEntity = new Entity(metadataKey(data.dataset(), data.user()));
+    datasetEntity.setProperty("user-email", data.user());
+    datasetEntity.setProperty("dataset-name", data.dataset());
+    datasetEntity.setProperty("model", data.model());
+    datasetEntity.setProperty("visualizer-type", data.visualization());
+    datasetEntity.setProperty("image-count", data.numberOfImages());
+    datasetEntity.setProperty("timestamp", data.timestamp());
+    datasetEntity.setUnindexedProperty("generation", data.generation());
+    return datasetEntity;
+  }
 
-    Query query = new Query("MetaData").setFilter(propertyFilter)
-        .addSort("timestamp", SortDirection.ASCENDING);
-    
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery results = datastore.prepare(query);
+  /**
+   * Reads a Metadata object back out of a Datastore entity.
+   */
+  private static Metadata fromEntity(Entity entity) {
+    String email = (String) entity.getProperty("user-email");
+    String dataset = (String) entity.getProperty("dataset-name");
+    String model = (String) entity.getProperty("model");
+    String visualizerType = (String) entity.getProperty("visualizer-type");
+    long imageCount = (Long) entity.getProperty("image-count");
+    long time = (Long) entity.getProperty("timestamp");
+    // Entities stored before datasets could be appended to are their first generation
+    Long generation = (Long) entity.getProperty("generation");
+    return Metadata.of(email, dataset, model, visualizerType, imageCount, time,
+        generation == null ? 1 : generation);
+  }
+
+  /**
+   * Finds the key of a user's dataset stored before keys were derived from the user and
+   * dataset name, or null if there is none or legacy lookups are off. Queries other than by
+   * ancestor can't run in a transaction, so this runs outside one.
+   */
+  private Key legacyKey(String datasetName, String user) {
+    if (!legacyLookup) {
+      return null;
+    }
+    List<Entity> results = datastore.prepare(legacyQuery(datasetName, user).setKeysOnly())
+        .asList(withLimit(1));
+    legacyQueries.record(results.size());
+    return results.isEmpty() ? null : results.get(0).getKey();
+  }
 
-    return results;
+  /**
+   * Creates a query matching entities for a user's dataset that were stored before keys were
+   * derived from the user and dataset name.
+   */
+  private static Query legacyQuery(String datasetName, String user) {
+    Filter userFilter = new FilterPredicate("user-email", FilterOperator.EQUAL, user);
+    Filter datasetFilter = new FilterPredicate("dataset-name", FilterOperator.EQUAL, datasetName);
+    return new Query(METADATA_KIND)
+        .setFilter(CompositeFilterOperator.and(userFilter, datasetFilter));
+  }
+
+  /** The query and entity counters of one kind of query. */
+  private static class QueryCounter {
+    private final LongAdder queries;
+    private final LongAdder entities;
+
+    QueryCounter(Metrics metrics, String kind) {
+      queries = metrics.counter("metadata_store_queries_total",
+          "Datastore queries run by the metadata store.", "query", kind);
+      entities = metrics.counter("metadata_store_entities_read_total",
+          "Entities or keys read by metadata store queries.", "query", kind);
+    }
+
+    void record(int entitiesRead) {
+      queries.increment();
+      entities.add(entitiesRead);
+    }
   }
 }
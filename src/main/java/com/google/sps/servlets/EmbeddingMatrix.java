@@ -0,0 +1,195 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A dataset's embeddings as one contiguous row-major float matrix, one row per image.
+ *
+ * <p>The matrix is backed by a FloatBuffer, either wrapping a heap array or mapped from a packed
+ * .npy file (see PackedEmbeddings), in which case it lives outside the Java heap. Rows are kept
+ * as stored; their inverse lengths are precomputed so that similarity() and searches work in
+ * cosine similarity. Exact search scans every row, split into blocks that run in parallel.
+ */
+public final class EmbeddingMatrix {
+
+  // Rows scanned by one task of an exact search; smaller matrices are scanned inline
+  static final int ROWS_PER_TASK = 8192;
+
+  private final String[] names;
+  private final FloatBuffer vectors;
+  private final int dimension;
+  private final float[] inverseNorms;
+  private final Map<String, Integer> rows;
+
+  private EmbeddingMatrix(String[] names, FloatBuffer vectors, int dimension) {
+    this.names = names;
+    this.vectors = vectors;
+    this.dimension = dimension;
+    this.inverseNorms = new float[names.length];
+    this.rows = new HashMap<String, Integer>(names.length * 2);
+    for (int row = 0; row < names.length; row++) {
+      rows.put(names[row], row);
+      double norm = 0;
+      for (int i = row * dimension; i < (row + 1) * dimension; i++) {
+        norm += vectors.get(i) * vectors.get(i);
+      }
+      inverseNorms[row] = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+    }
+  }
+
+  /** Wraps names.length rows of the given dimension. */
+  public static EmbeddingMatrix of(String[] names, float[] vectors, int dimension) {
+    return of(names, FloatBuffer.wrap(vectors), dimension);
+  }
+
+  /**
+   * Wraps names.length rows of the given dimension, starting at the buffer's position. The
+   * buffer's contents must not change afterwards.
+   */
+  public static EmbeddingMatrix of(String[] names, FloatBuffer vectors, int dimension) {
+    if ((long) names.length * dimension != vectors.remaining()) {
+      throw new IllegalArgumentException("Expected " + names.length + " rows of " + dimension);
+    }
+    return new EmbeddingMatrix(names, vectors.slice(), dimension);
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  public int dimension() {
+    return dimension;
+  }
+
+  public String name(int row) {
+    return names[row];
+  }
+
+  /** Returns the row of the named image, or -1 if there is none. */
+  public int row(String name) {
+    Integer row = rows.get(name);
+    return row == null ? -1 : row;
+  }
+
+  /** Returns the cosine similarity of two rows. */
+  public float similarity(int row, int other) {
+    int base = row * dimension;
+    int otherBase = other * dimension;
+    float sum = 0;
+    for (int i = 0; i < dimension; i++) {
+      sum += vectors.get(base + i) * vectors.get(otherBase + i);
+    }
+    return sum * inverseNorms[row] * inverseNorms[other];
+  }
+
+  /** Returns a copy of a row scaled to unit length, for use as a query. */
+  public float[] vector(int row) {
+    float[] vector = new float[dimension];
+    for (int i = 0; i < dimension; i++) {
+      vector[i] = vectors.get(row * dimension + i) * inverseNorms[row];
+    }
+    return vector;
+  }
+
+  /** Approximate memory footprint, on or off the heap, used to bound how many are kept. */
+  public long bytes() {
+    return 4L * vectors.capacity() + 72L * names.length;
+  }
+
+  /**
+   * Returns the k rows most similar to the given row, most similar first, excluding the row
+   * itself.
+   */
+  public int[] nearest(int row, int k, ExecutorService executor) throws InterruptedException {
+    int[] nearest = nearest(vector(row), 0, k + 1, executor);
+    return withoutRow(nearest, row, k);
+  }
+
+  /**
+   * Returns the k rows with the highest dot product with the unit-length vector at
+   * query[offset], highest first.
+   */
+  public int[] nearest(float[] query, int offset, int k, ExecutorService executor)
+      throws InterruptedException {
+    int limit = Math.min(k, names.length);
+    if (names.length <= ROWS_PER_TASK || executor == null) {
+      return scan(query, offset, 0, names.length, limit).drainDescending();
+    }
+
+    List<Future<ScoredHeap>> blocks = new ArrayList<Future<ScoredHeap>>();
+    for (int start = 0; start < names.length; start += ROWS_PER_TASK) {
+      int from = start;
+      int to = Math.min(names.length, start + ROWS_PER_TASK);
+      blocks.add(executor.submit(() -> scan(query, offset, from, to, limit)));
+    }
+    ScoredHeap merged = new ScoredHeap(false, limit);
+    try {
+      for (Future<ScoredHeap> block : blocks) {
+        ScoredHeap heap = block.get();
+        while (heap.size() > 0) {
+          float score = heap.peekScore();
+          merged.offer(heap.pop(), score, limit);
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<ScoredHeap> block : blocks) {
+        block.cancel(true);
+      }
+    }
+    return merged.drainDescending();
+  }
+
+  /** The dot product of the unit-length vector at query[offset] with a row scaled likewise. */
+  float dot(float[] query, int offset, int row) {
+    int base = row * dimension;
+    float sum = 0;
+    for (int i = 0; i < dimension; i++) {
+      sum += query[offset + i] * vectors.get(base + i);
+    }
+    return sum * inverseNorms[row];
+  }
+
+  /** Drops row from a nearest-first list, keeping at most k entries. */
+  static int[] withoutRow(int[] nearest, int row, int k) {
+    int[] filtered = new int[Math.min(k, nearest.length)];
+    int count = 0;
+    for (int candidate : nearest) {
+      if (candidate != row && count < filtered.length) {
+        filtered[count++] = candidate;
+      }
+    }
+    return count == filtered.length ? filtered : Arrays.copyOf(filtered, count);
+  }
+
+  private ScoredHeap scan(float[] query, int offset, int from, int to, int limit) {
+    ScoredHeap heap = new ScoredHeap(false, limit);
+    for (int row = from; row < to; row++) {
+      heap.offer(row, dot(query, offset, row), limit);
+    }
+    return heap;
+  }
+}
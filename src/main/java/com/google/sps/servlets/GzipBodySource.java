@@ -0,0 +1,89 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Gzips a streamed response body, but only once it turns out to be large enough to be worth it.
+ * Pieces are held back until they add up to the threshold. A body that ends before that is sent
+ * as it is, with its Content-Length. A longer one is compressed from its first byte, and each
+ * piece is flushed so the client doesn't wait for the next one to see it.
+ *
+ * <p>Only wrap the body of a client that accepts gzip, before anything has been written.
+ */
+final class GzipBodySource implements AsyncRetrieval.BodySource {
+
+  private final AsyncRetrieval.BodySource body;
+  private final HttpServletResponse response;
+  private final int thresholdBytes;
+  private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+  private GZIPOutputStream gzip;
+  private boolean ended;
+
+  GzipBodySource(AsyncRetrieval.BodySource body, HttpServletResponse response,
+      int thresholdBytes) {
+    this.body = body;
+    this.response = response;
+    this.thresholdBytes = thresholdBytes;
+  }
+
+  @Override
+  public byte[] next() throws IOException, InterruptedException {
+    if (ended) {
+      return null;
+    }
+    if (gzip == null) {
+      return start();
+    }
+    byte[] piece = body.next();
+    if (piece == null) {
+      gzip.finish();
+      ended = true;
+    } else {
+      gzip.write(piece);
+      gzip.flush();
+    }
+    return drain();
+  }
+
+  /** Holds pieces back until the body reaches the threshold or ends, and picks the encoding. */
+  private byte[] start() throws IOException, InterruptedException {
+    ByteArrayOutputStream held = new ByteArrayOutputStream();
+    byte[] piece = null;
+    while (held.size() < thresholdBytes && (piece = body.next()) != null) {
+      held.write(piece);
+    }
+    if (piece == null) {
+      ended = true;
+      response.setContentLength(held.size());
+      return held.size() == 0 ? null : held.toByteArray();
+    }
+    response.setHeader("Content-Encoding", "gzip");
+    gzip = new GZIPOutputStream(compressed, true);
+    held.writeTo(gzip);
+    gzip.flush();
+    return drain();
+  }
+
+  private byte[] drain() {
+    byte[] bytes = compressed.toByteArray();
+    compressed.reset();
+    return bytes;
+  }
+}
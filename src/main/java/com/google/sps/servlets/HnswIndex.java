@@ -0,0 +1,414 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An approximate nearest neighbour index over the rows of an EmbeddingMatrix: a hierarchical
+ * navigable small world graph (Malkov and Yashunin, 2016).
+ *
+ * <p>Every row is a node on level 0 and, with exponentially decreasing probability, on the
+ * levels above it. A search descends greedily from the single node on the top level and then
+ * runs a beam search of width ef on level 0. Links live in flat int arrays: level 0 has room for
+ * 2m links per node, higher levels m.
+ *
+ * <p>The graph is built by several threads at once; each node's links are guarded by a striped
+ * lock. Once built the index is safe for concurrent searches.
+ */
+public final class HnswIndex {
+
+  static final int DEFAULT_M = 16;
+  static final int DEFAULT_EF_CONSTRUCTION = 100;
+
+  // Rows inserted by one build task
+  private static final int ROWS_PER_TASK = 1024;
+  private static final int LOCK_STRIPES = 1024;
+  private static final long SEED = 42;
+
+  private final EmbeddingMatrix matrix;
+  private final int m;
+  private final int maxM0;
+  private final int efConstruction;
+
+  private final int[] levels;
+  private final int[] baseLinks;
+  private final int[] baseCounts;
+  // For each node above level 0: per level, a count followed by up to m links
+  private final int[][] upperLinks;
+  private final Object[] locks;
+  private final ThreadLocal<Scratch> scratch;
+
+  // Guarded by this
+  private int entryPoint = -1;
+  private int maxLevel = -1;
+
+  private HnswIndex(EmbeddingMatrix matrix, int m, int efConstruction) {
+    this.matrix = matrix;
+    this.m = m;
+    this.maxM0 = 2 * m;
+    this.efConstruction = efConstruction;
+
+    int size = matrix.size();
+    this.levels = new int[size];
+    this.baseLinks = new int[size * maxM0];
+    this.baseCounts = new int[size];
+    this.upperLinks = new int[size][];
+    Random random = new Random(SEED);
+    double levelMultiplier = 1 / Math.log(m);
+    for (int node = 0; node < size; node++) {
+      levels[node] = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+      if (levels[node] > 0) {
+        upperLinks[node] = new int[levels[node] * (m + 1)];
+      }
+    }
+    this.locks = new Object[LOCK_STRIPES];
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+    this.scratch = ThreadLocal.withInitial(() -> new Scratch(size, maxM0));
+  }
+
+  /**
+   * Builds an index with m links per node on each upper level, inserting rows in parallel on the
+   * executor (or on the calling thread if it is null).
+   */
+  public static HnswIndex build(EmbeddingMatrix matrix, int m, int efConstruction,
+      ExecutorService executor) throws InterruptedException {
+    HnswIndex index = new HnswIndex(matrix, m, efConstruction);
+    int size = matrix.size();
+    if (size == 0) {
+      return index;
+    }
+    // The first node is inserted alone so every other insertion has an entry point
+    index.insert(0);
+    if (executor == null) {
+      for (int node = 1; node < size; node++) {
+        index.insert(node);
+      }
+      return index;
+    }
+
+    List<Future<?>> tasks = new ArrayList<Future<?>>();
+    for (int start = 1; start < size; start += ROWS_PER_TASK) {
+      int from = start;
+      int to = Math.min(size, start + ROWS_PER_TASK);
+      tasks.add(executor.submit(() -> {
+        for (int node = from; node < to; node++) {
+          index.insert(node);
+        }
+      }));
+    }
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<?> task : tasks) {
+        task.cancel(true);
+      }
+    }
+    return index;
+  }
+
+  public int size() {
+    return levels.length;
+  }
+
+  /** Approximate heap footprint of the graph, not counting the matrix. */
+  public long bytes() {
+    long bytes = 4L * (baseLinks.length + baseCounts.length + levels.length);
+    for (int[] links : upperLinks) {
+      bytes += links == null ? 8 : 16 + 4L * links.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns (approximately) the k rows most similar to the given row, most similar first,
+   * excluding the row itself. ef is the beam width; larger is slower but more accurate.
+   */
+  public int[] nearest(int row, int k, int ef) {
+    return EmbeddingMatrix.withoutRow(nearest(matrix.vector(row), 0, k + 1, ef), row, k);
+  }
+
+  /**
+   * Returns (approximately) the k rows with the highest dot product with the unit-length vector
+   * at query[offset], highest first.
+   */
+  public int[] nearest(float[] query, int offset, int k, int ef) {
+    int entry;
+    int top;
+    synchronized (this) {
+      entry = entryPoint;
+      top = maxLevel;
+    }
+    if (entry < 0 || k <= 0) {
+      return new int[0];
+    }
+    Scratch work = scratch.get();
+    entry = greedyClosest(query, offset, entry, top, 0, work);
+    ScoredHeap results = searchLayer(query, offset, entry, Math.max(ef, k), 0, work);
+    while (results.size() > k) {
+      results.pop();
+    }
+    return results.drainDescending();
+  }
+
+  private void insert(int node) {
+    int level = levels[node];
+    int entry;
+    int top;
+    synchronized (this) {
+      entry = entryPoint;
+      top = maxLevel;
+      if (entry < 0) {
+        entryPoint = node;
+        maxLevel = level;
+        return;
+      }
+    }
+
+    Scratch work = scratch.get();
+    float[] query = matrix.vector(node);
+    entry = greedyClosest(query, 0, entry, top, level, work);
+
+    int[] candidates = new int[efConstruction];
+    float[] similarities = new float[efConstruction];
+    int[] selected = new int[maxM0];
+    for (int layer = Math.min(level, top); layer >= 0; layer--) {
+      ScoredHeap results = searchLayer(query, 0, entry, efConstruction, layer, work);
+      // Drain lowest first so the arrays end up sorted most similar first
+      int count = results.size();
+      for (int i = count - 1; i >= 0; i--) {
+        similarities[i] = results.peekScore();
+        candidates[i] = results.pop();
+      }
+      entry = candidates[0];
+
+      int linked = selectNeighbors(candidates, similarities, count, m, selected);
+      setLinks(node, layer, selected, linked);
+      for (int i = 0; i < linked; i++) {
+        addLink(selected[i], node, layer);
+      }
+    }
+
+    if (level > top) {
+      synchronized (this) {
+        if (level > maxLevel) {
+          maxLevel = level;
+          entryPoint = node;
+        }
+      }
+    }
+  }
+
+  /** Walks each level from top down to (but not including) bottom, always to a closer node. */
+  private int greedyClosest(float[] query, int offset, int entry, int top, int bottom,
+      Scratch work) {
+    int current = entry;
+    float currentSimilarity = matrix.dot(query, offset, current);
+    for (int layer = top; layer > bottom; layer--) {
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        int count = links(current, layer, work.links);
+        for (int i = 0; i < count; i++) {
+          float similarity = matrix.dot(query, offset, work.links[i]);
+          if (similarity > currentSimilarity) {
+            currentSimilarity = similarity;
+            current = work.links[i];
+            changed = true;
+          }
+        }
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Beam search on one level. Returns the ef most similar nodes found, on a heap whose top is
+   * the least similar; the heap belongs to the thread's scratch space.
+   */
+  private ScoredHeap searchLayer(float[] query, int offset, int entry, int ef, int layer,
+      Scratch work) {
+    work.nextVisit();
+    ScoredHeap candidates = work.candidates;
+    ScoredHeap results = work.results;
+    candidates.clear();
+    results.clear();
+
+    float entrySimilarity = matrix.dot(query, offset, entry);
+    work.visit(entry);
+    candidates.push(entry, entrySimilarity);
+    results.push(entry, entrySimilarity);
+
+    while (candidates.size() > 0) {
+      if (results.size() >= ef && candidates.peekScore() < results.peekScore()) {
+        break;
+      }
+      int count = links(candidates.pop(), layer, work.links);
+      for (int i = 0; i < count; i++) {
+        int neighbour = work.links[i];
+        if (!work.visit(neighbour)) {
+          continue;
+        }
+        float similarity = matrix.dot(query, offset, neighbour);
+        if (results.size() < ef || similarity > results.peekScore()) {
+          candidates.push(neighbour, similarity);
+          results.push(neighbour, similarity);
+          if (results.size() > ef) {
+            results.pop();
+          }
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Picks up to max neighbours from candidates sorted most similar first, skipping any
+   * candidate that is closer to an already selected neighbour than to the base node. This keeps
+   * links pointing in different directions, which is what lets greedy search cross clusters.
+   */
+  private int selectNeighbors(int[] candidates, float[] similarities, int count, int max,
+      int[] selected) {
+    int selectedCount = 0;
+    for (int i = 0; i < count && selectedCount < max; i++) {
+      boolean diverse = true;
+      for (int j = 0; j < selectedCount; j++) {
+        if (matrix.similarity(candidates[i], selected[j]) > similarities[i]) {
+          diverse = false;
+          break;
+        }
+      }
+      if (diverse) {
+        selected[selectedCount++] = candidates[i];
+      }
+    }
+    return selectedCount;
+  }
+
+  /** Adds a link from node to neighbour, re-selecting node's links if it has no room left. */
+  private void addLink(int node, int neighbour, int layer) {
+    int max = layer == 0 ? maxM0 : m;
+    synchronized (lock(node)) {
+      int[] links = layer == 0 ? baseLinks : upperLinks[node];
+      int start = layer == 0 ? node * maxM0 : (layer - 1) * (m + 1) + 1;
+      int count = layer == 0 ? baseCounts[node] : links[start - 1];
+      if (count < max) {
+        links[start + count] = neighbour;
+        setCount(node, layer, count + 1);
+        return;
+      }
+
+      // Sort the existing links plus the new one by similarity to node, then prune
+      int[] candidates = new int[count + 1];
+      float[] similarities = new float[count + 1];
+      for (int i = 0; i <= count; i++) {
+        int candidate = i < count ? links[start + i] : neighbour;
+        float similarity = matrix.similarity(node, candidate);
+        int j = i;
+        while (j > 0 && similarities[j - 1] < similarity) {
+          candidates[j] = candidates[j - 1];
+          similarities[j] = similarities[j - 1];
+          j--;
+        }
+        candidates[j] = candidate;
+        similarities[j] = similarity;
+      }
+      int[] selected = new int[max];
+      int selectedCount = selectNeighbors(candidates, similarities, count + 1, max, selected);
+      System.arraycopy(selected, 0, links, start, selectedCount);
+      setCount(node, layer, selectedCount);
+    }
+  }
+
+  private void setLinks(int node, int layer, int[] selected, int count) {
+    synchronized (lock(node)) {
+      if (layer == 0) {
+        System.arraycopy(selected, 0, baseLinks, node * maxM0, count);
+      } else {
+        System.arraycopy(selected, 0, upperLinks[node], (layer - 1) * (m + 1) + 1, count);
+      }
+      setCount(node, layer, count);
+    }
+  }
+
+  /** Copies node's links on a level into the given array, returning how many there are. */
+  private int links(int node, int layer, int[] into) {
+    synchronized (lock(node)) {
+      if (layer == 0) {
+        int count = baseCounts[node];
+        System.arraycopy(baseLinks, node * maxM0, into, 0, count);
+        return count;
+      }
+      int start = (layer - 1) * (m + 1);
+      int count = upperLinks[node][start];
+      System.arraycopy(upperLinks[node], start + 1, into, 0, count);
+      return count;
+    }
+  }
+
+  private void setCount(int node, int layer, int count) {
+    if (layer == 0) {
+      baseCounts[node] = count;
+    } else {
+      upperLinks[node][(layer - 1) * (m + 1)] = count;
+    }
+  }
+
+  private Object lock(int node) {
+    return locks[node & (LOCK_STRIPES - 1)];
+  }
+
+  /** Per-thread search state, reused so searches don't allocate per visited node. */
+  private static final class Scratch {
+    final int[] visits;
+    final int[] links;
+    final ScoredHeap candidates = new ScoredHeap(true, 64);
+    final ScoredHeap results = new ScoredHeap(false, 64);
+    int visit;
+
+    Scratch(int size, int maxLinks) {
+      this.visits = new int[size];
+      this.links = new int[maxLinks];
+    }
+
+    void nextVisit() {
+      if (++visit == Integer.MAX_VALUE) {
+        Arrays.fill(visits, 0);
+        visit = 1;
+      }
+    }
+
+    /** Marks a node visited by the current search, returning false if it already was. */
+    boolean visit(int node) {
+      if (visits[node] == visit) {
+        return false;
+      }
+      visits[node] = visit;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A MetadataStore that wraps another MetadataStore and records how long each of its methods
+ * takes in a histogram labelled with the method and the layer wrapped, e.g. "cache" or
+ * "datastore", so the hit path and the backend calls behind misses can be told apart.
+ * @implements {MetadataStore}
+ */
+public class InstrumentedMetadataStore implements MetadataStore {
+
+  private static final String NAME = "metadata_store_call_seconds";
+  private static final String HELP = "Time spent in MetadataStore methods.";
+
+  private final MetadataStore delegate;
+
+  private final LatencyHistogram storeData;
+  private final LatencyHistogram storeAll;
+  private final LatencyHistogram storeIfAbsent;
+  private final LatencyHistogram append;
+  private final LatencyHistogram retrieveByDataset;
+  private final LatencyHistogram retrieveByUser;
+  private final LatencyHistogram retrieveMany;
+  private final LatencyHistogram listAll;
+  private final LatencyHistogram listPage;
+  private final LatencyHistogram exists;
+
+  public InstrumentedMetadataStore(MetadataStore delegate, Metrics metrics, String layer) {
+    this.delegate = delegate;
+    this.storeData = histogram(metrics, layer, "storeData");
+    this.storeAll = histogram(metrics, layer, "storeAll");
+    this.storeIfAbsent = histogram(metrics, layer, "storeIfAbsent");
+    this.append = histogram(metrics, layer, "append");
+    this.retrieveByDataset = histogram(metrics, layer, "retrieveMetadata");
+    this.retrieveByUser = histogram(metrics, layer, "retrieveUserMetadata");
+    this.retrieveMany = histogram(metrics, layer, "retrieveMany");
+    this.listAll = histogram(metrics, layer, "getUsersDatasets");
+    this.listPage = histogram(metrics, layer, "getUsersDatasetsPage");
+    this.exists = histogram(metrics, layer, "metadataExists");
+  }
+
+  public void storeData(Metadata data) {
+    long start = System.nanoTime();
+    try {
+      delegate.storeData(data);
+    } finally {
+      storeData.recordSince(start);
+    }
+  }
+
+  public void storeAll(List<Metadata> data) {
+    long start = System.nanoTime();
+    try {
+      delegate.storeAll(data);
+    } finally {
+      storeAll.recordSince(start);
+    }
+  }
+
+  public boolean storeIfAbsent(Metadata data) {
+    long start = System.nanoTime();
+    try {
+      return delegate.storeIfAbsent(data);
+    } finally {
+      storeIfAbsent.recordSince(start);
+    }
+  }
+
+  public Metadata append(String datasetName, String user, long addedImages, long timestamp) {
+    long start = System.nanoTime();
+    try {
+      return delegate.append(datasetName, user, addedImages, timestamp);
+    } finally {
+      append.recordSince(start);
+    }
+  }
+
+  public Metadata retrieveMetadata(String datasetName) {
+    long start = System.nanoTime();
+    try {
+      return delegate.retrieveMetadata(datasetName);
+    } finally {
+      retrieveByDataset.recordSince(start);
+    }
+  }
+
+  public Metadata retrieveMetadata(String datasetName, String user) {
+    long start = System.nanoTime();
+    try {
+      return delegate.retrieveMetadata(datasetName, user);
+    } finally {
+      retrieveByUser.recordSince(start);
+    }
+  }
+
+  public Map<String, Metadata> retrieveMany(List<String> datasetNames, String user) {
+    long start = System.nanoTime();
+    try {
+      return delegate.retrieveMany(datasetNames, user);
+    } finally {
+      retrieveMany.recordSince(start);
+    }
+  }
+
+  public List<String> getUsersDatasets(String user) {
+    long start = System.nanoTime();
+    try {
+      return delegate.getUsersDatasets(user);
+    } finally {
+      listAll.recordSince(start);
+    }
+  }
+
+  public DatasetPage getUsersDatasets(String user, String cursor, int limit) {
+    long start = System.nanoTime();
+    try {
+      return delegate.getUsersDatasets(user, cursor, limit);
+    } finally {
+      listPage.recordSince(start);
+    }
+  }
+
+  public boolean metadataExists(String datasetName, String user) {
+    long start = System.nanoTime();
+    try {
+      return delegate.metadataExists(datasetName, user);
+    } finally {
+      exists.recordSince(start);
+    }
+  }
+
+  private static LatencyHistogram histogram(Metrics metrics, String layer, String method) {
+    return metrics.histogram(NAME, HELP, "layer", layer, "method", method);
+  }
+}
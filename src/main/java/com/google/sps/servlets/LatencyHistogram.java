@@ -0,0 +1,83 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, in fixed buckets from half a millisecond to thirty
+ * seconds. Recording a value is a binary search and two atomic adds; it never allocates or
+ * blocks, so it is safe on every request.
+ */
+public final class LatencyHistogram {
+
+  // Upper bounds of the buckets; everything slower lands in a last, unbounded one
+  static final long[] BOUNDS_NANOS = {
+    micros(500), millis(1), micros(2500), millis(5), millis(10), millis(25), millis(50),
+    millis(100), millis(250), millis(500), millis(1000), millis(2500), millis(5000),
+    millis(10000), millis(30000)
+  };
+
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_NANOS.length + 1);
+  private final LongAdder sumNanos = new LongAdder();
+
+  /** Records a duration in nanoseconds. */
+  public void record(long nanos) {
+    int low = 0;
+    int high = BOUNDS_NANOS.length;
+    // The first bucket whose bound is at least nanos
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (BOUNDS_NANOS[middle] < nanos) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    counts.incrementAndGet(low);
+    sumNanos.add(nanos);
+  }
+
+  /** Records the time since startNanos, a System.nanoTime() reading. */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Returns the number of values recorded in each bucket, not cumulative, with the unbounded
+   * bucket last. Buckets are read one at a time, so concurrent records may be partly included.
+   */
+  long[] counts() {
+    long[] snapshot = new long[counts.length()];
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+    }
+    return snapshot;
+  }
+
+  long sumNanos() {
+    return sumNanos.sum();
+  }
+
+  private static long micros(long micros) {
+    return TimeUnit.MICROSECONDS.toNanos(micros);
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
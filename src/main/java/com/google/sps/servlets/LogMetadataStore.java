@@ -0,0 +1,435 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+
+/**
+ * A MetadataStore kept in-process, for self-hosted and single-node deployments and for local
+ * load tests, where every Datastore call would be a remote RPC.
+ *
+ * <p>Every write is appended to a log file mapped into memory, as a record of the payload's
+ * length, its CRC32 and the Metadata's fields; the newest record of a user's dataset wins. On
+ * open the log is replayed into in-memory indexes, stopping at the first record that is cut
+ * short or doesn't match its checksum, which is where a crash interrupted a write, and the
+ * log is truncated there. Reads never touch the file: a primary index by user and dataset name
+ * and a secondary one per user ordered by timestamp hold the Metadata itself, as records are
+ * small.
+ *
+ * <p>Once superseded records make up more than half of a log of at least minCompactBytes, the
+ * live records are written to a new file that atomically replaces the log. With sync set, each
+ * write is forced to disk before it returns; otherwise a write survives the process crashing,
+ * but not the machine.
+ */
+public class LogMetadataStore implements MetadataStore, Closeable {
+
+  private static final byte[] MAGIC = {'M', 'D', 'L', 'O', 'G', 0, 0, 1};
+  // Payload length and CRC32 before each record's payload
+  private static final int RECORD_HEADER_BYTES = 8;
+  private static final int INITIAL_MAP_BYTES = 1 << 20;
+  private static final String COMPACT_SUFFIX = ".compact";
+
+  // Listings are oldest first, like the Datastore store's timestamp sort
+  private static final Comparator<Metadata> BY_TIMESTAMP =
+      Comparator.comparingLong(Metadata::timestamp).thenComparing(Metadata::dataset);
+
+  private final Path path;
+  private final boolean sync;
+  private final long minCompactBytes;
+
+  // Primary and secondary indexes of each user's datasets
+  private final Map<String, UserIndex> users = new ConcurrentHashMap<String, UserIndex>();
+  // The dataset last stored under each name, for retrieveMetadata(datasetName)
+  private final Map<String, Metadata> byDatasetName = new ConcurrentHashMap<String, Metadata>();
+
+  // The log, positioned where the next record goes, and the bytes of the newest records of
+  // each dataset in it; guarded by this
+  private FileChannel channel;
+  private MappedByteBuffer log;
+  private long liveBytes;
+
+  private LogMetadataStore(Path path, boolean sync, long minCompactBytes) {
+    this.path = path;
+    this.sync = sync;
+    this.minCompactBytes = minCompactBytes;
+  }
+
+  /**
+   * Opens the log at path, creating it if it doesn't exist, and replays it. A compaction a
+   * crash left unfinished is discarded; the log it would have replaced is still whole.
+   */
+  public static LogMetadataStore open(Path path, boolean sync, long minCompactBytes)
+      throws IOException {
+    Files.deleteIfExists(compactPath(path));
+    LogMetadataStore store = new LogMetadataStore(path, sync, minCompactBytes);
+    synchronized (store) {
+      store.replay();
+    }
+    return store;
+  }
+
+  /** The records of one user's datasets, by name and by timestamp. */
+  private static final class UserIndex {
+    final Map<String, Metadata> datasets = new ConcurrentHashMap<String, Metadata>();
+    final NavigableSet<Metadata> byTimestamp = new ConcurrentSkipListSet<Metadata>(BY_TIMESTAMP);
+  }
+
+  @Override
+  public void storeData(Metadata data) {
+    storeAll(ImmutableList.of(data));
+  }
+
+  /**
+   * Appends every record before the indexes are updated, so a reader never sees a dataset
+   * that isn't in the log.
+   */
+  @Override
+  public synchronized void storeAll(List<Metadata> data) {
+    try {
+      List<byte[]> records = new ArrayList<byte[]>(data.size());
+      int bytes = 0;
+      for (Metadata metadata : data) {
+        byte[] record = encode(metadata);
+        records.add(record);
+        bytes += record.length;
+      }
+      ensureCapacity(bytes);
+      for (byte[] record : records) {
+        log.put(record);
+      }
+      if (sync) {
+        log.force();
+      }
+      for (int i = 0; i < data.size(); i++) {
+        index(data.get(i), records.get(i).length);
+      }
+      if (log.position() >= minCompactBytes && liveBytes * 2 < log.position()) {
+        compact();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Holds the store's lock from finding the name free until the dataset is logged. */
+  @Override
+  public synchronized boolean storeIfAbsent(Metadata data) {
+    if (retrieveMetadata(data.dataset(), data.user()) != null) {
+      return false;
+    }
+    storeData(data);
+    return true;
+  }
+
+  /** Holds the store's lock from reading the dataset until its next generation is logged. */
+  @Override
+  public synchronized Metadata append(String datasetName, String user, long addedImages,
+      long timestamp) {
+    Metadata existing = retrieveMetadata(datasetName, user);
+    if (existing == null) {
+      return null;
+    }
+    Metadata appended = existing.appended(addedImages, timestamp);
+    storeData(appended);
+    return appended;
+  }
+
+  @Override
+  public Metadata retrieveMetadata(String datasetName) {
+    return byDatasetName.get(datasetName);
+  }
+
+  @Override
+  public Metadata retrieveMetadata(String datasetName, String user) {
+    UserIndex index = users.get(user);
+    return index == null ? null : index.datasets.get(datasetName);
+  }
+
+  @Override
+  public Map<String, Metadata> retrieveMany(List<String> datasetNames, String user) {
+    Map<String, Metadata> found = new HashMap<String, Metadata>();
+    UserIndex index = users.get(user);
+    if (index != null) {
+      for (String datasetName : datasetNames) {
+        Metadata metadata = index.datasets.get(datasetName);
+        if (metadata != null) {
+          found.put(datasetName, metadata);
+        }
+      }
+    }
+    return found;
+  }
+
+  @Override
+  public List<String> getUsersDatasets(String user) {
+    List<String> names = new ArrayList<String>();
+    UserIndex index = users.get(user);
+    if (index != null) {
+      for (Metadata metadata : index.byTimestamp) {
+        names.add(metadata.dataset());
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Retrieves one page of a user's dataset names from the timestamp index. The cursor is the
+   * timestamp and name of the last dataset returned, so a page starts at the right place even
+   * if datasets were stored in between.
+   */
+  @Override
+  public DatasetPage getUsersDatasets(String user, String cursor, int limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be positive");
+    }
+    Metadata after = cursor == null ? null : decodeCursor(cursor);
+    UserIndex index = users.get(user);
+    if (index == null) {
+      return DatasetPage.of(ImmutableList.<String>of(), null);
+    }
+    NavigableSet<Metadata> datasets =
+        after == null ? index.byTimestamp : index.byTimestamp.tailSet(after, false);
+    List<String> names = new ArrayList<String>();
+    Metadata last = null;
+    for (Metadata metadata : datasets) {
+      if (names.size() == limit) {
+        return DatasetPage.of(names, encodeCursor(last));
+      }
+      names.add(metadata.dataset());
+      last = metadata;
+    }
+    return DatasetPage.of(names, null);
+  }
+
+  @Override
+  public boolean metadataExists(String datasetName, String user) {
+    return retrieveMetadata(datasetName, user) != null;
+  }
+
+  /**
+   * Rewrites the log with only the newest record of each dataset, into a new file that
+   * replaces the log once it is complete and on disk.
+   */
+  public synchronized void compact() throws IOException {
+    Path compacted = compactPath(path);
+    try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      out.write(ByteBuffer.wrap(MAGIC));
+      for (UserIndex index : users.values()) {
+        for (Metadata metadata : index.datasets.values()) {
+          out.write(ByteBuffer.wrap(encode(metadata)));
+        }
+      }
+      out.force(true);
+    }
+    channel.close();
+    Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    // The indexes already match the new log, so it only needs mapping
+    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    mapFrom(channel.size());
+  }
+
+  /** How many bytes of the log are in use, superseded records included. */
+  public synchronized long logBytes() {
+    return log.position();
+  }
+
+  /** Forces the log to disk and trims the unused end of the mapped region off the file. */
+  @Override
+  public synchronized void close() throws IOException {
+    log.force();
+    channel.truncate(log.position());
+    channel.close();
+  }
+
+  /**
+   * Reads every whole record of the log into the indexes and truncates anything after the last
+   * one, so the next record is written over a clean tail.
+   */
+  private void replay() throws IOException {
+    if (!Files.exists(path) || Files.size(path) == 0) {
+      try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE)) {
+        out.write(ByteBuffer.wrap(MAGIC));
+        out.force(true);
+      }
+    }
+    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException(path + " is too large to map");
+    }
+    ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    byte[] magic = new byte[MAGIC.length];
+    if (size >= MAGIC.length) {
+      contents.get(magic);
+    }
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException(path + " isn't a metadata log");
+    }
+    liveBytes = MAGIC.length;
+    while (contents.remaining() >= RECORD_HEADER_BYTES) {
+      int length = contents.getInt(contents.position());
+      int crc = contents.getInt(contents.position() + 4);
+      if (length <= 0 || length > contents.remaining() - RECORD_HEADER_BYTES) {
+        break;
+      }
+      byte[] payload = new byte[length];
+      contents.position(contents.position() + RECORD_HEADER_BYTES);
+      contents.get(payload);
+      if (crc(payload) != crc) {
+        contents.position(contents.position() - RECORD_HEADER_BYTES - length);
+        break;
+      }
+      index(decode(payload), RECORD_HEADER_BYTES + length);
+    }
+    channel.truncate(contents.position());
+    mapFrom(contents.position());
+  }
+
+  /** Maps the log for appending after its first end bytes. */
+  private void mapFrom(long end) throws IOException {
+    log = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_MAP_BYTES, end * 2));
+    log.position((int) end);
+  }
+
+  /** Maps a larger region of the log if the next bytes wouldn't fit. */
+  private void ensureCapacity(int bytes) throws IOException {
+    if (log.remaining() >= bytes) {
+      return;
+    }
+    long needed = (long) log.position() + bytes;
+    long capacity = Math.max(needed, log.capacity() * 2L);
+    if (capacity > Integer.MAX_VALUE) {
+      throw new IOException(path + " would grow too large to map");
+    }
+    int position = log.position();
+    log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    log.position(position);
+  }
+
+  /** Adds a record of recordBytes in the log to the indexes, replacing its dataset's last one. */
+  private void index(Metadata metadata, int recordBytes) {
+    UserIndex index = users.computeIfAbsent(metadata.user(), user -> new UserIndex());
+    Metadata previous = index.datasets.put(metadata.dataset(), metadata);
+    index.byTimestamp.add(metadata);
+    if (previous != null) {
+      if (BY_TIMESTAMP.compare(previous, metadata) != 0) {
+        index.byTimestamp.remove(previous);
+      }
+      liveBytes -= encode(previous).length;
+    }
+    byDatasetName.put(metadata.dataset(), metadata);
+    liveBytes += recordBytes;
+  }
+
+  private static byte[] encode(Metadata metadata) {
+    byte[][] strings = {utf8(metadata.user()), utf8(metadata.dataset()), utf8(metadata.model()),
+        utf8(metadata.visualization())};
+    int length = 3 * Long.BYTES;
+    for (byte[] string : strings) {
+      length += Integer.BYTES + string.length;
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+    record.putInt(length).putInt(0);
+    for (byte[] string : strings) {
+      record.putInt(string.length).put(string);
+    }
+    record.putLong(metadata.numberOfImages()).putLong(metadata.timestamp())
+        .putLong(metadata.generation());
+    byte[] bytes = record.array();
+    CRC32 crc = new CRC32();
+    crc.update(bytes, RECORD_HEADER_BYTES, length);
+    record.putInt(4, (int) crc.getValue());
+    return bytes;
+  }
+
+  private static Metadata decode(byte[] payload) throws IOException {
+    ByteBuffer record = ByteBuffer.wrap(payload);
+    try {
+      Metadata metadata = Metadata.of(string(record), string(record), string(record),
+          string(record), record.getLong(), record.getLong());
+      // Records written before datasets had generations end after the timestamp
+      return record.remaining() < Long.BYTES ? metadata : Metadata.of(metadata.user(),
+          metadata.dataset(), metadata.model(), metadata.visualization(),
+          metadata.numberOfImages(), metadata.timestamp(), record.getLong());
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupt metadata record", e);
+    }
+  }
+
+  private static String string(ByteBuffer record) {
+    byte[] bytes = new byte[record.getInt()];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int crc(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  private static String encodeCursor(Metadata last) {
+    byte[] name = utf8(last.dataset());
+    return BaseEncoding.base64Url().encode(
+        ByteBuffer.allocate(Long.BYTES + name.length).putLong(last.timestamp()).put(name)
+            .array());
+  }
+
+  /** Turns a cursor back into a probe that sorts where the last dataset returned did. */
+  private static Metadata decodeCursor(String cursor) {
+    byte[] bytes = BaseEncoding.base64Url().decode(cursor);
+    if (bytes.length < Long.BYTES) {
+      throw new IllegalArgumentException("Not a cursor of this store: " + cursor);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    long timestamp = buffer.getLong();
+    String dataset = new String(bytes, Long.BYTES, bytes.length - Long.BYTES,
+        StandardCharsets.UTF_8);
+    return Metadata.of("", dataset, "", "", 0, timestamp);
+  }
+
+  private static Path compactPath(Path path) {
+    return path.resolveSibling(path.getFileName() + COMPACT_SUFFIX);
+  }
+}
@@ -23,9 +23,24 @@ import com.google.auto.value.AutoValue;
 @AutoValue
 public abstract class Metadata {
 
-  public static Metadata of(String user, String dataset, String model, 
+  public static Metadata of(String user, String dataset, String model,
       String visualization, long numberOfImages, long timestamp) {
-    return new AutoValue_Metadata(user, dataset, model, visualization, numberOfImages, timestamp);
+    return of(user, dataset, model, visualization, numberOfImages, timestamp, 1);
+  }
+
+  public static Metadata of(String user, String dataset, String model,
+      String visualization, long numberOfImages, long timestamp, long generation) {
+    return new AutoValue_Metadata(
+        user, dataset, model, visualization, numberOfImages, timestamp, generation);
+  }
+
+  /**
+   * Returns the next generation of this dataset, after addedImages images were appended to it
+   * at timestamp.
+   */
+  public Metadata appended(long addedImages, long timestamp) {
+    return of(user(), dataset(), model(), visualization(), numberOfImages() + addedImages,
+        timestamp, generation() + 1);
   }
 
   public abstract String user();
@@ -39,4 +54,7 @@ public abstract class Metadata {
   public abstract long numberOfImages();
 
   public abstract long timestamp();
+
+  /** Starts at 1 when the dataset is uploaded and goes up by one with every append. */
+  public abstract long generation();
 }
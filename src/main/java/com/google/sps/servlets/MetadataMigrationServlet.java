@@ -0,0 +1,68 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lets a signed-in App Engine admin move the MetaData entities stored under auto-allocated IDs
+ * to their deterministic keys, see DatastoreMetadataStore.migrateLegacyEntities(). A POST runs
+ * the migration and responds with {"migrated": ..}, the number of entities moved. It is safe to
+ * run more than once, and one that runs out of request time can simply be sent again.
+ *
+ * <p>Once a POST reports 0, no legacy entities are left, and metadata-store.legacy-lookup can be
+ * set to false in appengine-web.xml, so a dataset that isn't found by its key no longer costs a
+ * property query as well.
+ */
+@WebServlet("/admin/migrate-metadata")
+public class MetadataMigrationServlet extends HttpServlet {
+
+  private static final Logger log = Logger.getLogger(MetadataMigrationServlet.class.getName());
+
+  private UserService userService;
+  private DatastoreMetadataStore store;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    // Migrating writes to Datastore directly, so nothing in front of it has to be told
+    store = new DatastoreMetadataStore(services.datastore(), true, services.metrics());
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    int migrated = store.migrateLegacyEntities();
+    log.info("Moved " + migrated + " legacy MetaData entities to their keys");
+
+    response.setContentType("application/json;");
+    response.setHeader("Cache-Control", "no-store");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("migrated").value(migrated).endObject();
+    writer.flush();
+  }
+}
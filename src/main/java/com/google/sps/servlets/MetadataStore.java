@@ -15,6 +15,7 @@
 package com.google.sps.servlets;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * An interface that defines methods for interacting with some type of external database 
@@ -27,16 +28,54 @@ public interface MetadataStore {
    */
   public void storeData(Metadata data);
 
+  /**
+   * Stores several Metadata objects with as few round trips as the database allows.
+   */
+  public void storeAll(List<Metadata> data);
+
+  /**
+   * Stores a new dataset's Metadata unless the user already has a dataset with that name,
+   * atomically, so of two uploads racing to create it only one is stored. Returns whether it
+   * was stored.
+   */
+  public boolean storeIfAbsent(Metadata data);
+
+  /**
+   * Moves a user's dataset on to its next generation with addedImages more images, atomically,
+   * so appends racing on different instances each count. Returns the new Metadata, or null if
+   * the user has no dataset with that name.
+   */
+  public Metadata append(String datasetName, String user, long addedImages, long timestamp);
+
   /**
    * Retrieves the metadata information for a particular dataset.
    */
   public Metadata retrieveMetadata(String datasetName);
 
+  /**
+   * Retrieves the metadata information for a particular user's dataset.
+   */
+  public Metadata retrieveMetadata(String datasetName, String user);
+
+  /**
+   * Retrieves the metadata of several of a user's datasets at once, keyed by dataset name.
+   * Datasets that don't exist are left out.
+   */
+  public Map<String, Metadata> retrieveMany(List<String> datasetNames, String user);
+
   /**
    * Retrieves all the names of datasets belonging to a particular user.
    */
   public List<String> getUsersDatasets(String user);
 
+  /**
+   * Retrieves at most limit names of a user's datasets, starting where the page that returned
+   * cursor left off, or from the beginning if cursor is null.
+   *
+   * @throws IllegalArgumentException if cursor wasn't returned by this store
+   */
+  public DatasetPage getUsersDatasets(String user, String cursor, int limit);
+
   /**
    * Checks to see if a particular user already has a dataset with a particular name.
    */
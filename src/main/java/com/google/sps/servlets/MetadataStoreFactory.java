@@ -0,0 +1,110 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+
+/**
+ * Creates the MetadataStore the ServiceRegistry shares between the servlets, configured through
+ * system properties set in appengine-web.xml:
+ *
+ * <ul>
+ *   <li>metadata-store.cache-size: maximum entries of each type held by a CachingMetadataStore
+ *       in front of Datastore. 0 turns caching off.
+ *   <li>metadata-store.cache-ttl-seconds: how long a cached entry may be served.
+ *   <li>metadata-store.legacy-lookup: whether a dataset not found by its key is also looked for
+ *       among entities stored under auto-allocated IDs. Turn it off once a POST to
+ *       /admin/migrate-metadata reports that none are left, see MetadataMigrationServlet.
+ *   <li>metadata-store.backend: "datastore", or "log" for an in-process LogMetadataStore, for
+ *       self-hosted and single-node deployments. The log needs no cache in front of it.
+ *   <li>metadata-store.log-path: the file a LogMetadataStore keeps its log in.
+ *   <li>metadata-store.log-sync: whether a LogMetadataStore forces each write to disk.
+ *   <li>metadata-store.log-compact-bytes: the size a log has to reach before it is compacted.
+ * </ul>
+ *
+ * <p>Both the cache and the Datastore store behind it are wrapped in InstrumentedMetadataStores,
+ * so the latency of every call, and of the Datastore calls behind cache misses, is on /metrics.
+ */
+public final class MetadataStoreFactory {
+
+  static final String CACHE_SIZE_PROPERTY = "metadata-store.cache-size";
+  static final String CACHE_TTL_PROPERTY = "metadata-store.cache-ttl-seconds";
+  static final String LEGACY_LOOKUP_PROPERTY = "metadata-store.legacy-lookup";
+  static final String BACKEND_PROPERTY = "metadata-store.backend";
+  static final String LOG_PATH_PROPERTY = "metadata-store.log-path";
+  static final String LOG_SYNC_PROPERTY = "metadata-store.log-sync";
+  static final String LOG_COMPACT_BYTES_PROPERTY = "metadata-store.log-compact-bytes";
+
+  private static final long DEFAULT_CACHE_SIZE = 10000;
+  private static final long DEFAULT_CACHE_TTL_SECONDS = 60;
+  private static final String DEFAULT_LOG_PATH = "metadata.log";
+  private static final long DEFAULT_LOG_COMPACT_BYTES = 16 << 20;
+
+  private MetadataStoreFactory() {}
+
+  /**
+   * Creates a new store on the given Datastore client, configured from the current system
+   * properties, that records its calls in metrics.
+   */
+  static MetadataStore create(DatastoreService datastoreService, Metrics metrics) {
+    return cached(backend(datastoreService, metrics), metrics);
+  }
+
+  /**
+   * Creates the backend the system properties choose, without the cache in front of it: its
+   * reads always see the latest write, whichever instance made it.
+   */
+  static MetadataStore backend(DatastoreService datastoreService, Metrics metrics) {
+    if (isLog()) {
+      return new InstrumentedMetadataStore(openLog(), metrics, "log");
+    }
+    return new InstrumentedMetadataStore(
+        new DatastoreMetadataStore(datastoreService,
+            Boolean.parseBoolean(System.getProperty(LEGACY_LOOKUP_PROPERTY, "true")), metrics),
+        metrics, "datastore");
+  }
+
+  /**
+   * Puts the cache the system properties configure in front of a backend. The log backend is
+   * already in memory and is returned as it is, as is any backend when the cache is off.
+   */
+  static MetadataStore cached(MetadataStore backend, Metrics metrics) {
+    long cacheSize = Long.getLong(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE);
+    if (isLog() || cacheSize <= 0) {
+      return backend;
+    }
+    long ttlSeconds = Long.getLong(CACHE_TTL_PROPERTY, DEFAULT_CACHE_TTL_SECONDS);
+    return new InstrumentedMetadataStore(
+        new CachingMetadataStore(backend, cacheSize, ttlSeconds * 1000), metrics, "cache");
+  }
+
+  private static boolean isLog() {
+    return "log".equals(System.getProperty(BACKEND_PROPERTY));
+  }
+
+  private static LogMetadataStore openLog() {
+    try {
+      return LogMetadataStore.open(
+          Paths.get(System.getProperty(LOG_PATH_PROPERTY, DEFAULT_LOG_PATH)),
+          Boolean.parseBoolean(System.getProperty(LOG_SYNC_PROPERTY, "true")),
+          Long.getLong(LOG_COMPACT_BYTES_PROPERTY, DEFAULT_LOG_COMPACT_BYTES));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms, counters and gauges, written out in the Prometheus text format by
+ * MetricsServlet.
+ *
+ * <p>Instruments are looked up by name and labels once, when a component is set up, and kept in
+ * fields; asking again for the same name and labels returns the same instrument. Recording is
+ * then lock-free and allocation-free. Labels are given as name, value pairs.
+ */
+public class Metrics {
+
+  private static final String HISTOGRAM = "histogram";
+  private static final String COUNTER = "counter";
+  private static final String GAUGE = "gauge";
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private final Map<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+  /** Returns the histogram with the given name and labels, creating it if needed. */
+  public LatencyHistogram histogram(String name, String help, String... labels) {
+    return (LatencyHistogram) family(name, help, HISTOGRAM).instruments.computeIfAbsent(
+        labelString(labels), key -> new LatencyHistogram());
+  }
+
+  /** Returns the counter with the given name and labels, creating it if needed. */
+  public LongAdder counter(String name, String help, String... labels) {
+    return (LongAdder) family(name, help, COUNTER).instruments.computeIfAbsent(
+        labelString(labels), key -> new LongAdder());
+  }
+
+  /**
+   * Registers a gauge with the given name and labels, whose value is read from the supplier
+   * whenever the metrics are written. A gauge registered again keeps its first supplier.
+   */
+  public void gauge(String name, String help, LongSupplier value, String... labels) {
+    family(name, help, GAUGE).instruments.putIfAbsent(labelString(labels), value);
+  }
+
+  /**
+   * Writes every instrument in the Prometheus text exposition format, version 0.0.4. Histogram
+   * durations are in seconds.
+   */
+  public void write(Writer out) throws IOException {
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.write("# HELP " + name + " " + family.help + "\n");
+      out.write("# TYPE " + name + " " + family.type + "\n");
+      for (Map.Entry<String, Object> instrument : family.instruments.entrySet()) {
+        String labels = instrument.getKey();
+        if (family.type.equals(COUNTER)) {
+          out.write(name + braces(labels) + " " + ((LongAdder) instrument.getValue()).sum() + "\n");
+          continue;
+        }
+        if (family.type.equals(GAUGE)) {
+          out.write(name + braces(labels) + " "
+              + ((LongSupplier) instrument.getValue()).getAsLong() + "\n");
+          continue;
+        }
+        LatencyHistogram histogram = (LatencyHistogram) instrument.getValue();
+        long[] counts = histogram.counts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+          cumulative += counts[i];
+          String bound = i < LatencyHistogram.BOUNDS_NANOS.length
+              ? String.valueOf(LatencyHistogram.BOUNDS_NANOS[i] / NANOS_PER_SECOND) : "+Inf";
+          String bucketLabels = (labels.isEmpty() ? "" : labels + ",") + "le=\"" + bound + "\"";
+          out.write(name + "_bucket{" + bucketLabels + "} " + cumulative + "\n");
+        }
+        out.write(name + "_sum" + braces(labels) + " "
+            + histogram.sumNanos() / NANOS_PER_SECOND + "\n");
+        out.write(name + "_count" + braces(labels) + " " + cumulative + "\n");
+      }
+    }
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is already a " + family.type);
+    }
+    return family;
+  }
+
+  /** Renders name, value pairs as name="value",... with values escaped. */
+  static String labelString(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be name, value pairs");
+    }
+    StringBuilder rendered = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        rendered.append(',');
+      }
+      rendered.append(labels[i]).append("=\"").append(labels[i + 1]
+          .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return rendered.toString();
+  }
+
+  private static String braces(String labels) {
+    return labels.isEmpty() ? "" : "{" + labels + "}";
+  }
+
+  /** The instruments sharing one metric name, keyed by their rendered labels. */
+  private static class Family {
+    final String help;
+    final String type;
+    final Map<String, Object> instruments = new ConcurrentSkipListMap<String, Object>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+}
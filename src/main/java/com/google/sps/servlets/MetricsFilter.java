@@ -0,0 +1,135 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Records how long every request takes in a histogram per servlet mapping, and counts the
+ * responses with a 5xx status. Async requests are timed until their context completes, not
+ * until the container thread is handed back.
+ *
+ * <p>The histograms are created up front for every mapping of every registered servlet, so a
+ * request only looks its histogram up by servlet path; paths of no servlet share "other".
+ */
+@WebFilter(urlPatterns = "/*", asyncSupported = true)
+public class MetricsFilter implements Filter {
+
+  static final String OTHER = "other";
+
+  private Map<String, Endpoint> endpoints;
+  private Endpoint other;
+
+  @Override
+  public void init(FilterConfig config) {
+    Metrics metrics = ServiceRegistry.get(config.getServletContext()).metrics();
+    Map<String, Endpoint> byPath = new HashMap<String, Endpoint>();
+    for (ServletRegistration servlet :
+        config.getServletContext().getServletRegistrations().values()) {
+      for (String mapping : servlet.getMappings()) {
+        byPath.put(mapping, new Endpoint(metrics, mapping));
+      }
+    }
+    endpoints = ImmutableMap.copyOf(byPath);
+    other = new Endpoint(metrics, OTHER);
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    long start = System.nanoTime();
+    Endpoint endpoint = endpoints.getOrDefault(
+        ((HttpServletRequest) request).getServletPath(), other);
+    boolean async = false;
+    try {
+      chain.doFilter(request, response);
+      if (request.isAsyncStarted()) {
+        request.getAsyncContext().addListener(new AsyncTimer(endpoint, start));
+        async = true;
+      }
+    } finally {
+      if (!async) {
+        endpoint.record(start, (HttpServletResponse) response);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {}
+
+  /** The instruments of one servlet mapping. */
+  private static class Endpoint {
+    private final LatencyHistogram latency;
+    private final LongAdder errors;
+
+    Endpoint(Metrics metrics, String path) {
+      latency = metrics.histogram("http_request_seconds",
+          "Time to serve a request, by servlet mapping.", "servlet", path);
+      errors = metrics.counter("http_server_errors_total",
+          "Responses with a 5xx status, by servlet mapping.", "servlet", path);
+    }
+
+    void record(long startNanos, HttpServletResponse response) {
+      latency.recordSince(startNanos);
+      if (response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+        errors.increment();
+      }
+    }
+  }
+
+  /** Records an async request once its context completes, however it ends. */
+  private static class AsyncTimer implements AsyncListener {
+    private final Endpoint endpoint;
+    private final long startNanos;
+
+    AsyncTimer(Endpoint endpoint, long startNanos) {
+      this.endpoint = endpoint;
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      endpoint.record(startNanos, (HttpServletResponse) event.getSuppliedResponse());
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {}
+
+    @Override
+    public void onError(AsyncEvent event) {}
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+      // A re-dispatched request that goes async again still completes only once
+      event.getAsyncContext().addListener(this);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the application's histograms and counters in the Prometheus text format.
+ *
+ * <p>If the metrics.token system property is set in appengine-web.xml, a scraper must send it as
+ * "Authorization: Bearer token"; otherwise only signed-in App Engine admins may read the
+ * metrics.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+  static final String TOKEN_PROPERTY = "metrics.token";
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private Metrics metrics;
+  private UserService userService;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    metrics = services.metrics();
+    userService = services.userService();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!authorized(request)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    response.setContentType(CONTENT_TYPE);
+    response.setHeader("Cache-Control", "no-store");
+    metrics.write(response.getWriter());
+  }
+
+  private boolean authorized(HttpServletRequest request) {
+    String token = System.getProperty(TOKEN_PROPERTY, "");
+    if (token.isEmpty()) {
+      return userService.isUserLoggedIn() && userService.isUserAdmin();
+    }
+    return hasBearerToken(request, token);
+  }
+
+  /** Checks whether the request carries "Authorization: Bearer token". */
+  static boolean hasBearerToken(HttpServletRequest request, String token) {
+    String header = request.getHeader("Authorization");
+    // Compared in constant time so the token can't be guessed a byte at a time
+    return header != null && MessageDigest.isEqual(
+        header.getBytes(StandardCharsets.UTF_8),
+        ("Bearer " + token).getBytes(StandardCharsets.UTF_8));
+  }
+}
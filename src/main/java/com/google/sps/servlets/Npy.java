@@ -0,0 +1,234 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads and writes arrays in the NumPy .npy format written by np.save, as used for the
+ * per-image embeddings written by save_embedding.
+ *
+ * <p>Only little and big-endian float32 and float64 arrays in C order are supported; arrays of
+ * any shape are read as a flat array of their elements. Files are written as little-endian
+ * float32 with the header padded to 64 bytes, so the data is aligned for mapping.
+ */
+public final class Npy {
+
+  private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+  private static final Pattern DESCR_PATTERN =
+      Pattern.compile("'descr':\\s*'([<>|=])([a-z])(\\d+)'");
+  private static final Pattern FORTRAN_PATTERN =
+      Pattern.compile("'fortran_order':\\s*(True|False)");
+  private static final Pattern SHAPE_PATTERN =
+      Pattern.compile("'shape':\\s*\\(([^)]*)\\)");
+
+  // np.save pads the header so the data starts on a multiple of this
+  private static final int ALIGNMENT = 64;
+
+  private Npy() {}
+
+  /**
+   * Maps a float32 .npy file read-only and returns its shape and a view of its data, without
+   * copying the data onto the heap. The file must be under 2GB.
+   */
+  public static MappedArray map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(path + " is too large to map");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      Header header = readHeader(buffer);
+      if (header.elementSize != 4 || (header.fortranOrder && header.shape.length > 1)) {
+        throw new IOException(path + " isn't a C ordered float32 array");
+      }
+      long count = header.elementCount();
+      if (buffer.capacity() - header.dataOffset < count * 4) {
+        throw new IOException("Truncated .npy data in " + path);
+      }
+      buffer.position(header.dataOffset);
+      buffer.limit(header.dataOffset + (int) count * 4);
+      // The mapping stays valid after the channel is closed
+      return new MappedArray(header.shape, buffer.slice().order(header.order).asFloatBuffer());
+    }
+  }
+
+  /**
+   * Builds the header of a little-endian float32 array with the given shape, padded so the
+   * data that follows it is aligned.
+   */
+  public static ByteBuffer header(long... shape) {
+    StringBuilder dictionary = new StringBuilder("{'descr': '<f4', 'fortran_order': False, ");
+    dictionary.append("'shape': (");
+    for (int i = 0; i < shape.length; i++) {
+      dictionary.append(i == 0 ? "" : ", ").append(shape[i]);
+    }
+    // Python writes one-element tuples with a trailing comma
+    dictionary.append(shape.length == 1 ? ",), }" : "), }");
+    // The magic, version and length take 10 bytes, and the dictionary ends with a newline
+    while ((10 + dictionary.length() + 1) % ALIGNMENT != 0) {
+      dictionary.append(' ');
+    }
+    dictionary.append('\n');
+
+    byte[] text = dictionary.toString().getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer header = ByteBuffer.allocate(10 + text.length).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(MAGIC).put((byte) 1).put((byte) 0).putShort((short) text.length).put(text);
+    header.flip();
+    return header;
+  }
+
+  /** Writes a whole float32 array with the given shape. */
+  public static void write(WritableByteChannel channel, float[] values, long... shape)
+      throws IOException {
+    ByteBuffer header = header(shape);
+    ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + 4 * values.length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put(header);
+    buffer.asFloatBuffer().put(values);
+    buffer.rewind();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Reads a whole .npy file into a float array, converting float64 elements to float32.
+   */
+  public static float[] readFloats(ByteBuffer npy) throws IOException {
+    Header header = readHeader(npy);
+    if (header.fortranOrder && header.shape.length > 1) {
+      throw new IOException("Fortran ordered .npy arrays aren't supported");
+    }
+    ByteBuffer data = npy.duplicate();
+    data.position(npy.position() + header.dataOffset);
+    data.order(header.order);
+
+    long count = header.elementCount();
+    if (count > Integer.MAX_VALUE || data.remaining() < count * header.elementSize) {
+      throw new IOException("Truncated or oversized .npy data");
+    }
+    float[] values = new float[(int) count];
+    if (header.elementSize == 4) {
+      data.asFloatBuffer().get(values);
+    } else {
+      for (int i = 0; i < values.length; i++) {
+        values[i] = (float) data.getDouble();
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Parses the magic string, version and header dictionary at the start of a .npy file.
+   */
+  static Header readHeader(ByteBuffer npy) throws IOException {
+    ByteBuffer buffer = npy.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.remaining() < 10) {
+      throw new IOException("Not a .npy file");
+    }
+    for (byte magicByte : MAGIC) {
+      if (buffer.get() != magicByte) {
+        throw new IOException("Not a .npy file");
+      }
+    }
+    int majorVersion = buffer.get();
+    buffer.get();
+    long headerLength = majorVersion == 1
+        ? buffer.getShort() & 0xffff : buffer.getInt() & 0xffffffffL;
+    if (headerLength > buffer.remaining()) {
+      throw new IOException("Truncated .npy header");
+    }
+    byte[] dictionary = new byte[(int) headerLength];
+    buffer.get(dictionary);
+    String text = new String(dictionary,
+        majorVersion >= 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+    Matcher descr = DESCR_PATTERN.matcher(text);
+    Matcher fortran = FORTRAN_PATTERN.matcher(text);
+    Matcher shape = SHAPE_PATTERN.matcher(text);
+    if (!descr.find() || !fortran.find() || !shape.find()) {
+      throw new IOException("Unreadable .npy header: " + text.trim());
+    }
+    if (!descr.group(2).equals("f")
+        || !(descr.group(3).equals("4") || descr.group(3).equals("8"))) {
+      throw new IOException("Unsupported .npy dtype: " + descr.group(0));
+    }
+    String[] dimensions = shape.group(1).split(",");
+    int rank = 0;
+    long[] parsedShape = new long[dimensions.length];
+    for (String dimension : dimensions) {
+      if (!dimension.trim().isEmpty()) {
+        parsedShape[rank++] = Long.parseLong(dimension.trim());
+      }
+    }
+
+    Header header = new Header();
+    header.order = descr.group(1).equals(">") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    header.elementSize = Integer.parseInt(descr.group(3));
+    header.fortranOrder = fortran.group(1).equals("True");
+    header.shape = Arrays.copyOf(parsedShape, rank);
+    header.dataOffset = buffer.position() - npy.position();
+    return header;
+  }
+
+  /** A float32 array mapped from a file. */
+  public static final class MappedArray {
+    private final long[] shape;
+    private final FloatBuffer data;
+
+    MappedArray(long[] shape, FloatBuffer data) {
+      this.shape = shape;
+      this.data = data;
+    }
+
+    public long[] shape() {
+      return shape.clone();
+    }
+
+    /** The elements in C order; a view of the mapping, not a copy. */
+    public FloatBuffer data() {
+      return data.duplicate();
+    }
+  }
+
+  /** The parsed header of a .npy file. */
+  static final class Header {
+    ByteOrder order;
+    int elementSize;
+    boolean fortranOrder;
+    long[] shape;
+    int dataOffset;
+
+    long elementCount() {
+      long count = 1;
+      for (long dimension : shape) {
+        count *= dimension;
+      }
+      return count;
+    }
+  }
+}
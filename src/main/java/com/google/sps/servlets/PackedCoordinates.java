@@ -0,0 +1,173 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.stream.JsonReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Transcodes coordinates.json into a packed little-endian Float32 buffer that a client can hand
+ * straight to a three.js BufferAttribute without parsing.
+ *
+ * <p>Layout, all values little-endian:
+ *
+ * <pre>
+ *   offset  0  int32      magic, the ASCII bytes "TSNE"
+ *   offset  4  int32      format version
+ *   offset  8  int32      number of points
+ *   offset 12  float32[6] bounds: min x, min y, min z, max x, max y, max z
+ *   offset 36  float32[3 * points] x, y, z of every point, in coordinates.json order
+ * </pre>
+ *
+ * <p>The packed file is written next to coordinates.json once and tagged with the generation of
+ * the JSON it came from, so it is only rebuilt when the coordinates change.
+ */
+public class PackedCoordinates {
+
+  static final int MAGIC = 0x454e5354;
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 36;
+  static final String CONTENT_TYPE = "application/octet-stream";
+  static final String SOURCE_GENERATION = "source-generation";
+
+  private final Storage storage;
+
+  public PackedCoordinates(Storage storage) {
+    this.storage = storage;
+  }
+
+  /**
+   * Returns the id of the packed copy of a coordinates.json object, transcoding it first if the
+   * packed copy is missing or stale. Returns null if the JSON itself doesn't exist.
+   */
+  public BlobId packedBlob(BlobId jsonId) throws IOException {
+    Blob json = storage.get(jsonId);
+    if (json == null) {
+      return null;
+    }
+    String sourceGeneration = String.valueOf(json.getGeneration());
+    BlobId packedId = BlobId.of(jsonId.getBucket(), packedName(jsonId.getName()));
+
+    Blob packed = storage.get(packedId);
+    if (packed != null && packed.getMetadata() != null
+        && sourceGeneration.equals(packed.getMetadata().get(SOURCE_GENERATION))) {
+      return packedId;
+    }
+
+    float[] points;
+    try (ReadChannel readChannel = json.reader()) {
+      points = parsePoints(Channels.newReader(readChannel, StandardCharsets.UTF_8.name()));
+    }
+    BlobInfo packedInfo = BlobInfo.newBuilder(packedId)
+        .setContentType(CONTENT_TYPE)
+        .setMetadata(ImmutableMap.of(SOURCE_GENERATION, sourceGeneration))
+        .build();
+    ByteBuffer buffer = pack(points);
+    try (WriteChannel writer = storage.writer(packedInfo)) {
+      while (buffer.hasRemaining()) {
+        writer.write(buffer);
+      }
+    }
+    return packedId;
+  }
+
+  /**
+   * Reads the {"points": [{"x": .., "y": .., "z": ..}, ...]} document written by tsne_embed
+   * into a flat x, y, z array. Coordinates may be numbers or numeric strings.
+   */
+  static float[] parsePoints(Reader json) throws IOException {
+    float[] coordinates = new float[3 * 1024];
+    int count = 0;
+
+    JsonReader reader = new JsonReader(json);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (!reader.nextName().equals("points")) {
+        reader.skipValue();
+        continue;
+      }
+      reader.beginArray();
+      while (reader.hasNext()) {
+        if (coordinates.length < 3 * (count + 1)) {
+          coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String axis = reader.nextName();
+          if (axis.equals("x")) {
+            coordinates[3 * count] = (float) reader.nextDouble();
+          } else if (axis.equals("y")) {
+            coordinates[3 * count + 1] = (float) reader.nextDouble();
+          } else if (axis.equals("z")) {
+            coordinates[3 * count + 2] = (float) reader.nextDouble();
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        count++;
+      }
+      reader.endArray();
+    }
+    reader.endObject();
+    return Arrays.copyOf(coordinates, 3 * count);
+  }
+
+  /**
+   * Packs a flat x, y, z array into the binary layout described above.
+   */
+  static ByteBuffer pack(float[] coordinates) {
+    int count = coordinates.length / 3;
+    float[] bounds = new float[6];
+    if (count > 0) {
+      Arrays.fill(bounds, 0, 3, Float.POSITIVE_INFINITY);
+      Arrays.fill(bounds, 3, 6, Float.NEGATIVE_INFINITY);
+    }
+    for (int i = 0; i < coordinates.length; i++) {
+      int axis = i % 3;
+      bounds[axis] = Math.min(bounds[axis], coordinates[i]);
+      bounds[axis + 3] = Math.max(bounds[axis + 3], coordinates[i]);
+    }
+
+    ByteBuffer buffer =
+        ByteBuffer.allocate(HEADER_BYTES + 4 * coordinates.length).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+    for (float bound : bounds) {
+      buffer.putFloat(bound);
+    }
+    buffer.asFloatBuffer().put(coordinates);
+    buffer.rewind();
+    return buffer;
+  }
+
+  /** Names the packed copy of a JSON object, e.g. coordinates.json becomes coordinates.bin. */
+  static String packedName(String jsonName) {
+    return (jsonName.endsWith(".json")
+        ? jsonName.substring(0, jsonName.length() - ".json".length()) : jsonName) + ".bin";
+  }
+}
@@ -0,0 +1,389 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compacts a dataset's per-image .npy embeddings into one packed matrix that can be memory
+ * mapped, so loading a dataset is one sequential read instead of one read per image.
+ *
+ * <p>The packed matrix is an ordinary (rows, dimension) float32 .npy file, written to
+ * packed/embeddings.npy next to the dataset's embeddings/ folder, so np.load reads it too. Its
+ * index, packed/embeddings-index.json, lists the image name of every row, the offset of the
+ * first row and the generation of the matrix it describes. The packed copy is rebuilt whenever
+ * the set of per-image files no longer matches the index. Rows of images the outdated index
+ * lists are copied from the old matrix, so after images are appended to a dataset only their
+ * embeddings are read one by one; the others come from one sequential read of the old matrix.
+ *
+ * <p>Matrices are downloaded to cacheDirectory and mapped from there, which keeps them off the
+ * Java heap; a local copy is reused until the matrix's generation changes.
+ */
+public class PackedEmbeddings {
+
+  static final String PACKED_FOLDER_NAME = "packed";
+  static final String MATRIX_NAME = "embeddings.npy";
+  static final String INDEX_NAME = "embeddings-index.json";
+
+  private static final String EMBEDDING_EXTENSION = ".npy";
+  private static final Gson GSON = new Gson();
+
+  private final Storage storage;
+  private final ExecutorService executor;
+  private final Path cacheDirectory;
+
+  public PackedEmbeddings(Storage storage, ExecutorService executor, Path cacheDirectory) {
+    this.storage = storage;
+    this.executor = executor;
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  /**
+   * Lists the embeddings under embeddingsPrefix (e.g. user/dataset/embeddings/) and works out
+   * their dimension, without reading them all. Returns null if there are none.
+   */
+  public Source describe(String bucket, String embeddingsPrefix) throws IOException {
+    List<String> objectNames = new ArrayList<String>();
+    for (Blob blob :
+        storage.list(bucket, Storage.BlobListOption.prefix(embeddingsPrefix)).iterateAll()) {
+      if (blob.getName().endsWith(EMBEDDING_EXTENSION)) {
+        objectNames.add(blob.getName());
+      }
+    }
+    if (objectNames.isEmpty()) {
+      return null;
+    }
+    // Sorted like tsne_embedding sorts them, so rows line up with coordinates.json
+    Collections.sort(objectNames);
+    List<String> imageNames = new ArrayList<String>(objectNames.size());
+    for (String objectName : objectNames) {
+      imageNames.add(objectName.substring(
+          embeddingsPrefix.length(), objectName.length() - EMBEDDING_EXTENSION.length()));
+    }
+
+    Source source = new Source(bucket, embeddingsPrefix, objectNames, imageNames);
+    byte[] indexJson = readIfExists(BlobId.of(bucket, indexName(embeddingsPrefix)));
+    Index index = indexJson == null
+        ? null : GSON.fromJson(new String(indexJson, StandardCharsets.UTF_8), Index.class);
+    if (index != null && imageNames.equals(index.names)) {
+      source.index = index;
+      source.dimension = index.dimension;
+    } else if (index != null) {
+      source.previous = index;
+      source.dimension = index.dimension;
+    } else {
+      Npy.Header header = Npy.readHeader(
+          ByteBuffer.wrap(storage.readAllBytes(bucket, objectNames.get(0))));
+      source.dimension = (int) header.elementCount();
+    }
+    return source;
+  }
+
+  /**
+   * Maps the packed matrix of a source, compacting the per-image files first if the packed copy
+   * is missing or out of date.
+   */
+  public EmbeddingMatrix open(Source source) throws IOException, InterruptedException {
+    Path local;
+    Index index = source.index;
+    if (index == null) {
+      Path compacted = compact(source);
+      index = source.index;
+      local = localPath(source, index.matrixGeneration);
+      Files.move(compacted, local, StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      local = localPath(source, index.matrixGeneration);
+      if (!Files.exists(local)) {
+        download(BlobId.of(source.bucket, matrixName(source.prefix)), local);
+      }
+    }
+    removeStaleCopies(source, local);
+
+    Npy.MappedArray array = Npy.map(local);
+    long[] shape = array.shape();
+    if (shape.length != 2 || shape[0] != index.rows || shape[1] != index.dimension) {
+      throw new IOException(local + " doesn't match its index");
+    }
+    return EmbeddingMatrix.of(
+        index.names.toArray(new String[0]), array.data(), index.dimension);
+  }
+
+  /**
+   * Writes every per-image embedding of the source into one local .npy file, reading them in
+   * parallel and writing each row at its offset, then uploads it and its index. Returns the
+   * local file.
+   */
+  Path compact(Source source) throws IOException, InterruptedException {
+    int rows = source.objectNames.size();
+    int dimension = source.dimension;
+    Files.createDirectories(cacheDirectory);
+    Path compacted = Files.createTempFile(cacheDirectory, "compact", EMBEDDING_EXTENSION);
+
+    ByteBuffer header = Npy.header(rows, dimension);
+    long dataOffset = header.remaining();
+    Map<String, Integer> previousRows = new HashMap<String, Integer>();
+    FloatBuffer previous = mapPrevious(source, previousRows);
+    try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+      writeFully(channel, header, 0);
+      List<Future<?>> reads = new ArrayList<Future<?>>();
+      for (int i = 0; i < rows; i++) {
+        int row = i;
+        String objectName = source.objectNames.get(i);
+        Integer previousRow = previousRows.get(source.imageNames.get(i));
+        if (previousRow != null) {
+          ByteBuffer buffer = ByteBuffer.allocate(4 * dimension).order(ByteOrder.LITTLE_ENDIAN);
+          FloatBuffer rowValues = previous.duplicate();
+          rowValues.position(previousRow * dimension).limit((previousRow + 1) * dimension);
+          buffer.asFloatBuffer().put(rowValues);
+          writeFully(channel, buffer, dataOffset + 4L * dimension * row);
+          continue;
+        }
+        reads.add(executor.submit(() -> {
+          float[] embedding = Npy.readFloats(
+              ByteBuffer.wrap(storage.readAllBytes(source.bucket, objectName)));
+          if (embedding.length != dimension) {
+            throw new IOException(objectName + " has " + embedding.length
+                + " values, expected " + dimension);
+          }
+          ByteBuffer buffer = ByteBuffer.allocate(4 * dimension).order(ByteOrder.LITTLE_ENDIAN);
+          buffer.asFloatBuffer().put(embedding);
+          // Positional writes don't move the channel's position, so threads can share it
+          writeFully(channel, buffer, dataOffset + 4L * dimension * row);
+          return null;
+        }));
+      }
+      awaitAll(reads);
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      Files.deleteIfExists(compacted);
+      throw e;
+    }
+
+    BlobInfo matrixInfo = BlobInfo.newBuilder(source.bucket, matrixName(source.prefix))
+        .setContentType("application/octet-stream")
+        .build();
+    try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.READ);
+        WriteChannel writer = storage.writer(matrixInfo)) {
+      long position = 0;
+      while (position < channel.size()) {
+        position += channel.transferTo(position, channel.size() - position, writer);
+      }
+    }
+    Blob matrix = storage.get(matrixInfo.getBlobId());
+
+    Index index = new Index();
+    index.rows = rows;
+    index.dimension = dimension;
+    index.dataOffset = dataOffset;
+    index.matrixGeneration = matrix == null || matrix.getGeneration() == null
+        ? 0 : matrix.getGeneration();
+    index.names = source.imageNames;
+    BlobInfo indexInfo = BlobInfo.newBuilder(source.bucket, indexName(source.prefix))
+        .setContentType("application/json")
+        .build();
+    try (WriteChannel writer = storage.writer(indexInfo)) {
+      writer.write(ByteBuffer.wrap(GSON.toJson(index).getBytes(StandardCharsets.UTF_8)));
+    }
+    source.index = index;
+    return compacted;
+  }
+
+  /**
+   * Maps the matrix an outdated index describes, downloading it if there is no local copy, and
+   * fills rows with the row of each image it has. Returns null, with rows left empty, if there
+   * is no such index or the matrix has been replaced since.
+   */
+  private FloatBuffer mapPrevious(Source source, Map<String, Integer> rows) throws IOException {
+    Index previous = source.previous;
+    if (previous == null || previous.dimension != source.dimension || previous.names == null) {
+      return null;
+    }
+    Path local = localPath(source, previous.matrixGeneration);
+    if (!Files.exists(local)) {
+      Blob matrix = storage.get(BlobId.of(source.bucket, matrixName(source.prefix)));
+      if (matrix == null || matrix.getGeneration() == null
+          || matrix.getGeneration() != previous.matrixGeneration) {
+        return null;
+      }
+      download(matrix.getBlobId(), local);
+    }
+    Npy.MappedArray array = Npy.map(local);
+    long[] shape = array.shape();
+    if (shape.length != 2 || shape[0] != previous.rows || shape[1] != previous.dimension) {
+      return null;
+    }
+    for (int row = 0; row < previous.names.size(); row++) {
+      rows.put(previous.names.get(row), row);
+    }
+    return array.data();
+  }
+
+  /** Names the packed matrix of an embeddings folder, e.g. user/dataset/packed/embeddings.npy. */
+  static String matrixName(String embeddingsPrefix) {
+    return packedPrefix(embeddingsPrefix) + MATRIX_NAME;
+  }
+
+  /** Names the index of the packed matrix of an embeddings folder. */
+  static String indexName(String embeddingsPrefix) {
+    return packedPrefix(embeddingsPrefix) + INDEX_NAME;
+  }
+
+  // A sibling folder of embeddings/, so tsne_embedding's listing of embeddings never sees it
+  private static String packedPrefix(String embeddingsPrefix) {
+    String folder = embeddingsPrefix.endsWith("/")
+        ? embeddingsPrefix.substring(0, embeddingsPrefix.length() - 1) : embeddingsPrefix;
+    int parent = folder.lastIndexOf('/');
+    return folder.substring(0, parent + 1) + PACKED_FOLDER_NAME + "/";
+  }
+
+  private Path localPath(Source source, long generation) {
+    return cacheDirectory.resolve(localPrefix(source) + generation + EMBEDDING_EXTENSION);
+  }
+
+  private static String localPrefix(Source source) {
+    return Hashing.sha256()
+        .hashString(source.bucket + "/" + source.prefix, StandardCharsets.UTF_8)
+        .toString()
+        .substring(0, 32) + "-";
+  }
+
+  /** Deletes local copies of older generations; existing mappings of them stay valid. */
+  private void removeStaleCopies(Source source, Path current) throws IOException {
+    try (DirectoryStream<Path> copies =
+        Files.newDirectoryStream(cacheDirectory, localPrefix(source) + "*")) {
+      for (Path copy : copies) {
+        if (!copy.equals(current)) {
+          Files.deleteIfExists(copy);
+        }
+      }
+    }
+  }
+
+  private void download(BlobId blobId, Path local) throws IOException {
+    Files.createDirectories(cacheDirectory);
+    Path partial = Files.createTempFile(cacheDirectory, "download", EMBEDDING_EXTENSION);
+    try (ReadChannel reader = storage.reader(blobId);
+        FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+      while (reader.read(buffer) >= 0) {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        buffer.clear();
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(partial);
+      throw e;
+    }
+    // Concurrent loaders of the same matrix produce identical files, so either copy may win
+    Files.move(partial, local, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private byte[] readIfExists(BlobId blobId) {
+    Blob blob = storage.get(blobId);
+    return blob == null ? null : blob.getContent();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static void awaitAll(List<Future<?>> futures)
+      throws IOException, InterruptedException {
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause() : new IOException(e.getCause());
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /** A dataset's per-image embeddings, and the index of its packed copy if that is current. */
+  public static final class Source {
+    final String bucket;
+    final String prefix;
+    final List<String> objectNames;
+    final List<String> imageNames;
+    int dimension;
+    Index index;
+    // The index of an outdated packed copy, whose rows can be reused
+    Index previous;
+
+    Source(String bucket, String prefix, List<String> objectNames, List<String> imageNames) {
+      this.bucket = bucket;
+      this.prefix = prefix;
+      this.objectNames = objectNames;
+      this.imageNames = imageNames;
+    }
+
+    public int rows() {
+      return objectNames.size();
+    }
+
+    public int dimension() {
+      return dimension;
+    }
+
+    /** Whether open() will have to compact the per-image files first. */
+    public boolean needsCompaction() {
+      return index == null;
+    }
+  }
+
+  /** The packed matrix's index, serialized to embeddings-index.json. */
+  static class Index {
+    int version = 1;
+    int rows;
+    int dimension;
+    long dataOffset;
+    long matrixGeneration;
+    List<String> names;
+  }
+}
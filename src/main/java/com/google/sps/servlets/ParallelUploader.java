@@ -0,0 +1,393 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.auto.value.AutoValue;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.CopyRequest;
+import com.google.cloud.storage.StorageException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Streams a batch of objects to GCS concurrently on a shared, bounded worker pool.
+ *
+ * <p>Each object is written through its own WriteChannel, so no object is held in memory as a
+ * whole. At most maxInFlight objects of a batch are queued or running at once; the caller blocks
+ * until a slot frees up. Failed writes are retried with exponential backoff, and objects that
+ * still fail (or are still running when the batch times out) are reported individually instead
+ * of failing the whole batch. Batches of server-side copies between objects, and of deletes,
+ * share the same pool and limits.
+ *
+ * <p>Bytes written, per-object write latency, whole-batch latency, retries and failures are
+ * recorded in the Metrics passed in, so upload throughput can be read off /metrics.
+ */
+public class ParallelUploader {
+
+  static final String THREADS_PROPERTY = "upload.threads";
+  static final String MAX_IN_FLIGHT_PROPERTY = "upload.max-in-flight";
+  static final String MAX_ATTEMPTS_PROPERTY = "upload.max-attempts";
+  static final String TIMEOUT_PROPERTY = "upload.timeout-seconds";
+
+  private static final int DEFAULT_THREADS = 16;
+  private static final int DEFAULT_MAX_IN_FLIGHT = 32;
+  private static final int DEFAULT_MAX_ATTEMPTS = 3;
+  private static final long DEFAULT_TIMEOUT_SECONDS = 50;
+
+  private static final long INITIAL_BACKOFF_MILLIS = 100;
+  private static final Logger log = Logger.getLogger(ParallelUploader.class.getName());
+
+  private final Storage storage;
+  private final ExecutorService executor;
+  private final int maxInFlight;
+  private final int maxAttempts;
+  private final long timeoutMillis;
+
+  private final LongAdder bytesWritten;
+  private final LongAdder retries;
+  private final LongAdder failedObjects;
+  private final LatencyHistogram objectLatency;
+  private final LatencyHistogram batchLatency;
+
+  public ParallelUploader(Storage storage, ExecutorService executor, int maxInFlight,
+      int maxAttempts, long timeoutMillis) {
+    this(storage, executor, maxInFlight, maxAttempts, timeoutMillis, new Metrics());
+  }
+
+  /**
+   * Creates an uploader that records its GCS traffic in metrics.
+   */
+  public ParallelUploader(Storage storage, ExecutorService executor, int maxInFlight,
+      int maxAttempts, long timeoutMillis, Metrics metrics) {
+    this.storage = storage;
+    this.executor = executor;
+    this.maxInFlight = maxInFlight;
+    this.maxAttempts = maxAttempts;
+    this.timeoutMillis = timeoutMillis;
+    this.bytesWritten = metrics.counter("gcs_upload_bytes_total",
+        "Bytes written to GCS by uploads.");
+    this.retries = metrics.counter("gcs_upload_retries_total",
+        "GCS object writes started over after an error.");
+    this.failedObjects = metrics.counter("gcs_upload_failures_total",
+        "Objects that could not be written to GCS.");
+    this.objectLatency = metrics.histogram("gcs_object_write_seconds",
+        "Time to stream one object to GCS, for the attempt that succeeded.");
+    this.batchLatency = metrics.histogram("gcs_upload_batch_seconds",
+        "Time to upload a whole batch of objects to GCS.");
+  }
+
+  /**
+   * Creates an uploader with its own daemon worker pool, managed by the registry, configured
+   * through the upload.* system properties set in appengine-web.xml.
+   */
+  public static ParallelUploader fromSystemProperties(ServiceRegistry services) {
+    int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+    ExecutorService executor = services.manage(Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("upload-%d").build()));
+    return new ParallelUploader(services.storage(), executor,
+        Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, DEFAULT_MAX_IN_FLIGHT),
+        Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS),
+        TimeUnit.SECONDS.toMillis(Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_SECONDS)),
+        services.metrics());
+  }
+
+  /**
+   * Uploads every object, keyed by object name, into the bucket and waits for the whole batch.
+   * Only objects listed in the result's uploaded() are guaranteed to have been written.
+   */
+  public UploadResult upload(String bucketName, Map<String, ByteSource> objects) {
+    Batch batch = new Batch(bucketName, Integer.MAX_VALUE);
+    for (Map.Entry<String, ByteSource> object : objects.entrySet()) {
+      batch.add(object.getKey(), object.getValue(), 0);
+    }
+    return batch.finish();
+  }
+
+  /**
+   * Starts a batch of uploads into the bucket whose objects are added one at a time, for
+   * contents read from a stream into memory. At most maxBufferedBytes of contents added are
+   * held until written; adding more blocks until earlier objects are done.
+   */
+  public Batch start(String bucketName, int maxBufferedBytes) {
+    return new Batch(bucketName, maxBufferedBytes);
+  }
+
+  /**
+   * Copies objects within GCS, each keyed by the name of its copy in the bucket, and waits for
+   * the whole batch. No data passes through this instance. A copy whose source doesn't exist
+   * fails with a FileNotFoundException; failed copies aren't logged, as a missing source is
+   * often expected.
+   */
+  public UploadResult copy(String bucketName, Map<String, BlobId> sources) {
+    Transfers copies = new Transfers(Integer.MAX_VALUE);
+    for (Map.Entry<String, BlobId> copy : sources.entrySet()) {
+      BlobId target = BlobId.of(bucketName, copy.getKey());
+      copies.submit(copy.getKey(), () -> copyWithRetries(copy.getValue(), target), 0);
+    }
+    return copies.await();
+  }
+
+  /**
+   * Deletes objects from the bucket and waits for the whole batch, for uploads that can't be
+   * kept. An object that doesn't exist counts as deleted; one that still fails is logged, as it
+   * is left behind.
+   */
+  public UploadResult delete(String bucketName, Collection<String> objectNames) {
+    Transfers deletes = new Transfers(Integer.MAX_VALUE);
+    for (String objectName : objectNames) {
+      BlobId blobId = BlobId.of(bucketName, objectName);
+      deletes.submit(objectName, () -> deleteWithRetries(blobId), 0);
+    }
+    UploadResult result = deletes.await();
+    for (Map.Entry<String, Throwable> failure : result.failures().entrySet()) {
+      log.warning("Failed to delete " + failure.getKey() + ": " + failure.getValue());
+    }
+    return result;
+  }
+
+  /** A batch of uploads whose objects are added as they arrive. */
+  public final class Batch {
+    private final long start = System.nanoTime();
+    private final String bucketName;
+    private final Transfers writes;
+
+    private Batch(String bucketName, int maxBufferedBytes) {
+      this.bucketName = bucketName;
+      this.writes = new Transfers(maxBufferedBytes);
+    }
+
+    /**
+     * Starts uploading contents as objectName, blocking while the batch has as many objects or
+     * bytes in flight as it may.
+     */
+    public void add(String objectName, byte[] contents) {
+      add(objectName, ByteSource.wrap(contents), contents.length);
+    }
+
+    private void add(String objectName, ByteSource source, int bufferedBytes) {
+      BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, objectName)).build();
+      writes.submit(objectName, () -> writeWithRetries(blobInfo, source), bufferedBytes);
+    }
+
+    /**
+     * Waits for every object added. Only objects listed in the result's uploaded() are
+     * guaranteed to have been written.
+     */
+    public UploadResult finish() {
+      UploadResult result = writes.await();
+      for (Map.Entry<String, Throwable> failure : result.failures().entrySet()) {
+        log.warning("Failed to upload " + failure.getKey() + ": " + failure.getValue());
+      }
+      failedObjects.add(result.failures().size());
+      batchLatency.recordSince(start);
+      return result;
+    }
+  }
+
+  /**
+   * Transfers run on the pool with at most maxInFlight of them, and maxBufferedBytes of their
+   * contents, at once, all within one timeout.
+   */
+  private final class Transfers {
+    private final long deadline = System.currentTimeMillis() + timeoutMillis;
+    private final Semaphore inFlight = new Semaphore(maxInFlight);
+    private final Semaphore buffered;
+    private final int maxBufferedBytes;
+    private final Map<String, Future<?>> futures = new LinkedHashMap<String, Future<?>>();
+    private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+    Transfers(int maxBufferedBytes) {
+      this.buffered = new Semaphore(maxBufferedBytes);
+      this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /** Starts a transfer once there is room for it, or records why it couldn't start. */
+    void submit(String objectName, Transfer transfer, int bufferedBytes) {
+      // An object larger than the whole budget waits for the rest to finish, then goes alone
+      int permits = Math.min(bufferedBytes, maxBufferedBytes);
+      boolean slot = false;
+      try {
+        // Block until this batch has a free slot, so a huge request can't flood the pool
+        slot = inFlight.tryAcquire(remaining(deadline), TimeUnit.MILLISECONDS);
+        if (slot && buffered.tryAcquire(permits, remaining(deadline), TimeUnit.MILLISECONDS)) {
+          futures.put(objectName, executor.submit(() -> {
+            try {
+              transfer.run();
+            } finally {
+              buffered.release(permits);
+              inFlight.release();
+            }
+            return null;
+          }));
+          return;
+        }
+        failures.put(objectName, new TimeoutException("Upload timed out before starting"));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failures.put(objectName, e);
+      }
+      if (slot) {
+        inFlight.release();
+      }
+    }
+
+    /** Waits for every transfer started, until the deadline. */
+    UploadResult await() {
+      ImmutableList.Builder<String> uploaded = ImmutableList.builder();
+      for (Map.Entry<String, Future<?>> future : futures.entrySet()) {
+        try {
+          future.getValue().get(remaining(deadline), TimeUnit.MILLISECONDS);
+          uploaded.add(future.getKey());
+        } catch (ExecutionException e) {
+          failures.put(future.getKey(), e.getCause());
+        } catch (TimeoutException | CancellationException e) {
+          future.getValue().cancel(true);
+          failures.put(future.getKey(), e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          future.getValue().cancel(true);
+          failures.put(future.getKey(), e);
+        }
+      }
+      return UploadResult.of(uploaded.build(), ImmutableMap.copyOf(failures));
+    }
+  }
+
+  /**
+   * Streams one object to GCS, starting over from the beginning of the source when a retryable
+   * error occurs.
+   */
+  private void writeWithRetries(BlobInfo blobInfo, ByteSource source)
+      throws IOException, InterruptedException {
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    for (int attempt = 1; ; attempt++) {
+      long start = System.nanoTime();
+      try {
+        long written;
+        try (InputStream inputStream = source.openStream();
+            WriteChannel writer = storage.writer(blobInfo)) {
+          written = ByteStreams.copy(Channels.newChannel(inputStream), writer);
+        }
+        // Closing the channel finishes the upload, so it is part of the write
+        bytesWritten.add(written);
+        objectLatency.recordSince(start);
+        return;
+      } catch (StorageException e) {
+        if (!e.isRetryable() || attempt >= maxAttempts) {
+          throw e;
+        }
+      } catch (IOException e) {
+        if (attempt >= maxAttempts) {
+          throw e;
+        }
+      }
+      retries.increment();
+      Thread.sleep(backoffMillis);
+      backoffMillis *= 2;
+    }
+  }
+
+  /**
+   * Copies one object within GCS, retrying retryable errors with backoff.
+   */
+  private void copyWithRetries(BlobId source, BlobId target)
+      throws IOException, InterruptedException {
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        if (storage.get(source) == null) {
+          throw new FileNotFoundException(source.toString());
+        }
+        storage.copy(CopyRequest.of(source, target)).getResult();
+        return;
+      } catch (StorageException e) {
+        if (!e.isRetryable() || attempt >= maxAttempts) {
+          throw e;
+        }
+      }
+      retries.increment();
+      Thread.sleep(backoffMillis);
+      backoffMillis *= 2;
+    }
+  }
+
+  /**
+   * Deletes one object from GCS, retrying retryable errors with backoff.
+   */
+  private void deleteWithRetries(BlobId blobId) throws InterruptedException {
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        storage.delete(blobId);
+        return;
+      } catch (StorageException e) {
+        if (!e.isRetryable() || attempt >= maxAttempts) {
+          throw e;
+        }
+      }
+      retries.increment();
+      Thread.sleep(backoffMillis);
+      backoffMillis *= 2;
+    }
+  }
+
+  private static long remaining(long deadline) {
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  /** One object's write, copy or delete, run on the pool. */
+  private interface Transfer {
+    void run() throws IOException, InterruptedException;
+  }
+
+  /** The outcome of uploading a batch of objects. */
+  @AutoValue
+  public abstract static class UploadResult {
+
+    static UploadResult of(ImmutableList<String> uploaded,
+        ImmutableMap<String, Throwable> failures) {
+      return new AutoValue_ParallelUploader_UploadResult(uploaded, failures);
+    }
+
+    /** Names of the objects that were written, in the order they were given. */
+    public abstract ImmutableList<String> uploaded();
+
+    /** Names of the objects that could not be written, with the last error for each. */
+    public abstract ImmutableMap<String, Throwable> failures();
+  }
+}
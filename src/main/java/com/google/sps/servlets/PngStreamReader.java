@@ -0,0 +1,201 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.io.ByteStreams;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads an 8-bit RGB or RGBA PNG one row at a time, the counterpart of PngStreamWriter, so an
+ * image never has to be held in memory as a whole. Interlaced images and other color types
+ * aren't supported. Chunk CRCs aren't checked; the zlib stream's own checksum covers the pixels.
+ */
+final class PngStreamReader implements Closeable {
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static final int COLOR_TYPE_RGB = 2;
+  private static final int COLOR_TYPE_RGBA = 6;
+
+  private final DataInputStream in;
+  private final int width;
+  private final int height;
+  private final int bytesPerPixel;
+  private final Inflater inflater = new Inflater();
+  private final DataInputStream pixels;
+  private byte[] row;
+  private byte[] previous;
+  private int rowsRead;
+
+  PngStreamReader(InputStream in) throws IOException {
+    this.in = new DataInputStream(in);
+    byte[] signature = new byte[SIGNATURE.length];
+    this.in.readFully(signature);
+    if (!Arrays.equals(signature, SIGNATURE) || this.in.readInt() != 13
+        || !"IHDR".equals(readType())) {
+      throw new IOException("Not a PNG image");
+    }
+    width = this.in.readInt();
+    height = this.in.readInt();
+    int bitDepth = this.in.readUnsignedByte();
+    int colorType = this.in.readUnsignedByte();
+    // Compression and filter method, then interlacing
+    this.in.readUnsignedShort();
+    int interlace = this.in.readUnsignedByte();
+    this.in.readInt();
+    if (width <= 0 || height <= 0 || bitDepth != 8 || interlace != 0
+        || (colorType != COLOR_TYPE_RGB && colorType != COLOR_TYPE_RGBA)) {
+      throw new IOException("Only non-interlaced 8-bit RGB and RGBA images can be streamed");
+    }
+    bytesPerPixel = colorType == COLOR_TYPE_RGBA ? 4 : 3;
+    row = new byte[width * bytesPerPixel];
+    previous = new byte[width * bytesPerPixel];
+    pixels = new DataInputStream(new InflaterInputStream(new IdatStream(), inflater));
+  }
+
+  int width() {
+    return width;
+  }
+
+  int height() {
+    return height;
+  }
+
+  /** Reads the next row into width packed ARGB pixels starting at offset. */
+  void readRow(int[] argb, int offset) throws IOException {
+    if (rowsRead == height) {
+      throw new IllegalStateException("All " + height + " rows have been read");
+    }
+    byte[] swap = previous;
+    previous = row;
+    row = swap;
+    int filter = pixels.readUnsignedByte();
+    pixels.readFully(row);
+    unfilter(filter);
+    for (int x = 0; x < width; x++) {
+      int i = x * bytesPerPixel;
+      int alpha = bytesPerPixel == 4 ? row[i + 3] & 0xff : 0xff;
+      argb[offset + x] = alpha << 24 | (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8
+          | (row[i + 2] & 0xff);
+    }
+    rowsRead++;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      in.close();
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /** Undoes the row's filter, using the row before it, which is all zero for the first row. */
+  private void unfilter(int filter) throws IOException {
+    for (int i = 0; i < row.length; i++) {
+      int left = i < bytesPerPixel ? 0 : row[i - bytesPerPixel] & 0xff;
+      int up = previous[i] & 0xff;
+      int upLeft = i < bytesPerPixel ? 0 : previous[i - bytesPerPixel] & 0xff;
+      int predictor;
+      switch (filter) {
+        case 0:
+          predictor = 0;
+          break;
+        case 1:
+          predictor = left;
+          break;
+        case 2:
+          predictor = up;
+          break;
+        case 3:
+          predictor = (left + up) >>> 1;
+          break;
+        case 4:
+          predictor = paeth(left, up, upLeft);
+          break;
+        default:
+          throw new IOException("Unknown PNG filter " + filter);
+      }
+      row[i] = (byte) (row[i] + predictor);
+    }
+  }
+
+  private static int paeth(int left, int up, int upLeft) {
+    int estimate = left + up - upLeft;
+    int toLeft = Math.abs(estimate - left);
+    int toUp = Math.abs(estimate - up);
+    int toUpLeft = Math.abs(estimate - upLeft);
+    if (toLeft <= toUp && toLeft <= toUpLeft) {
+      return left;
+    }
+    return toUp <= toUpLeft ? up : upLeft;
+  }
+
+  private String readType() throws IOException {
+    byte[] type = new byte[4];
+    in.readFully(type);
+    return new String(type, StandardCharsets.US_ASCII);
+  }
+
+  /** The data of the image's IDAT chunks, one after the other, skipping other chunks. */
+  private final class IdatStream extends InputStream {
+    private int remaining;
+    private boolean inIdat;
+    private boolean ended;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      while (remaining == 0) {
+        if (inIdat) {
+          // The finished chunk's CRC
+          in.readInt();
+          inIdat = false;
+        }
+        if (ended) {
+          return -1;
+        }
+        int chunkLength = in.readInt();
+        String type = readType();
+        if (type.equals("IDAT")) {
+          remaining = chunkLength;
+          inIdat = true;
+        } else if (type.equals("IEND")) {
+          ended = true;
+        } else {
+          ByteStreams.skipFully(in, chunkLength + 4L);
+        }
+      }
+      int count = in.read(bytes, offset, Math.min(length, remaining));
+      if (count < 0) {
+        throw new EOFException("PNG image is cut short");
+      }
+      remaining -= count;
+      return count;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGBA PNG one row at a time, so an image never has to be held in memory as a
+ * whole. Rows are Sub filtered, deflated and written out in IDAT chunks of up to 64KiB.
+ */
+final class PngStreamWriter implements Closeable {
+
+  private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static final int CHUNK_BYTES = 1 << 16;
+  private static final int COLOR_TYPE_RGBA = 6;
+  private static final int FILTER_SUB = 1;
+
+  private final DataOutputStream out;
+  private final int width;
+  private final int height;
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+  private final DeflaterOutputStream compressed;
+  private final byte[] row;
+  private int rowsWritten;
+
+  PngStreamWriter(OutputStream out, int width, int height) throws IOException {
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Images need at least one pixel");
+    }
+    this.out = new DataOutputStream(out);
+    this.width = width;
+    this.height = height;
+    this.row = new byte[1 + 4 * width];
+    this.compressed = new DeflaterOutputStream(new IdatStream(), deflater, CHUNK_BYTES);
+
+    this.out.write(SIGNATURE);
+    // Bit depth 8, default compression, filtering and no interlacing
+    byte[] header = ByteBuffer.allocate(13).putInt(width).putInt(height)
+        .put((byte) 8).put((byte) COLOR_TYPE_RGBA).array();
+    writeChunk("IHDR", header, header.length);
+  }
+
+  /** Writes the next row from width packed ARGB pixels starting at offset. */
+  void writeRow(int[] argb, int offset) throws IOException {
+    if (rowsWritten == height) {
+      throw new IllegalStateException("All " + height + " rows have been written");
+    }
+    row[0] = FILTER_SUB;
+    int previous = 0;
+    for (int x = 0; x < width; x++) {
+      int pixel = argb[offset + x];
+      int i = 1 + 4 * x;
+      // Sub filter: each byte minus the same byte of the pixel to its left
+      row[i] = (byte) ((pixel >>> 16) - (previous >>> 16));
+      row[i + 1] = (byte) ((pixel >>> 8) - (previous >>> 8));
+      row[i + 2] = (byte) (pixel - previous);
+      row[i + 3] = (byte) ((pixel >>> 24) - (previous >>> 24));
+      previous = pixel;
+    }
+    compressed.write(row);
+    rowsWritten++;
+  }
+
+  /**
+   * Finishes the image and closes the underlying stream. If some rows are missing the stream is
+   * left open instead, so an upload behind it isn't finalized with a truncated image.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (rowsWritten != height) {
+        throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+      }
+      compressed.close();
+      writeChunk("IEND", new byte[0], 0);
+      out.close();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void writeChunk(String type, byte[] data, int length) throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    out.writeInt(length);
+    out.write(typeBytes);
+    out.write(data, 0, length);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /** Buffers compressed bytes and writes them out as IDAT chunks. */
+  private final class IdatStream extends OutputStream {
+    private final byte[] buffer = new byte[CHUNK_BYTES];
+    private int size;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        int copied = Math.min(length, buffer.length - size);
+        System.arraycopy(bytes, offset, buffer, size, copied);
+        size += copied;
+        offset += copied;
+        length -= copied;
+        if (size == buffer.length) {
+          flush();
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (size > 0) {
+        writeChunk("IDAT", buffer, size);
+        size = 0;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
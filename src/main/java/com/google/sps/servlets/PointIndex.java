@@ -0,0 +1,433 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.Arrays;
+
+/**
+ * A static 3-D k-d tree over a dataset's t-SNE coordinates.
+ *
+ * <p>The tree is implicit: points are reordered so that the median of every range [lo, hi) sits
+ * at its midpoint, splitting on x, y and z in turn by depth. The whole index is therefore two
+ * primitive arrays (coordinates in tree order and their original indices) with no node objects.
+ * All queries return original point indices, i.e. positions in coordinates.json.
+ */
+public final class PointIndex {
+
+  // x, y, z of every point in tree order
+  private final float[] xyz;
+
+  // ids[i] is the coordinates.json position of the point stored at tree position i
+  private final int[] ids;
+
+  // min x, min y, min z, max x, max y, max z over all points
+  private final float[] bounds;
+
+  private final int size;
+  private final int maxDepth;
+
+  private PointIndex(float[] xyz, int[] ids, float[] bounds) {
+    this.xyz = xyz;
+    this.ids = ids;
+    this.bounds = bounds;
+    this.size = ids.length;
+    this.maxDepth = 32 - Integer.numberOfLeadingZeros(Math.max(1, size));
+  }
+
+  /**
+   * Builds an index over a flat x, y, z array in O(n log n).
+   */
+  public static PointIndex build(float[] coordinates) {
+    int size = coordinates.length / 3;
+    int[] ids = new int[size];
+    for (int i = 0; i < size; i++) {
+      ids[i] = i;
+    }
+    split(coordinates, ids, 0, size, 0);
+
+    float[] xyz = new float[3 * size];
+    float[] bounds = new float[6];
+    if (size > 0) {
+      Arrays.fill(bounds, 0, 3, Float.POSITIVE_INFINITY);
+      Arrays.fill(bounds, 3, 6, Float.NEGATIVE_INFINITY);
+    }
+    for (int i = 0; i < size; i++) {
+      for (int axis = 0; axis < 3; axis++) {
+        float value = coordinates[3 * ids[i] + axis];
+        xyz[3 * i + axis] = value;
+        bounds[axis] = Math.min(bounds[axis], value);
+        bounds[axis + 3] = Math.max(bounds[axis + 3], value);
+      }
+    }
+    return new PointIndex(xyz, ids, bounds);
+  }
+
+  /** Returns the number of indexed points. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the points inside the axis-aligned box, bounds included.
+   */
+  public int[] queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+    float[] box = {minX, minY, minZ, maxX, maxY, maxZ};
+    Hits hits = new Hits(64);
+    queryBox(box, 0, size, 0, hits);
+    return hits.toArray();
+  }
+
+  /**
+   * Returns the points inside a frustum given as 6 planes of 4 floats (a, b, c, d). A point is
+   * inside when a * x + b * y + c * z + d >= 0 for every plane, which is how three.js
+   * Frustum planes (normal, constant) are defined.
+   */
+  public int[] queryFrustum(float[] planes) {
+    if (planes.length != 24) {
+      throw new IllegalArgumentException("A frustum needs 6 planes of 4 values");
+    }
+    // One box per tree level, so descending never allocates
+    float[] boxes = new float[6 * (maxDepth + 1)];
+    System.arraycopy(bounds, 0, boxes, 0, 6);
+    Hits hits = new Hits(64);
+    queryFrustum(planes, boxes, 0, size, 0, hits);
+    return hits.toArray();
+  }
+
+  /**
+   * Returns the k points nearest to (x, y, z), nearest first.
+   */
+  public int[] nearest(float x, float y, float z, int k) {
+    k = Math.min(k, size);
+    if (k <= 0) {
+      return new int[0];
+    }
+    // Max-heap on distance, so the worst of the current k is at the root
+    float[] heapDistances = new float[k];
+    int[] heapPositions = new int[k];
+    int heapSize = nearest(x, y, z, 0, size, 0, heapDistances, heapPositions, 0);
+
+    // Pop the heap to order results nearest first
+    int[] result = new int[heapSize];
+    for (int i = heapSize - 1; i >= 0; i--) {
+      result[i] = ids[heapPositions[0]];
+      heapSize--;
+      heapDistances[0] = heapDistances[heapSize];
+      heapPositions[0] = heapPositions[heapSize];
+      siftDown(heapDistances, heapPositions, heapSize, 0);
+    }
+    return result;
+  }
+
+  /**
+   * Returns at most budget points spread evenly over space, optionally restricted to a box
+   * (null for every point). Points are taken breadth first from the tree, so each level of the
+   * tree refines the previous one and a larger budget returns a superset of a smaller one.
+   */
+  public int[] sample(int budget, float[] box) {
+    Hits hits = new Hits(Math.min(Math.max(budget, 0), size));
+    // Queue of (lo, hi, depth) ranges still to visit
+    Hits queue = new Hits(64);
+    queue.add(0);
+    queue.add(size);
+    queue.add(0);
+    for (int head = 0; head < queue.size && hits.size < budget; head += 3) {
+      int lo = queue.values[head];
+      int hi = queue.values[head + 1];
+      int depth = queue.values[head + 2];
+      if (lo >= hi) {
+        continue;
+      }
+      int mid = (lo + hi) >>> 1;
+      int axis = depth % 3;
+      float split = xyz[3 * mid + axis];
+      if (box == null || contains(box, mid)) {
+        hits.add(ids[mid]);
+      }
+      if (box == null || box[axis] <= split) {
+        queue.add(lo);
+        queue.add(mid);
+        queue.add(depth + 1);
+      }
+      if (box == null || box[axis + 3] >= split) {
+        queue.add(mid + 1);
+        queue.add(hi);
+        queue.add(depth + 1);
+      }
+    }
+    return hits.toArray();
+  }
+
+  /** Returns min x, min y, min z, max x, max y, max z over every point. */
+  public float[] bounds() {
+    return bounds.clone();
+  }
+
+  private void queryBox(float[] box, int lo, int hi, int depth, Hits hits) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int axis = depth % 3;
+      float split = xyz[3 * mid + axis];
+      if (contains(box, mid)) {
+        hits.add(ids[mid]);
+      }
+      boolean left = box[axis] <= split;
+      boolean right = box[axis + 3] >= split;
+      if (left && right) {
+        queryBox(box, lo, mid, depth + 1, hits);
+        lo = mid + 1;
+      } else if (left) {
+        hi = mid;
+      } else if (right) {
+        lo = mid + 1;
+      } else {
+        return;
+      }
+      depth++;
+    }
+  }
+
+  private void queryFrustum(float[] planes, float[] boxes, int lo, int hi, int depth,
+      Hits hits) {
+    if (lo >= hi) {
+      return;
+    }
+    int box = 6 * depth;
+    boolean insideAll = true;
+    for (int plane = 0; plane < 24; plane += 4) {
+      float a = planes[plane];
+      float b = planes[plane + 1];
+      float c = planes[plane + 2];
+      float d = planes[plane + 3];
+      // The box corner furthest along the plane normal, and the one furthest against it
+      float far = a * boxes[box + (a >= 0 ? 3 : 0)] + b * boxes[box + (b >= 0 ? 4 : 1)]
+          + c * boxes[box + (c >= 0 ? 5 : 2)] + d;
+      if (far < 0) {
+        return;
+      }
+      float near = a * boxes[box + (a >= 0 ? 0 : 3)] + b * boxes[box + (b >= 0 ? 1 : 4)]
+          + c * boxes[box + (c >= 0 ? 2 : 5)] + d;
+      insideAll &= near >= 0;
+    }
+    if (insideAll) {
+      for (int i = lo; i < hi; i++) {
+        hits.add(ids[i]);
+      }
+      return;
+    }
+
+    int mid = (lo + hi) >>> 1;
+    int axis = depth % 3;
+    if (insideFrustum(planes, mid)) {
+      hits.add(ids[mid]);
+    }
+    int child = box + 6;
+    float split = xyz[3 * mid + axis];
+
+    System.arraycopy(boxes, box, boxes, child, 6);
+    boxes[child + axis + 3] = split;
+    queryFrustum(planes, boxes, lo, mid, depth + 1, hits);
+
+    System.arraycopy(boxes, box, boxes, child, 6);
+    boxes[child + axis] = split;
+    queryFrustum(planes, boxes, mid + 1, hi, depth + 1, hits);
+  }
+
+  private int nearest(float x, float y, float z, int lo, int hi, int depth,
+      float[] heapDistances, int[] heapPositions, int heapSize) {
+    if (lo >= hi) {
+      return heapSize;
+    }
+    int mid = (lo + hi) >>> 1;
+    int axis = depth % 3;
+    float dx = xyz[3 * mid] - x;
+    float dy = xyz[3 * mid + 1] - y;
+    float dz = xyz[3 * mid + 2] - z;
+    float distance = dx * dx + dy * dy + dz * dz;
+
+    int k = heapDistances.length;
+    if (heapSize < k) {
+      heapDistances[heapSize] = distance;
+      heapPositions[heapSize] = mid;
+      siftUp(heapDistances, heapPositions, heapSize);
+      heapSize++;
+    } else if (distance < heapDistances[0]) {
+      heapDistances[0] = distance;
+      heapPositions[0] = mid;
+      siftDown(heapDistances, heapPositions, heapSize, 0);
+    }
+
+    float diff = (axis == 0 ? x : axis == 1 ? y : z) - xyz[3 * mid + axis];
+    boolean leftFirst = diff < 0;
+    heapSize = leftFirst
+        ? nearest(x, y, z, lo, mid, depth + 1, heapDistances, heapPositions, heapSize)
+        : nearest(x, y, z, mid + 1, hi, depth + 1, heapDistances, heapPositions, heapSize);
+    // Only cross the splitting plane if it is closer than the current k-th neighbour
+    if (heapSize < k || diff * diff < heapDistances[0]) {
+      heapSize = leftFirst
+          ? nearest(x, y, z, mid + 1, hi, depth + 1, heapDistances, heapPositions, heapSize)
+          : nearest(x, y, z, lo, mid, depth + 1, heapDistances, heapPositions, heapSize);
+    }
+    return heapSize;
+  }
+
+  private boolean contains(float[] box, int position) {
+    float x = xyz[3 * position];
+    float y = xyz[3 * position + 1];
+    float z = xyz[3 * position + 2];
+    return x >= box[0] && y >= box[1] && z >= box[2] && x <= box[3] && y <= box[4] && z <= box[5];
+  }
+
+  private boolean insideFrustum(float[] planes, int position) {
+    float x = xyz[3 * position];
+    float y = xyz[3 * position + 1];
+    float z = xyz[3 * position + 2];
+    for (int plane = 0; plane < 24; plane += 4) {
+      if (planes[plane] * x + planes[plane + 1] * y + planes[plane + 2] * z
+          + planes[plane + 3] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reorders ids[lo, hi) so that the median along the depth's axis is at the midpoint, then
+   * does the same for both halves.
+   */
+  private static void split(float[] coordinates, int[] ids, int lo, int hi, int depth) {
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      select(coordinates, ids, lo, hi - 1, mid, depth % 3);
+      split(coordinates, ids, lo, mid, depth + 1);
+      lo = mid + 1;
+      depth++;
+    }
+  }
+
+  /**
+   * Quickselect: partially sorts ids[left, right] so ids[k] holds the point that would be there
+   * if the range were sorted along the axis.
+   */
+  private static void select(float[] coordinates, int[] ids, int left, int right, int k,
+      int axis) {
+    while (right > left) {
+      // Median of three pivot guards against already sorted input
+      int middle = (left + right) >>> 1;
+      if (value(coordinates, ids, middle, axis) < value(coordinates, ids, left, axis)) {
+        swap(ids, middle, left);
+      }
+      if (value(coordinates, ids, right, axis) < value(coordinates, ids, left, axis)) {
+        swap(ids, right, left);
+      }
+      if (value(coordinates, ids, right, axis) < value(coordinates, ids, middle, axis)) {
+        swap(ids, right, middle);
+      }
+      float pivot = value(coordinates, ids, middle, axis);
+
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (value(coordinates, ids, i, axis) < pivot) {
+          i++;
+        }
+        while (value(coordinates, ids, j, axis) > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(ids, i, j);
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private static float value(float[] coordinates, int[] ids, int position, int axis) {
+    return coordinates[3 * ids[position] + axis];
+  }
+
+  private static void swap(int[] values, int i, int j) {
+    int tmp = values[i];
+    values[i] = values[j];
+    values[j] = tmp;
+  }
+
+  private static void siftUp(float[] distances, int[] positions, int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (distances[parent] >= distances[i]) {
+        return;
+      }
+      swapHeap(distances, positions, parent, i);
+      i = parent;
+    }
+  }
+
+  private static void siftDown(float[] distances, int[] positions, int size, int i) {
+    while (true) {
+      int largest = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      if (left < size && distances[left] > distances[largest]) {
+        largest = left;
+      }
+      if (right < size && distances[right] > distances[largest]) {
+        largest = right;
+      }
+      if (largest == i) {
+        return;
+      }
+      swapHeap(distances, positions, largest, i);
+      i = largest;
+    }
+  }
+
+  private static void swapHeap(float[] distances, int[] positions, int i, int j) {
+    float distance = distances[i];
+    distances[i] = distances[j];
+    distances[j] = distance;
+    swap(positions, i, j);
+  }
+
+  /** A growable int array, so results are collected without boxing. */
+  private static final class Hits {
+
+    int[] values;
+    int size;
+
+    Hits(int capacity) {
+      values = new int[Math.max(capacity, 4)];
+    }
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds PointIndex instances from coordinates.json objects on first use and keeps them in a
+ * cache bounded by the total number of indexed points.
+ *
+ * <p>Concurrent requests for the same dataset wait for a single build. Indexes expire after the
+ * TTL, so rewritten coordinates are picked up without checking GCS on every query.
+ */
+public class PointIndexCache {
+
+  static final String MAX_POINTS_PROPERTY = "coordinates-index.max-points";
+  static final String TTL_PROPERTY = "coordinates-index.ttl-seconds";
+
+  private static final long DEFAULT_MAX_POINTS = 5000000;
+  private static final long DEFAULT_TTL_SECONDS = 300;
+
+  private final Storage storage;
+  private final Cache<BlobId, PointIndex> indexes;
+
+  public PointIndexCache(Storage storage, long maxPoints, long ttlMillis) {
+    this.storage = storage;
+    this.indexes = CacheBuilder.newBuilder()
+        .maximumWeight(maxPoints)
+        .<BlobId, PointIndex>weigher((blobId, index) -> Math.max(1, index.size()))
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Creates a cache configured through the coordinates-index.* system properties set in
+   * appengine-web.xml.
+   */
+  public static PointIndexCache fromSystemProperties(Storage storage) {
+    return new PointIndexCache(storage,
+        Long.getLong(MAX_POINTS_PROPERTY, DEFAULT_MAX_POINTS),
+        TimeUnit.SECONDS.toMillis(Long.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS)));
+  }
+
+  /**
+   * Returns the index for a coordinates.json object, or null if the object doesn't exist.
+   */
+  public PointIndex get(BlobId coordinatesId) throws IOException {
+    try {
+      return indexes.get(coordinatesId, () -> load(coordinatesId));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof FileNotFoundException) {
+        return null;
+      }
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause() : new IOException(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private PointIndex load(BlobId coordinatesId) throws IOException {
+    Blob blob = storage.get(coordinatesId);
+    if (blob == null) {
+      throw new FileNotFoundException(coordinatesId.toString());
+    }
+    try (ReadChannel readChannel = blob.reader()) {
+      return PointIndex.build(PackedCoordinates.parsePoints(
+          Channels.newReader(readChannel, StandardCharsets.UTF_8.name())));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.Arrays;
+
+/**
+ * A binary heap of (id, score) pairs kept in primitive arrays, so similarity searches don't box
+ * a value per candidate. The top is either the highest or the lowest score.
+ */
+final class ScoredHeap {
+
+  private final boolean maxOnTop;
+  private int[] ids;
+  private float[] scores;
+  private int size;
+
+  ScoredHeap(boolean maxOnTop, int capacity) {
+    this.maxOnTop = maxOnTop;
+    this.ids = new int[Math.max(1, capacity)];
+    this.scores = new float[Math.max(1, capacity)];
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int peekId() {
+    return ids[0];
+  }
+
+  float peekScore() {
+    return scores[0];
+  }
+
+  void push(int id, float score) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, size * 2);
+      scores = Arrays.copyOf(scores, size * 2);
+    }
+    int child = size++;
+    while (child > 0) {
+      int parent = (child - 1) / 2;
+      if (!above(score, scores[parent])) {
+        break;
+      }
+      ids[child] = ids[parent];
+      scores[child] = scores[parent];
+      child = parent;
+    }
+    ids[child] = id;
+    scores[child] = score;
+  }
+
+  /** Removes the top pair and returns its id. */
+  int pop() {
+    int top = ids[0];
+    size--;
+    if (size > 0) {
+      siftDown(ids[size], scores[size]);
+    }
+    return top;
+  }
+
+  /**
+   * Keeps the limit best scoring pairs on a heap whose top is the lowest score: adds the pair
+   * if there is room, or replaces the top if the pair scores higher.
+   */
+  void offer(int id, float score, int limit) {
+    if (size < limit) {
+      push(id, score);
+    } else if (score > scores[0]) {
+      siftDown(id, score);
+    }
+  }
+
+  /** Empties a heap whose top is the lowest score, returning its ids highest score first. */
+  int[] drainDescending() {
+    int[] drained = new int[size];
+    for (int i = drained.length - 1; i >= 0; i--) {
+      drained[i] = pop();
+    }
+    return drained;
+  }
+
+  private void siftDown(int id, float score) {
+    int parent = 0;
+    while (true) {
+      int child = 2 * parent + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && above(scores[child + 1], scores[child])) {
+        child++;
+      }
+      if (!above(scores[child], score)) {
+        break;
+      }
+      ids[parent] = ids[child];
+      scores[parent] = scores[child];
+      parent = child;
+    }
+    ids[parent] = id;
+    scores[parent] = score;
+  }
+
+  private boolean above(float score, float other) {
+    return maxOnTop ? score > other : score < other;
+  }
+}
@@ -0,0 +1,337 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.servlet.ServletContext;
+
+/**
+ * The clients and shared components of one web application, created once and handed to every
+ * servlet from its init(), instead of each servlet building its own in static initializers.
+ *
+ * <p>ServiceRegistryListener creates the registry when the application starts and shuts it
+ * down when it stops. The clients are created straight away; the heavier components (and their
+ * worker pools) on first use, or all at once by warmUp(), which /_ah/warmup calls before an
+ * instance gets its first real request. How long each took is kept in startupTimings().
+ */
+public class ServiceRegistry {
+
+  static final String ATTRIBUTE = ServiceRegistry.class.getName();
+
+  private static final long SHUTDOWN_GRACE_SECONDS = 5;
+  private static final Logger log = Logger.getLogger(ServiceRegistry.class.getName());
+
+  private final Storage storage;
+  private final DatastoreService datastore;
+  private final UserService userService;
+  private final BlobstoreService blobstoreService;
+
+  // Worker pools of the components, shut down with the registry
+  private final List<ExecutorService> pools = new CopyOnWriteArrayList<ExecutorService>();
+  private final Map<String, Long> startupMillis = new LinkedHashMap<String, Long>();
+  private final Metrics metrics = new Metrics();
+
+  private final Supplier<MetadataStore> metadataBackend =
+      component("metadata-backend", () -> MetadataStoreFactory.backend(datastore(), metrics));
+  private final Supplier<MetadataStore> metadataStore = component("metadata-store",
+      () -> MetadataStoreFactory.cached(metadataBackend(), metrics));
+  private final Supplier<CompressedVariants> compressedVariants =
+      component("compressed-variants", () -> new CompressedVariants(storage()));
+  private final Supplier<ConditionalBlobServer> blobServer = component("blob-server",
+      () -> new ConditionalBlobServer(storage(), blobstoreService(), compressedVariants()));
+  private final Supplier<AsyncRetrieval> asyncRetrieval =
+      component("async-retrieval", () -> AsyncRetrieval.fromSystemProperties(this));
+  private final Supplier<AdmissionControl> admissionControl =
+      component("admission-control", () -> AdmissionControl.fromSystemProperties(this));
+  private final Supplier<ParallelUploader> uploader =
+      component("uploader", () -> ParallelUploader.fromSystemProperties(this));
+  private final Supplier<ArchiveExtractor> archiveExtractor =
+      component("archive-extractor", () -> ArchiveExtractor.fromSystemProperties(this));
+  private final Supplier<UploadSessions> uploadSessions = component("upload-sessions",
+      () -> UploadSessions.fromSystemProperties(this, UploadServlet.BUCKET_NAME));
+  private final Supplier<DatasetProgress> datasetProgress =
+      component("dataset-progress", () -> DatasetProgress.fromSystemProperties(this));
+  private final Supplier<ContentIndex> contentIndex = component("content-index",
+      () -> new ContentIndex(datastore(), uploader(), ContentIndex.DERIVED_BUCKET));
+  private final Supplier<PackedCoordinates> packedCoordinates =
+      component("packed-coordinates", () -> new PackedCoordinates(storage()));
+  private final Supplier<PointIndexCache> pointIndexes =
+      component("point-indexes", () -> PointIndexCache.fromSystemProperties(storage()));
+  private final Supplier<SpritesheetAssembler> spritesheetAssembler =
+      component("spritesheet-assembler", () -> SpritesheetAssembler.fromSystemProperties(this));
+  private final Supplier<SpritesheetAtlas> spritesheetAtlas =
+      component("spritesheet-atlas", () -> SpritesheetAtlas.fromSystemProperties(storage()));
+  private final Supplier<SimilaritySearch> similaritySearch =
+      component("similarity-search", () -> SimilaritySearch.fromSystemProperties(this));
+  private final Supplier<TsneCoordinates> tsneCoordinates =
+      component("tsne-coordinates", () -> TsneCoordinates.fromSystemProperties(this));
+
+  public ServiceRegistry(Storage storage, DatastoreService datastore, UserService userService,
+      BlobstoreService blobstoreService) {
+    this.storage = storage;
+    this.datastore = datastore;
+    this.userService = userService;
+    this.blobstoreService = blobstoreService;
+  }
+
+  /**
+   * Creates a registry of the default App Engine and Cloud Storage clients.
+   */
+  public static ServiceRegistry create() {
+    long start = System.nanoTime();
+    Storage storage = StorageOptions.getDefaultInstance().getService();
+    long storageMillis = millisSince(start);
+    ServiceRegistry services = new ServiceRegistry(storage,
+        DatastoreServiceFactory.getDatastoreService(), UserServiceFactory.getUserService(),
+        BlobstoreServiceFactory.getBlobstoreService());
+    services.recordStartup("storage-client", storageMillis);
+    services.recordStartup("app-engine-clients", millisSince(start) - storageMillis);
+    return services;
+  }
+
+  /**
+   * Returns the registry of the application. Normally ServiceRegistryListener has created it
+   * already; if it hasn't (the listener wasn't picked up) it is created on first use.
+   */
+  public static ServiceRegistry get(ServletContext context) {
+    synchronized (context) {
+      ServiceRegistry services = (ServiceRegistry) context.getAttribute(ATTRIBUTE);
+      if (services == null) {
+        services = create();
+        context.setAttribute(ATTRIBUTE, services);
+      }
+      return services;
+    }
+  }
+
+  public Storage storage() {
+    return storage;
+  }
+
+  public DatastoreService datastore() {
+    return datastore;
+  }
+
+  public UserService userService() {
+    return userService;
+  }
+
+  public BlobstoreService blobstoreService() {
+    return blobstoreService;
+  }
+
+  /** The histograms and counters of the application, served by /metrics. */
+  public Metrics metrics() {
+    return metrics;
+  }
+
+  /** The MetadataStore shared by every servlet, so a write through one invalidates them all. */
+  public MetadataStore metadataStore() {
+    return metadataStore.get();
+  }
+
+  /**
+   * The store behind the shared cache. Another instance's write is invisible to this one's cache
+   * until the entry expires, so whatever must see it at once, such as DatasetProgress deciding a
+   * dataset is complete, reads through this instead.
+   */
+  public MetadataStore metadataBackend() {
+    return metadataBackend.get();
+  }
+
+  public CompressedVariants compressedVariants() {
+    return compressedVariants.get();
+  }
+
+  public ConditionalBlobServer blobServer() {
+    return blobServer.get();
+  }
+
+  public AsyncRetrieval asyncRetrieval() {
+    return asyncRetrieval.get();
+  }
+
+  public AdmissionControl admissionControl() {
+    return admissionControl.get();
+  }
+
+  public ParallelUploader uploader() {
+    return uploader.get();
+  }
+
+  public ArchiveExtractor archiveExtractor() {
+    return archiveExtractor.get();
+  }
+
+  public UploadSessions uploadSessions() {
+    return uploadSessions.get();
+  }
+
+  public DatasetProgress datasetProgress() {
+    return datasetProgress.get();
+  }
+
+  public ContentIndex contentIndex() {
+    return contentIndex.get();
+  }
+
+  public PackedCoordinates packedCoordinates() {
+    return packedCoordinates.get();
+  }
+
+  public PointIndexCache pointIndexes() {
+    return pointIndexes.get();
+  }
+
+  public SpritesheetAssembler spritesheetAssembler() {
+    return spritesheetAssembler.get();
+  }
+
+  public SpritesheetAtlas spritesheetAtlas() {
+    return spritesheetAtlas.get();
+  }
+
+  public SimilaritySearch similaritySearch() {
+    return similaritySearch.get();
+  }
+
+  public TsneCoordinates tsneCoordinates() {
+    return tsneCoordinates.get();
+  }
+
+  /**
+   * Registers a component's worker pool to be shut down with the registry, and returns it.
+   */
+  public <T extends ExecutorService> T manage(T pool) {
+    pools.add(pool);
+    return pool;
+  }
+
+  /**
+   * Creates every component and does the first, slow, use of the clients: class loading and
+   * JSON adapters, a Datastore query and a metadata read of each bucket. A step that fails is
+   * logged and skipped; a cold instance is still better than no instance. Returns the startup
+   * timings so far.
+   */
+  public Map<String, Long> warmUp(List<String> bucketNames) {
+    warmUpStep("components", () -> {
+      for (Supplier<?> component : ImmutableList.of(metadataStore, blobServer, asyncRetrieval,
+          admissionControl, uploader, archiveExtractor, uploadSessions, datasetProgress,
+          contentIndex, packedCoordinates, pointIndexes, spritesheetAssembler, spritesheetAtlas,
+          similaritySearch, tsneCoordinates)) {
+        component.get();
+      }
+    });
+    warmUpStep("classes", () -> {
+      // ImageIO scans for its plugins on first use
+      ImageIO.getImageReadersByFormatName("png").hasNext();
+      Gson gson = new Gson();
+      gson.getAdapter(SpritesheetAtlas.Manifest.class);
+      gson.getAdapter(PackedEmbeddings.Index.class);
+      Metadata.of("warmup", "warmup", "warmup", "warmup", 0, 0);
+    });
+    warmUpStep("datastore", () -> datastore.prepare(new Query("MetaData").setKeysOnly())
+        .asList(FetchOptions.Builder.withLimit(1)));
+    warmUpStep("storage", () -> {
+      for (String bucketName : bucketNames) {
+        storage.get(bucketName);
+      }
+    });
+    return startupTimings();
+  }
+
+  /** How long each client and component took to create or warm up, in milliseconds. */
+  public Map<String, Long> startupTimings() {
+    synchronized (startupMillis) {
+      return ImmutableMap.copyOf(startupMillis);
+    }
+  }
+
+  /**
+   * Stops the components' worker pools, giving running work a few seconds to finish.
+   */
+  public void shutdown() {
+    List<ExecutorService> stopping = new ArrayList<ExecutorService>(pools);
+    for (ExecutorService pool : stopping) {
+      pool.shutdown();
+    }
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_GRACE_SECONDS);
+      for (ExecutorService pool : stopping) {
+        if (!pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          pool.shutdownNow();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (ExecutorService pool : stopping) {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  void recordStartup(String name, long millis) {
+    synchronized (startupMillis) {
+      startupMillis.put(name, millis);
+    }
+  }
+
+  private <T> Supplier<T> component(String name, Supplier<T> factory) {
+    return Suppliers.memoize(() -> {
+      long start = System.nanoTime();
+      T component = factory.get();
+      recordStartup(name, millisSince(start));
+      return component;
+    });
+  }
+
+  private void warmUpStep(String name, Runnable step) {
+    long start = System.nanoTime();
+    try {
+      step.run();
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Warmup step " + name + " failed", e);
+    }
+    recordStartup("warmup-" + name, millisSince(start));
+  }
+
+  private static long millisSince(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+}
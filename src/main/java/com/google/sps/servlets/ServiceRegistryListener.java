@@ -0,0 +1,45 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.logging.Logger;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/** Creates the application's ServiceRegistry on startup and shuts it down on shutdown. */
+@WebListener
+public class ServiceRegistryListener implements ServletContextListener {
+
+  private static final Logger log = Logger.getLogger(ServiceRegistryListener.class.getName());
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    long start = System.nanoTime();
+    ServiceRegistry services = ServiceRegistry.get(event.getServletContext());
+    log.info("Services started in " + (System.nanoTime() - start) / 1000000 + " ms: "
+        + services.startupTimings());
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    ServiceRegistry services =
+        (ServiceRegistry) event.getServletContext().getAttribute(ServiceRegistry.ATTRIBUTE);
+    if (services != null) {
+      services.shutdown();
+      event.getServletContext().removeAttribute(ServiceRegistry.ATTRIBUTE);
+    }
+  }
+}
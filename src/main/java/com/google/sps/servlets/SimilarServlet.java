@@ -0,0 +1,117 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that returns the images of a dataset most similar to a given image.
+ *
+ * <p>Parameters: dataset, image (the uploaded file name), k (default 10) and optionally
+ * exact=true to skip the approximate index.
+ *
+ * <p>Responds with {"results": [{"image": .., "index": .., "score": ..}, ...]}, most similar
+ * first. index is the image's position in coordinates.json and the spritesheet; score is the
+ * cosine similarity of the two embeddings.
+ */
+@WebServlet("/similar")
+public class SimilarServlet extends HttpServlet {
+
+  // The bucket the embeddings are written to by extract_embedding
+  private static final String BUCKET_NAME = "embeddings_visualizer_output_bucket";
+
+  private static final int DEFAULT_K = 10;
+  private static final int MAX_K = 1000;
+
+  private UserService userService;
+
+  // Loaded datasets shared by every request on this instance
+  private SimilaritySearch search;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    search = services.similaritySearch();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // Get current user logged in to webapp
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    String datasetName = request.getParameter("dataset");
+    String imageName = request.getParameter("image");
+    if (datasetName == null || imageName == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "dataset and image are required");
+      return;
+    }
+
+    int k;
+    try {
+      k = request.getParameter("k") == null
+          ? DEFAULT_K : Integer.parseInt(request.getParameter("k"));
+    } catch (NumberFormatException e) {
+      k = -1;
+    }
+    if (k < 1 || k > MAX_K) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "k must be between 1 and " + MAX_K);
+      return;
+    }
+
+    String[] embeddingsFilePath = {userEmail, datasetName, "embeddings", ""};
+    SimilaritySearch.Index index;
+    try {
+      index = search.index(BUCKET_NAME,
+          SpritesheetRetrievalServlet.joinFilePaths(embeddingsFilePath));
+    } catch (SimilaritySearch.TooLargeException e) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+      return;
+    }
+    int row = index == null ? -1 : index.matrix().row(imageName);
+    if (row < 0) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    int[] similar;
+    try {
+      similar = index.similar(row, k, Boolean.parseBoolean(request.getParameter("exact")));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+
+    response.setContentType("application/json;");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("results").beginArray();
+    for (int other : similar) {
+      writer.beginObject()
+          .name("image").value(index.matrix().name(other))
+          .name("index").value(other)
+          .name("score").value(index.matrix().similarity(row, other))
+          .endObject();
+    }
+    writer.endArray().endObject();
+    writer.flush();
+  }
+}
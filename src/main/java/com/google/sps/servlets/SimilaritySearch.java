@@ -0,0 +1,191 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Finds the images most similar to a given image of a dataset, by cosine similarity of their
+ * embeddings.
+ *
+ * <p>On first use a dataset's packed embeddings (see PackedEmbeddings) are mapped as one
+ * EmbeddingMatrix, compacting the per-image .npy files first if needed.
+ * Datasets with at least exactThreshold images also get an HnswIndex, which answers in well
+ * under a millisecond; smaller ones (or callers asking for exact results) are scanned in full on
+ * the worker pool. Loaded datasets are cached up to maxBytes of matrices and graphs in total,
+ * and a dataset that wouldn't fit on its own is refused before anything is downloaded.
+ */
+public class SimilaritySearch {
+
+  static final String THREADS_PROPERTY = "similarity.threads";
+  static final String MAX_BYTES_PROPERTY = "similarity.max-bytes";
+  static final String EXACT_THRESHOLD_PROPERTY = "similarity.exact-threshold";
+  static final String EF_SEARCH_PROPERTY = "similarity.ef-search";
+  static final String TTL_PROPERTY = "similarity.ttl-seconds";
+  static final String CACHE_DIRECTORY_PROPERTY = "similarity.cache-directory";
+
+  private static final int DEFAULT_THREADS = 8;
+  private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+  private static final int DEFAULT_EXACT_THRESHOLD = 20000;
+  private static final int DEFAULT_EF_SEARCH = 64;
+  private static final long DEFAULT_TTL_SECONDS = 600;
+
+  private static final Logger log = Logger.getLogger(SimilaritySearch.class.getName());
+
+  private final PackedEmbeddings packedEmbeddings;
+  private final ExecutorService executor;
+  private final long maxBytes;
+  private final int exactThreshold;
+  private final int efSearch;
+  private final Cache<BlobId, Index> indexes;
+
+  public SimilaritySearch(Storage storage, ExecutorService executor, Path cacheDirectory,
+      long maxBytes, int exactThreshold, int efSearch, long ttlMillis) {
+    this.packedEmbeddings = new PackedEmbeddings(storage, executor, cacheDirectory);
+    this.executor = executor;
+    this.maxBytes = maxBytes;
+    this.exactThreshold = exactThreshold;
+    this.efSearch = efSearch;
+    // Weighed in KiB so datasets over 2GiB can't overflow the weight
+    this.indexes = CacheBuilder.newBuilder()
+        .maximumWeight(Math.max(1, maxBytes / 1024))
+        .<BlobId, Index>weigher((key, index) -> (int) Math.max(1, index.bytes() / 1024))
+        .expireAfterAccess(ttlMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Creates a search service with a worker pool managed by the registry, configured through the
+   * similarity.* system properties set in appengine-web.xml.
+   */
+  public static SimilaritySearch fromSystemProperties(ServiceRegistry services) {
+    ExecutorService executor = services.manage(Executors.newFixedThreadPool(
+        Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+        new ThreadFactoryBuilder().setNameFormat("similarity-%d").setDaemon(true).build()));
+    Path cacheDirectory = Paths.get(System.getProperty(CACHE_DIRECTORY_PROPERTY,
+        Paths.get(System.getProperty("java.io.tmpdir"), "embeddings").toString()));
+    return new SimilaritySearch(services.storage(), executor, cacheDirectory,
+        Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+        Integer.getInteger(EXACT_THRESHOLD_PROPERTY, DEFAULT_EXACT_THRESHOLD),
+        Integer.getInteger(EF_SEARCH_PROPERTY, DEFAULT_EF_SEARCH),
+        TimeUnit.SECONDS.toMillis(Long.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS)));
+  }
+
+  /**
+   * Returns the index of the embeddings under embeddingsPrefix, loading it first if needed, or
+   * null if there are none.
+   */
+  public Index index(String bucket, String embeddingsPrefix) throws IOException {
+    BlobId key = BlobId.of(bucket, embeddingsPrefix);
+    try {
+      return indexes.get(key, () -> load(bucket, embeddingsPrefix));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof FileNotFoundException) {
+        return null;
+      }
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause() : new IOException(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private Index load(String bucket, String prefix) throws Exception {
+    PackedEmbeddings.Source source = packedEmbeddings.describe(bucket, prefix);
+    if (source == null) {
+      throw new FileNotFoundException(prefix);
+    }
+    long estimate = estimateBytes(source.rows(), source.dimension());
+    if (estimate > maxBytes) {
+      throw new TooLargeException(prefix + " needs about " + estimate + " bytes, limit is "
+          + maxBytes);
+    }
+
+    long start = System.nanoTime();
+    boolean compacted = source.needsCompaction();
+    EmbeddingMatrix matrix = packedEmbeddings.open(source);
+    HnswIndex graph = matrix.size() < exactThreshold ? null : HnswIndex.build(
+        matrix, HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION, executor);
+    log.info("Loaded " + matrix.size() + " embeddings from " + prefix
+        + (compacted ? " after compacting them" : "") + " in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    return new Index(matrix, graph, executor, efSearch);
+  }
+
+  /** Upper bound on the memory needed for a dataset, including its graph if it gets one. */
+  long estimateBytes(int count, int dimension) {
+    long bytes = 4L * count * dimension + 64L * count;
+    if (count >= exactThreshold) {
+      // Level 0 links and counts, plus an allowance for the upper levels
+      bytes += 4L * count * (2 * HnswIndex.DEFAULT_M + 4);
+    }
+    return bytes;
+  }
+
+  /** A loaded dataset. */
+  public static final class Index {
+    private final EmbeddingMatrix matrix;
+    private final HnswIndex graph;
+    private final ExecutorService executor;
+    private final int efSearch;
+
+    Index(EmbeddingMatrix matrix, HnswIndex graph, ExecutorService executor, int efSearch) {
+      this.matrix = matrix;
+      this.graph = graph;
+      this.executor = executor;
+      this.efSearch = efSearch;
+    }
+
+    public EmbeddingMatrix matrix() {
+      return matrix;
+    }
+
+    /**
+     * Returns the k rows most similar to the given row, most similar first. Uses the graph
+     * unless exact is set or the dataset is too small to have one.
+     */
+    public int[] similar(int row, int k, boolean exact) throws InterruptedException {
+      if (exact || graph == null) {
+        return matrix.nearest(row, k, executor);
+      }
+      return graph.nearest(row, k, Math.max(efSearch, k));
+    }
+
+    long bytes() {
+      return matrix.bytes() + (graph == null ? 0 : graph.bytes());
+    }
+  }
+
+  /** Thrown for datasets too large to be searched within the memory limit. */
+  public static class TooLargeException extends IOException {
+    TooLargeException(String message) {
+      super(message);
+    }
+  }
+}
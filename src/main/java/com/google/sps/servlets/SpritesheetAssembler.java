@@ -0,0 +1,355 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+ * Builds a dataset's spritesheet.png from its thumbnails as a grid of cellSize squares,
+ * replacing create_spritesheet's repeated np.concatenate.
+ *
+ * <p>Thumbnails are taken in name order, the same order the coordinates use, and laid out left
+ * to right, top to bottom in ceil(sqrt(n)) columns; each is scaled to fit its cell and
+ * centered in it. The sheet is streamed out one row of cells at a time: the
+ * thumbnails of the next row are fetched and decoded on the worker pool while the current row
+ * is encoded, so only two rows of cells are ever in memory.
+ *
+ * <p>The sheet is written with a does-not-exist precondition, so of several instances building
+ * the same sheet only the first one's is kept. Next to it, spritesheet-index.json lists the
+ * thumbnail of every cell. Once images have been appended to the dataset, update() rewrites the
+ * sheet from that index: the cells of thumbnails it lists are copied out of the old sheet as it
+ * streams in, and only the new thumbnails are fetched, so the GCS reads scale with the number of
+ * new images rather than with the size of the dataset.
+ */
+public class SpritesheetAssembler {
+
+  static final String THREADS_PROPERTY = "spritesheet.threads";
+  static final String CELL_SIZE_PROPERTY = "spritesheet.cell-size";
+
+  private static final int DEFAULT_THREADS = 8;
+  // Thumbnails are created at most 64px on a side
+  private static final int DEFAULT_CELL_SIZE = 64;
+  private static final int PRECONDITION_FAILED = 412;
+  private static final Gson GSON = new Gson();
+  private static final String BUILD_METADATA = "build";
+
+  private final Storage storage;
+  private final ExecutorService executor;
+  private final int cellSize;
+
+  public SpritesheetAssembler(Storage storage, ExecutorService executor, int cellSize) {
+    this.storage = storage;
+    this.executor = executor;
+    this.cellSize = cellSize;
+  }
+
+  /**
+   * Creates an assembler with a worker pool managed by the registry, configured through the
+   * spritesheet.* system properties set in appengine-web.xml.
+   */
+  public static SpritesheetAssembler fromSystemProperties(ServiceRegistry services) {
+    ExecutorService executor = services.manage(Executors.newFixedThreadPool(
+        Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS),
+        new ThreadFactoryBuilder().setNameFormat("spritesheet-%d").setDaemon(true).build()));
+    return new SpritesheetAssembler(
+        services.storage(), executor, Integer.getInteger(CELL_SIZE_PROPERTY, DEFAULT_CELL_SIZE));
+  }
+
+  /**
+   * Writes the spritesheet of the thumbnails under thumbnailPrefix to sheetId and returns its
+   * layout. Like create_spritesheet, nothing is built and null is returned while fewer than
+   * expectedImages thumbnails exist.
+   */
+  public Layout build(String thumbnailBucket, String thumbnailPrefix, BlobId sheetId,
+      long expectedImages) throws IOException, InterruptedException {
+    List<String> thumbnails =
+        SpritesheetAtlas.listThumbnails(storage, thumbnailBucket, thumbnailPrefix);
+    if (thumbnails.isEmpty() || thumbnails.size() < expectedImages) {
+      return null;
+    }
+    return write(thumbnailBucket, thumbnails, BlobInfo.newBuilder(sheetId).build(), null);
+  }
+
+  /**
+   * Brings the spritesheet at sheetId up to date with the thumbnails under thumbnailPrefix and
+   * returns its layout. Cells of thumbnails the current sheet's index lists are copied from it,
+   * and only the others are fetched; without a usable index the sheet is built from scratch.
+   * Returns null while fewer than expectedImages thumbnails exist.
+   */
+  public Layout update(String thumbnailBucket, String thumbnailPrefix, BlobId sheetId,
+      long expectedImages) throws IOException, InterruptedException {
+    List<String> thumbnails =
+        SpritesheetAtlas.listThumbnails(storage, thumbnailBucket, thumbnailPrefix);
+    if (thumbnails.isEmpty() || thumbnails.size() < expectedImages) {
+      return null;
+    }
+    Blob current = storage.get(sheetId);
+    if (current == null) {
+      return write(thumbnailBucket, thumbnails, BlobInfo.newBuilder(sheetId).build(), null);
+    }
+    Index index = readIndex(current);
+    if (index != null && index.names.equals(thumbnails)) {
+      return layout(thumbnails.size(), cellSize);
+    }
+    // Replaces exactly the sheet the index was read for, so of several instances updating it
+    // only the first one's is kept
+    BlobInfo replacing = BlobInfo.newBuilder(current.getBlobId()).build();
+    if (index == null) {
+      return write(thumbnailBucket, thumbnails, replacing, null);
+    }
+    try (PngStreamReader previous =
+        new PngStreamReader(Channels.newInputStream(current.reader()))) {
+      return write(thumbnailBucket, thumbnails, replacing, new PreviousSheet(index, previous));
+    }
+  }
+
+  /**
+   * Writes the sheet of the thumbnails and then its index, with a does-not-exist precondition
+   * if info has no generation and a generation-match one if it does. Cells of thumbnails the
+   * previous sheet has are copied from it instead of being fetched.
+   */
+  private Layout write(String thumbnailBucket, List<String> thumbnails, BlobInfo sheet,
+      PreviousSheet previous) throws IOException, InterruptedException {
+    Layout layout = layout(thumbnails.size(), cellSize);
+    int width = layout.columns * cellSize;
+
+    // Ties the index to this sheet, should another instance replace the sheet before the index
+    // is written
+    String build = UUID.randomUUID().toString();
+    BlobInfo info = sheet.toBuilder()
+        .setContentType("image/png")
+        .setMetadata(ImmutableMap.of("columns", String.valueOf(layout.columns),
+            "cell-size", String.valueOf(cellSize), BUILD_METADATA, build))
+        .build();
+    Storage.BlobWriteOption precondition = sheet.getGeneration() == null
+        ? Storage.BlobWriteOption.doesNotExist() : Storage.BlobWriteOption.generationMatch();
+    int[] band = new int[width * cellSize];
+    List<Future<BufferedImage>> next =
+        decodeRow(thumbnailBucket, thumbnails, 0, layout, previous);
+    // A sheet that fails halfway is never closed, so the unfinished upload is discarded
+    try (PngStreamWriter png = new PngStreamWriter(Channels.newOutputStream(
+        storage.writer(info, precondition)), width, layout.rows * cellSize)) {
+      for (int row = 0; row < layout.rows; row++) {
+        List<Future<BufferedImage>> current = next;
+        next = row + 1 < layout.rows
+            ? decodeRow(thumbnailBucket, thumbnails, row + 1, layout, previous)
+            : Collections.<Future<BufferedImage>>emptyList();
+
+        Arrays.fill(band, 0);
+        for (int column = 0; column < current.size(); column++) {
+          if (current.get(column) == null) {
+            previous.copyCell(thumbnails.get(row * layout.columns + column), band,
+                column * cellSize, width);
+            continue;
+          }
+          BufferedImage cell = await(current.get(column));
+          int x = column * cellSize + (cellSize - cell.getWidth()) / 2;
+          int y = (cellSize - cell.getHeight()) / 2;
+          cell.getRGB(0, 0, cell.getWidth(), cell.getHeight(), band, y * width + x, width);
+        }
+        for (int line = 0; line < cellSize; line++) {
+          png.writeRow(band, line * width);
+        }
+      }
+    } catch (StorageException e) {
+      if (e.getCode() != PRECONDITION_FAILED) {
+        throw e;
+      }
+      // Another instance wrote the sheet first
+      return layout;
+    } finally {
+      for (Future<BufferedImage> future : next) {
+        if (future != null) {
+          future.cancel(true);
+        }
+      }
+    }
+    writeIndex(sheet.getBlobId(), build, layout, thumbnails);
+    return layout;
+  }
+
+  /** Works out the grid for a number of thumbnails. */
+  static Layout layout(int imageCount, int cellSize) {
+    Layout layout = new Layout();
+    layout.imageCount = imageCount;
+    layout.cellSize = cellSize;
+    layout.columns = Math.max(1, (int) Math.ceil(Math.sqrt(imageCount)));
+    layout.rows = Math.max(1, (imageCount + layout.columns - 1) / layout.columns);
+    return layout;
+  }
+
+  /** The name of the index written next to a sheet: spritesheet.png has spritesheet-index.json. */
+  static String indexName(String sheetName) {
+    int extension = sheetName.lastIndexOf('.');
+    return (extension < 0 ? sheetName : sheetName.substring(0, extension)) + "-index.json";
+  }
+
+  /**
+   * Starts fetching and decoding the thumbnails of one row of the grid. Cells the previous
+   * sheet has are left null, to be copied from it.
+   */
+  private List<Future<BufferedImage>> decodeRow(String bucket, List<String> thumbnails, int row,
+      Layout layout, PreviousSheet previous) {
+    List<Future<BufferedImage>> cells = new ArrayList<Future<BufferedImage>>();
+    int end = Math.min(thumbnails.size(), (row + 1) * layout.columns);
+    for (int image = row * layout.columns; image < end; image++) {
+      String name = thumbnails.get(image);
+      if (previous != null && previous.contains(name)) {
+        cells.add(null);
+        continue;
+      }
+      cells.add(executor.submit(() -> {
+        BufferedImage thumbnail = ImageIO.read(
+            new ByteArrayInputStream(storage.readAllBytes(bucket, name)));
+        if (thumbnail == null) {
+          throw new IOException("Not a readable image: " + name);
+        }
+        return SpritesheetAtlas.mipChain(thumbnail, cellSize, 1)[0];
+      }));
+    }
+    return cells;
+  }
+
+  private static BufferedImage await(Future<BufferedImage> future)
+      throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException
+          ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Reads the index of a sheet, or returns null if it is missing, was written for another
+   * build of the sheet or for another cell size.
+   */
+  private Index readIndex(Blob sheet) throws IOException {
+    Blob blob = storage.get(BlobId.of(sheet.getBucket(), indexName(sheet.getName())));
+    if (blob == null) {
+      return null;
+    }
+    Index index = GSON.fromJson(
+        new String(blob.getContent(), StandardCharsets.UTF_8), Index.class);
+    String build = sheet.getMetadata() == null ? null : sheet.getMetadata().get(BUILD_METADATA);
+    return index == null || index.names == null || index.cellSize != cellSize
+        || build == null || !build.equals(index.sheetBuild)
+        || index.columns != layout(index.names.size(), cellSize).columns ? null : index;
+  }
+
+  private void writeIndex(BlobId sheetId, String build, Layout layout,
+      List<String> thumbnails) {
+    Index index = new Index();
+    index.sheetBuild = build;
+    index.cellSize = cellSize;
+    index.columns = layout.columns;
+    index.names = thumbnails;
+    storage.create(BlobInfo.newBuilder(sheetId.getBucket(), indexName(sheetId.getName()))
+        .setContentType("application/json").build(),
+        GSON.toJson(index).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** What spritesheet-index.json records about a sheet, serialized with Gson. */
+  static class Index {
+    String sheetBuild;
+    int cellSize;
+    int columns;
+    List<String> names;
+  }
+
+  /**
+   * The sheet being replaced, read a band of cells at a time. Both sheets are in name order, so
+   * the cells to copy are read in the order they are stored.
+   */
+  private final class PreviousSheet {
+    private final List<String> names;
+    private final Set<String> contained;
+    private final PngStreamReader png;
+    private final int columns;
+    private final int width;
+    private final int[] band;
+    private int bandRow = -1;
+    private int cell;
+
+    PreviousSheet(Index index, PngStreamReader png) throws IOException {
+      this.names = index.names;
+      this.contained = new HashSet<String>(index.names);
+      this.png = png;
+      this.columns = index.columns;
+      this.width = columns * cellSize;
+      this.band = new int[width * cellSize];
+      if (png.width() != width) {
+        throw new IOException("Spritesheet doesn't match its index");
+      }
+    }
+
+    boolean contains(String name) {
+      return contained.contains(name);
+    }
+
+    /** Copies the named thumbnail's cell to x in a band of the new sheet, width pixels wide. */
+    void copyCell(String name, int[] target, int x, int targetWidth) throws IOException {
+      // Thumbnails removed since the old sheet was written are passed over
+      while (!names.get(cell).equals(name)) {
+        cell++;
+      }
+      int row = cell / columns;
+      while (bandRow < row) {
+        for (int line = 0; line < cellSize; line++) {
+          png.readRow(band, line * width);
+        }
+        bandRow++;
+      }
+      int column = cell % columns;
+      for (int line = 0; line < cellSize; line++) {
+        System.arraycopy(band, line * width + column * cellSize, target,
+            line * targetWidth + x, cellSize);
+      }
+      cell++;
+    }
+  }
+
+  /** The grid a spritesheet was built with. */
+  public static class Layout {
+    int imageCount;
+    int cellSize;
+    int columns;
+    int rows;
+  }
+}
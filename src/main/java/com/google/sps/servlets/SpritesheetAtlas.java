@@ -0,0 +1,275 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Lays a dataset's thumbnails out as a set of square, fixed-size texture tiles with lower
+ * resolution mip levels, plus a JSON manifest describing the layout.
+ *
+ * <p>At level 0 every thumbnail gets a cellSize square cell; each further level halves the cell
+ * size, so a tile of the same pixel size holds four times as many thumbnails. Within a level,
+ * thumbnail i is in tile i / imagesPerTile, at slot i % imagesPerTile counted left to right,
+ * top to bottom. Thumbnails are taken in name order, the same order the coordinates use.
+ *
+ * <p>Tiles are written as atlas/&lt;level&gt;/&lt;tile&gt;.png next to the spritesheet, and
+ * the manifest as atlas/manifest.json. The manifest is tagged with the generation of the
+ * dataset's Metadata it was built for, so the atlas can be rebuilt once images are appended.
+ */
+public class SpritesheetAtlas {
+
+  static final String ATLAS_FOLDER_NAME = "atlas";
+  static final String MANIFEST_NAME = "manifest.json";
+  static final String GENERATION = "dataset-generation";
+  static final String CELL_SIZE_PROPERTY = "atlas.cell-size";
+  static final String TILE_SIZE_PROPERTY = "atlas.tile-size";
+
+  // Thumbnails are at most 64px, and 2048px textures are supported by practically every GPU
+  private static final int DEFAULT_CELL_SIZE = 64;
+  private static final int DEFAULT_TILE_SIZE = 2048;
+
+  private static final Gson GSON = new Gson();
+
+  private final Storage storage;
+  private final int cellSize;
+  private final int tileSize;
+
+  public SpritesheetAtlas(Storage storage, int cellSize, int tileSize) {
+    if (tileSize % cellSize != 0) {
+      throw new IllegalArgumentException("The tile size must be a multiple of the cell size");
+    }
+    this.storage = storage;
+    this.cellSize = cellSize;
+    this.tileSize = tileSize;
+  }
+
+  /**
+   * Creates an atlas builder configured through the atlas.* system properties set in
+   * appengine-web.xml.
+   */
+  public static SpritesheetAtlas fromSystemProperties(Storage storage) {
+    return new SpritesheetAtlas(storage,
+        Integer.getInteger(CELL_SIZE_PROPERTY, DEFAULT_CELL_SIZE),
+        Integer.getInteger(TILE_SIZE_PROPERTY, DEFAULT_TILE_SIZE));
+  }
+
+  /**
+   * Builds every tile and the manifest for the thumbnails under thumbnailPrefix, writing them
+   * under atlasPrefix, tagging the manifest with the dataset's generation, and returns the
+   * manifest. Like create_spritesheet, nothing is built and null is returned while fewer than
+   * expectedImages thumbnails exist.
+   */
+  public Manifest build(String thumbnailBucket, String thumbnailPrefix, String atlasBucket,
+      String atlasPrefix, long expectedImages, long generation) throws IOException {
+    List<String> thumbnails = listThumbnails(storage, thumbnailBucket, thumbnailPrefix);
+    if (thumbnails.isEmpty() || thumbnails.size() < expectedImages) {
+      return null;
+    }
+    Manifest manifest = layout(thumbnails, cellSize, tileSize);
+
+    // One open tile per level; a tile is written out as soon as its last cell is filled
+    int levels = manifest.levels.size();
+    BufferedImage[] tiles = new BufferedImage[levels];
+
+    for (int image = 0; image < thumbnails.size(); image++) {
+      BufferedImage[] mips = mipChain(
+          readImage(BlobId.of(thumbnailBucket, thumbnails.get(image))), cellSize, levels);
+
+      for (int level = 0; level < levels; level++) {
+        Level layout = manifest.levels.get(level);
+        int slot = image % layout.imagesPerTile;
+        if (tiles[level] == null) {
+          tiles[level] = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        }
+        drawCentered(tiles[level], mips[level], (slot % layout.columns) * layout.cellSize,
+            (slot / layout.columns) * layout.cellSize, layout.cellSize);
+
+        if (slot == layout.imagesPerTile - 1 || image == thumbnails.size() - 1) {
+          writeTile(BlobId.of(atlasBucket,
+              tileName(atlasPrefix, level, image / layout.imagesPerTile)), tiles[level]);
+          tiles[level] = null;
+        }
+      }
+    }
+
+    byte[] json = GSON.toJson(manifest).getBytes(StandardCharsets.UTF_8);
+    BlobInfo manifestInfo = BlobInfo.newBuilder(BlobId.of(atlasBucket, manifestName(atlasPrefix)))
+        .setContentType("application/json")
+        .setMetadata(ImmutableMap.of(GENERATION, String.valueOf(generation)))
+        .build();
+    try (WriteChannel writer = storage.writer(manifestInfo)) {
+      writer.write(ByteBuffer.wrap(json));
+    }
+    return manifest;
+  }
+
+  /**
+   * Works out the levels for a list of thumbnails. Levels are added until one tile holds every
+   * thumbnail or cells can't shrink any further.
+   */
+  static Manifest layout(List<String> thumbnails, int cellSize, int tileSize) {
+    Manifest manifest = new Manifest();
+    manifest.imageCount = thumbnails.size();
+    manifest.tileSize = tileSize;
+    manifest.images = thumbnails;
+
+    for (int level = 0, levelCellSize = cellSize; levelCellSize >= 1; level++) {
+      Level layout = new Level();
+      layout.level = level;
+      layout.cellSize = levelCellSize;
+      layout.columns = tileSize / levelCellSize;
+      layout.imagesPerTile = layout.columns * layout.columns;
+      layout.tileCount = Math.max(1,
+          (thumbnails.size() + layout.imagesPerTile - 1) / layout.imagesPerTile);
+      manifest.levels.add(layout);
+
+      if (layout.tileCount == 1 || levelCellSize % 2 != 0) {
+        break;
+      }
+      levelCellSize /= 2;
+    }
+    return manifest;
+  }
+
+  /**
+   * Scales a thumbnail to fit a cellSize square, then halves it once per further level. Each
+   * step halves with bilinear filtering, which averages the 2x2 block it replaces.
+   */
+  static BufferedImage[] mipChain(BufferedImage thumbnail, int cellSize, int levels) {
+    BufferedImage[] mips = new BufferedImage[levels];
+    double scale = Math.min(
+        (double) cellSize / thumbnail.getWidth(), (double) cellSize / thumbnail.getHeight());
+    mips[0] = scale == 1 ? thumbnail : resize(thumbnail,
+        Math.max(1, (int) Math.round(thumbnail.getWidth() * scale)),
+        Math.max(1, (int) Math.round(thumbnail.getHeight() * scale)));
+    for (int level = 1; level < levels; level++) {
+      BufferedImage previous = mips[level - 1];
+      mips[level] = resize(previous,
+          Math.max(1, previous.getWidth() / 2), Math.max(1, previous.getHeight() / 2));
+    }
+    return mips;
+  }
+
+  /** Names a tile's object, e.g. user/dataset/atlas/1/3.png. */
+  static String tileName(String atlasPrefix, int level, int tile) {
+    return atlasPrefix + ATLAS_FOLDER_NAME + "/" + level + "/" + tile + ".png";
+  }
+
+  /**
+   * Returns the dataset generation a manifest was built for. Manifests written before they
+   * were tagged were built for the first.
+   */
+  static long generationOf(Blob manifest) {
+    String generation = manifest.getMetadata() == null ? null
+        : manifest.getMetadata().get(GENERATION);
+    return generation == null ? 1 : Long.parseLong(generation);
+  }
+
+  /** Names the manifest's object, e.g. user/dataset/atlas/manifest.json. */
+  static String manifestName(String atlasPrefix) {
+    return atlasPrefix + ATLAS_FOLDER_NAME + "/" + MANIFEST_NAME;
+  }
+
+  /** Lists the thumbnails under prefix in name order, the order the coordinates use. */
+  static List<String> listThumbnails(Storage storage, String bucket, String prefix) {
+    List<String> names = new ArrayList<String>();
+    Page<Blob> blobs = storage.list(bucket, Storage.BlobListOption.prefix(prefix));
+    for (Blob blob : blobs.iterateAll()) {
+      // Skip folder placeholders, as create_spritesheet does
+      if (blob.getName().substring(prefix.length()).contains(".")) {
+        names.add(blob.getName());
+      }
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private BufferedImage readImage(BlobId blobId) throws IOException {
+    try (ReadChannel reader = storage.reader(blobId);
+        InputStream inputStream = Channels.newInputStream(reader)) {
+      BufferedImage image = ImageIO.read(inputStream);
+      if (image == null) {
+        throw new IOException("Not a readable image: " + blobId.getName());
+      }
+      return image;
+    }
+  }
+
+  private void writeTile(BlobId blobId, BufferedImage tile) throws IOException {
+    BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType("image/png").build();
+    try (WriteChannel writer = storage.writer(blobInfo);
+        OutputStream outputStream = Channels.newOutputStream(writer)) {
+      ImageIO.write(tile, "png", outputStream);
+    }
+  }
+
+  private static BufferedImage resize(BufferedImage image, int width, int height) {
+    BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D graphics = resized.createGraphics();
+    graphics.setRenderingHint(
+        RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    graphics.drawImage(image, 0, 0, width, height, null);
+    graphics.dispose();
+    return resized;
+  }
+
+  private static void drawCentered(BufferedImage tile, BufferedImage image, int x, int y,
+      int size) {
+    Graphics2D graphics = tile.createGraphics();
+    graphics.drawImage(image, x + (size - image.getWidth()) / 2,
+        y + (size - image.getHeight()) / 2, null);
+    graphics.dispose();
+  }
+
+  /** The atlas manifest, serialized to manifest.json. */
+  public static class Manifest {
+    int version = 1;
+    int imageCount;
+    int tileSize;
+    List<Level> levels = new ArrayList<Level>();
+    List<String> images;
+  }
+
+  /** The layout of one mip level. */
+  public static class Level {
+    int level;
+    int cellSize;
+    int columns;
+    int imagesPerTile;
+    int tileCount;
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.common.util.concurrent.Striped;
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that serves a dataset's spritesheet as an atlas of fixed-size tiles, see
+ * SpritesheetAtlas for the layout.
+ *
+ * <p>With only the dataset parameter it responds with the manifest, building the atlas from the
+ * thumbnails first if it doesn't exist yet or was built for an earlier generation of the
+ * dataset. With level and tile it responds with that tile's PNG.
+ */
+@WebServlet("/spritesheet-atlas")
+public class SpritesheetAtlasServlet extends HttpServlet {
+
+  // The bucket the thumbnails are written to by create_thumbnail
+  private static final String THUMBNAIL_BUCKET_NAME = "embeddings_visualizer_output_bucket";
+
+  // The ID of your GCS bucket
+  private static final String BUCKET_NAME = "spritesheet_json";
+
+  // Stops concurrent manifest requests for the same dataset from building its atlas twice
+  private static final Striped<Lock> BUILD_LOCKS = Striped.lock(64);
+
+  private static final Logger log = Logger.getLogger(SpritesheetAtlasServlet.class.getName());
+
+  private UserService userService;
+
+  // Shared MetadataStore instance, see ServiceRegistry
+  private MetadataStore datastoreStorage;
+
+  private Storage storage;
+
+  private SpritesheetAtlas atlas;
+
+  // Serves the tiles and manifest with ETag, Last-Modified and Range support
+  private ConditionalBlobServer blobServer;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    datastoreStorage = services.metadataStore();
+    storage = services.storage();
+    atlas = services.spritesheetAtlas();
+    blobServer = services.blobServer();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // Get current user logged in to webapp
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    // Get the name of the dataset they want to visualize
+    String datasetName = request.getParameter("dataset");
+    String atlasPrefix = userEmail + "/" + datasetName + "/";
+
+    String level = request.getParameter("level");
+    String tile = request.getParameter("tile");
+    if (level == null && tile == null) {
+      serveManifest(userEmail, datasetName, atlasPrefix, request, response);
+      return;
+    }
+
+    int levelIndex;
+    int tileIndex;
+    try {
+      levelIndex = Integer.parseInt(String.valueOf(level));
+      tileIndex = Integer.parseInt(String.valueOf(tile));
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "level and tile must be integers");
+      return;
+    }
+    if (levelIndex < 0 || tileIndex < 0) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "level and tile can't be negative");
+      return;
+    }
+
+    blobServer.serve(
+        BlobId.of(BUCKET_NAME, SpritesheetAtlas.tileName(atlasPrefix, levelIndex, tileIndex)),
+        request, response);
+  }
+
+  private void serveManifest(String userEmail, String datasetName, String atlasPrefix,
+      HttpServletRequest request, HttpServletResponse response) throws IOException {
+    BlobId manifestId = BlobId.of(BUCKET_NAME, SpritesheetAtlas.manifestName(atlasPrefix));
+
+    Lock lock = BUILD_LOCKS.get(manifestId);
+    lock.lock();
+    try {
+      Metadata metadata = datastoreStorage.retrieveMetadata(datasetName, userEmail);
+      Blob manifest = storage.get(manifestId);
+      boolean built = manifest != null;
+      if (metadata != null && (manifest == null
+          || SpritesheetAtlas.generationOf(manifest) < metadata.generation())) {
+        String[] thumbnailPaths = {userEmail, datasetName, "thumbnails", ""};
+        log.info("Building atlas for " + atlasPrefix + " generation " + metadata.generation());
+        // Until an append's thumbnails have all been created, the earlier atlas is served
+        built |= atlas.build(THUMBNAIL_BUCKET_NAME,
+            SpritesheetRetrievalServlet.joinFilePaths(thumbnailPaths), BUCKET_NAME, atlasPrefix,
+            metadata.numberOfImages(), metadata.generation()) != null;
+      }
+      if (!built) {
+        // Unknown dataset, or its thumbnails haven't all been created yet
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    blobServer.serve(manifestId, request, response);
+  }
+}
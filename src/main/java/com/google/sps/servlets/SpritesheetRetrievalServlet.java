@@ -14,9 +14,6 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.blobstore.BlobstoreService;
-import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
@@ -24,10 +21,14 @@ import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.common.util.concurrent.Striped;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 import com.google.gson.Gson;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -38,35 +39,97 @@ import javax.servlet.ServletException;
 import com.google.common.base.Joiner; 
 
 /** Servlet that returns some example content. TODO: modify this file to handle comments data */
-@WebServlet("/spritesheet-retrieval")
+@WebServlet(urlPatterns = "/spritesheet-retrieval", asyncSupported = true)
 public class SpritesheetRetrievalServlet extends HttpServlet {
    
+  // The bucket the thumbnails are written to by create_thumbnail
+  private static final String THUMBNAIL_BUCKET_NAME = "embeddings_visualizer_output_bucket";
+
   // The ID of your GCS bucket
-  private static final String BUCKET_NAME = "spritesheet_json";
+  static final String BUCKET_NAME = "spritesheet_json";
+
+  // Stops concurrent requests for the same dataset from building its spritesheet twice
+  private static final Striped<Lock> BUILD_LOCKS = Striped.lock(64);
+
   private static final Logger log = Logger.getLogger(SpritesheetRetrievalServlet.class.getName());
 
+  private UserService userService;
+
+  // Shared MetadataStore instance, see ServiceRegistry
+  private MetadataStore datastoreStorage;
+
+  private Storage storage;
+
+  private SpritesheetAssembler assembler;
+
+  // Serves the file with ETag, Last-Modified and Range support
+  private ConditionalBlobServer blobServer;
+
+  // Shared I/O pool for retrieval requests, see AsyncRetrieval for configuration
+  private AsyncRetrieval asyncRetrieval;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    datastoreStorage = services.metadataStore();
+    storage = services.storage();
+    assembler = services.spritesheetAssembler();
+    blobServer = services.blobServer();
+    asyncRetrieval = services.asyncRetrieval();
+  }
+
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
 
     // Get current user logged in to webapp 
-    UserService userService = UserServiceFactory.getUserService();
     String userEmail = userService.getCurrentUser().getEmail();
     
     // Get the name of the dataset they want to visualize
     String datasetName = request.getParameter("dataset"); 
 
-    String[] spritesheetFilePaths = {BUCKET_NAME, userEmail, datasetName, "spritesheets", "spritesheet.png"}; 
+    String[] spritesheetFilePaths = {userEmail, datasetName, "spritesheets", "spritesheet.png"}; 
     String userSpritesheetFilePath = joinFilePaths(spritesheetFilePaths);
 
-    log.info("OH HAI THAR! Downloading: " + userSpritesheetFilePath);
+    log.info("OH HAI THAR! Downloading: " + BUCKET_NAME + "/" + userSpritesheetFilePath);
+
+    // Building the sheet and looking up the object happen on the I/O pool
+    asyncRetrieval.serve(request, response, () -> {
+      try {
+        BlobId blobId = BlobId.of(BUCKET_NAME, userSpritesheetFilePath);
+        if (!ensureBuilt(blobId, userEmail, datasetName)) {
+          // Unknown dataset, or its thumbnails haven't all been created yet
+          response.sendError(HttpServletResponse.SC_NOT_FOUND);
+          return null;
+        }
+        blobServer.serve(blobId, request, response);
+        log.info("KTHNXBAI" + userSpritesheetFilePath);
+      } catch(IOException e) {
+        log.info(e.toString());
+      }
+      return null;
+    });
+  }
 
+  /** Builds the spritesheet from the dataset's thumbnails unless it exists already. */
+  private boolean ensureBuilt(BlobId blobId, String userEmail, String datasetName)
+      throws IOException {
+    Lock lock = BUILD_LOCKS.get(blobId);
+    lock.lock();
     try {
-      BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-      BlobKey blobKey = blobstoreService.createGsBlobKey("/gs/" + userSpritesheetFilePath);
-      blobstoreService.serve(blobKey, response);
-      log.info("KTHNXBAI" + userSpritesheetFilePath);
-    } catch(IOException e) {
-      log.info(e.toString());
+      if (storage.get(blobId) != null) {
+        return true;
+      }
+      Metadata metadata = datastoreStorage.retrieveMetadata(datasetName, userEmail);
+      String[] thumbnailPaths = {userEmail, datasetName, "thumbnails", ""};
+      log.info("Building spritesheet for " + blobId.getName());
+      return metadata != null && assembler.build(THUMBNAIL_BUCKET_NAME,
+          joinFilePaths(thumbnailPaths), blobId, metadata.numberOfImages()) != null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      lock.unlock();
     }
   }
 
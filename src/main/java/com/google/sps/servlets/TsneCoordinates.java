@@ -0,0 +1,198 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Computes a dataset's coordinates.json from its embeddings with BarnesHutTsne, as an
+ * alternative to the tsne_embedding Cloud Function.
+ *
+ * <p>The document keeps tsne_embedding's {"points": [{"x": .., "y": .., "z": ..}, ...]} layout,
+ * in the same row order, so CoordinatesRetrievalServlet and PackedCoordinates read it
+ * unchanged. Each point also records the image it belongs to as "name"; an incremental run uses
+ * those to keep every image that already has a position where it is and place only the new
+ * ones.
+ */
+public class TsneCoordinates {
+
+  static final String THREADS_PROPERTY = "tsne.threads";
+  static final String PERPLEXITY_PROPERTY = "tsne.perplexity";
+  static final String THETA_PROPERTY = "tsne.theta";
+  static final String ITERATIONS_PROPERTY = "tsne.iterations";
+  static final String CACHE_DIRECTORY_PROPERTY = "tsne.cache-directory";
+
+  private static final Logger log = Logger.getLogger(TsneCoordinates.class.getName());
+
+  private final Storage storage;
+  private final PackedEmbeddings packedEmbeddings;
+  private final BarnesHutTsne tsne;
+
+  public TsneCoordinates(Storage storage, PackedEmbeddings packedEmbeddings, BarnesHutTsne tsne) {
+    this.storage = storage;
+    this.packedEmbeddings = packedEmbeddings;
+    this.tsne = tsne;
+  }
+
+  /**
+   * Creates a job configured through the tsne.* system properties set in appengine-web.xml.
+   * Embeddings are read and the layout computed on one fork-join pool, managed by the registry.
+   */
+  public static TsneCoordinates fromSystemProperties(ServiceRegistry services) {
+    ForkJoinPool pool = services.manage(new ForkJoinPool(
+        Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())));
+    Storage storage = services.storage();
+    Path cacheDirectory = Paths.get(System.getProperty(CACHE_DIRECTORY_PROPERTY,
+        Paths.get(System.getProperty("java.io.tmpdir"), "embeddings").toString()));
+    BarnesHutTsne tsne = new BarnesHutTsne(pool,
+        Double.parseDouble(System.getProperty(
+            PERPLEXITY_PROPERTY, "" + BarnesHutTsne.DEFAULT_PERPLEXITY)),
+        Double.parseDouble(System.getProperty(THETA_PROPERTY, "" + BarnesHutTsne.DEFAULT_THETA)),
+        Integer.getInteger(ITERATIONS_PROPERTY, BarnesHutTsne.DEFAULT_ITERATIONS));
+    return new TsneCoordinates(
+        storage, new PackedEmbeddings(storage, pool, cacheDirectory), tsne);
+  }
+
+  /**
+   * Writes coordinates for the embeddings under embeddingsPrefix to coordinatesId, returning
+   * the number of points, or -1 if there are no embeddings. If incremental is set and an
+   * earlier document with image names exists, images it already places keep their position.
+   */
+  public int compute(String embeddingsBucket, String embeddingsPrefix, BlobId coordinatesId,
+      boolean incremental) throws IOException, InterruptedException {
+    PackedEmbeddings.Source source = packedEmbeddings.describe(embeddingsBucket, embeddingsPrefix);
+    if (source == null) {
+      return -1;
+    }
+    EmbeddingMatrix matrix = packedEmbeddings.open(source);
+    int n = matrix.size();
+
+    long start = System.nanoTime();
+    Map<String, float[]> previous = incremental ? readPrevious(coordinatesId) : null;
+    float[] positions;
+    int placed = n;
+    if (previous == null || previous.isEmpty()) {
+      positions = tsne.embed(matrix);
+    } else {
+      float[] layout = new float[3 * n];
+      boolean[] frozen = new boolean[n];
+      for (int row = 0; row < n; row++) {
+        float[] point = previous.get(matrix.name(row));
+        if (point != null) {
+          System.arraycopy(point, 0, layout, 3 * row, 3);
+          frozen[row] = true;
+          placed--;
+        }
+      }
+      positions = tsne.embedIncremental(matrix, layout, frozen);
+    }
+    log.info("Placed " + placed + " of " + n + " points for " + embeddingsPrefix + " in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+
+    BlobInfo info = BlobInfo.newBuilder(coordinatesId).setContentType("application/json").build();
+    try (Writer writer = Channels.newWriter(storage.writer(info), StandardCharsets.UTF_8.name())) {
+      writePoints(writer, matrix, positions);
+    }
+    return n;
+  }
+
+  /** Writes the coordinates.json document for the rows of a matrix. */
+  static void writePoints(Writer out, EmbeddingMatrix matrix, float[] positions)
+      throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.beginObject().name("points").beginArray();
+    for (int row = 0; row < matrix.size(); row++) {
+      writer.beginObject()
+          .name("x").value(positions[3 * row])
+          .name("y").value(positions[3 * row + 1])
+          .name("z").value(positions[3 * row + 2])
+          .name("name").value(matrix.name(row))
+          .endObject();
+    }
+    writer.endArray().endObject();
+    writer.flush();
+  }
+
+  /**
+   * Reads the named points of a coordinates.json document. Points without a name, such as
+   * those written by tsne_embedding, are left out.
+   */
+  static Map<String, float[]> readNamedPoints(Reader json) throws IOException {
+    Map<String, float[]> points = new HashMap<String, float[]>();
+    JsonReader reader = new JsonReader(json);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (!reader.nextName().equals("points")) {
+        reader.skipValue();
+        continue;
+      }
+      reader.beginArray();
+      while (reader.hasNext()) {
+        float[] point = new float[3];
+        String name = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String field = reader.nextName();
+          if (field.equals("x")) {
+            point[0] = (float) reader.nextDouble();
+          } else if (field.equals("y")) {
+            point[1] = (float) reader.nextDouble();
+          } else if (field.equals("z")) {
+            point[2] = (float) reader.nextDouble();
+          } else if (field.equals("name")) {
+            name = reader.nextString();
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        if (name != null) {
+          points.put(name, point);
+        }
+      }
+      reader.endArray();
+    }
+    reader.endObject();
+    return points;
+  }
+
+  private Map<String, float[]> readPrevious(BlobId coordinatesId) throws IOException {
+    Blob blob = storage.get(coordinatesId);
+    if (blob == null) {
+      return null;
+    }
+    try (Reader reader = new InputStreamReader(
+        Channels.newInputStream(blob.reader()), StandardCharsets.UTF_8)) {
+      return readNamedPoints(reader);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.cloud.storage.BlobId;
+import com.google.common.util.concurrent.Striped;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that computes a dataset's coordinates.json from its embeddings, see TsneCoordinates.
+ *
+ * <p>Parameters: dataset, and optionally incremental=true to keep the images that already have
+ * coordinates in place and only position the new ones. Responds with {"points": n}.
+ */
+@WebServlet("/tsne")
+public class TsneServlet extends HttpServlet {
+
+  // The bucket the embeddings are written to by extract_embedding
+  private static final String EMBEDDINGS_BUCKET_NAME = "embeddings_visualizer_output_bucket";
+
+  // The ID of your GCS bucket
+  static final String BUCKET_NAME = "coordinates_json_bucket";
+
+  // Stops concurrent requests for the same dataset from computing its layout twice
+  private static final Striped<Lock> COMPUTE_LOCKS = Striped.lock(64);
+
+  private UserService userService;
+
+  private TsneCoordinates coordinates;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    coordinates = services.tsneCoordinates();
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    // Get current user logged in to webapp
+    String userEmail = userService.getCurrentUser().getEmail();
+
+    String datasetName = request.getParameter("dataset");
+    if (datasetName == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "dataset is required");
+      return;
+    }
+
+    String[] embeddingsFilePath = {userEmail, datasetName, "embeddings", ""};
+    String[] coordinatesFilePath = {userEmail, datasetName, "coordinates.json"};
+    BlobId coordinatesId = BlobId.of(BUCKET_NAME,
+        SpritesheetRetrievalServlet.joinFilePaths(coordinatesFilePath));
+
+    int points;
+    Lock lock = COMPUTE_LOCKS.get(coordinatesId);
+    lock.lock();
+    try {
+      points = coordinates.compute(EMBEDDINGS_BUCKET_NAME,
+          SpritesheetRetrievalServlet.joinFilePaths(embeddingsFilePath), coordinatesId,
+          Boolean.parseBoolean(request.getParameter("incremental")));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    } finally {
+      lock.unlock();
+    }
+    if (points < 0) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    response.setContentType("application/json;");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("points").value(points).endObject();
+    writer.flush();
+  }
+}
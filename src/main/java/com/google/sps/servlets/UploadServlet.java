@@ -14,9 +14,20 @@
  
 package com.google.sps.servlets;
  
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.zip.ZipException;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.annotation.WebServlet;
@@ -31,91 +42,315 @@ import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.users.UserService;
-import com.google.appengine.api.users.UserServiceFactory;
 import java.nio.file.Files;
+import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.BlobId;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.Striped;
+import com.google.gson.stream.JsonWriter;
 import java.nio.file.Paths;
 
 import com.google.sps.servlets.Metadata;
 import com.google.sps.servlets.MetadataStore;
 import com.google.sps.servlets.DatastoreMetadataStore;
+import com.google.sps.servlets.ParallelUploader;
 
-/** Servlet for uploading files. */
+/**
+ * Servlet for uploading files. Images whose content has been uploaded and processed before are
+ * not written again; their thumbnails and embeddings are reused, see ContentIndex.
+ *
+ * <p>Instead of a form, the body may be a single ZIP or TAR archive of the images, with the
+ * dataset name in the query string. It is extracted as it streams in, see ArchiveExtractor.
+ *
+ * <p>With append=true, the images are added to the user's existing dataset of that name
+ * instead of being turned away. Images whose name the dataset already has are left alone, and
+ * the dataset's Metadata moves on to its next generation counting the new ones, so only those
+ * get thumbnails and embeddings, and the spritesheet and coordinates are updated around them,
+ * see DatasetProgress.
+ *
+ * <p>If any file of a form can't be written, nothing of the upload is kept and the response is
+ * a 502 listing the file names that failed, as {"failed": [...]}, so the user can send it again.
+ */
 @WebServlet("/upload")
 @MultipartConfig
 public class UploadServlet extends HttpServlet {
 
-  // The ID of your GCP project
-  private static final String PROJECT_ID = "step-2020-johndallard";
-
   // The ID of your GCS bucket
-  private static final String BUCKET_NAME = "embedding-visualizer-bucket";
+  static final String BUCKET_NAME = "embedding-visualizer-bucket";
+
+  // Appends to the same dataset on one instance run one at a time, so they don't both store
+  // the same new image; the count itself is appended in a transaction, see MetadataStore
+  private static final Striped<Lock> APPEND_LOCKS = Striped.lock(64);
+
+  // Content types of a request whose body is an archive of images, see ArchiveExtractor
+  private static final ImmutableSet<String> ARCHIVE_TYPES = ImmutableSet.of("application/zip",
+      "application/x-zip-compressed", "application/x-tar", "application/gzip",
+      "application/x-gzip", "application/x-gtar");
 
-  // Instance of DatastoreMetadatastore class 
-  private static final MetadataStore DATASTORE_STORAGE = new DatastoreMetadataStore();
+  // Clients and components shared across requests, see ServiceRegistry
+  private UserService userService;
+  private MetadataStore datastoreStorage;
+  private Storage storage;
+  private ParallelUploader uploader;
+  private ArchiveExtractor archiveExtractor;
+  private ContentIndex contentIndex;
+  private UploadSessions uploadSessions;
+  private DatasetProgress datasetProgress;
 
   @Override
-  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
-    // Get current user logged in to webapp
-    UserService userService = UserServiceFactory.getUserService();
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    datastoreStorage = services.metadataStore();
+    storage = services.storage();
+    uploader = services.uploader();
+    archiveExtractor = services.archiveExtractor();
+    contentIndex = services.contentIndex();
+    uploadSessions = services.uploadSessions();
+    datasetProgress = services.datasetProgress();
+  }
 
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
     /*  Get metadata (for comparison and eventual storage) */
     String userEmail = userService.getCurrentUser().getEmail();
     String datasetName = request.getParameter("dataset-namer");
     long timestamp = System.currentTimeMillis();
+    boolean append = Boolean.parseBoolean(request.getParameter("append"));
 
-    boolean datasetExists = DATASTORE_STORAGE.metadataExists(datasetName, userEmail);
+    // A dataset being uploaded through /upload-session has its name reserved
+    boolean reserved = uploadSessions.isOpen(userEmail, datasetName);
+    boolean datasetExists = reserved || datastoreStorage.metadataExists(datasetName, userEmail);
 
-    if (datasetExists) {
+    if (datasetExists && (reserved || !append)) {
       response.sendRedirect("/already_exists.html");
       return;
     }
 
     /* Upload images from form to GCP bucket */
 
-    long imageCount = 0;
-
-    Storage storage = StorageOptions.newBuilder().setProjectId(PROJECT_ID).build().getService();
-
     // Create new directory within user's subdirectory for this dataset
     String userDirectory = userEmail + "/";
     String newDatasetDir = userDirectory + datasetName + "/";
     String userImagesDir = newDatasetDir + "original_images/";
 
-    BlobId blobId = BlobId.of(BUCKET_NAME, userDirectory);
-    BlobInfo blobInfo = BlobInfo.newBuilder(blobId).build();
-    storage.create(blobInfo);
+    Lock appendLock = null;
+    if (datasetExists) {
+      appendLock = APPEND_LOCKS.get(newDatasetDir);
+      appendLock.lock();
+    } else {
+      // Taken in the transaction that finds it free, so of two uploads racing to create the
+      // dataset only one goes on; released once the upload is over, stored or not
+      try {
+        uploadSessions.reserve(userEmail, datasetName);
+      } catch (IllegalStateException e) {
+        response.sendRedirect("/already_exists.html");
+        return;
+      }
+    }
+
+    try {
+      if (!datasetExists) {
+        BlobId blobId = BlobId.of(BUCKET_NAME, userDirectory);
+        BlobInfo blobInfo = BlobInfo.newBuilder(blobId).build();
+        storage.create(blobInfo);
+
+        blobId = BlobId.of(BUCKET_NAME, userImagesDir);
+        blobInfo = BlobInfo.newBuilder(blobId).build();
+        storage.create(blobInfo);
+      }
+
+      // Object name -> hash of every image stored, and which of them were reused
+      Map<String, String> stored;
+      Set<String> reused = new HashSet<String>();
+      // An append only writes images the dataset doesn't have yet
+      Predicate<String> isNew = objectName -> true;
+      if (datasetExists) {
+        Set<String> existing = existingImages(userEmail, datasetName, userImagesDir);
+        isNew = objectName -> !existing.contains(
+            objectName.substring(objectName.lastIndexOf('/') + 1));
+      }
+      if (isArchive(request)) {
+        try {
+          stored = archiveExtractor.extract(
+              request.getInputStream(), BUCKET_NAME, userImagesDir, isNew);
+        } catch (ArchiveReader.MalformedArchiveException | ZipException | EOFException e) {
+          response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+          return;
+        }
+      } else {
+        List<String> failed = new ArrayList<String>();
+        stored = uploadParts(request, userEmail, userImagesDir, isNew, reused, failed);
+        if (!failed.isEmpty()) {
+          sendFailed(response, failed);
+          return;
+        }
+      }
+      contentIndex.record(userEmail, datasetName, stored,
+          Sets.difference(stored.keySet(), reused));
+
+      // Only images that were actually stored count towards the dataset
+      long imageCount = stored.size();
+
+      if (datasetExists) {
+        // Read and written in one transaction, as appends may run on other instances too
+        if (imageCount == 0
+            || datastoreStorage.append(datasetName, userEmail, imageCount, timestamp) == null) {
+          response.sendRedirect("/index.html");
+          return;
+        }
+      } else {
+        Metadata newMetadata =
+            Metadata.of(userEmail, datasetName, "DELG", "t-SNE", imageCount, timestamp);
+
+        // Store newData within Datastore, unless a dataset of the name got there first
+        if (!datastoreStorage.storeIfAbsent(newMetadata)) {
+          response.sendRedirect("/already_exists.html");
+          return;
+        }
+      }
+      reportProgress(userEmail, datasetName, imageCount, reused.size());
+    } finally {
+      if (appendLock != null) {
+        appendLock.unlock();
+      } else {
+        uploadSessions.abort(userEmail, datasetName);
+      }
+    }
+
+    /* Redirect user */
+    response.sendRedirect("/index.html");
+  }
+
+  /**
+   * Returns the file names of a dataset's images, written or reused, as recorded in the
+   * ContentIndex, in one query. A dataset uploaded before the index existed has no records, so
+   * its original_images folder is listed instead.
+   */
+  private Set<String> existingImages(String userEmail, String datasetName,
+      String userImagesDir) {
+    Set<String> names = new HashSet<String>(
+        contentIndex.imageHashes(userEmail, datasetName).keySet());
+    if (names.isEmpty()) {
+      for (Blob blob : storage.list(BUCKET_NAME, Storage.BlobListOption.prefix(userImagesDir),
+          Storage.BlobListOption.currentDirectory()).iterateAll()) {
+        names.add(blob.getName().substring(userImagesDir.length()));
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Counts newly stored images through the stages they have been through. Reused images arrive
+   * with their thumbnail and embedding; the rest are reported by the cloud functions.
+   */
+  private void reportProgress(String userEmail, String datasetName, long imageCount,
+      long reusedCount) {
 
-    blobId = BlobId.of(BUCKET_NAME, userImagesDir);
-    blobInfo = BlobInfo.newBuilder(blobId).build();
-    storage.create(blobInfo);
-      
-    Collection<Part> parts = request.getParts();
-    for (Part part : parts) {
+    datasetProgress.add(userEmail, datasetName, DatasetProgress.Stage.UPLOADED, imageCount);
+    datasetProgress.add(userEmail, datasetName, DatasetProgress.Stage.THUMBNAILED, reusedCount);
+    datasetProgress.add(userEmail, datasetName, DatasetProgress.Stage.EMBEDDED, reusedCount);
+  }
+
+  /**
+   * Whether the request body is a single ZIP or TAR archive rather than a form with file parts.
+   * The dataset name then comes in the query string.
+   */
+  private static boolean isArchive(HttpServletRequest request) {
+    String contentType = request.getContentType();
+    return contentType != null
+        && ARCHIVE_TYPES.contains(contentType.split(";")[0].trim().toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Uploads the file parts of the form that isNew accepts into the folder and returns object
+   * name -> hash of every image stored. Images the user uploaded before get their thumbnail and
+   * embedding copied instead of being written, and are added to reused. If any part can't be
+   * written, what the others wrote and copied is deleted again, their file names are added to
+   * failed, and nothing is returned.
+   */
+  private Map<String, String> uploadParts(HttpServletRequest request, String userEmail,
+      String userImagesDir, Predicate<String> isNew, Set<String> reused, List<String> failed)
+      throws IOException, ServletException {
+    // Map each file part to the GCS object it is written to. A repeated file name overwrites
+    // the same object, so it is only counted once.
+    Map<String, ByteSource> images = new LinkedHashMap<String, ByteSource>();
+    Map<String, String> hashes = new LinkedHashMap<String, String>();
+    for (Part part : request.getParts()) {
       if (!"file-upload-dialog".equals(part.getName())) continue;
-      InputStream inputStream = part.getInputStream();
 
       String fileName = Paths.get(part.getSubmittedFileName()).getFileName().toString();
       //The ID of your GCS object
       String objectName = userImagesDir + fileName;
+      if (!isNew.test(objectName)) continue;
+      images.put(objectName, partSource(part));
+      // The container has buffered the part already, so hashing it costs no GCS traffic
+      hashes.put(objectName, ContentIndex.sha256(partSource(part)));
+    }
 
-      blobId = BlobId.of(BUCKET_NAME, objectName);
-      blobInfo = BlobInfo.newBuilder(blobId).build();
-      storage.create(blobInfo, inputStream);
-      imageCount++;
+    reused.addAll(contentIndex.reuse(userEmail, hashes));
+    images.keySet().removeAll(reused);
+    ParallelUploader.UploadResult result = uploader.upload(BUCKET_NAME, images);
+    if (!result.failures().isEmpty()) {
+      for (String objectName : result.failures().keySet()) {
+        failed.add(objectName.substring(userImagesDir.length()));
+      }
+      discard(hashes.keySet());
+      return new LinkedHashMap<String, String>();
     }
-    
-    // Create new Metadata Object
-    Metadata newMetadata = Metadata.of(userEmail, datasetName, 
-        "DELG", "t-SNE", imageCount, timestamp);
+    Set<String> written = new HashSet<String>(result.uploaded());
 
-    // Store newData within Datastore
-    DATASTORE_STORAGE.storeData(newMetadata);
+    Map<String, String> stored = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, String> image : hashes.entrySet()) {
+      if (reused.contains(image.getKey()) || written.contains(image.getKey())) {
+        stored.put(image.getKey(), image.getValue());
+      }
+    }
+    return stored;
+  }
 
-    /* Redirect user */
-    response.sendRedirect("/index.html");
+  /**
+   * Deletes original_images objects of an upload that can't be kept, with whatever thumbnails
+   * and embeddings were copied or already derived for them.
+   */
+  private void discard(Collection<String> objectNames) {
+    List<String> derived = new ArrayList<String>();
+    for (String objectName : objectNames) {
+      derived.addAll(ContentIndex.derivedNames(objectName));
+    }
+    uploader.delete(BUCKET_NAME, objectNames);
+    uploader.delete(ContentIndex.DERIVED_BUCKET, derived);
+  }
+
+  /**
+   * Answers 502 with the names of the files that couldn't be written, as {"failed": [...]}.
+   */
+  private static void sendFailed(HttpServletResponse response, List<String> fileNames)
+      throws IOException {
+    response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+    response.setContentType("application/json;");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("failed").beginArray();
+    for (String fileName : fileNames) {
+      writer.value(fileName);
+    }
+    writer.endArray().endObject();
+    writer.flush();
+  }
+
+  /**
+   * Wraps a multipart part so its contents can be re-read when an upload is retried.
+   */
+  private static ByteSource partSource(Part part) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return part.getInputStream();
+      }
+    };
   }
 }
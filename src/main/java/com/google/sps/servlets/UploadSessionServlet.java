@@ -0,0 +1,184 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.common.io.ByteStreams;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.Map;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.sps.servlets.UploadSessions.FileProgress;
+import com.google.sps.servlets.UploadSessions.OffsetMismatchException;
+
+/**
+ * Uploads a dataset in resumable chunks, see UploadSessions. Every request names the dataset
+ * with dataset-name:
+ *
+ * <ul>
+ *   <li>POST opens a session, or resumes the one already open; with commit=true it stores the
+ *       dataset once every file is complete.
+ *   <li>PUT sends a chunk of a file as the request body, at the given file and offset, with
+ *       last=true on the file's final chunk and the chunk's base64 big-endian CRC32C in an
+ *       X-Chunk-CRC32C header.
+ *   <li>GET returns how far each file has got.
+ *   <li>DELETE aborts the session.
+ * </ul>
+ *
+ * <p>Progress is returned as {"files": {"name": {"offset": .., "complete": ..}, ...}}. A chunk
+ * at the wrong offset is answered with 409 and {"offset": ..}, the offset to resume from. A
+ * request without its dataset-name, or a PUT without its file, is answered with 400.
+ */
+@WebServlet("/upload-session")
+public class UploadSessionServlet extends HttpServlet {
+
+  static final String CHECKSUM_HEADER = "X-Chunk-CRC32C";
+
+  // Clients and components shared across requests, see ServiceRegistry
+  private UserService userService;
+  private UploadSessions sessions;
+  private DatasetProgress progress;
+
+  @Override
+  public void init() {
+    ServiceRegistry services = ServiceRegistry.get(getServletContext());
+    userService = services.userService();
+    sessions = services.uploadSessions();
+    progress = services.datasetProgress();
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String userEmail = userService.getCurrentUser().getEmail();
+    String datasetName = request.getParameter("dataset-name");
+    if (datasetName == null || datasetName.isEmpty()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "dataset-name is required");
+      return;
+    }
+    try {
+      if (Boolean.parseBoolean(request.getParameter("commit"))) {
+        Metadata metadata = sessions.commit(userEmail, datasetName);
+        progress.add(userEmail, datasetName, DatasetProgress.Stage.UPLOADED,
+            metadata.numberOfImages());
+        response.setContentType("application/json;");
+        JsonWriter writer = new JsonWriter(response.getWriter());
+        writer.beginObject().name("images").value(metadata.numberOfImages()).endObject();
+        writer.flush();
+      } else {
+        writeProgress(response, sessions.open(userEmail, datasetName));
+      }
+    } catch (IllegalStateException e) {
+      response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+    }
+  }
+
+  @Override
+  public void doPut(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String userEmail = userService.getCurrentUser().getEmail();
+    String datasetName = request.getParameter("dataset-name");
+    long offset;
+    try {
+      offset = Long.parseLong(request.getParameter("offset"));
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "offset is required");
+      return;
+    }
+    String fileName = request.getParameter("file");
+    if (fileName == null || fileName.isEmpty()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "file is required");
+      return;
+    }
+    String checksum = request.getHeader(CHECKSUM_HEADER);
+    if (checksum == null) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, CHECKSUM_HEADER + " is required");
+      return;
+    }
+
+    // Read no more than the largest chunk allowed, so an oversized one is never held whole
+    byte[] chunk = ByteStreams.toByteArray(
+        ByteStreams.limit(request.getInputStream(), sessions.maxChunkBytes() + 1L));
+    if (chunk.length > sessions.maxChunkBytes()) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
+    FileProgress progress;
+    try {
+      progress = sessions.writeChunk(userEmail, datasetName, fileName, offset, chunk, checksum,
+          Boolean.parseBoolean(request.getParameter("last")));
+    } catch (OffsetMismatchException e) {
+      response.setStatus(HttpServletResponse.SC_CONFLICT);
+      response.setContentType("application/json;");
+      JsonWriter writer = new JsonWriter(response.getWriter());
+      writer.beginObject().name("offset").value(e.expectedOffset()).endObject();
+      writer.flush();
+      return;
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    } catch (IllegalStateException e) {
+      response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+      return;
+    }
+    response.setContentType("application/json;");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject();
+    writer.name("offset").value(progress.offset());
+    writer.name("complete").value(progress.complete());
+    writer.endObject();
+    writer.flush();
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String userEmail = userService.getCurrentUser().getEmail();
+    Map<String, FileProgress> progress =
+        sessions.progress(userEmail, request.getParameter("dataset-name"));
+    if (progress == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    writeProgress(response, progress);
+  }
+
+  @Override
+  public void doDelete(HttpServletRequest request, HttpServletResponse response) {
+    String userEmail = userService.getCurrentUser().getEmail();
+    sessions.abort(userEmail, request.getParameter("dataset-name"));
+    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  private static void writeProgress(HttpServletResponse response,
+      Map<String, FileProgress> progress) throws IOException {
+    response.setContentType("application/json;");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject().name("files").beginObject();
+    for (Map.Entry<String, FileProgress> file : progress.entrySet()) {
+      writer.name(file.getKey()).beginObject();
+      writer.name("offset").value(file.getValue().offset());
+      writer.name("complete").value(file.getValue().complete());
+      writer.endObject();
+    }
+    writer.endObject().endObject();
+    writer.flush();
+  }
+}
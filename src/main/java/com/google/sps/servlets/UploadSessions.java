@@ -0,0 +1,543 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.auto.value.AutoValue;
+import com.google.cloud.RestorableState;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Uploads a dataset over many requests, for photo sets too large or too slow for a single
+ * multipart POST, configured through a system property set in appengine-web.xml:
+ *
+ * <ul>
+ *   <li>upload-session.max-chunk-bytes: the largest chunk a single request may carry.
+ * </ul>
+ *
+ * <p>Opening a session reserves the dataset name for the user until the session is committed or
+ * aborted. The name is reserved in a transaction that finds neither the dataset nor another
+ * reservation of it, as both are in the user's entity group; an upload stored within one request
+ * reserves its name the same way. Each file is then sent in chunks, in order, each with its offset
+ * and CRC32C; chunks of different files may be sent in parallel. A chunk is checked against its
+ * CRC32C before any of it is written, and is streamed into the file's GCS resumable upload. The
+ * upload's state is captured after every chunk and kept in Datastore, so the next chunk may arrive
+ * at any instance, and a client that lost track can ask for each file's offset and carry on from
+ * there. Committing stores the dataset's Metadata once every file is complete.
+ *
+ * <p>Sessions and files are "UploadSession" and "UploadFile" entities under the user's key.
+ * Datastore transactions hold no GCS I/O: a chunk is first claimed in one, so two requests
+ * can't both write it, then written to GCS, then recorded with the upload's new state in
+ * another. A chunk that fails to be written or recorded has its claim released so it can be
+ * sent again; a claim its request never released times out.
+ */
+public class UploadSessions {
+
+  static final String MAX_CHUNK_PROPERTY = "upload-session.max-chunk-bytes";
+
+  static final String SESSION_KIND = "UploadSession";
+  static final String FILE_KIND = "UploadFile";
+
+  private static final int DEFAULT_MAX_CHUNK_BYTES = 8 * 1024 * 1024;
+
+  // A claim older than this belongs to a request that ended before recording its chunk
+  private static final long CLAIM_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  private static final String CLAIMED_AT = "claimedAt";
+  private static final String CLAIM_END = "claimEnd";
+  private static final String CLAIM_LAST = "claimLast";
+  // Set on a reservation made for an upload stored within one request, which isn't a session
+  private static final String SINGLE_REQUEST = "singleRequest";
+  private static final int MAX_RESERVE_ATTEMPTS = 3;
+  static final String UPLOAD_TAG = "upload-file-created";
+
+  private static final Logger log = Logger.getLogger(UploadSessions.class.getName());
+
+  // GCS takes resumable uploads in multiples of 256 KiB; smaller chunks keep the state small
+  private static final int WRITE_CHUNK_BYTES = 256 * 1024;
+
+  private final Storage storage;
+  private final DatastoreService datastore;
+  private final MetadataStore metadataStore;
+  private final String bucketName;
+  private final int maxChunkBytes;
+
+  public UploadSessions(Storage storage, DatastoreService datastore, MetadataStore metadataStore,
+      String bucketName, int maxChunkBytes) {
+    this.storage = storage;
+    this.datastore = datastore;
+    this.metadataStore = metadataStore;
+    this.bucketName = bucketName;
+    this.maxChunkBytes = maxChunkBytes;
+  }
+
+  /**
+   * Creates the sessions for the upload bucket, configured through the upload-session.* system
+   * properties set in appengine-web.xml.
+   */
+  public static UploadSessions fromSystemProperties(ServiceRegistry services, String bucketName) {
+    return new UploadSessions(services.storage(), services.datastore(),
+        services.metadataStore(), bucketName,
+        Integer.getInteger(MAX_CHUNK_PROPERTY, DEFAULT_MAX_CHUNK_BYTES));
+  }
+
+  /** The largest chunk a single request may carry, in bytes. */
+  public int maxChunkBytes() {
+    return maxChunkBytes;
+  }
+
+  /** How much of one file has been received. */
+  @AutoValue
+  public abstract static class FileProgress {
+
+    static FileProgress of(long offset, boolean complete) {
+      return new AutoValue_UploadSessions_FileProgress(offset, complete);
+    }
+
+    /** The number of bytes received, which is the offset of the next chunk. */
+    public abstract long offset();
+
+    /** Whether the last chunk has been received and the file written. */
+    public abstract boolean complete();
+  }
+
+  /** Thrown when a chunk's offset isn't where its file has got to. */
+  public static class OffsetMismatchException extends Exception {
+    private final long expectedOffset;
+
+    OffsetMismatchException(long expectedOffset) {
+      super("Expected a chunk at offset " + expectedOffset);
+      this.expectedOffset = expectedOffset;
+    }
+
+    public long expectedOffset() {
+      return expectedOffset;
+    }
+  }
+
+  /**
+   * Opens a session for a user's new dataset, or returns the progress of the one already open.
+   *
+   * @throws IllegalStateException if the user already has a dataset with that name, or is
+   *     uploading one within a single request
+   */
+  public Map<String, FileProgress> open(String user, String dataset) {
+    Entity held = reserveName(user, dataset, false);
+    if (held != null && held.hasProperty(SINGLE_REQUEST)) {
+      throw new IllegalStateException("Dataset " + dataset + " is being uploaded");
+    }
+    return progress(user, dataset);
+  }
+
+  /**
+   * Reserves a user's new dataset name for an upload stored within one request, until abort()
+   * closes it.
+   *
+   * @throws IllegalStateException if the user already has a dataset or an upload with that name
+   */
+  public void reserve(String user, String dataset) {
+    if (reserveName(user, dataset, true) != null) {
+      throw new IllegalStateException("Dataset " + dataset + " is being uploaded");
+    }
+  }
+
+  /** Checks whether a user has a session open for a dataset. */
+  public boolean isOpen(String user, String dataset) {
+    try {
+      datastore.get(sessionKey(user, dataset));
+      return true;
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns how far each file of a session has got, by file name, or null if there is no such
+   * session.
+   */
+  public Map<String, FileProgress> progress(String user, String dataset) {
+    if (!isOpen(user, dataset)) {
+      return null;
+    }
+    Map<String, FileProgress> files = new TreeMap<String, FileProgress>();
+    for (Entity file : files(user, dataset)) {
+      files.put(file.getKey().getName(), progressOf(file));
+    }
+    return ImmutableMap.copyOf(files);
+  }
+
+  /**
+   * Writes a chunk of a file at offset, checking it against crc32c, the base64 big-endian
+   * CRC32C of the chunk as GCS writes it. The file is finished after its last chunk. Returns
+   * the file's progress.
+   *
+   * @throws IllegalArgumentException if the chunk is too large or doesn't match its checksum
+   * @throws IllegalStateException if there is no such session or the file is already complete
+   * @throws OffsetMismatchException if offset isn't the file's current offset
+   */
+  public FileProgress writeChunk(String user, String dataset, String fileName, long offset,
+      byte[] chunk, String crc32c, boolean last) throws IOException, OffsetMismatchException {
+    if (chunk.length > maxChunkBytes) {
+      throw new IllegalArgumentException("Chunks may be at most " + maxChunkBytes + " bytes");
+    }
+    if (!crc32c(chunk).equals(crc32c)) {
+      throw new IllegalArgumentException("Chunk doesn't match its CRC32C");
+    }
+    Path path = fileName == null ? null : Paths.get(fileName).getFileName();
+    if (path == null || path.toString().isEmpty()) {
+      throw new IllegalArgumentException("A file name is required");
+    }
+    String name = path.toString();
+    Key fileKey = KeyFactory.createKey(sessionKey(user, dataset), FILE_KIND, name);
+    BlobId objectId = BlobId.of(bucketName, user + "/" + dataset + "/original_images/" + name);
+    long end = offset + chunk.length;
+    long claimedAt = System.currentTimeMillis();
+    Entity file = claim(fileKey, objectId, offset, end, last, claimedAt);
+
+    // Only this request may write the chunk now, and GCS is written outside any transaction
+    try {
+      Blob state = write(file, objectId, chunk, last);
+      return persist(fileKey, end, last, claimedAt, state);
+    } catch (IOException | RuntimeException e) {
+      release(fileKey, objectId, claimedAt);
+      throw e;
+    }
+  }
+
+  /**
+   * Stores the dataset's Metadata, counting its complete files, and closes the session.
+   *
+   * @throws IllegalStateException if there is no such session, a file is incomplete or the
+   *     dataset has been stored in the meantime
+   */
+  public Metadata commit(String user, String dataset) {
+    Entity session;
+    try {
+      session = datastore.get(sessionKey(user, dataset));
+    } catch (EntityNotFoundException e) {
+      session = null;
+    }
+    if (session == null || session.hasProperty(SINGLE_REQUEST)) {
+      throw new IllegalStateException("No upload session for " + dataset);
+    }
+    List<Entity> files = files(user, dataset);
+    for (Entity file : files) {
+      if (!progressOf(file).complete()) {
+        throw new IllegalStateException(file.getKey().getName() + " is incomplete");
+      }
+    }
+    Metadata metadata = Metadata.of(user, dataset, "DELG", "t-SNE", files.size(),
+        System.currentTimeMillis());
+    if (!metadataStore.storeIfAbsent(metadata)) {
+      throw new IllegalStateException("Dataset " + dataset + " already exists");
+    }
+    close(user, dataset, files);
+    return metadata;
+  }
+
+  /**
+   * Closes a session without storing the dataset. Files already complete stay in GCS.
+   */
+  public void abort(String user, String dataset) {
+    close(user, dataset, files(user, dataset));
+  }
+
+  /** Returns the base64 big-endian CRC32C of a chunk, as sent with it. */
+  public static String crc32c(byte[] chunk) {
+    return BaseEncoding.base64().encode(
+        Ints.toByteArray(Hashing.crc32c().hashBytes(chunk).asInt()));
+  }
+
+  /**
+   * Reserves the name in a transaction that finds neither the dataset's key nor a reservation
+   * of it, retrying a few times if another write to the user's entity group commits first.
+   * Returns the reservation that already holds the name, or null if this call reserved it.
+   *
+   * @throws IllegalStateException if the user already has a dataset with that name
+   */
+  private Entity reserveName(String user, String dataset, boolean singleRequest) {
+    // Legacy datasets, and other backends, aren't under the key; the store finds those
+    if (metadataStore.metadataExists(dataset, user)) {
+      throw new IllegalStateException("Dataset " + dataset + " already exists");
+    }
+    Key sessionKey = sessionKey(user, dataset);
+    for (int attempt = 1; ; attempt++) {
+      Transaction txn = datastore.beginTransaction();
+      try {
+        try {
+          datastore.get(txn, DatastoreMetadataStore.metadataKey(dataset, user));
+          throw new IllegalStateException("Dataset " + dataset + " already exists");
+        } catch (EntityNotFoundException e) {
+          // The dataset hasn't been stored
+        }
+        try {
+          Entity held = datastore.get(txn, sessionKey);
+          txn.commit();
+          return held;
+        } catch (EntityNotFoundException e) {
+          Entity session = new Entity(sessionKey);
+          session.setProperty("created", System.currentTimeMillis());
+          if (singleRequest) {
+            session.setProperty(SINGLE_REQUEST, true);
+          }
+          datastore.put(txn, session);
+          txn.commit();
+          return null;
+        }
+      } catch (ConcurrentModificationException e) {
+        if (attempt == MAX_RESERVE_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  private void close(String user, String dataset, List<Entity> files) {
+    List<Key> keys = new ArrayList<Key>();
+    keys.add(sessionKey(user, dataset));
+    for (Entity file : files) {
+      keys.add(file.getKey());
+    }
+    datastore.delete(keys);
+  }
+
+  private List<Entity> files(String user, String dataset) {
+    Query query = new Query(FILE_KIND).setAncestor(sessionKey(user, dataset));
+    return datastore.prepare(query).asList(FetchOptions.Builder.withDefaults());
+  }
+
+  /**
+   * Claims the chunk of a file from offset to end in a transaction, first settling a claim that
+   * has timed out, and returns the file as it was last recorded.
+   */
+  private Entity claim(Key fileKey, BlobId objectId, long offset, long end, boolean last,
+      long now) throws OffsetMismatchException {
+    String name = fileKey.getName();
+    Transaction txn = datastore.beginTransaction();
+    try {
+      try {
+        datastore.get(txn, fileKey.getParent());
+      } catch (EntityNotFoundException e) {
+        throw new IllegalStateException("No upload session for " + fileKey.getParent().getName());
+      }
+      Entity file;
+      try {
+        file = datastore.get(txn, fileKey);
+      } catch (EntityNotFoundException e) {
+        file = new Entity(fileKey);
+        file.setProperty("offset", 0L);
+        file.setProperty("complete", false);
+        file.setUnindexedProperty("created", now);
+      }
+      if (file.hasProperty(CLAIMED_AT)) {
+        if (now - (Long) file.getProperty(CLAIMED_AT) < CLAIM_TIMEOUT_MILLIS) {
+          throw new IllegalStateException("A chunk of " + name + " is still being written");
+        }
+        settle(file, objectId);
+        datastore.put(txn, file);
+        txn.commit();
+        return claim(fileKey, objectId, offset, end, last, now);
+      }
+      FileProgress progress = progressOf(file);
+      if (progress.complete()) {
+        throw new IllegalStateException(name + " is already complete");
+      }
+      if (progress.offset() != offset) {
+        throw new OffsetMismatchException(progress.offset());
+      }
+
+      Entity claimed = file.clone();
+      claimed.setUnindexedProperty(CLAIMED_AT, now);
+      claimed.setUnindexedProperty(CLAIM_END, end);
+      claimed.setUnindexedProperty(CLAIM_LAST, last);
+      datastore.put(txn, claimed);
+      txn.commit();
+      return file;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  /**
+   * Writes a chunk on from the file's recorded state, and returns the state to record after it,
+   * or null once the file is finished. The file is tagged with its entity's creation time, so
+   * settle can tell it from an earlier file of the same name.
+   */
+  private Blob write(Entity file, BlobId objectId, byte[] chunk, boolean last)
+      throws IOException {
+    Blob state = (Blob) file.getProperty("state");
+    WriteChannel writer = state == null
+        ? storage.writer(BlobInfo.newBuilder(objectId)
+            .setMetadata(ImmutableMap.of(UPLOAD_TAG, String.valueOf(file.getProperty("created"))))
+            .build())
+        : restore(state);
+    writer.setChunkSize(WRITE_CHUNK_BYTES);
+    ByteBuffer buffer = ByteBuffer.wrap(chunk);
+    while (buffer.hasRemaining()) {
+      writer.write(buffer);
+    }
+    if (last) {
+      writer.close();
+      return null;
+    }
+    return capture(writer);
+  }
+
+  /** Records a written chunk and the upload's state after it, if the claim is still ours. */
+  private FileProgress persist(Key fileKey, long end, boolean last, long claimedAt, Blob state) {
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity file;
+      try {
+        file = datastore.get(txn, fileKey);
+      } catch (EntityNotFoundException e) {
+        throw new IllegalStateException("No upload session for " + fileKey.getParent().getName());
+      }
+      if (!Long.valueOf(claimedAt).equals(file.getProperty(CLAIMED_AT))) {
+        throw new IllegalStateException("Writing " + fileKey.getName() + " took too long");
+      }
+      dropClaim(file);
+      file.setProperty("offset", end);
+      file.setProperty("complete", last);
+      if (state == null) {
+        file.removeProperty("state");
+      } else {
+        file.setUnindexedProperty("state", state);
+      }
+      datastore.put(txn, file);
+      txn.commit();
+      return progressOf(file);
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  /**
+   * Settles a claim whose chunk failed to be written or recorded, if it is still ours, so the
+   * chunk can be sent again at once. Should this fail too, the claim times out instead.
+   */
+  private void release(Key fileKey, BlobId objectId, long claimedAt) {
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity file = datastore.get(txn, fileKey);
+      if (Long.valueOf(claimedAt).equals(file.getProperty(CLAIMED_AT))) {
+        settle(file, objectId);
+        datastore.put(txn, file);
+      }
+      txn.commit();
+    } catch (EntityNotFoundException | RuntimeException e) {
+      log.log(Level.WARNING, "Couldn't release the claim on " + fileKey.getName(), e);
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  /**
+   * Drops a claim whose outcome was never recorded. GCS is asked whether the file got past its
+   * recorded state: a finished object shows the claim was for the last chunk and it went
+   * through. The client library can't ask a resumable upload how much of it GCS has kept, so
+   * otherwise the file goes back to its recorded offset, and the chunk is sent again from the
+   * state recorded with it.
+   */
+  private void settle(Entity file, BlobId objectId) {
+    long end = (Long) file.getProperty(CLAIM_END);
+    if ((Boolean) file.getProperty(CLAIM_LAST)) {
+      com.google.cloud.storage.Blob object = storage.get(objectId);
+      if (object != null && object.getSize() != null && object.getSize() == end
+          && object.getMetadata() != null && String.valueOf(file.getProperty("created"))
+              .equals(object.getMetadata().get(UPLOAD_TAG))) {
+        file.setProperty("offset", end);
+        file.setProperty("complete", true);
+        file.removeProperty("state");
+      }
+    }
+    dropClaim(file);
+  }
+
+  private static void dropClaim(Entity file) {
+    file.removeProperty(CLAIMED_AT);
+    file.removeProperty(CLAIM_END);
+    file.removeProperty(CLAIM_LAST);
+  }
+
+  private static FileProgress progressOf(Entity file) {
+    return FileProgress.of((Long) file.getProperty("offset"),
+        (Boolean) file.getProperty("complete"));
+  }
+
+  private static Key sessionKey(String user, String dataset) {
+    Key userKey = DatastoreMetadataStore.metadataKey(dataset, user).getParent();
+    return KeyFactory.createKey(userKey, SESSION_KIND, dataset);
+  }
+
+  /** Serializes the state of a resumable upload, including the data not yet sent to GCS. */
+  private static Blob capture(WriteChannel writer) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(writer.capture());
+    }
+    return new Blob(bytes.toByteArray());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static WriteChannel restore(Blob state) throws IOException {
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(state.getBytes()))) {
+      return ((RestorableState<WriteChannel>) in.readObject()).restore();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles App Engine's warmup request, sent to a new instance before it gets real traffic, by
+ * warming up the ServiceRegistry. Responds with the startup timings in milliseconds,
+ * {"storage-client": .., "warmup-datastore": .., ...}, which are also logged.
+ */
+@WebServlet("/_ah/warmup")
+public class WarmupServlet extends HttpServlet {
+
+  // Every bucket the servlets read from or write to
+  private static final ImmutableList<String> BUCKET_NAMES = ImmutableList.of(
+      "embedding-visualizer-bucket", "embeddings_visualizer_output_bucket",
+      "coordinates_json_bucket", "spritesheet_json");
+
+  private static final Logger log = Logger.getLogger(WarmupServlet.class.getName());
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    long start = System.nanoTime();
+    Map<String, Long> timings = ServiceRegistry.get(getServletContext()).warmUp(BUCKET_NAMES);
+    log.info("Warmed up in " + (System.nanoTime() - start) / 1000000 + " ms: " + timings);
+
+    response.setContentType("application/json;");
+    JsonWriter writer = new JsonWriter(response.getWriter());
+    writer.beginObject();
+    for (Map.Entry<String, Long> timing : timings.entrySet()) {
+      writer.name(timing.getKey()).value(timing.getValue());
+    }
+    writer.endObject();
+    writer.flush();
+  }
+}
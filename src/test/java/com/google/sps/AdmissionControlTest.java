@@ -0,0 +1,142 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.base.Ticker;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.sps.servlets.AdmissionControl;
+
+public class AdmissionControlTest {
+
+  private final Metrics metrics = new Metrics();
+  private final FakeTicker ticker = new FakeTicker();
+
+  @Test
+  public void userRateLimitedAfterBurst() throws Exception {
+    // Test to show a user gets their burst at once, is then told exactly when to come back,
+    // and doesn't hold up another user.
+
+    AdmissionControl admission = new AdmissionControl(6, 2, 1000, 10, 0, metrics, ticker);
+    admission.admit("bulk@google.com", 10).close();
+    admission.admit("bulk@google.com", 10).close();
+    try {
+      admission.admit("bulk@google.com", 10);
+      Assert.fail("Admitted past the burst");
+    } catch (AdmissionControl.RejectedException e) {
+      Assert.assertEquals(10, e.retryAfterSeconds());
+    }
+    admission.admit("viewer@google.com", 10).close();
+
+    ticker.advance(10, TimeUnit.SECONDS);
+    admission.admit("bulk@google.com", 10).close();
+    Assert.assertTrue(prometheus().contains("admission_rejected_total{reason=\"rate\"} 1"));
+  }
+
+  @Test
+  public void chunksMeteredByBytesOnly() throws Exception {
+    // Test to show the chunks of an upload already started cost no tokens, but still take their
+    // share of the byte cap.
+
+    AdmissionControl admission = new AdmissionControl(6, 1, 1000, 10, 0, metrics, ticker);
+    admission.admit("bulk@google.com", 0).close();
+    for (int i = 0; i < 20; i++) {
+      admission.admitChunk(500).close();
+    }
+    AdmissionControl.Permit chunk = admission.admitChunk(800);
+    try {
+      admission.admitChunk(500);
+      Assert.fail("Admitted past the byte cap");
+    } catch (AdmissionControl.RejectedException e) {
+      Assert.assertEquals(1, e.retryAfterSeconds());
+    }
+    chunk.close();
+    Assert.assertTrue(prometheus().contains("admission_rejected_total{reason=\"rate\"} 0"));
+  }
+
+  @Test
+  public void inFlightBytesCapped() throws Exception {
+    // Test to show uploads are turned away while the global byte cap is used up, without
+    // costing the user a token, and let in again once room is given back.
+
+    AdmissionControl admission = new AdmissionControl(60, 2, 1000, 10, 0, metrics, ticker);
+    AdmissionControl.Permit large = admission.admit("a@google.com", 900);
+    try {
+      admission.admit("b@google.com", 200);
+      Assert.fail("Admitted past the byte cap");
+    } catch (AdmissionControl.RejectedException e) {
+      Assert.assertEquals(1, e.retryAfterSeconds());
+    }
+    Assert.assertTrue(prometheus().contains("admission_in_flight_bytes 900"));
+
+    large.close();
+    large.close();
+    admission.admit("b@google.com", 200).close();
+    admission.admit("b@google.com", 5000).close();
+    Assert.assertTrue(prometheus().contains("admission_in_flight_bytes 0"));
+  }
+
+  @Test
+  public void queuedUploadLetInOnRelease() throws Exception {
+    // Test to show an upload that finds no room waits for a release instead of being turned
+    // away.
+
+    AdmissionControl admission =
+        new AdmissionControl(60, 10, 1000, 1, 10000, metrics, Ticker.systemTicker());
+    AdmissionControl.Permit first = admission.admit("a@google.com", 1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<AdmissionControl.Permit> second =
+          executor.submit(() -> admission.admit("b@google.com", 1));
+      while (!prometheus().contains("admission_queued_requests 1")) {
+        Thread.sleep(1);
+      }
+      Assert.assertFalse(second.isDone());
+
+      first.close();
+      second.get(5, TimeUnit.SECONDS).close();
+      Assert.assertTrue(prometheus().contains("admission_queue_seconds_count 1"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private String prometheus() throws Exception {
+    StringWriter out = new StringWriter();
+    metrics.write(out);
+    return out.toString();
+  }
+
+  /** A clock that only moves when told to. */
+  private static class FakeTicker extends Ticker {
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+
+    void advance(long duration, TimeUnit unit) {
+      nanos.addAndGet(unit.toNanos(duration));
+    }
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.ArchiveExtractor;
+
+public class ArchiveExtractorTest {
+
+  private static final String BUCKET_NAME = "test-bucket";
+  private static final String FOLDER = "user/set/original_images/";
+
+  private Storage storage;
+  private ExecutorService executor;
+  private ArchiveExtractor extractor;
+
+  @Before
+  public void setUp() {
+    storage = LocalStorageHelper.getOptions().getService();
+    executor = Executors.newFixedThreadPool(4);
+    extractor = new ArchiveExtractor(new ParallelUploader(storage, executor, 2, 3, 10000), 64);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void zipImagesAreFilteredAndWritten() throws IOException {
+    // Test to show only real images within the budget are written, flattened, and each name
+    // once, and that exactly those are returned.
+
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+      zip.putNextEntry(new ZipEntry("photos/"));
+      putEntry(zip, "photos/cat.jpg", jpeg("cat"));
+      putEntry(zip, "photos/more/dog.PNG", png("dog"));
+      putEntry(zip, "other/cat.jpg", jpeg("another cat"));
+      putEntry(zip, "notes.txt", bytes("not an image"));
+      putEntry(zip, "fake.jpg", bytes("not a jpeg either"));
+      putEntry(zip, "__MACOSX/photos/._cat.jpg", jpeg("resource fork"));
+      putEntry(zip, "huge.jpg", Arrays.copyOf(jpeg("huge"), 65));
+    }
+
+    ImmutableMap<String, String> written = extract(archive.toByteArray());
+
+    Assert.assertEquals(ImmutableSet.of(FOLDER + "cat.jpg", FOLDER + "dog.PNG"),
+        written.keySet());
+    Assert.assertArrayEquals(jpeg("cat"),
+        storage.readAllBytes(BlobId.of(BUCKET_NAME, FOLDER + "cat.jpg")));
+    Assert.assertEquals(ContentIndex.sha256(ByteSource.wrap(png("dog"))),
+        written.get(FOLDER + "dog.PNG"));
+    Assert.assertNull(storage.get(BlobId.of(BUCKET_NAME, FOLDER + "huge.jpg")));
+  }
+
+  @Test
+  public void gzippedTarIsExtracted() throws IOException {
+    // Test to show a gzipped TAR with a ustar prefix and a GNU long name is read entry by entry.
+
+    String longName = new String(new char[120]).replace('\0', 'x') + ".gif";
+    byte[] gif = bytes("GIF89a pixels");
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    writeTarEntry(tar, "images", "a.jpg", '0', jpeg("a"));
+    writeTarEntry(tar, "", "images/", '5', new byte[0]);
+    writeTarEntry(tar, "", "././@LongLink", 'L', bytes("images/" + longName));
+    writeTarEntry(tar, "", "truncated", '0', gif);
+    tar.write(new byte[1024]);
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(archive)) {
+      gzip.write(tar.toByteArray());
+    }
+
+    ImmutableMap<String, String> written = extract(archive.toByteArray());
+
+    Assert.assertEquals(ImmutableSet.of(FOLDER + "a.jpg", FOLDER + longName), written.keySet());
+    Assert.assertArrayEquals(gif,
+        storage.readAllBytes(BlobId.of(BUCKET_NAME, FOLDER + longName)));
+  }
+
+  @Test(expected = ArchiveReader.MalformedArchiveException.class)
+  public void otherBodiesAreRejected() throws IOException {
+    // Test to show a body that is neither a ZIP nor a TAR archive is refused.
+
+    extract(jpeg("a lone image"));
+  }
+
+  @Test
+  public void truncatedZipKeepsNothing() throws IOException {
+    // Test to show a ZIP cut off part way throws, and the images written from its first
+    // entries are deleted again.
+
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+      putEntry(zip, "cat.jpg", jpeg("cat"));
+      putEntry(zip, "dog.jpg", jpeg("dog"));
+      putEntry(zip, "bird.jpg", jpeg("bird"));
+    }
+    byte[] whole = archive.toByteArray();
+    byte[] truncated = Arrays.copyOf(whole, whole.length - 200);
+
+    try {
+      extract(truncated);
+      Assert.fail("A truncated archive must not be extracted");
+    } catch (IOException expected) {
+    }
+
+    Assert.assertFalse(storage.list(BUCKET_NAME).iterateAll().iterator().hasNext());
+  }
+
+  private ImmutableMap<String, String> extract(byte[] archive) throws IOException {
+    return extractor.extract(new ByteArrayInputStream(archive), BUCKET_NAME, FOLDER);
+  }
+
+  private static void putEntry(ZipOutputStream zip, String name, byte[] contents)
+      throws IOException {
+    zip.putNextEntry(new ZipEntry(name));
+    zip.write(contents);
+    zip.closeEntry();
+  }
+
+  /** Writes a ustar header and the padded contents of one entry. */
+  private static void writeTarEntry(ByteArrayOutputStream tar, String prefix, String name,
+      char type, byte[] contents) throws IOException {
+    byte[] header = new byte[512];
+    put(header, 0, name);
+    put(header, 100, "0000644");
+    put(header, 124, String.format("%011o", contents.length));
+    header[156] = (byte) type;
+    put(header, 257, "ustar");
+    put(header, 263, "00");
+    put(header, 345, prefix);
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    int sum = 0;
+    for (byte b : header) {
+      sum += b & 0xff;
+    }
+    put(header, 148, String.format("%06o", sum));
+    tar.write(header);
+    tar.write(contents);
+    tar.write(new byte[(512 - contents.length % 512) % 512]);
+  }
+
+  private static void put(byte[] header, int offset, String value) {
+    byte[] bytes = bytes(value);
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+
+  private static byte[] jpeg(String pixels) {
+    return concat(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff}, bytes(pixels));
+  }
+
+  private static byte[] png(String pixels) {
+    return concat(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'},
+        bytes(pixels));
+  }
+
+  private static byte[] concat(byte[] signature, byte[] rest) {
+    byte[] bytes = Arrays.copyOf(signature, signature.length + rest.length);
+    System.arraycopy(rest, 0, bytes, signature.length, rest.length);
+    return bytes;
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,205 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.google.sps.servlets.AsyncRetrieval;
+
+public class AsyncRetrievalTest {
+
+  private ExecutorService executor;
+  private AsyncRetrieval retrieval;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private AsyncContext context;
+  private SlowClientStream out;
+  private CountDownLatch completed;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newFixedThreadPool(2);
+    retrieval = new AsyncRetrieval(executor, 1000);
+    request = mock(HttpServletRequest.class);
+    response = mock(HttpServletResponse.class);
+    context = mock(AsyncContext.class);
+    out = new SlowClientStream();
+    completed = new CountDownLatch(1);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(request, response)).thenReturn(context);
+    when(response.getOutputStream()).thenReturn(out);
+    doAnswer(invocation -> {
+      completed.countDown();
+      return null;
+    }).when(context).complete();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void bodyFollowsSlowClient() throws Exception {
+    // Test to show every piece is written, in order, though the client stalls after each one.
+
+    String[] pieces = {"[", "\"a\"", ",\"b\"", ",\"c\"", "]"};
+    AtomicInteger fetched = new AtomicInteger();
+    retrieval.serve(request, response, () -> () -> {
+      int i = fetched.getAndIncrement();
+      return i < pieces.length ? pieces[i].getBytes(StandardCharsets.UTF_8) : null;
+    });
+
+    // Play the container: call back whenever the stream has become writable again
+    while (!completed.await(1, TimeUnit.MILLISECONDS)) {
+      out.resumeIfStalled();
+    }
+    Assert.assertEquals("[\"a\",\"b\",\"c\"]", out.written());
+    verify(context, times(1)).complete();
+  }
+
+  @Test
+  public void timeoutCancelsWork() throws Exception {
+    // Test to show a request that times out gets a 503 and its handler is interrupted.
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    retrieval.serve(request, response, () -> {
+      started.countDown();
+      try {
+        Thread.sleep(60000);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+        throw e;
+      }
+      return null;
+    });
+    Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    asyncListener().onTimeout(new AsyncEvent(context));
+    Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    verify(context, times(1)).complete();
+  }
+
+  @Test
+  public void disconnectStopsFetching() throws Exception {
+    // Test to show no more of the body is fetched once the client has gone.
+
+    AtomicInteger fetched = new AtomicInteger();
+    retrieval.serve(request, response, () -> () -> {
+      fetched.incrementAndGet();
+      return new byte[] {'x'};
+    });
+    while (out.written().isEmpty()) {
+      out.resumeIfStalled();
+    }
+
+    out.listener.onError(new IOException("Connection reset"));
+    verify(context, timeout(5000)).complete();
+    int fetchedBeforeDisconnect = fetched.get();
+    out.resumeIfStalled();
+    Thread.sleep(50);
+    Assert.assertTrue(fetched.get() <= fetchedBeforeDisconnect + 1);
+    verify(context, times(1)).complete();
+  }
+
+  private AsyncListener asyncListener() {
+    ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+    verify(context).addListener(listener.capture());
+    return listener.getValue();
+  }
+
+  /** A response stream whose client only takes one write before it has to be resumed. */
+  private static class SlowClientStream extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private volatile WriteListener listener;
+    private volatile boolean ready = true;
+    private volatile boolean stalled;
+
+    @Override
+    public synchronized boolean isReady() {
+      stalled = !ready;
+      return ready;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener listener) {
+      this.listener = listener;
+      resume();
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      bytes.write(b);
+      ready = false;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int offset, int length) {
+      bytes.write(b, offset, length);
+      ready = false;
+    }
+
+    /** Lets the client take another write, calling back if the writer is waiting for it. */
+    void resumeIfStalled() throws IOException {
+      if (listener != null && stalled) {
+        resume();
+      }
+    }
+
+    private void resume() {
+      synchronized (this) {
+        ready = true;
+        stalled = false;
+      }
+      try {
+        listener.onWritePossible();
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    synchronized String written() {
+      return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how BarnesHutTsne scales with dataset size and fork-join parallelism, on clustered
+ * random embeddings. Thread counts double from 1 up to the number of cores. Not run by
+ * surefire; run it with
+ *
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *       com.google.sps.servlets.BarnesHutTsneBenchmark [iterations] [dimension] [rows...]
+ * </pre>
+ */
+public class BarnesHutTsneBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 300;
+  private static final int DEFAULT_DIMENSION = 128;
+  private static final int[] DEFAULT_ROWS = {1000, 5000, 20000};
+
+  public static void main(String[] args) throws Exception {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+    int dimension = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DIMENSION;
+    int[] sizes = DEFAULT_ROWS;
+    if (args.length > 2) {
+      sizes = new int[args.length - 2];
+      for (int i = 2; i < args.length; i++) {
+        sizes[i - 2] = Integer.parseInt(args[i]);
+      }
+    }
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    for (int rows : sizes) {
+      EmbeddingMatrix matrix = HnswIndexTest.randomMatrix(rows, dimension, 7);
+      long single = 0;
+      for (int threads = 1; threads <= cores; threads *= 2) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+          BarnesHutTsne tsne = new BarnesHutTsne(
+              pool, BarnesHutTsne.DEFAULT_PERPLEXITY, BarnesHutTsne.DEFAULT_THETA, iterations);
+          long start = System.nanoTime();
+          tsne.embed(matrix);
+          long elapsed = System.nanoTime() - start;
+          single = threads == 1 ? elapsed : single;
+          System.out.printf("%d x %d, %d iterations, %d threads: %d ms (%.2fx)%n", rows,
+              dimension, iterations, threads, elapsed / 1000000, single / (double) elapsed);
+        } finally {
+          pool.shutdownNow();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,194 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.BarnesHutTsne;
+
+public class BarnesHutTsneTest {
+
+  private static final int CLUSTERS = 4;
+  private static final int DIMENSION = 16;
+
+  private ForkJoinPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void separatesClusters() throws Exception {
+    // Test to show points from the same cluster end up next to each other.
+
+    float[] vectors = clusteredVectors(160, 1);
+    EmbeddingMatrix matrix = EmbeddingMatrix.of(names(160), vectors, DIMENSION);
+
+    float[] positions = new BarnesHutTsne(pool, 10, 0.5, 500).embed(matrix);
+    Assert.assertEquals(3 * 160, positions.length);
+    Assert.assertTrue(sameClusterFraction(positions, 160, 160) > 0.95);
+  }
+
+  @Test
+  public void barnesHutApproximatesExactGradient() throws Exception {
+    // Test to show theta 0 gives the exact gradient and theta 0.5 stays close to it.
+
+    int n = 300;
+    EmbeddingMatrix matrix = EmbeddingMatrix.of(names(n), clusteredVectors(n, 2), DIMENSION);
+    BarnesHutTsne exact = new BarnesHutTsne(pool, 10, 0, 1);
+    BarnesHutTsne.Sparse p = BarnesHutTsne.symmetrize(n, exact.conditional(matrix, null));
+    double[] y = new double[3 * n];
+    Random random = new Random(3);
+    for (int i = 0; i < y.length; i++) {
+      y[i] = random.nextGaussian() * 5;
+    }
+
+    // Brute force gradient
+    double z = 0;
+    double[] repulsive = new double[3 * n];
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        if (i != j) {
+          double q = 1 / (1 + squaredDistance(y, i, j));
+          z += q;
+          for (int axis = 0; axis < 3; axis++) {
+            repulsive[3 * i + axis] += q * q * (y[3 * i + axis] - y[3 * j + axis]);
+          }
+        }
+      }
+    }
+    double[] expected = new double[3 * n];
+    for (int i = 0; i < n; i++) {
+      for (int e = p.starts[i]; e < p.starts[i + 1]; e++) {
+        int j = p.columns[e];
+        double q = 1 / (1 + squaredDistance(y, i, j));
+        for (int axis = 0; axis < 3; axis++) {
+          expected[3 * i + axis] += 4 * p.values[e] * q * (y[3 * i + axis] - y[3 * j + axis]);
+        }
+      }
+      for (int axis = 0; axis < 3; axis++) {
+        expected[3 * i + axis] -= 4 * repulsive[3 * i + axis] / z;
+      }
+    }
+
+    BarnesHutTsne.Optimizer optimizer = exact.new Optimizer(n, null);
+    double exactZ = optimizer.forces(y, p, null);
+    Assert.assertEquals(z, exactZ, z * 1e-9);
+    for (int d = 0; d < 3 * n; d++) {
+      Assert.assertEquals(expected[d], optimizer.gradient(d, 1, exactZ), 1e-9);
+    }
+
+    BarnesHutTsne approximate = new BarnesHutTsne(pool, 10, 0.5, 1);
+    BarnesHutTsne.Optimizer approximateOptimizer = approximate.new Optimizer(n, null);
+    double approximateZ = approximateOptimizer.forces(y, p, null);
+    Assert.assertEquals(z, approximateZ, z * 0.02);
+    double error = 0;
+    double norm = 0;
+    for (int d = 0; d < 3 * n; d++) {
+      double difference = approximateOptimizer.gradient(d, 1, approximateZ) - expected[d];
+      error += difference * difference;
+      norm += expected[d] * expected[d];
+    }
+    Assert.assertTrue("relative error " + Math.sqrt(error / norm), error < 0.01 * norm);
+  }
+
+  @Test
+  public void incrementalKeepsFrozenPoints() throws Exception {
+    // Test to show new points join their cluster while existing points stay where they were.
+
+    float[] vectors = clusteredVectors(200, 4);
+    BarnesHutTsne tsne = new BarnesHutTsne(pool, 10, 0.5, 500);
+    float[] layout = tsne.embed(EmbeddingMatrix.of(
+        names(160), Arrays.copyOf(vectors, 160 * DIMENSION), DIMENSION));
+
+    boolean[] frozen = new boolean[200];
+    Arrays.fill(frozen, 0, 160, true);
+    float[] positions = tsne.embedIncremental(EmbeddingMatrix.of(names(200), vectors, DIMENSION),
+        Arrays.copyOf(layout, 3 * 200), frozen);
+
+    Assert.assertArrayEquals(layout, Arrays.copyOf(positions, 3 * 160), 0f);
+    Assert.assertTrue(sameClusterFraction(positions, 200, 160) > 0.9);
+  }
+
+  /** Rows assigned round robin to well separated Gaussian clusters. */
+  private static float[] clusteredVectors(int rows, long seed) {
+    Random random = new Random(seed);
+    float[][] centers = new float[CLUSTERS][DIMENSION];
+    for (float[] center : centers) {
+      for (int i = 0; i < DIMENSION; i++) {
+        center[i] = (float) random.nextGaussian();
+      }
+    }
+    float[] vectors = new float[rows * DIMENSION];
+    for (int row = 0; row < rows; row++) {
+      for (int i = 0; i < DIMENSION; i++) {
+        vectors[row * DIMENSION + i] =
+            centers[row % CLUSTERS][i] + 0.1f * (float) random.nextGaussian();
+      }
+    }
+    return vectors;
+  }
+
+  private static String[] names(int rows) {
+    String[] names = new String[rows];
+    for (int row = 0; row < rows; row++) {
+      names[row] = "image" + row;
+    }
+    return names;
+  }
+
+  /**
+   * The fraction of rows in [0, rows) whose nearest point among the first candidates rows is
+   * in the same cluster.
+   */
+  private static double sameClusterFraction(float[] positions, int rows, int candidates) {
+    double[] y = new double[positions.length];
+    for (int i = 0; i < y.length; i++) {
+      y[i] = positions[i];
+    }
+    int same = 0;
+    for (int i = 0; i < rows; i++) {
+      int nearest = -1;
+      for (int j = 0; j < candidates; j++) {
+        if (j != i && (nearest < 0 || squaredDistance(y, i, j) < squaredDistance(y, i, nearest))) {
+          nearest = j;
+        }
+      }
+      same += nearest % CLUSTERS == i % CLUSTERS ? 1 : 0;
+    }
+    return same / (double) rows;
+  }
+
+  private static double squaredDistance(double[] y, int i, int j) {
+    double sum = 0;
+    for (int axis = 0; axis < 3; axis++) {
+      double difference = y[3 * i + axis] - y[3 * j + axis];
+      sum += difference * difference;
+    }
+    return sum;
+  }
+}
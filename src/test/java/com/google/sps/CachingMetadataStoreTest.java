@@ -0,0 +1,224 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.CachingMetadataStore;
+import com.google.sps.servlets.Metadata;
+import com.google.sps.servlets.MetadataStore;
+
+public class CachingMetadataStoreTest {
+
+  private static final String USER = "johndallard@google.com";
+
+  private CountingMetadataStore delegate;
+  private CachingMetadataStore cachingStore;
+
+  @Before
+  public void setUp() {
+    delegate = new CountingMetadataStore();
+    cachingStore = new CachingMetadataStore(delegate, 2, 60000);
+  }
+
+  @Test
+  public void repeatedReadsHitCache() {
+    // Test to show a user's dataset list is only fetched from the wrapped store once.
+
+    delegate.storeData(Metadata.of(USER, "my_set", "DELG", "t-SNE", 30, 1596666738747L));
+
+    Assert.assertEquals(ImmutableList.of("my_set"), cachingStore.getUsersDatasets(USER));
+    Assert.assertEquals(ImmutableList.of("my_set"), cachingStore.getUsersDatasets(USER));
+    Assert.assertEquals(1, delegate.reads);
+    Assert.assertEquals(1, cachingStore.hitCount());
+    Assert.assertEquals(1, cachingStore.missCount());
+  }
+
+  @Test
+  public void negativeExistsResultsCached() {
+    // Test to show a dataset that doesn't exist is only looked up once, and that retrieving its
+    // metadata caches the missing result as well.
+
+    Assert.assertFalse(cachingStore.metadataExists("not_my_set", USER));
+    Assert.assertFalse(cachingStore.metadataExists("not_my_set", USER));
+    Assert.assertNull(cachingStore.retrieveMetadata("not_my_set", USER));
+    Assert.assertNull(cachingStore.retrieveMetadata("not_my_set", USER));
+    Assert.assertEquals(2, delegate.reads);
+  }
+
+  @Test
+  public void storeDataInvalidatesUser() {
+    // Test to show storing a dataset drops the stale cached entries for that user.
+
+    Metadata metadata = Metadata.of(USER, "my_set", "DELG", "t-SNE", 30, 1596666738747L);
+
+    Assert.assertEquals(ImmutableList.of(), cachingStore.getUsersDatasets(USER));
+    Assert.assertFalse(cachingStore.metadataExists("my_set", USER));
+    Assert.assertNull(cachingStore.retrieveMetadata("my_set", USER));
+
+    cachingStore.storeData(metadata);
+
+    Assert.assertEquals(ImmutableList.of("my_set"), cachingStore.getUsersDatasets(USER));
+    Assert.assertTrue(cachingStore.metadataExists("my_set", USER));
+    Assert.assertEquals(metadata, cachingStore.retrieveMetadata("my_set", USER));
+  }
+
+  @Test
+  public void entriesEvictedPastMaximumSize() {
+    // Test to show the cache stays bounded and counts evictions.
+
+    cachingStore.metadataExists("first", USER);
+    cachingStore.metadataExists("second", USER);
+    cachingStore.metadataExists("third", USER);
+    cachingStore.metadataExists("first", USER);
+
+    Assert.assertEquals(4, delegate.reads);
+    Assert.assertTrue(cachingStore.evictionCount() >= 1);
+  }
+
+  @Test
+  public void retrieveManyOnlyLoadsMisses() {
+    // Test to show a batch lookup answers cached datasets itself and fetches the rest in one
+    // call, caching missing datasets too.
+
+    cachingStore.storeAll(ImmutableList.of(
+        Metadata.of(USER, "my_set", "DELG", "t-SNE", 30, 1596666738747L),
+        Metadata.of(USER, "set_five", "DELG", "t-SNE", 100, 1596668868234L)));
+    Assert.assertEquals(30, cachingStore.retrieveMetadata("my_set", USER).numberOfImages());
+
+    Map<String, Metadata> found =
+        cachingStore.retrieveMany(ImmutableList.of("my_set", "set_five", "missing"), USER);
+    Assert.assertEquals(2, found.size());
+    Assert.assertEquals(2, delegate.reads);
+    Assert.assertEquals(ImmutableList.of("set_five", "missing"), delegate.lastBatch);
+
+    cachingStore.retrieveMany(ImmutableList.of("set_five", "missing"), USER);
+    Assert.assertEquals(2, delegate.reads);
+  }
+
+  @Test
+  public void storeDuringLoadNotOverwritten() {
+    // Test to show a read that loaded the old value while the dataset was being stored doesn't
+    // cache it over the store's invalidation.
+
+    Metadata metadata = Metadata.of(USER, "my_set", "DELG", "t-SNE", 30, 1596666738747L);
+    delegate.duringRead = () -> cachingStore.storeData(metadata);
+
+    Assert.assertFalse(cachingStore.metadataExists("my_set", USER));
+    Assert.assertTrue(cachingStore.metadataExists("my_set", USER));
+
+    delegate.duringRead = () -> cachingStore.storeData(metadata.appended(5, 1596666738748L));
+
+    Assert.assertEquals(30, cachingStore.retrieveMetadata("my_set", USER).numberOfImages());
+    Assert.assertEquals(35, cachingStore.retrieveMetadata("my_set", USER).numberOfImages());
+  }
+
+  /** An in-memory MetadataStore that counts how many reads reach it. */
+  private static class CountingMetadataStore implements MetadataStore {
+
+    private final Map<String, Metadata> datasets = new HashMap<String, Metadata>();
+    private int reads = 0;
+    private List<String> lastBatch;
+    // Run once by the next single-dataset read, after it has read its result
+    private Runnable duringRead;
+
+    public void storeData(Metadata data) {
+      datasets.put(data.user() + "/" + data.dataset(), data);
+    }
+
+    public void storeAll(List<Metadata> data) {
+      for (Metadata metadata : data) {
+        storeData(metadata);
+      }
+    }
+
+    public boolean storeIfAbsent(Metadata data) {
+      return datasets.putIfAbsent(data.user() + "/" + data.dataset(), data) == null;
+    }
+
+    public Metadata append(String datasetName, String user, long addedImages, long timestamp) {
+      Metadata existing = datasets.get(user + "/" + datasetName);
+      if (existing == null) {
+        return null;
+      }
+      storeData(existing.appended(addedImages, timestamp));
+      return datasets.get(user + "/" + datasetName);
+    }
+
+    public Metadata retrieveMetadata(String datasetName) {
+      throw new UnsupportedOperationException();
+    }
+
+    public Metadata retrieveMetadata(String datasetName, String user) {
+      reads++;
+      Metadata metadata = datasets.get(user + "/" + datasetName);
+      runDuringRead();
+      return metadata;
+    }
+
+    public Map<String, Metadata> retrieveMany(List<String> datasetNames, String user) {
+      reads++;
+      lastBatch = datasetNames;
+      Map<String, Metadata> found = new HashMap<String, Metadata>();
+      for (String datasetName : datasetNames) {
+        if (datasets.containsKey(user + "/" + datasetName)) {
+          found.put(datasetName, datasets.get(user + "/" + datasetName));
+        }
+      }
+      return found;
+    }
+
+    public List<String> getUsersDatasets(String user) {
+      reads++;
+      List<String> userDatasets = new ArrayList<String>();
+      for (Metadata data : datasets.values()) {
+        if (data.user().equals(user)) {
+          userDatasets.add(data.dataset());
+        }
+      }
+      return userDatasets;
+    }
+
+    public DatasetPage getUsersDatasets(String user, String cursor, int limit) {
+      List<String> names = getUsersDatasets(user);
+      int start = cursor == null ? 0 : Integer.parseInt(cursor);
+      int end = Math.min(names.size(), start + limit);
+      return DatasetPage.of(
+          names.subList(start, end), end < names.size() ? String.valueOf(end) : null);
+    }
+
+    public boolean metadataExists(String datasetName, String user) {
+      reads++;
+      boolean exists = datasets.containsKey(user + "/" + datasetName);
+      runDuringRead();
+      return exists;
+    }
+
+    private void runDuringRead() {
+      Runnable runnable = duringRead;
+      duringRead = null;
+      if (runnable != null) {
+        runnable.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.CompressedVariants;
+
+public class CompressedVariantsTest {
+
+  private static final BlobId JSON_ID = BlobId.of("bucket", "user/set/coordinates.json");
+  private static final BlobId GZIP_ID = BlobId.of("bucket", "user/set/coordinates.json.gz");
+
+  private Storage storage;
+  private CompressedVariants compressedVariants;
+
+  @Before
+  public void setUp() {
+    storage = LocalStorageHelper.getOptions().getService();
+    compressedVariants = new CompressedVariants(storage);
+  }
+
+  @Test
+  public void gzipCopyWrittenOncePerGeneration() throws Exception {
+    // Test to show the gzip copy is written next to the object once, reused while it was made
+    // from the object's current generation, and rewritten once it wasn't.
+
+    Blob json = writeJson(points(200, "1.5"));
+    Blob gzip = compressedVariants.gzipVariant(json);
+    Assert.assertEquals(GZIP_ID.getName(), gzip.getName());
+    Assert.assertEquals("application/json", gzip.getContentType());
+    Assert.assertEquals(points(200, "1.5"), gunzip(GZIP_ID));
+
+    // The in-memory storage keeps the same generation across rewrites, so another instance
+    // finds the existing copy instead of compressing the new contents
+    json = writeJson(points(300, "2.5"));
+    Assert.assertNotNull(new CompressedVariants(storage).gzipVariant(json));
+    Assert.assertEquals(points(200, "1.5"), gunzip(GZIP_ID));
+
+    // A copy tagged with another generation is stale
+    write(BlobInfo.newBuilder(GZIP_ID)
+        .setMetadata(ImmutableMap.of(CompressedVariants.SOURCE_GENERATION, "0")).build(),
+        new byte[1]);
+    Assert.assertNotNull(new CompressedVariants(storage).gzipVariant(json));
+    Assert.assertEquals(points(300, "2.5"), gunzip(GZIP_ID));
+  }
+
+  @Test
+  public void incompressibleObjectSentAsIs() throws Exception {
+    // Test to show an object gzip can't shrink has no copy to send.
+
+    byte[] noise = new byte[4096];
+    new Random(1).nextBytes(noise);
+    Blob json = write(BlobInfo.newBuilder(JSON_ID).setContentType("application/json").build(),
+        noise);
+
+    Assert.assertNull(compressedVariants.gzipVariant(json));
+  }
+
+  @Test
+  public void onlyLargeTextIsCompressible() throws Exception {
+    // Test to show which objects get a gzip copy at all.
+
+    Assert.assertTrue(CompressedVariants.compressible(writeJson(points(200, "1.5"))));
+    Assert.assertFalse(CompressedVariants.compressible(writeJson(points(2, "1.5"))));
+    Assert.assertFalse(CompressedVariants.compressible(write(
+        BlobInfo.newBuilder("bucket", "sheet.png").setContentType("image/png").build(),
+        new byte[4096])));
+    Assert.assertFalse(CompressedVariants.compressible(
+        write(BlobInfo.newBuilder(GZIP_ID).build(), new byte[4096])));
+  }
+
+  private Blob writeJson(String json) throws Exception {
+    return write(BlobInfo.newBuilder(JSON_ID).setContentType("application/json").build(),
+        json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Writes through a channel, which gives the object a generation in the fake storage. */
+  private Blob write(BlobInfo info, byte[] content) throws Exception {
+    try (WriteChannel writer = storage.writer(info)) {
+      writer.write(ByteBuffer.wrap(content));
+    }
+    return storage.get(info.getBlobId());
+  }
+
+  private String gunzip(BlobId blobId) throws Exception {
+    byte[] compressed = storage.readAllBytes(blobId);
+    return new String(ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(compressed))), StandardCharsets.UTF_8);
+  }
+
+  private static String points(int count, String coordinate) {
+    return "{\"points\": [" + Strings.repeat(
+        "{\"x\": " + coordinate + ", \"y\": 0.5, \"z\": -1.0}, ", count) + "]}";
+  }
+}
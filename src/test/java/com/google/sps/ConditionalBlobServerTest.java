@@ -0,0 +1,207 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.base.Strings;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.ConditionalBlobServer;
+
+public class ConditionalBlobServerTest {
+
+  private static final BlobId BLOB_ID = BlobId.of("spritesheet_json", "user/set/coordinates.json");
+  private static final BlobKey BLOB_KEY = new BlobKey("key");
+
+  private Storage storage;
+  private BlobstoreService blobstoreService;
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+  private ConditionalBlobServer server;
+  private String etag;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = LocalStorageHelper.getOptions().getService();
+    try (WriteChannel writer = storage.writer(BlobInfo.newBuilder(BLOB_ID).build())) {
+      writer.write(ByteBuffer.wrap(new byte[100]));
+    }
+    etag = "\"" + storage.get(BLOB_ID).getGeneration() + "\"";
+
+    blobstoreService = mock(BlobstoreService.class);
+    when(blobstoreService.createGsBlobKey(anyString())).thenReturn(BLOB_KEY);
+    request = mock(HttpServletRequest.class);
+    when(request.getDateHeader(anyString())).thenReturn(-1L);
+    response = mock(HttpServletResponse.class);
+    server = new ConditionalBlobServer(storage, blobstoreService);
+  }
+
+  @Test
+  public void fullResponseCarriesValidators() throws Exception {
+    // Test to show a plain GET serves the whole object with its ETag and a revalidate policy.
+
+    server.serve(BLOB_ID, request, response);
+
+    verify(response).setHeader("ETag", etag);
+    verify(response).setHeader("Cache-Control", ConditionalBlobServer.REVALIDATE_CACHE_CONTROL);
+    verify(blobstoreService).serve(BLOB_KEY, response);
+  }
+
+  @Test
+  public void matchingEtagNotModified() throws Exception {
+    // Test to show a request carrying the current ETag gets a bodiless 304.
+
+    when(request.getHeader("If-None-Match")).thenReturn("\"stale\", " + etag);
+
+    server.serve(BLOB_ID, request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(blobstoreService, never()).serve(any(BlobKey.class), any(HttpServletResponse.class));
+  }
+
+  @Test
+  public void versionedRequestImmutable() throws Exception {
+    // Test to show naming the current generation makes the response cacheable for a long time.
+
+    when(request.getParameter("v")).thenReturn(etag.replace("\"", ""));
+
+    server.serve(BLOB_ID, request, response);
+
+    verify(response).setHeader("Cache-Control", ConditionalBlobServer.IMMUTABLE_CACHE_CONTROL);
+  }
+
+  @Test
+  public void rangeServedAsPartialContent() throws Exception {
+    // Test to show a Range request with a matching If-Range serves only the requested bytes.
+
+    when(request.getHeader("Range")).thenReturn("bytes=10-");
+    when(request.getHeader("If-Range")).thenReturn(etag);
+
+    server.serve(BLOB_ID, request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setHeader("Content-Range", "bytes 10-99/100");
+    verify(blobstoreService).serve(BLOB_KEY, new ByteRange(10, 99), response);
+  }
+
+  @Test
+  public void staleIfRangeServesWholeObject() throws Exception {
+    // Test to show a Range request whose If-Range no longer matches gets the whole object.
+
+    when(request.getHeader("Range")).thenReturn("bytes=10-");
+    when(request.getHeader("If-Range")).thenReturn("\"stale\"");
+
+    server.serve(BLOB_ID, request, response);
+
+    verify(blobstoreService).serve(BLOB_KEY, response);
+  }
+
+  @Test
+  public void unsatisfiableRange() throws Exception {
+    // Test to show a range starting past the end of the object is rejected with 416.
+
+    when(request.getHeader("Range")).thenReturn("bytes=200-300");
+
+    server.serve(BLOB_ID, request, response);
+
+    verify(response).setHeader("Content-Range", "bytes */100");
+    verify(response).sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+  }
+
+  @Test
+  public void rangeResolution() {
+    // Test to show how range headers are resolved against the object's size.
+
+    Assert.assertEquals(new ByteRange(0, 9), ConditionalBlobServer.resolveRange("bytes=0-9", 100));
+    Assert.assertEquals(new ByteRange(90, 99),
+        ConditionalBlobServer.resolveRange("bytes=-10", 100));
+    Assert.assertEquals(new ByteRange(0, 99),
+        ConditionalBlobServer.resolveRange("bytes=0-1000", 100));
+    Assert.assertNull(ConditionalBlobServer.resolveRange("bytes=0-1,5-9", 100));
+    Assert.assertNull(ConditionalBlobServer.resolveRange("bytes=9-0", 100));
+  }
+
+  @Test
+  public void gzipCopyServedWhenAccepted() throws Exception {
+    // Test to show a compressible object is sent from its gzip copy, with an ETag of its own, to
+    // a client that accepts gzip, and as it is to one that doesn't.
+
+    BlobId json = BlobId.of("coordinates_json_bucket", "user/set/coordinates.json");
+    byte[] points = Strings.repeat("{\"x\": 1.5, \"y\": 2.5, \"z\": 3.5}, ", 200)
+        .getBytes(StandardCharsets.UTF_8);
+    BlobInfo jsonInfo = BlobInfo.newBuilder(json).setContentType("application/json").build();
+    try (WriteChannel writer = storage.writer(jsonInfo)) {
+      writer.write(ByteBuffer.wrap(points));
+    }
+    long generation = storage.get(json).getGeneration();
+    server = new ConditionalBlobServer(storage, blobstoreService, new CompressedVariants(storage));
+    when(request.getHeader("Accept-Encoding")).thenReturn("br, gzip;q=0.8");
+
+    server.serve(json, request, response);
+
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", "\"" + generation + "-gzip\"");
+    verify(blobstoreService)
+        .createGsBlobKey("/gs/coordinates_json_bucket/user/set/coordinates.json.gz");
+
+    HttpServletResponse identity = mock(HttpServletResponse.class);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip;q=0, *");
+
+    server.serve(json, request, identity);
+
+    verify(identity).setHeader("Vary", "Accept-Encoding");
+    verify(identity, never()).setHeader("Content-Encoding", "gzip");
+    verify(identity).setHeader("ETag", "\"" + generation + "\"");
+  }
+
+  @Test
+  public void acceptEncodingNegotiation() {
+    // Test to show which Accept-Encoding headers allow a gzip-encoded response.
+
+    Assert.assertTrue(ConditionalBlobServer.acceptsGzip(acceptEncoding("gzip, deflate, br")));
+    Assert.assertTrue(ConditionalBlobServer.acceptsGzip(acceptEncoding("br;q=1, GZIP;Q=0.5")));
+    Assert.assertTrue(ConditionalBlobServer.acceptsGzip(acceptEncoding("identity, *;q=0.1")));
+    Assert.assertFalse(ConditionalBlobServer.acceptsGzip(acceptEncoding(null)));
+    Assert.assertFalse(ConditionalBlobServer.acceptsGzip(acceptEncoding("br, identity")));
+    Assert.assertFalse(ConditionalBlobServer.acceptsGzip(acceptEncoding("*, gzip;q=0")));
+  }
+
+  private static HttpServletRequest acceptEncoding(String header) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getHeader("Accept-Encoding")).thenReturn(header);
+    return request;
+  }
+}
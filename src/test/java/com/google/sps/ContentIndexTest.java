@@ -0,0 +1,132 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.ContentIndex;
+
+public class ContentIndexTest {
+
+  private static final String DERIVED_BUCKET = "derived";
+  private static final String FIRST = "user/first/original_images/cat.jpg";
+  private static final String SECOND = "user/second/original_images/kitten.jpg";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private Storage storage;
+  private ExecutorService executor;
+  private ContentIndex index;
+  private String hash;
+
+  @Before
+  public void setUp() throws Exception {
+    helper.setUp();
+    storage = LocalStorageHelper.getOptions().getService();
+    executor = Executors.newFixedThreadPool(2);
+    ParallelUploader uploader = new ParallelUploader(storage, executor, 4, 1, 10000);
+    index = new ContentIndex(DatastoreServiceFactory.getDatastoreService(), uploader,
+        DERIVED_BUCKET);
+    hash = ContentIndex.sha256(ByteSource.wrap(bytes("cat")));
+    index.record("user", "first", ImmutableMap.of(FIRST, hash), ImmutableList.of(FIRST));
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    helper.tearDown();
+  }
+
+  @Test
+  public void processedContentIsReused() {
+    // Test to show an image seen before gets the earlier thumbnail and embedding, renamed.
+
+    write("user/first/thumbnails/cat.jpg", "thumbnail");
+    write("user/first/embeddings/cat.jpg.npy", "embedding");
+
+    Set<String> reused = index.reuse("user", ImmutableMap.of(SECOND, hash));
+
+    Assert.assertEquals(ImmutableList.of(SECOND), ImmutableList.copyOf(reused));
+    Assert.assertArrayEquals(bytes("thumbnail"),
+        storage.readAllBytes(BlobId.of(DERIVED_BUCKET, "user/second/thumbnails/kitten.jpg")));
+    Assert.assertArrayEquals(bytes("embedding"), storage.readAllBytes(
+        BlobId.of(DERIVED_BUCKET, "user/second/embeddings/kitten.jpg.npy")));
+  }
+
+  @Test
+  public void unprocessedContentIsUploaded() {
+    // Test to show content whose embedding doesn't exist yet, or is new, isn't reused.
+
+    write("user/first/thumbnails/cat.jpg", "thumbnail");
+    String other = "user/second/original_images/dog.jpg";
+
+    Set<String> reused = index.reuse("user", ImmutableMap.of(SECOND, hash, other, "0123"));
+
+    Assert.assertTrue(reused.isEmpty());
+  }
+
+  @Test
+  public void otherUsersContentIsNotReused() {
+    // Test to show an image another user uploaded is neither reused nor revealed.
+
+    write("user/first/thumbnails/cat.jpg", "thumbnail");
+    write("user/first/embeddings/cat.jpg.npy", "embedding");
+    String theirs = "other/second/original_images/kitten.jpg";
+
+    Set<String> reused = index.reuse("other", ImmutableMap.of(theirs, hash));
+
+    Assert.assertTrue(reused.isEmpty());
+    Assert.assertNull(storage.get(BlobId.of(DERIVED_BUCKET, "other/second/thumbnails/kitten.jpg")));
+  }
+
+  @Test
+  public void datasetsReferToContent() {
+    // Test to show each dataset records the hash of every image it holds, by file name.
+
+    index.record("user", "second", ImmutableMap.of(SECOND, hash), ImmutableList.of());
+
+    Map<String, String> hashes = index.imageHashes("user", "second");
+    Assert.assertEquals(ImmutableMap.of("kitten.jpg", hash), hashes);
+    Assert.assertEquals(ImmutableMap.of("cat.jpg", hash), index.imageHashes("user", "first"));
+  }
+
+  private void write(String objectName, String contents) {
+    storage.create(BlobInfo.newBuilder(BlobId.of(DERIVED_BUCKET, objectName)).build(),
+        bytes(contents));
+  }
+
+  private static byte[] bytes(String contents) {
+    return contents.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.DatasetProgress;
+import com.google.sps.servlets.DatasetProgress.Stage;
+import com.google.sps.servlets.DatasetProgress.Status;
+import com.google.sps.servlets.ServiceRegistry;
+
+public class DatasetProgressTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private MetadataStore metadataStore;
+  private DatasetProgress progress;
+  private List<String> fired;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    metadataStore = new DatastoreMetadataStore(DatastoreServiceFactory.getDatastoreService());
+    progress = new DatasetProgress(DatastoreServiceFactory.getDatastoreService(), metadataStore,
+        MoreExecutors.newDirectExecutorService(), 4);
+    fired = new ArrayList<String>();
+    progress.onComplete(Stage.THUMBNAILED,
+        (user, dataset, images) -> fired.add(dataset + ":" + images));
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void reportsCountedOnce() {
+    // Test to show a retried report isn't counted twice, and counts add up over the shards.
+
+    metadataStore.storeData(Metadata.of("user", "set", "DELG", "t-SNE", 10, 1));
+    for (int i = 0; i < 6; i++) {
+      Assert.assertTrue(progress.record("user", "set", Stage.EMBEDDED, i + ".jpg"));
+    }
+    Assert.assertFalse(progress.record("user", "set", Stage.EMBEDDED, "3.jpg"));
+    progress.add("user", "set", Stage.UPLOADED, 10);
+
+    Status status = progress.status("user", "set");
+    Assert.assertEquals(10, status.images());
+    Assert.assertEquals(6L, (long) status.counts().get(Stage.EMBEDDED));
+    Assert.assertEquals(0L, (long) status.counts().get(Stage.THUMBNAILED));
+    Assert.assertEquals(ImmutableSet.of(Stage.UPLOADED), status.complete());
+  }
+
+  @Test
+  public void completionFiresOnce() {
+    // Test to show the trigger fires exactly once, when the last image comes in.
+
+    metadataStore.storeData(Metadata.of("user", "set", "DELG", "t-SNE", 3, 1));
+    progress.record("user", "set", Stage.THUMBNAILED, "a.jpg");
+    progress.record("user", "set", Stage.THUMBNAILED, "b.jpg");
+    Assert.assertTrue(fired.isEmpty());
+
+    progress.record("user", "set", Stage.THUMBNAILED, "c.jpg");
+    progress.record("user", "set", Stage.THUMBNAILED, "c.jpg");
+    progress.add("user", "set", Stage.THUMBNAILED, 0);
+
+    Assert.assertEquals(1, fired.size());
+    Assert.assertEquals("set:3", fired.get(0));
+  }
+
+  @Test
+  public void completionWaitsForMetadata() {
+    // Test to show images processed before the dataset is stored complete it once it is.
+
+    progress.record("user", "set", Stage.THUMBNAILED, "a.jpg");
+    Assert.assertEquals(-1, progress.status("user", "set").images());
+    Assert.assertTrue(fired.isEmpty());
+
+    metadataStore.storeData(Metadata.of("user", "set", "DELG", "t-SNE", 1, 1));
+    progress.add("user", "set", Stage.UPLOADED, 1);
+
+    Assert.assertEquals(1, fired.size());
+    Assert.assertEquals(ImmutableSet.of(Stage.UPLOADED, Stage.THUMBNAILED),
+        progress.status("user", "set").complete());
+  }
+
+  @Test
+  public void appendCompletesAgain() {
+    // Test to show appending images reopens the stages, which complete and fire once more when
+    // the new images have been through them.
+
+    Metadata first = Metadata.of("user", "set", "DELG", "t-SNE", 2, 1);
+    metadataStore.storeData(first);
+    progress.record("user", "set", Stage.THUMBNAILED, "a.jpg");
+    progress.record("user", "set", Stage.THUMBNAILED, "b.jpg");
+    Assert.assertEquals(ImmutableList.of("set:2"), fired);
+
+    metadataStore.storeData(first.appended(1, 2));
+    Status status = progress.status("user", "set");
+    Assert.assertEquals(2, status.generation());
+    Assert.assertFalse(status.complete().contains(Stage.THUMBNAILED));
+
+    progress.record("user", "set", Stage.THUMBNAILED, "b.jpg");
+    Assert.assertEquals(1, fired.size());
+    progress.record("user", "set", Stage.THUMBNAILED, "c.jpg");
+    progress.record("user", "set", Stage.THUMBNAILED, "c.jpg");
+
+    Assert.assertEquals(ImmutableList.of("set:2", "set:3"), fired);
+    Assert.assertTrue(progress.status("user", "set").complete().contains(Stage.THUMBNAILED));
+  }
+
+  @Test
+  public void completionSeesOtherInstanceWrites() {
+    // Test to show an instance whose cache holds "no metadata" for a dataset still completes it
+    // once another instance stores it, because the tracker doesn't read through the cache.
+
+    Storage storage = LocalStorageHelper.getOptions().getService();
+    ServiceRegistry uploading = newInstance(storage);
+    ServiceRegistry reporting = newInstance(storage);
+    try {
+      Assert.assertNull(reporting.metadataStore().retrieveMetadata("set", "user"));
+      reporting.datasetProgress().record("user", "set", Stage.THUMBNAILED, "a.jpg");
+
+      uploading.metadataStore().storeData(Metadata.of("user", "set", "DELG", "t-SNE", 2, 1));
+      reporting.datasetProgress().record("user", "set", Stage.THUMBNAILED, "b.jpg");
+
+      Assert.assertNull(reporting.metadataStore().retrieveMetadata("set", "user"));
+      Assert.assertTrue(reporting.datasetProgress().status("user", "set").complete()
+          .contains(Stage.THUMBNAILED));
+    } finally {
+      uploading.shutdown();
+      reporting.shutdown();
+    }
+  }
+
+  @Test
+  public void appendSeenByOtherInstances() {
+    // Test to show an instance whose cache still holds the generation before an append
+    // completes the appended generation too, rather than finding the old done marker.
+
+    Storage storage = LocalStorageHelper.getOptions().getService();
+    ServiceRegistry uploading = newInstance(storage);
+    ServiceRegistry reporting = newInstance(storage);
+    try {
+      uploading.metadataStore().storeData(Metadata.of("user", "set", "DELG", "t-SNE", 1, 1));
+      reporting.datasetProgress().record("user", "set", Stage.THUMBNAILED, "a.jpg");
+      Assert.assertEquals(1,
+          reporting.metadataStore().retrieveMetadata("set", "user").generation());
+
+      uploading.metadataStore().append("set", "user", 1, 2);
+      reporting.datasetProgress().record("user", "set", Stage.THUMBNAILED, "b.jpg");
+
+      Assert.assertEquals(1,
+          reporting.metadataStore().retrieveMetadata("set", "user").generation());
+      Status status = reporting.datasetProgress().status("user", "set");
+      Assert.assertEquals(2, status.generation());
+      Assert.assertTrue(status.complete().contains(Stage.THUMBNAILED));
+    } finally {
+      uploading.shutdown();
+      reporting.shutdown();
+    }
+  }
+
+  private static ServiceRegistry newInstance(Storage storage) {
+    return new ServiceRegistry(storage, DatastoreServiceFactory.getDatastoreService(),
+        UserServiceFactory.getUserService(), mock(BlobstoreService.class));
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the full-kind scan metadataExists() used to do against the keyed lookup, and a
+ * heavy user's first dataset page against the full entity listing, using the local Datastore
+ * stub. Not run by surefire; run it with
+ *
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *       com.google.sps.servlets.DatastoreMetadataStoreBenchmark [entityCount]
+ * </pre>
+ */
+public class DatastoreMetadataStoreBenchmark {
+
+  private static final int DEFAULT_ENTITY_COUNT = 100000;
+  private static final int USERS = 1000;
+  private static final int LOOKUPS = 20;
+  private static final int[] HEAVY_USER_DATASETS = {100, 1000, 10000};
+  private static final int PAGE_SIZE = 50;
+
+  public static void main(String[] args) {
+    int entityCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ENTITY_COUNT;
+
+    LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setNoStorage(true));
+    helper.setUp();
+    try {
+      DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+      DatastoreMetadataStore store = new DatastoreMetadataStore(false);
+
+      // Write half of the datasets as legacy auto-ID entities, then migrate them, so the
+      // migration path is exercised at the same size
+      List<Entity> batch = new ArrayList<Entity>();
+      for (int i = 0; i < entityCount; i++) {
+        Metadata metadata = Metadata.of("user" + (i % USERS) + "@example.com", "dataset" + i,
+            "DELG", "t-SNE", i, i);
+        if (i % 2 == 0) {
+          store.storeData(metadata);
+          continue;
+        }
+        Entity entity = new Entity("MetaData");
+        entity.setProperty("user-email", metadata.user());
+        entity.setProperty("dataset-name", metadata.dataset());
+        entity.setProperty("model", metadata.model());
+        entity.setProperty("visualizer-type", metadata.visualization());
+        entity.setProperty("image-count", metadata.numberOfImages());
+        entity.setProperty("timestamp", metadata.timestamp());
+        batch.add(entity);
+        if (batch.size() == 500) {
+          datastore.put(batch);
+          batch.clear();
+        }
+      }
+      datastore.put(batch);
+
+      long start = System.nanoTime();
+      int migrated = store.migrateLegacyEntities();
+      System.out.printf("migrateLegacyEntities: %d entities in %d ms%n", migrated,
+          (System.nanoTime() - start) / 1000000);
+
+      // Look up the newest (worst case for the scan) and a missing dataset
+      String user = "user" + ((entityCount - 1) % USERS) + "@example.com";
+      String dataset = "dataset" + (entityCount - 1);
+
+      start = System.nanoTime();
+      for (int i = 0; i < LOOKUPS; i++) {
+        scanExists(datastore, dataset, user);
+        scanExists(datastore, "missing", user);
+      }
+      long scanMicros = (System.nanoTime() - start) / 1000 / (LOOKUPS * 2);
+
+      start = System.nanoTime();
+      for (int i = 0; i < LOOKUPS; i++) {
+        store.metadataExists(dataset, user);
+        store.metadataExists("missing", user);
+      }
+      long keyedMicros = (System.nanoTime() - start) / 1000 / (LOOKUPS * 2);
+
+      System.out.printf("%d entities: full scan %d us/lookup, keyed get %d us/lookup%n",
+          entityCount, scanMicros, keyedMicros);
+
+      // A heavy user's first page should cost the same however many datasets they have
+      for (int datasets : HEAVY_USER_DATASETS) {
+        String heavyUser = "heavy" + datasets + "@example.com";
+        List<Metadata> heavy = new ArrayList<Metadata>();
+        for (int i = 0; i < datasets; i++) {
+          heavy.add(Metadata.of(heavyUser, "dataset" + i, "DELG", "t-SNE", i, i));
+        }
+        start = System.nanoTime();
+        store.storeAll(heavy);
+        long storeMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+          store.getUsersDatasets(heavyUser, null, PAGE_SIZE);
+        }
+        long pageMicros = (System.nanoTime() - start) / 1000 / LOOKUPS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+          fullListing(datastore, heavyUser);
+        }
+        long fullMicros = (System.nanoTime() - start) / 1000 / LOOKUPS;
+        System.out.printf("%d datasets: storeAll %d ms, first page of %d %d us, "
+            + "full entity listing %d us%n", datasets, storeMillis, PAGE_SIZE, pageMicros,
+            fullMicros);
+      }
+    } finally {
+      helper.tearDown();
+    }
+  }
+
+  /**
+   * The listing getUsersDatasets() did before it was paged: every entity, in full.
+   */
+  private static List<String> fullListing(DatastoreService datastore, String user) {
+    Query query = new Query("MetaData")
+        .setFilter(new FilterPredicate("user-email", FilterOperator.EQUAL, user))
+        .addSort("timestamp", SortDirection.ASCENDING);
+    List<String> names = new ArrayList<String>();
+    for (Entity entity : datastore.prepare(query).asIterable()) {
+      names.add((String) entity.getProperty("dataset-name"));
+    }
+    return names;
+  }
+
+  /**
+   * The lookup metadataExists() did before entities were keyed by user and dataset name.
+   */
+  private static boolean scanExists(DatastoreService datastore, String datasetName, String user) {
+    Query query = new Query("MetaData").addSort("timestamp", SortDirection.ASCENDING);
+    for (Entity entity : datastore.prepare(query).asIterable()) {
+      if (user.equals(entity.getProperty("user-email"))
+          && datasetName.equals(entity.getProperty("dataset-name"))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
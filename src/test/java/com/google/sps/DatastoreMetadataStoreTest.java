@@ -17,12 +17,8 @@ package com.google.sps.servlets;
 
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
 
-import java.util.ArrayList;
-import java.util.List;
-import com.google.common.collect.ImmutableList; 
 import org.junit.Assert;
 import org.junit.After;
-import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -34,22 +30,23 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Map;
 
 import com.google.sps.servlets.Metadata;
 import com.google.sps.servlets.DatastoreMetadataStore;
 
-public class DatastoreMetadataStoreTest {
+public class DatastoreMetadataStoreTest extends MetadataStoreContractTest {
 
   private final LocalServiceTestHelper helper =
       new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
 
-  // Instance of DatastoreMetadatastore class 
-  private MetadataStore datastoreStorage = new DatastoreMetadataStore();
-  
-  @Before
-  public void setUp() {
+  // The local Datastore has to be up before the contract tests seed the store
+  @Override
+  protected MetadataStore createStore() {
     helper.setUp();
-    setUpDatastore();
+    return new DatastoreMetadataStore();
   }
 
   @After
@@ -58,111 +55,103 @@ public class DatastoreMetadataStoreTest {
   }
   
   @Test
-  public void basicMetadataRetrieval() {
-    // Test to show correct metadata retrieval for a particular dataset.
-
-    Metadata metadata = 
-        Metadata.of("johndallard@google.com", "my_test_dataset", "DELG", 
-        "t-SNE", 7, 1596730599769L);
-    datastoreStorage.storeData(metadata);
-    Assert.assertEquals(metadata, datastoreStorage.retrieveMetadata(metadata.dataset()));
-  }
-  
-  @Test
-  public void retrieveNonexistantMetadata() {
-    // Test to show what happens when a dataset doesn't exist.
-
-    Metadata metadata = datastoreStorage.retrieveMetadata("non_existant_dataset");
-    Assert.assertEquals(null, metadata);
-  }
-  
-  @Test
-  public void testRetrieveUsersDatasets() {
-    // Test the proper retrieval of a user's datasets.
-
-    List<String> testDatasetList = 
-        ImmutableList.of("johnnys_first_dataset", "test_testerson", 
-        "my_set", "latest_and_greatest", "set_five", "test_dataset");
-    Assert.assertEquals(testDatasetList, 
-        datastoreStorage.getUsersDatasets("johndallard@google.com"));
-  }
-
-  @Test
-  public void nonexistantUserDatasetsRetrieval() {
-    // Test to show that nothing is returned when nonexistant user's datasets are searched for in 
-    // Datastore.
+  public void legacyEntitiesFoundAndMigrated() {
+    // Test to show entities stored under auto-allocated IDs are still found, and are moved to
+    // their deterministic keys by migrateLegacyEntities().
 
-    List<String> emptyDatasetList = new ArrayList<String>();
-    Assert.assertEquals(emptyDatasetList, 
-        datastoreStorage.getUsersDatasets("myfake_email@gmail.com"));
+    DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
+    Entity legacyEntity = new Entity("MetaData");
+    legacyEntity.setProperty("user-email", "legacy@google.com");
+    legacyEntity.setProperty("dataset-name", "old_set");
+    legacyEntity.setProperty("model", "DELG");
+    legacyEntity.setProperty("visualizer-type", "t-SNE");
+    legacyEntity.setProperty("image-count", 4L);
+    legacyEntity.setProperty("timestamp", 1596484244000L);
+    ds.put(legacyEntity);
+
+    Assert.assertTrue(metadataStore.metadataExists("old_set", "legacy@google.com"));
+
+    DatastoreMetadataStore store = new DatastoreMetadataStore();
+    Assert.assertEquals(1, store.migrateLegacyEntities());
+    Assert.assertEquals(0, store.migrateLegacyEntities());
+
+    MetadataStore keyedOnly = new DatastoreMetadataStore(false);
+    Assert.assertTrue(keyedOnly.metadataExists("old_set", "legacy@google.com"));
+    Assert.assertEquals(
+        Metadata.of("legacy@google.com", "old_set", "DELG", "t-SNE", 4, 1596484244000L), 
+        keyedOnly.retrieveMetadata("old_set", "legacy@google.com"));
+    Assert.assertEquals(8, ds.prepare(new Query("MetaData")).countEntities(withLimit(100)));
   }
 
   @Test
-  public void datasetForUserExists() {
-    // Test to show metadataExists() will return true when a user has a particular dataset name 
-    // belonging to them in Datastore.
-
-    Assert.assertTrue(datastoreStorage.metadataExists("test_dataset", "johndallard@google.com"));
+  public void retrieveManyFindsLegacyEntitiesByName() {
+    // Test to show a batch lookup finds a legacy dataset by its name alongside keyed ones, and
+    // leaves out a name that doesn't exist.
+
+    Entity legacyEntity = new Entity("MetaData");
+    legacyEntity.setProperty("user-email", "johndallard@google.com");
+    legacyEntity.setProperty("dataset-name", "old_set");
+    legacyEntity.setProperty("model", "DELG");
+    legacyEntity.setProperty("visualizer-type", "t-SNE");
+    legacyEntity.setProperty("image-count", 4L);
+    legacyEntity.setProperty("timestamp", 1596484244000L);
+    DatastoreServiceFactory.getDatastoreService().put(legacyEntity);
+
+    Map<String, Metadata> found = metadataStore.retrieveMany(
+        ImmutableList.of("old_set", "test_dataset", "missing"), "johndallard@google.com");
+
+    Assert.assertEquals(ImmutableSet.of("old_set", "test_dataset"), found.keySet());
+    Assert.assertEquals(4, found.get("old_set").numberOfImages());
   }
 
   @Test
-  public void nonexistantDatasetAndUserCombo() {
-    // Test to show metadataExists() will return false when both the user and dataset name don't 
-    // exist in Datastore.
-
-    Assert.assertFalse(
-        datastoreStorage.metadataExists("truly_fake_dataset", "johndee731@gmail.com"));
-  }
-  
-  @Test
-  public void userDoesNotHaveDataset() {
-    // Test to show metadataExists() will return false when the user exists but they don't have
-    // this dataset.
-
-    Assert.assertFalse(datastoreStorage.metadataExists("not_my_set", "johndallard@google.com"));
+  public void legacyLookupTurnedOffByProperty() {
+    // Test to show the factory's store stops looking for legacy entities once
+    // metadata-store.legacy-lookup is false, as it may be after the migration.
+
+    Entity legacyEntity = new Entity("MetaData");
+    legacyEntity.setProperty("user-email", "legacy@google.com");
+    legacyEntity.setProperty("dataset-name", "old_set");
+    legacyEntity.setProperty("model", "DELG");
+    legacyEntity.setProperty("visualizer-type", "t-SNE");
+    legacyEntity.setProperty("image-count", 4L);
+    legacyEntity.setProperty("timestamp", 1596484244000L);
+    DatastoreServiceFactory.getDatastoreService().put(legacyEntity);
+
+    System.setProperty(MetadataStoreFactory.LEGACY_LOOKUP_PROPERTY, "false");
+    try {
+      MetadataStore store = MetadataStoreFactory.create(
+          DatastoreServiceFactory.getDatastoreService(), new Metrics());
+      Assert.assertFalse(store.metadataExists("old_set", "legacy@google.com"));
+      Assert.assertTrue(metadataStore.metadataExists("old_set", "legacy@google.com"));
+    } finally {
+      System.clearProperty(MetadataStoreFactory.LEGACY_LOOKUP_PROPERTY);
+    }
   }
 
   @Test
-  public void userDoesNotOwnDataset() {
-    // Test to show metadataExists() will return false when the user exists but the dataset belongs
-    // to another user.
-
-    Assert.assertFalse(datastoreStorage.metadataExists("gundams", "johndallard@google.com"));
-  }
+  public void appendMovesLegacyEntity() {
+    // Test to show appending to a dataset stored under an auto-allocated ID moves it to its
+    // deterministic key, so it isn't listed twice.
 
-  public void setUpDatastore() {
     DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
-    
-    Metadata metadata1 = 
-        Metadata.of("johndallard@google.com", "johnnys_first_dataset", 
-        "DELG", "t-SNE", 12, 1596646266299L);
-
-    Metadata metadata2 = 
-        Metadata.of("askewc@google.com", "gundams", "DELG", "t-SNE", 5, 1596484244221L);
-
-    Metadata metadata3 = 
-        Metadata.of("johndallard@google.com", "my_set", "DELG", "t-SNE", 30, 1596666738747L);
-
-    Metadata metadata4 = 
-        Metadata.of("johndallard@google.com", "test_dataset", "DELG", "t-SNE", 7, 1596730599767L);
-    
-    Metadata metadata5 = 
-        Metadata.of("johndallard@google.com", "set_five", "DELG", "t-SNE", 100, 1596668868234L);
-
-    Metadata metadata6 = 
-        Metadata.of("johndallard@google.com", "test_testerson", 
-        "DELG", "t-SNE", 42, 1596661024776L);
-
-    Metadata metadata7 = 
-        Metadata.of("johndallard@google.com", "latest_and_greatest", 
-        "DELG", "t-SNE", 77, 1596668419537L);
-
-    datastoreStorage.storeData(metadata1);
-    datastoreStorage.storeData(metadata2);
-    datastoreStorage.storeData(metadata3);
-    datastoreStorage.storeData(metadata4);
-    datastoreStorage.storeData(metadata5);
-    datastoreStorage.storeData(metadata6);
-    datastoreStorage.storeData(metadata7);
+    Entity legacyEntity = new Entity("MetaData");
+    legacyEntity.setProperty("user-email", "legacy@google.com");
+    legacyEntity.setProperty("dataset-name", "old_set");
+    legacyEntity.setProperty("model", "DELG");
+    legacyEntity.setProperty("visualizer-type", "t-SNE");
+    legacyEntity.setProperty("image-count", 4L);
+    legacyEntity.setProperty("timestamp", 1596484244000L);
+    ds.put(legacyEntity);
+
+    Metadata appended = metadataStore.append("old_set", "legacy@google.com", 3, 1596484245000L);
+
+    Assert.assertEquals(
+        Metadata.of("legacy@google.com", "old_set", "DELG", "t-SNE", 7, 1596484245000L, 2),
+        appended);
+    Assert.assertEquals(appended,
+        new DatastoreMetadataStore(false).retrieveMetadata("old_set", "legacy@google.com"));
+    Assert.assertEquals(ImmutableList.of("old_set"),
+        metadataStore.getUsersDatasets("legacy@google.com"));
   }
 }
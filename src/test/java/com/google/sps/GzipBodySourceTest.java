@@ -0,0 +1,97 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.GzipBodySource;
+
+public class GzipBodySourceTest {
+
+  private HttpServletResponse response;
+
+  @Before
+  public void setUp() {
+    response = mock(HttpServletResponse.class);
+  }
+
+  @Test
+  public void smallBodySentAsIs() throws Exception {
+    // Test to show a body that ends below the threshold is sent unencoded with its length.
+
+    GzipBodySource body = new GzipBodySource(
+        pieces(new byte[] {'[', '"', 'a'}, new byte[] {'"', ']'}), response, 1024);
+
+    Assert.assertArrayEquals(new byte[] {'[', '"', 'a', '"', ']'}, body.next());
+    Assert.assertNull(body.next());
+    verify(response).setContentLength(5);
+    verify(response, never()).setHeader(anyString(), anyString());
+  }
+
+  @Test
+  public void largeBodyStreamedCompressed() throws Exception {
+    // Test to show a body past the threshold is gzipped, with every piece flushed as it comes.
+
+    byte[] piece = new byte[600];
+    Arrays.fill(piece, (byte) 'x');
+    GzipBodySource body = new GzipBodySource(pieces(piece, piece, piece), response, 1024);
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    int chunks = 0;
+    for (byte[] chunk = body.next(); chunk != null; chunk = body.next()) {
+      Assert.assertTrue(chunk.length > 0);
+      compressed.write(chunk);
+      chunks++;
+    }
+
+    // The first two pieces are held back together, then the third and the trailer follow
+    Assert.assertEquals(3, chunks);
+    byte[] plain = ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())));
+    Assert.assertEquals(1800, plain.length);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response, never()).setContentLength(anyInt());
+  }
+
+  @Test
+  public void emptyBodyHasNoPieces() throws Exception {
+    // Test to show an empty body stays empty and declares so.
+
+    GzipBodySource body = new GzipBodySource(pieces(), response, 1024);
+
+    Assert.assertNull(body.next());
+    verify(response).setContentLength(0);
+  }
+
+  private static AsyncRetrieval.BodySource pieces(byte[]... pieces) {
+    Iterator<byte[]> remaining = Arrays.asList(pieces).iterator();
+    return () -> remaining.hasNext() ? remaining.next() : null;
+  }
+}
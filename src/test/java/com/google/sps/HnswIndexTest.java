@@ -0,0 +1,118 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.EmbeddingMatrix;
+import com.google.sps.servlets.HnswIndex;
+
+public class HnswIndexTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void exactSearchOrdersBySimilarity() throws Exception {
+    // Test to show exact search ranks by cosine similarity and leaves out the query row.
+
+    EmbeddingMatrix matrix = EmbeddingMatrix.of(new String[] {"a", "b", "c", "d"},
+        new float[] {1, 0, 0.9f, 0.1f, 0, 1, -1, 0}, 2);
+
+    Assert.assertArrayEquals(new int[] {1, 2}, matrix.nearest(0, 2, executor));
+    Assert.assertEquals(1f, matrix.similarity(0, 0), 1e-6f);
+    Assert.assertEquals(-1f, matrix.similarity(0, 3), 1e-6f);
+    Assert.assertEquals(2, matrix.row("c"));
+    Assert.assertEquals(-1, matrix.row("e"));
+  }
+
+  @Test
+  public void parallelExactSearchMatchesInline() throws Exception {
+    // Test to show splitting a large scan across threads gives the same answer as one scan.
+
+    EmbeddingMatrix matrix = randomMatrix(3 * EmbeddingMatrix.ROWS_PER_TASK + 17, 8, 1);
+
+    Assert.assertArrayEquals(matrix.nearest(5, 20, null), matrix.nearest(5, 20, executor));
+  }
+
+  @Test
+  public void approximateSearchHasHighRecall() throws Exception {
+    // Test to show the graph finds nearly all of the true 10 nearest neighbours.
+
+    EmbeddingMatrix matrix = randomMatrix(5000, 16, 2);
+    HnswIndex index = HnswIndex.build(matrix, 16, 100, executor);
+
+    int found = 0;
+    for (int row = 0; row < 100; row++) {
+      int[] exact = matrix.nearest(row, 10, null);
+      int[] approximate = index.nearest(row, 10, 64);
+      Assert.assertEquals(10, approximate.length);
+      for (int candidate : approximate) {
+        Assert.assertNotEquals(row, candidate);
+        for (int truth : exact) {
+          found += truth == candidate ? 1 : 0;
+        }
+      }
+    }
+    Assert.assertTrue("recall " + found / 1000.0, found >= 950);
+  }
+
+  @Test
+  public void tinyIndexes() throws Exception {
+    // Test to show empty and single row matrices can be indexed and searched.
+
+    HnswIndex empty = HnswIndex.build(randomMatrix(0, 4, 3), 16, 100, executor);
+    Assert.assertEquals(0, empty.nearest(new float[4], 0, 5, 10).length);
+
+    HnswIndex single = HnswIndex.build(randomMatrix(1, 4, 3), 16, 100, executor);
+    Assert.assertEquals(0, single.nearest(0, 5, 10).length);
+  }
+
+  /** Gaussian clusters, so neighbourhoods are meaningful rather than uniform noise. */
+  static EmbeddingMatrix randomMatrix(int rows, int dimension, long seed) {
+    Random random = new Random(seed);
+    float[][] centers = new float[32][dimension];
+    for (float[] center : centers) {
+      for (int i = 0; i < dimension; i++) {
+        center[i] = (float) random.nextGaussian();
+      }
+    }
+    String[] names = new String[rows];
+    float[] vectors = new float[rows * dimension];
+    for (int row = 0; row < rows; row++) {
+      names[row] = "image" + row;
+      float[] center = centers[random.nextInt(centers.length)];
+      for (int i = 0; i < dimension; i++) {
+        vectors[row * dimension + i] = center[i] + 0.5f * (float) random.nextGaussian();
+      }
+    }
+    return EmbeddingMatrix.of(names, vectors, dimension);
+  }
+}
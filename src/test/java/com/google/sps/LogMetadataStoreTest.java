@@ -0,0 +1,142 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.sps.servlets.LogMetadataStore;
+
+public class LogMetadataStoreTest extends MetadataStoreContractTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path path;
+  private LogMetadataStore store;
+
+  @Override
+  protected MetadataStore createStore() throws Exception {
+    path = folder.getRoot().toPath().resolve("metadata.log");
+    store = LogMetadataStore.open(path, false, 1 << 20);
+    return store;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    store.close();
+  }
+
+  @Test
+  public void tornWriteDroppedOnRecovery() throws Exception {
+    // Test to show a record cut short by a crash is dropped on reopening, without losing the
+    // records before it or the ones written after.
+
+    long end = store.logBytes();
+    store.close();
+    try (FileChannel log = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      log.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2, 3}), end);
+    }
+
+    store = LogMetadataStore.open(path, false, 1 << 20);
+    Assert.assertEquals(6, store.getUsersDatasets("johndallard@google.com").size());
+    Metadata added = Metadata.of("new@google.com", "after_crash", "DELG", "t-SNE", 1, 1);
+    store.storeData(added);
+    store.close();
+
+    store = LogMetadataStore.open(path, false, 1 << 20);
+    Assert.assertEquals(added, store.retrieveMetadata("after_crash", "new@google.com"));
+    Assert.assertEquals(7, store.getUsersDatasets("johndallard@google.com").size()
+        + store.getUsersDatasets("new@google.com").size());
+  }
+
+  @Test
+  public void compactionKeepsNewestRecords() throws Exception {
+    // Test to show rewriting a dataset over and over gets compacted away, and the newest
+    // version of every dataset survives reopening.
+
+    store.close();
+    store = LogMetadataStore.open(path, false, 4096);
+    for (int i = 0; i < 1000; i++) {
+      store.storeData(Metadata.of("askewc@google.com", "gundams", "DELG", "t-SNE", i, i));
+    }
+    Assert.assertTrue(store.logBytes() < 4096);
+    Assert.assertFalse(Files.exists(path.resolveSibling("metadata.log.compact")));
+    store.close();
+
+    store = LogMetadataStore.open(path, false, 4096);
+    Assert.assertEquals(Metadata.of("askewc@google.com", "gundams", "DELG", "t-SNE", 999, 999),
+        store.retrieveMetadata("gundams", "askewc@google.com"));
+    Assert.assertEquals(ImmutableList.of("johnnys_first_dataset", "test_testerson", "my_set",
+        "latest_and_greatest", "set_five", "test_dataset"),
+        store.getUsersDatasets("johndallard@google.com"));
+  }
+
+  @Test
+  public void concurrentReadersSeeWholeRecords() throws Exception {
+    // Test to show readers running alongside writers only ever see records that were stored,
+    // and every write is there afterwards.
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> work = new ArrayList<Future<?>>();
+      for (int w = 0; w < 4; w++) {
+        String user = "writer" + w + "@google.com";
+        work.add(executor.submit(() -> {
+          for (int i = 0; i < 2000; i++) {
+            store.storeData(Metadata.of(user, "set" + (i % 100), "DELG", "t-SNE", i, i));
+          }
+        }));
+      }
+      for (int r = 0; r < 4; r++) {
+        work.add(executor.submit(() -> {
+          for (int i = 0; i < 2000; i++) {
+            Metadata metadata = store.retrieveMetadata("set" + (i % 100), "writer0@google.com");
+            Assert.assertTrue(metadata == null || metadata.numberOfImages() % 100 == i % 100);
+            Assert.assertTrue(store.getUsersDatasets("writer1@google.com", null, 10)
+                .names().size() <= 10);
+          }
+        }));
+      }
+      for (Future<?> future : work) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    store.close();
+    store = LogMetadataStore.open(path, false, 1 << 20);
+    for (int w = 0; w < 4; w++) {
+      Assert.assertEquals(100, store.getUsersDatasets("writer" + w + "@google.com").size());
+      Assert.assertEquals(1999, store.retrieveMetadata("set99", "writer" + w + "@google.com")
+          .numberOfImages());
+    }
+  }
+}
@@ -0,0 +1,264 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import com.google.common.collect.ImmutableList; 
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.Metadata;
+import com.google.sps.servlets.MetadataStore;
+
+/**
+ * The behavior every MetadataStore has to show, run against each implementation by extending
+ * this class.
+ */
+public abstract class MetadataStoreContractTest {
+
+  protected MetadataStore metadataStore;
+
+  /** Creates an empty store, once any service it needs is up. */
+  protected abstract MetadataStore createStore() throws Exception;
+
+  @Before
+  public void setUpStore() throws Exception {
+    metadataStore = createStore();
+    seed();
+  }
+
+  @Test
+  public void basicMetadataRetrieval() {
+    // Test to show correct metadata retrieval for a particular dataset.
+
+    Metadata metadata = 
+        Metadata.of("johndallard@google.com", "my_test_dataset", "DELG", 
+        "t-SNE", 7, 1596730599769L);
+    metadataStore.storeData(metadata);
+    Assert.assertEquals(metadata, metadataStore.retrieveMetadata(metadata.dataset()));
+  }
+  
+  @Test
+  public void retrieveNonexistantMetadata() {
+    // Test to show what happens when a dataset doesn't exist.
+
+    Metadata metadata = metadataStore.retrieveMetadata("non_existant_dataset");
+    Assert.assertEquals(null, metadata);
+  }
+  
+  @Test
+  public void testRetrieveUsersDatasets() {
+    // Test the proper retrieval of a user's datasets.
+
+    List<String> testDatasetList = 
+        ImmutableList.of("johnnys_first_dataset", "test_testerson", 
+        "my_set", "latest_and_greatest", "set_five", "test_dataset");
+    Assert.assertEquals(testDatasetList, 
+        metadataStore.getUsersDatasets("johndallard@google.com"));
+  }
+
+  @Test
+  public void nonexistantUserDatasetsRetrieval() {
+    // Test to show that nothing is returned when nonexistant user's datasets are searched for in 
+    // Datastore.
+
+    List<String> emptyDatasetList = new ArrayList<String>();
+    Assert.assertEquals(emptyDatasetList, 
+        metadataStore.getUsersDatasets("myfake_email@gmail.com"));
+  }
+
+  @Test
+  public void datasetForUserExists() {
+    // Test to show metadataExists() will return true when a user has a particular dataset name 
+    // belonging to them in the store.
+
+    Assert.assertTrue(metadataStore.metadataExists("test_dataset", "johndallard@google.com"));
+  }
+
+  @Test
+  public void nonexistantDatasetAndUserCombo() {
+    // Test to show metadataExists() will return false when both the user and dataset name don't 
+    // exist in the store.
+
+    Assert.assertFalse(
+        metadataStore.metadataExists("truly_fake_dataset", "johndee731@gmail.com"));
+  }
+  
+  @Test
+  public void userDoesNotHaveDataset() {
+    // Test to show metadataExists() will return false when the user exists but they don't have
+    // this dataset.
+
+    Assert.assertFalse(metadataStore.metadataExists("not_my_set", "johndallard@google.com"));
+  }
+
+  @Test
+  public void userDoesNotOwnDataset() {
+    // Test to show metadataExists() will return false when the user exists but the dataset belongs
+    // to another user.
+
+    Assert.assertFalse(metadataStore.metadataExists("gundams", "johndallard@google.com"));
+  }
+
+  @Test
+  public void keyedMetadataRetrieval() {
+    // Test to show a user's dataset is retrieved by its key and not confused with another user's
+    // dataset of the same name.
+
+    Metadata other = 
+        Metadata.of("askewc@google.com", "test_dataset", "DELG", "t-SNE", 3, 1596730599770L);
+    metadataStore.storeData(other);
+
+    Assert.assertEquals(other, 
+        metadataStore.retrieveMetadata("test_dataset", "askewc@google.com"));
+    Assert.assertEquals(7, metadataStore
+        .retrieveMetadata("test_dataset", "johndallard@google.com").numberOfImages());
+    Assert.assertNull(metadataStore.retrieveMetadata("gundams", "johndallard@google.com"));
+  }
+
+  @Test
+  public void storeAllAndRetrieveMany() {
+    // Test to show datasets stored in one batch come back from one batched lookup, without the
+    // ones that don't exist.
+
+    List<Metadata> batch = new ArrayList<Metadata>();
+    for (int i = 0; i < 1200; i++) {
+      batch.add(Metadata.of("bulk@google.com", "set" + i, "DELG", "t-SNE", i, 1596730599800L + i));
+    }
+    metadataStore.storeAll(batch);
+
+    Map<String, Metadata> found = metadataStore.retrieveMany(
+        ImmutableList.of("set0", "set1199", "missing"), "bulk@google.com");
+    Assert.assertEquals(2, found.size());
+    Assert.assertEquals(batch.get(1199), found.get("set1199"));
+    Assert.assertEquals(1200, metadataStore.getUsersDatasets("bulk@google.com").size());
+  }
+
+  @Test
+  public void pagedDatasetListing() {
+    // Test to show following cursors page through the same names getUsersDatasets() returns.
+
+    DatasetPage first = metadataStore.getUsersDatasets("johndallard@google.com", null, 4);
+    Assert.assertEquals(ImmutableList.of("johnnys_first_dataset", "test_testerson", "my_set",
+        "latest_and_greatest"), first.names());
+    Assert.assertNotNull(first.nextCursor());
+
+    DatasetPage second = metadataStore.getUsersDatasets(
+        "johndallard@google.com", first.nextCursor(), 4);
+    Assert.assertEquals(ImmutableList.of("set_five", "test_dataset"), second.names());
+    Assert.assertNull(second.nextCursor());
+
+    DatasetPage exact = metadataStore.getUsersDatasets("askewc@google.com", null, 1);
+    Assert.assertEquals(ImmutableList.of("gundams"), exact.names());
+    Assert.assertNull(exact.nextCursor());
+  }
+
+  @Test
+  public void appendedGenerationReplacesDataset() {
+    // Test to show an append is stored as the dataset's next generation, replacing the old one
+    // without listing the dataset twice.
+
+    Metadata first = metadataStore.retrieveMetadata("test_dataset", "johndallard@google.com");
+    Assert.assertEquals(1, first.generation());
+    Metadata appended = first.appended(5, 1596730599999L);
+    metadataStore.storeData(appended);
+
+    Metadata found = metadataStore.retrieveMetadata("test_dataset", "johndallard@google.com");
+    Assert.assertEquals(appended, found);
+    Assert.assertEquals(2, found.generation());
+    Assert.assertEquals(first.numberOfImages() + 5, found.numberOfImages());
+    Assert.assertEquals(6, metadataStore.getUsersDatasets("johndallard@google.com").size());
+  }
+
+  @Test
+  public void appendBuildsOnStoredGeneration() {
+    // Test to show each append counts on top of the generation stored before it, and a dataset
+    // that doesn't exist isn't created by one.
+
+    metadataStore.append("test_dataset", "johndallard@google.com", 5, 1596730599999L);
+    Metadata found =
+        metadataStore.append("test_dataset", "johndallard@google.com", 2, 1596730600000L);
+
+    Assert.assertEquals(3, found.generation());
+    Assert.assertEquals(14, found.numberOfImages());
+    Assert.assertEquals(found,
+        metadataStore.retrieveMetadata("test_dataset", "johndallard@google.com"));
+    Assert.assertNull(metadataStore.append("not_my_set", "johndallard@google.com", 1, 0));
+    Assert.assertFalse(metadataStore.metadataExists("not_my_set", "johndallard@google.com"));
+  }
+
+  @Test
+  public void storeIfAbsentKeepsExistingDataset() {
+    // Test to show a dataset is only stored if the user has none of that name, whoever else
+    // has one.
+
+    Metadata taken = Metadata.of("johndallard@google.com", "test_dataset", "DELG", "t-SNE", 1, 0);
+    Metadata free = Metadata.of("johndallard@google.com", "new_set", "DELG", "t-SNE", 1, 0);
+    Metadata other = Metadata.of("someone@google.com", "test_dataset", "DELG", "t-SNE", 1, 0);
+
+    Assert.assertFalse(metadataStore.storeIfAbsent(taken));
+    Assert.assertTrue(metadataStore.storeIfAbsent(free));
+    Assert.assertFalse(metadataStore.storeIfAbsent(free));
+    Assert.assertTrue(metadataStore.storeIfAbsent(other));
+
+    Assert.assertEquals(7, metadataStore.retrieveMetadata("test_dataset", "johndallard@google.com")
+        .numberOfImages());
+    Assert.assertEquals(free, metadataStore.retrieveMetadata("new_set", "johndallard@google.com"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidCursorRejected() {
+    // Test to show a cursor this store didn't hand out is rejected.
+
+    metadataStore.getUsersDatasets("johndallard@google.com", "not a cursor", 4);
+  }
+
+  private void seed() {
+    Metadata metadata1 = 
+        Metadata.of("johndallard@google.com", "johnnys_first_dataset", 
+        "DELG", "t-SNE", 12, 1596646266299L);
+
+    Metadata metadata2 = 
+        Metadata.of("askewc@google.com", "gundams", "DELG", "t-SNE", 5, 1596484244221L);
+
+    Metadata metadata3 = 
+        Metadata.of("johndallard@google.com", "my_set", "DELG", "t-SNE", 30, 1596666738747L);
+
+    Metadata metadata4 = 
+        Metadata.of("johndallard@google.com", "test_dataset", "DELG", "t-SNE", 7, 1596730599767L);
+    
+    Metadata metadata5 = 
+        Metadata.of("johndallard@google.com", "set_five", "DELG", "t-SNE", 100, 1596668868234L);
+
+    Metadata metadata6 = 
+        Metadata.of("johndallard@google.com", "test_testerson", 
+        "DELG", "t-SNE", 42, 1596661024776L);
+
+    Metadata metadata7 = 
+        Metadata.of("johndallard@google.com", "latest_and_greatest", 
+        "DELG", "t-SNE", 77, 1596668419537L);
+
+    metadataStore.storeData(metadata1);
+    metadataStore.storeData(metadata2);
+    metadataStore.storeData(metadata3);
+    metadataStore.storeData(metadata4);
+    metadataStore.storeData(metadata5);
+    metadataStore.storeData(metadata6);
+    metadataStore.storeData(metadata7);
+  }
+}
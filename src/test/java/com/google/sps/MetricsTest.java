@@ -0,0 +1,102 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.sps.servlets.InstrumentedMetadataStore;
+import com.google.sps.servlets.LatencyHistogram;
+import com.google.sps.servlets.Metrics;
+
+public class MetricsTest {
+
+  @Test
+  public void histogramBucketsAreCumulative() throws IOException {
+    // Test to show each bucket line counts every value at or below its bound, in seconds.
+
+    Metrics metrics = new Metrics();
+    LatencyHistogram histogram = metrics.histogram("test_seconds", "Test.", "servlet", "/a");
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(200));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(40));
+    histogram.record(TimeUnit.SECONDS.toNanos(60));
+
+    String text = write(metrics);
+    Assert.assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+    Assert.assertTrue(text.contains("test_seconds_bucket{servlet=\"/a\",le=\"5.0E-4\"} 1\n"));
+    Assert.assertTrue(text.contains("test_seconds_bucket{servlet=\"/a\",le=\"0.001\"} 2\n"));
+    Assert.assertTrue(text.contains("test_seconds_bucket{servlet=\"/a\",le=\"0.05\"} 3\n"));
+    Assert.assertTrue(text.contains("test_seconds_bucket{servlet=\"/a\",le=\"30.0\"} 3\n"));
+    Assert.assertTrue(text.contains("test_seconds_bucket{servlet=\"/a\",le=\"+Inf\"} 4\n"));
+    Assert.assertTrue(text.contains("test_seconds_sum{servlet=\"/a\"} 60.0412\n"));
+    Assert.assertTrue(text.contains("test_seconds_count{servlet=\"/a\"} 4\n"));
+  }
+
+  @Test
+  public void instrumentsAreShared() throws IOException {
+    // Test to show asking again for a name and labels returns the same instrument, escaped once.
+
+    Metrics metrics = new Metrics();
+    metrics.counter("test_total", "Test.", "path", "a\"b").increment();
+    metrics.counter("test_total", "Test.", "path", "a\"b").add(2);
+    metrics.counter("test_total", "Test.", "path", "c").increment();
+
+    String text = write(metrics);
+    Assert.assertTrue(text.contains("test_total{path=\"a\\\"b\"} 3\n"));
+    Assert.assertTrue(text.contains("test_total{path=\"c\"} 1\n"));
+    Assert.assertSame(metrics.histogram("test_seconds", "Test."),
+        metrics.histogram("test_seconds", "Test."));
+  }
+
+  @Test
+  public void metadataStoreCallsAreTimed() throws IOException {
+    // Test to show the instrumented store times each call by layer and method, failed or not.
+
+    Metrics metrics = new Metrics();
+    MetadataStore delegate = mock(MetadataStore.class);
+    when(delegate.metadataExists("dataset", "user")).thenReturn(true);
+    when(delegate.retrieveMetadata("missing")).thenThrow(new IllegalStateException());
+    MetadataStore store = new InstrumentedMetadataStore(delegate, metrics, "cache");
+
+    Assert.assertTrue(store.metadataExists("dataset", "user"));
+    try {
+      store.retrieveMetadata("missing");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // Still timed
+    }
+
+    String text = write(metrics);
+    Assert.assertTrue(text.contains(
+        "metadata_store_call_seconds_count{layer=\"cache\",method=\"metadataExists\"} 1\n"));
+    Assert.assertTrue(text.contains(
+        "metadata_store_call_seconds_count{layer=\"cache\",method=\"retrieveMetadata\"} 1\n"));
+    Assert.assertTrue(text.contains(
+        "metadata_store_call_seconds_count{layer=\"cache\",method=\"storeData\"} 0\n"));
+  }
+
+  private static String write(Metrics metrics) throws IOException {
+    StringWriter out = new StringWriter();
+    metrics.write(out);
+    return out.toString();
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.sps.servlets.Npy;
+
+public class NpyTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readsFloat32() throws Exception {
+    // Test to show a little-endian float32 vector, as written by np.save, is read in order.
+
+    ByteBuffer npy = npy("{'descr': '<f4', 'fortran_order': False, 'shape': (3,), }", 4, 3,
+        ByteOrder.LITTLE_ENDIAN);
+    npy.putFloat(1.5f).putFloat(-2f).putFloat(0.25f).flip();
+
+    Assert.assertArrayEquals(new float[] {1.5f, -2f, 0.25f}, Npy.readFloats(npy), 0f);
+  }
+
+  @Test
+  public void readsBigEndianFloat64Matrix() throws Exception {
+    // Test to show float64 values are narrowed, and a 2-D array is read as its elements.
+
+    ByteBuffer npy = npy("{'descr': '>f8', 'fortran_order': False, 'shape': (2, 2), }", 8, 4,
+        ByteOrder.BIG_ENDIAN);
+    npy.putDouble(1).putDouble(2).putDouble(3).putDouble(4).flip();
+
+    Assert.assertArrayEquals(new float[] {1f, 2f, 3f, 4f}, Npy.readFloats(npy), 0f);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsIntegers() throws Exception {
+    // Test to show unsupported dtypes are refused rather than misread.
+
+    ByteBuffer npy = npy("{'descr': '<i8', 'fortran_order': False, 'shape': (1,), }", 8, 1,
+        ByteOrder.LITTLE_ENDIAN);
+    npy.putLong(7).flip();
+    Npy.readFloats(npy);
+  }
+
+  @Test
+  public void writtenFileMapsBack() throws Exception {
+    // Test to show a written matrix maps back with its shape and values, data aligned to 64.
+
+    Path path = folder.newFile("matrix.npy").toPath();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      Npy.write(channel, new float[] {1, 2, 3, 4, 5, 6}, 2, 3);
+    }
+
+    Npy.MappedArray array = Npy.map(path);
+    Assert.assertArrayEquals(new long[] {2, 3}, array.shape());
+    Assert.assertEquals(6, array.data().remaining());
+    Assert.assertEquals(6f, array.data().get(5), 0f);
+    Assert.assertEquals(0, Npy.header(2, 3).remaining() % 64);
+    Assert.assertArrayEquals(new float[] {1, 2, 3, 4, 5, 6},
+        Npy.readFloats(ByteBuffer.wrap(Files.readAllBytes(path))), 0f);
+  }
+
+  @Test
+  public void vectorHeaderMatchesNumpy() throws Exception {
+    // Test to show a one dimensional shape is written as a Python one-element tuple.
+
+    ByteBuffer header = Npy.header(2048);
+    String text = new String(header.array(), 10, header.remaining() - 10,
+        StandardCharsets.ISO_8859_1);
+    Assert.assertTrue(text, text.startsWith(
+        "{'descr': '<f4', 'fortran_order': False, 'shape': (2048,), }"));
+    Assert.assertTrue(text.endsWith("\n"));
+  }
+
+  /** Builds a version 1.0 .npy file with room for count elements after the header. */
+  static ByteBuffer npy(String dictionary, int elementSize, int count, ByteOrder order) {
+    byte[] header = dictionary.getBytes(StandardCharsets.ISO_8859_1);
+    ByteBuffer buffer = ByteBuffer.allocate(10 + header.length + elementSize * count);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.ISO_8859_1));
+    buffer.put((byte) 1).put((byte) 0).putShort((short) header.length).put(header);
+    return buffer.order(order);
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.collect.ImmutableMap;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.PackedCoordinates;
+
+public class PackedCoordinatesTest {
+
+  private static final BlobId JSON_ID = BlobId.of("bucket", "user/set/coordinates.json");
+  private static final String JSON = "{\"points\": "
+      + "[{\"x\": 1.5, \"y\": -2.0, \"z\": 3.0}, {\"x\": \"-4.0\", \"y\": 5, \"z\": 0}]}";
+
+  private Storage storage;
+  private PackedCoordinates packedCoordinates;
+
+  @Before
+  public void setUp() {
+    storage = LocalStorageHelper.getOptions().getService();
+    packedCoordinates = new PackedCoordinates(storage);
+  }
+
+  @Test
+  public void parsesPointsInOrder() throws Exception {
+    // Test to show coordinates are read in file order, including numeric strings.
+
+    float[] points = PackedCoordinates.parsePoints(new StringReader(JSON));
+    Assert.assertArrayEquals(new float[] {1.5f, -2f, 3f, -4f, 5f, 0f}, points, 0f);
+  }
+
+  @Test
+  public void packedLayout() {
+    // Test to show the header carries the magic, version, count and bounds before the points.
+
+    ByteBuffer buffer = PackedCoordinates.pack(new float[] {1.5f, -2f, 3f, -4f, 5f, 0f})
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    Assert.assertEquals(PackedCoordinates.HEADER_BYTES + 24, buffer.remaining());
+    Assert.assertEquals('T', buffer.get(0));
+    Assert.assertEquals('E', buffer.get(3));
+    Assert.assertEquals(PackedCoordinates.VERSION, buffer.getInt(4));
+    Assert.assertEquals(2, buffer.getInt(8));
+    Assert.assertEquals(-4f, buffer.getFloat(12), 0f);
+    Assert.assertEquals(-2f, buffer.getFloat(16), 0f);
+    Assert.assertEquals(0f, buffer.getFloat(20), 0f);
+    Assert.assertEquals(1.5f, buffer.getFloat(24), 0f);
+    Assert.assertEquals(5f, buffer.getFloat(28), 0f);
+    Assert.assertEquals(3f, buffer.getFloat(32), 0f);
+    Assert.assertEquals(1.5f, buffer.getFloat(PackedCoordinates.HEADER_BYTES), 0f);
+    Assert.assertEquals(0f, buffer.getFloat(PackedCoordinates.HEADER_BYTES + 20), 0f);
+  }
+
+  @Test
+  public void transcodedOncePerGeneration() throws Exception {
+    // Test to show the packed copy is reused while it was built from the current generation of
+    // coordinates.json, and rebuilt once it wasn't.
+
+    writeJson(JSON);
+    BlobId packedId = packedCoordinates.packedBlob(JSON_ID);
+    Assert.assertEquals("user/set/coordinates.bin", packedId.getName());
+    Assert.assertEquals(PackedCoordinates.HEADER_BYTES + 24, packedSize(packedId));
+
+    // The in-memory storage keeps the same generation across rewrites, so this is served from
+    // the existing packed copy
+    writeJson("{\"points\": []}");
+    packedCoordinates.packedBlob(JSON_ID);
+    Assert.assertEquals(PackedCoordinates.HEADER_BYTES + 24, packedSize(packedId));
+
+    // A packed copy tagged with another generation is stale
+    BlobInfo stalePacked = BlobInfo.newBuilder(packedId)
+        .setMetadata(ImmutableMap.of(PackedCoordinates.SOURCE_GENERATION, "0")).build();
+    try (WriteChannel writer = storage.writer(stalePacked)) {
+      writer.write(ByteBuffer.wrap(new byte[1]));
+    }
+    packedCoordinates.packedBlob(JSON_ID);
+    Assert.assertEquals(PackedCoordinates.HEADER_BYTES, packedSize(packedId));
+  }
+
+  @Test
+  public void missingJson() throws Exception {
+    // Test to show nothing is packed for a dataset without coordinates.
+
+    Assert.assertNull(packedCoordinates.packedBlob(JSON_ID));
+  }
+
+  /** Writes coordinates.json through a WriteChannel, which gives it a new generation. */
+  private void writeJson(String json) throws Exception {
+    try (WriteChannel writer = storage.writer(BlobInfo.newBuilder(JSON_ID).build())) {
+      writer.write(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  private long packedSize(BlobId packedId) {
+    return storage.get(packedId).getSize();
+  }
+}
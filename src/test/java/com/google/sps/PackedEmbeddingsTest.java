@@ -0,0 +1,134 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.sps.servlets.PackedEmbeddings;
+
+public class PackedEmbeddingsTest {
+
+  private static final String PREFIX = "user/set/embeddings/";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Storage storage;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = LocalStorageHelper.getOptions().getService();
+    executor = Executors.newFixedThreadPool(4);
+    writeEmbedding("b.jpg", 3, 4);
+    writeEmbedding("a.jpg", 1, 0);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void compactsOnceThenMaps() throws Exception {
+    // Test to show the first open compacts, and later opens map the packed copy directly.
+
+    PackedEmbeddings packed = new PackedEmbeddings(storage, executor, folder.getRoot().toPath());
+    PackedEmbeddings.Source source = packed.describe("bucket", PREFIX);
+    Assert.assertTrue(source.needsCompaction());
+    Assert.assertEquals(2, source.rows());
+    Assert.assertEquals(2, source.dimension());
+
+    EmbeddingMatrix matrix = packed.open(source);
+    Assert.assertEquals("a.jpg", matrix.name(0));
+    Assert.assertEquals(0.6f, matrix.similarity(0, 1), 1e-6f);
+    Assert.assertEquals("user/set/packed/embeddings.npy", PackedEmbeddings.matrixName(PREFIX));
+    Assert.assertNotNull(storage.get(BlobId.of("bucket", PackedEmbeddings.indexName(PREFIX))));
+
+    // A fresh instance with an empty cache downloads the packed copy instead of compacting
+    PackedEmbeddings other = new PackedEmbeddings(storage, executor, folder.newFolder().toPath());
+    source = other.describe("bucket", PREFIX);
+    Assert.assertFalse(source.needsCompaction());
+    Assert.assertEquals(0.6f, other.open(source).similarity(1, 0), 1e-6f);
+  }
+
+  @Test
+  public void newEmbeddingTriggersCompaction() throws Exception {
+    // Test to show the packed copy is rebuilt once the per-image files change.
+
+    File cache = folder.getRoot();
+    PackedEmbeddings packed = new PackedEmbeddings(storage, executor, cache.toPath());
+    packed.open(packed.describe("bucket", PREFIX));
+    writeEmbedding("c.jpg", 0, 1);
+
+    PackedEmbeddings.Source source = packed.describe("bucket", PREFIX);
+    Assert.assertTrue(source.needsCompaction());
+    EmbeddingMatrix matrix = packed.open(source);
+    Assert.assertEquals(3, matrix.size());
+    Assert.assertEquals(2, matrix.row("c.jpg"));
+    Assert.assertEquals(1, cache.list().length);
+  }
+
+  @Test
+  public void recompactionReusesPackedRows() throws Exception {
+    // Test to show rebuilding the packed copy after an append takes the rows it already has
+    // from the old matrix, downloading it if need be, and reads only the new per-image files.
+
+    PackedEmbeddings packed = new PackedEmbeddings(storage, executor, folder.getRoot().toPath());
+    packed.open(packed.describe("bucket", PREFIX));
+    // Rewritten behind the packed copy's back, so reading it again would show
+    writeEmbedding("a.jpg", 0, 1);
+    writeEmbedding("ab.jpg", 0, 1);
+
+    PackedEmbeddings other = new PackedEmbeddings(storage, executor, folder.newFolder().toPath());
+    EmbeddingMatrix matrix = other.open(other.describe("bucket", PREFIX));
+    Assert.assertEquals(3, matrix.size());
+    Assert.assertEquals(1, matrix.row("ab.jpg"));
+    Assert.assertArrayEquals(new float[] {1, 0}, matrix.vector(matrix.row("a.jpg")), 0);
+    Assert.assertArrayEquals(new float[] {0, 1}, matrix.vector(matrix.row("ab.jpg")), 0);
+  }
+
+  @Test
+  public void noEmbeddings() throws Exception {
+    // Test to show a dataset without embeddings can't be described.
+
+    PackedEmbeddings packed = new PackedEmbeddings(storage, executor, folder.getRoot().toPath());
+    Assert.assertNull(packed.describe("bucket", "user/other/embeddings/"));
+  }
+
+  private void writeEmbedding(String image, float x, float y) throws Exception {
+    ByteBuffer npy = NpyTest.npy("{'descr': '<f4', 'fortran_order': False, 'shape': (2,), }",
+        4, 2, ByteOrder.LITTLE_ENDIAN);
+    npy.putFloat(x).putFloat(y).flip();
+    try (WriteChannel writer =
+        storage.writer(BlobInfo.newBuilder("bucket", PREFIX + image + ".npy").build())) {
+      writer.write(npy);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.ParallelUploader;
+import com.google.sps.servlets.ParallelUploader.UploadResult;
+
+public class ParallelUploaderTest {
+
+  private static final String BUCKET_NAME = "test-bucket";
+
+  private Storage storage;
+  private ExecutorService executor;
+  private ParallelUploader uploader;
+
+  @Before
+  public void setUp() {
+    storage = LocalStorageHelper.getOptions().getService();
+    executor = Executors.newFixedThreadPool(4);
+    uploader = new ParallelUploader(storage, executor, 2, 3, 10000);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void uploadsEveryObject() {
+    // Test to show every object in the batch is streamed to storage with its contents.
+
+    Map<String, ByteSource> objects = new LinkedHashMap<String, ByteSource>();
+    for (int i = 0; i < 20; i++) {
+      objects.put("user/set/original_images/" + i + ".jpg", ByteSource.wrap(bytes("image" + i)));
+    }
+
+    UploadResult result = uploader.upload(BUCKET_NAME, objects);
+
+    Assert.assertEquals(20, result.uploaded().size());
+    Assert.assertTrue(result.failures().isEmpty());
+    Assert.assertArrayEquals(bytes("image7"),
+        storage.readAllBytes(BlobId.of(BUCKET_NAME, "user/set/original_images/7.jpg")));
+  }
+
+  @Test
+  public void failedObjectReportedWithoutFailingBatch() {
+    // Test to show an object that keeps failing is retried, then reported on its own, and is
+    // left out of the uploaded count.
+
+    AtomicInteger attempts = new AtomicInteger();
+    ByteSource broken = new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        attempts.incrementAndGet();
+        throw new IOException("connection reset");
+      }
+    };
+    Map<String, ByteSource> objects = new LinkedHashMap<String, ByteSource>();
+    objects.put("a.jpg", ByteSource.wrap(bytes("a")));
+    objects.put("broken.jpg", broken);
+    objects.put("c.jpg", ByteSource.wrap(bytes("c")));
+
+    UploadResult result = uploader.upload(BUCKET_NAME, objects);
+
+    Assert.assertEquals(2, result.uploaded().size());
+    Assert.assertEquals(1, result.failures().size());
+    Assert.assertTrue(result.failures().containsKey("broken.jpg"));
+    Assert.assertEquals(3, attempts.get());
+    Assert.assertNull(storage.get(BlobId.of(BUCKET_NAME, "broken.jpg")));
+  }
+
+  @Test
+  public void transientFailureRetried() {
+    // Test to show an object that fails once is written on the next attempt.
+
+    AtomicInteger attempts = new AtomicInteger();
+    ByteSource flaky = new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        if (attempts.incrementAndGet() == 1) {
+          throw new IOException("connection reset");
+        }
+        return ByteSource.wrap(bytes("flaky")).openStream();
+      }
+    };
+    Map<String, ByteSource> objects = new LinkedHashMap<String, ByteSource>();
+    objects.put("flaky.jpg", flaky);
+
+    UploadResult result = uploader.upload(BUCKET_NAME, objects);
+
+    Assert.assertEquals(1, result.uploaded().size());
+    Assert.assertArrayEquals(bytes("flaky"),
+        storage.readAllBytes(BlobId.of(BUCKET_NAME, "flaky.jpg")));
+  }
+
+  @Test
+  public void deletesEveryObject() {
+    // Test to show a delete batch removes the objects, and counts missing ones as deleted.
+
+    Map<String, ByteSource> objects = new LinkedHashMap<String, ByteSource>();
+    objects.put("a.jpg", ByteSource.wrap(bytes("a")));
+    objects.put("b.jpg", ByteSource.wrap(bytes("b")));
+    uploader.upload(BUCKET_NAME, objects);
+
+    UploadResult result =
+        uploader.delete(BUCKET_NAME, ImmutableList.of("a.jpg", "b.jpg", "missing.jpg"));
+
+    Assert.assertEquals(ImmutableList.of("a.jpg", "b.jpg", "missing.jpg"), result.uploaded());
+    Assert.assertNull(storage.get(BlobId.of(BUCKET_NAME, "a.jpg")));
+    Assert.assertNull(storage.get(BlobId.of(BUCKET_NAME, "b.jpg")));
+  }
+
+  private static byte[] bytes(String contents) {
+    return contents.getBytes(StandardCharsets.UTF_8);
+  }
+}
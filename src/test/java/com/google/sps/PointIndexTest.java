@@ -0,0 +1,158 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.PointIndex;
+
+public class PointIndexTest {
+
+  private static final int POINTS = 5000;
+
+  private float[] coordinates;
+  private PointIndex index;
+
+  @Before
+  public void setUp() {
+    Random random = new Random(42);
+    coordinates = new float[3 * POINTS];
+    for (int i = 0; i < coordinates.length; i++) {
+      coordinates[i] = random.nextFloat() * 200 - 100;
+    }
+    index = PointIndex.build(coordinates);
+  }
+
+  @Test
+  public void boxMatchesBruteForce() {
+    // Test to show a box query returns exactly the points inside the box.
+
+    int[] result = index.queryBox(-20, -50, 0, 30, 10, 60);
+
+    Set<Integer> expected = new HashSet<Integer>();
+    for (int i = 0; i < POINTS; i++) {
+      if (x(i) >= -20 && y(i) >= -50 && z(i) >= 0 && x(i) <= 30 && y(i) <= 10 && z(i) <= 60) {
+        expected.add(i);
+      }
+    }
+    Assert.assertEquals(expected, toSet(result));
+    Assert.assertEquals(expected.size(), result.length);
+  }
+
+  @Test
+  public void frustumMatchesBruteForce() {
+    // Test to show a frustum query returns exactly the points on the inside of every plane.
+
+    float[] planes = {
+        1, 0, 0, 50,     // x >= -50
+        -1, 0, 0, 50,    // x <= 50
+        0, 1, 0, 80,     // y >= -80
+        0, -1, 0, 20,    // y <= 20
+        0.5f, 0.5f, 0.7f, 10,
+        0, 0, -1, 90};   // z <= 90
+
+    int[] result = index.queryFrustum(planes);
+
+    Set<Integer> expected = new HashSet<Integer>();
+    for (int i = 0; i < POINTS; i++) {
+      boolean inside = true;
+      for (int p = 0; p < 24; p += 4) {
+        inside &= planes[p] * x(i) + planes[p + 1] * y(i) + planes[p + 2] * z(i) + planes[p + 3]
+            >= 0;
+      }
+      if (inside) {
+        expected.add(i);
+      }
+    }
+    Assert.assertEquals(expected, toSet(result));
+    Assert.assertEquals(expected.size(), result.length);
+  }
+
+  @Test
+  public void nearestMatchesBruteForce() {
+    // Test to show the k nearest neighbours are found, nearest first.
+
+    int[] result = index.nearest(3, -7, 12, 10);
+
+    Integer[] all = new Integer[POINTS];
+    for (int i = 0; i < POINTS; i++) {
+      all[i] = i;
+    }
+    Arrays.sort(all, (a, b) -> Float.compare(distance(a, 3, -7, 12), distance(b, 3, -7, 12)));
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals((int) all[i], result[i]);
+    }
+  }
+
+  @Test
+  public void sampleRespectsBudget() {
+    // Test to show sampling returns distinct points within the budget, and that a larger budget
+    // refines a smaller one.
+
+    int[] small = index.sample(100, null);
+    int[] large = index.sample(1000, null);
+    int[] everything = index.sample(POINTS * 2, null);
+
+    Assert.assertEquals(100, toSet(small).size());
+    Assert.assertEquals(1000, toSet(large).size());
+    Assert.assertEquals(POINTS, toSet(everything).size());
+    Assert.assertTrue(toSet(large).containsAll(toSet(small)));
+
+    float[] box = {0, 0, 0, 100, 100, 100};
+    for (int i : index.sample(50, box)) {
+      Assert.assertTrue(x(i) >= 0 && y(i) >= 0 && z(i) >= 0);
+    }
+  }
+
+  @Test
+  public void emptyIndex() {
+    // Test to show an index over no points answers every query with nothing.
+
+    PointIndex empty = PointIndex.build(new float[0]);
+    Assert.assertEquals(0, empty.queryBox(-1, -1, -1, 1, 1, 1).length);
+    Assert.assertEquals(0, empty.nearest(0, 0, 0, 5).length);
+    Assert.assertEquals(0, empty.sample(5, null).length);
+  }
+
+  private float x(int i) {
+    return coordinates[3 * i];
+  }
+
+  private float y(int i) {
+    return coordinates[3 * i + 1];
+  }
+
+  private float z(int i) {
+    return coordinates[3 * i + 2];
+  }
+
+  private float distance(int i, float x, float y, float z) {
+    return (x(i) - x) * (x(i) - x) + (y(i) - y) * (y(i) - y) + (z(i) - z) * (z(i) - z);
+  }
+
+  private static Set<Integer> toSet(int[] values) {
+    Set<Integer> set = new HashSet<Integer>();
+    for (int value : values) {
+      set.add(value);
+    }
+    return set;
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Mockito.mock;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.collect.ImmutableList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.ServiceRegistry;
+
+public class ServiceRegistryTest {
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private ServiceRegistry services;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    Storage storage = LocalStorageHelper.getOptions().getService();
+    services = new ServiceRegistry(storage, DatastoreServiceFactory.getDatastoreService(),
+        UserServiceFactory.getUserService(), mock(BlobstoreService.class));
+  }
+
+  @After
+  public void tearDown() {
+    services.shutdown();
+    helper.tearDown();
+  }
+
+  @Test
+  public void componentsAreShared() {
+    // Test to show every servlet gets the same component, created once and timed.
+
+    Assert.assertSame(services.metadataStore(), services.metadataStore());
+    Assert.assertSame(services.asyncRetrieval(), services.asyncRetrieval());
+    Assert.assertTrue(services.startupTimings().containsKey("metadata-store"));
+    Assert.assertTrue(services.startupTimings().containsKey("async-retrieval"));
+    Assert.assertFalse(services.startupTimings().containsKey("tsne-coordinates"));
+  }
+
+  @Test
+  public void warmUpCreatesEverything() {
+    // Test to show warmup creates every component and times each step, even a failing one.
+
+    Map<String, Long> timings = services.warmUp(ImmutableList.of("no-such-bucket"));
+
+    for (String name : ImmutableList.of("metadata-store", "uploader", "spritesheet-assembler",
+        "similarity-search", "tsne-coordinates", "warmup-components", "warmup-classes",
+        "warmup-datastore", "warmup-storage")) {
+      Assert.assertTrue(name, timings.containsKey(name));
+    }
+  }
+
+  @Test
+  public void shutdownStopsPools() {
+    // Test to show shutting the registry down stops the pools it manages.
+
+    ExecutorService pool = services.manage(Executors.newSingleThreadExecutor());
+    services.spritesheetAssembler();
+
+    services.shutdown();
+    Assert.assertTrue(pool.isShutdown());
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures exact and approximate similarity search latency, and the recall@k of the
+ * approximate index at several beam widths, on clustered random embeddings. Not run by
+ * surefire; run it with
+ *
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *       com.google.sps.servlets.SimilaritySearchBenchmark [rows] [dimension] [threads]
+ * </pre>
+ */
+public class SimilaritySearchBenchmark {
+
+  private static final int DEFAULT_ROWS = 100000;
+  private static final int DEFAULT_DIMENSION = 128;
+  private static final int QUERIES = 500;
+  private static final int K = 10;
+  private static final int[] EF_SEARCH = {16, 32, 64, 128, 256};
+
+  public static void main(String[] args) throws Exception {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+    int dimension = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DIMENSION;
+    int threads = args.length > 2
+        ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      EmbeddingMatrix matrix = HnswIndexTest.randomMatrix(rows, dimension, 7);
+
+      long start = System.nanoTime();
+      HnswIndex index = HnswIndex.build(
+          matrix, HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION, executor);
+      System.out.printf("%d x %d, %d threads: graph built in %d ms, %d MB%n", rows, dimension,
+          threads, (System.nanoTime() - start) / 1000000, index.bytes() >> 20);
+
+      int[][] truth = new int[QUERIES][];
+      start = System.nanoTime();
+      for (int query = 0; query < QUERIES; query++) {
+        truth[query] = matrix.nearest(query, K, executor);
+      }
+      System.out.printf("exact: %.3f ms/query%n",
+          (System.nanoTime() - start) / 1e6 / QUERIES);
+
+      for (int ef : EF_SEARCH) {
+        int found = 0;
+        start = System.nanoTime();
+        for (int query = 0; query < QUERIES; query++) {
+          int[] approximate = index.nearest(query, K, ef);
+          for (int candidate : approximate) {
+            for (int expected : truth[query]) {
+              found += candidate == expected ? 1 : 0;
+            }
+          }
+        }
+        System.out.printf("hnsw ef=%d: %.3f ms/query, recall@%d %.4f%n", ef,
+            (System.nanoTime() - start) / 1e6 / QUERIES, K, found / (double) (QUERIES * K));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.sps.servlets.SimilaritySearch;
+
+public class SimilaritySearchTest {
+
+  private static final String PREFIX = "user/set/embeddings/";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Storage storage;
+  private ExecutorService executor;
+  private Path cache;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = LocalStorageHelper.getOptions().getService();
+    executor = Executors.newFixedThreadPool(4);
+    cache = folder.getRoot().toPath();
+    writeEmbedding("b.jpg", 0, 1, 0);
+    writeEmbedding("a.jpg", 1, 0, 0);
+    writeEmbedding("c.jpg", 0.9f, 0.2f, 0);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void loadsEmbeddingsInNameOrder() throws Exception {
+    // Test to show rows follow the sorted embedding names, like coordinates.json does.
+
+    SimilaritySearch search =
+        new SimilaritySearch(storage, executor, cache, 1 << 20, 100, 16, 60000);
+    SimilaritySearch.Index index = search.index("bucket", PREFIX);
+
+    Assert.assertEquals(3, index.matrix().size());
+    Assert.assertEquals("a.jpg", index.matrix().name(0));
+    Assert.assertEquals(1, index.matrix().row("b.jpg"));
+    Assert.assertArrayEquals(new int[] {2, 1}, index.similar(0, 5, false));
+    Assert.assertSame(index, search.index("bucket", PREFIX));
+    Assert.assertNotNull(storage.get("bucket", PackedEmbeddings.matrixName(PREFIX)));
+  }
+
+  @Test
+  public void approximateIndexAboveThreshold() throws Exception {
+    // Test to show datasets at the threshold are answered by the graph with the same results.
+
+    SimilaritySearch search =
+        new SimilaritySearch(storage, executor, cache, 1 << 20, 3, 16, 60000);
+    SimilaritySearch.Index index = search.index("bucket", PREFIX);
+
+    Assert.assertArrayEquals(index.similar(0, 2, true), index.similar(0, 2, false));
+  }
+
+  @Test
+  public void missingDataset() throws Exception {
+    // Test to show a dataset without embeddings has no index.
+
+    SimilaritySearch search =
+        new SimilaritySearch(storage, executor, cache, 1 << 20, 100, 16, 60000);
+    Assert.assertNull(search.index("bucket", "user/other/embeddings/"));
+  }
+
+  @Test(expected = SimilaritySearch.TooLargeException.class)
+  public void refusesDatasetsOverMemoryLimit() throws Exception {
+    // Test to show a dataset that can't fit in the memory limit is refused.
+
+    new SimilaritySearch(storage, executor, cache, 64, 100, 16, 60000).index("bucket", PREFIX);
+  }
+
+  private void writeEmbedding(String image, float x, float y, float z) throws Exception {
+    ByteBuffer npy = NpyTest.npy("{'descr': '<f4', 'fortran_order': False, 'shape': (3,), }",
+        4, 3, ByteOrder.LITTLE_ENDIAN);
+    npy.putFloat(x).putFloat(y).putFloat(z).flip();
+    try (WriteChannel writer =
+        storage.writer(BlobInfo.newBuilder("bucket", PREFIX + image + ".npy").build())) {
+      writer.write(npy);
+    }
+  }
+}
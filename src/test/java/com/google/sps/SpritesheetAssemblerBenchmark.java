@@ -0,0 +1,130 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+
+/**
+ * Measures SpritesheetAssembler's build time and peak heap growth as the number of thumbnails
+ * grows. Thumbnails live in an in-memory fake bucket, which is counted in the baseline; the
+ * finished sheet is written to the same fake and so counts towards the peak. Not run by
+ * surefire; run it with
+ *
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) \
+ *       com.google.sps.servlets.SpritesheetAssemblerBenchmark [threads] [images...]
+ * </pre>
+ */
+public class SpritesheetAssemblerBenchmark {
+
+  private static final int[] DEFAULT_IMAGES = {1000, 4000, 16000};
+  private static final int CELL_SIZE = 64;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0
+        ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int[] sizes = DEFAULT_IMAGES;
+    if (args.length > 1) {
+      sizes = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        sizes[i - 1] = Integer.parseInt(args[i]);
+      }
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int images : sizes) {
+        Storage storage = LocalStorageHelper.getOptions().getService();
+        for (int i = 0; i < images; i++) {
+          writeThumbnail(storage, String.format("user/set/thumbnails/photo%06d.png", i), i);
+        }
+        SpritesheetAssembler assembler = new SpritesheetAssembler(storage, executor, CELL_SIZE);
+        BlobId sheetId = BlobId.of("sheets", "user/set/spritesheets/spritesheet.png");
+
+        long baseline = heapUsedAfterGc();
+        resetPeaks();
+        long start = System.nanoTime();
+        SpritesheetAssembler.Layout layout =
+            assembler.build("bucket", "user/set/thumbnails/", sheetId, images);
+        long elapsed = System.nanoTime() - start;
+        long peak = peakHeap() - baseline;
+
+        System.out.printf("%d images (%dx%d cells), %d threads: %d ms (%.1f us/image), "
+            + "peak heap +%d MB (%.1f KB/image), sheet %d KB%n", images, layout.columns,
+            layout.rows, threads, elapsed / 1000000, elapsed / 1e3 / images, peak >> 20,
+            peak / 1024.0 / images, storage.get(sheetId).getSize() >> 10);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** A smooth gradient with some per-image variation, so it compresses like a photo would. */
+  private static void writeThumbnail(Storage storage, String name, int seed) throws Exception {
+    BufferedImage image = new BufferedImage(CELL_SIZE, CELL_SIZE, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < CELL_SIZE; y++) {
+      for (int x = 0; x < CELL_SIZE; x++) {
+        image.setRGB(x, y, ((x * 4 + seed) & 0xff) << 16 | ((y * 4 + seed * 7) & 0xff) << 8
+            | ((x * y + seed * 13) & 0xff));
+      }
+    }
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", png);
+    try (WriteChannel writer = storage.writer(BlobInfo.newBuilder("bucket", name).build())) {
+      writer.write(ByteBuffer.wrap(png.toByteArray()));
+    }
+  }
+
+  private static long heapUsedAfterGc() {
+    System.gc();
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        used += pool.getUsage().getUsed();
+      }
+    }
+    return used;
+  }
+
+  private static void resetPeaks() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,177 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.SpritesheetAssembler;
+
+public class SpritesheetAssemblerTest {
+
+  private static final String PREFIX = "user/set/thumbnails/";
+  private static final BlobId SHEET_ID =
+      BlobId.of("sheets", "user/set/spritesheets/spritesheet.png");
+  private static final Color[] COLORS =
+      {Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.CYAN};
+
+  private Storage storage;
+  private ExecutorService executor;
+  private SpritesheetAssembler assembler;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = LocalStorageHelper.getOptions().getService();
+    executor = Executors.newFixedThreadPool(4);
+    assembler = new SpritesheetAssembler(storage, executor, 64);
+    // Written out of order; the sheet follows name order
+    for (int i = COLORS.length - 1; i >= 0; i--) {
+      writeThumbnail("photo" + i + ".png", i == 2 ? 32 : 64, i == 2 ? 16 : 64, COLORS[i]);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void buildsGridInNameOrder() throws Exception {
+    // Test to show thumbnails fill a 3x2 grid left to right, top to bottom, centered in cells.
+
+    SpritesheetAssembler.Layout layout = assembler.build("bucket", PREFIX, SHEET_ID, 5);
+    Assert.assertEquals(3, layout.columns);
+    Assert.assertEquals(2, layout.rows);
+
+    BufferedImage sheet =
+        ImageIO.read(new ByteArrayInputStream(storage.readAllBytes(SHEET_ID)));
+    Assert.assertEquals(3 * 64, sheet.getWidth());
+    Assert.assertEquals(2 * 64, sheet.getHeight());
+    for (int i = 0; i < COLORS.length; i++) {
+      int x = (i % 3) * 64 + 32;
+      int y = (i / 3) * 64 + 32;
+      Assert.assertEquals(COLORS[i].getRGB(), sheet.getRGB(x, y));
+    }
+    // The 32x16 thumbnail is scaled to 64x32 and centered, and the sixth cell is unused
+    Assert.assertEquals(0, sheet.getRGB(2 * 64 + 32, 5) >>> 24);
+    Assert.assertEquals(0, sheet.getRGB(2 * 64 + 32, 64 + 32) >>> 24);
+  }
+
+  @Test
+  public void waitsForAllThumbnails() throws Exception {
+    // Test to show nothing is built while thumbnails are still missing.
+
+    Assert.assertNull(assembler.build("bucket", PREFIX, SHEET_ID, 6));
+    Assert.assertNull(storage.get(SHEET_ID));
+  }
+
+  @Test
+  public void updateFetchesOnlyNewThumbnails() throws Exception {
+    // Test to show an update after an append copies the cells it has from the old sheet, even if
+    // their thumbnail has since changed, fetches only the new ones and keeps name order.
+
+    assembler.update("bucket", PREFIX, SHEET_ID, 5);
+    writeThumbnail("photo1.png", 64, 64, Color.BLACK);
+    writeThumbnail("photo25.png", 64, 64, Color.MAGENTA);
+    writeThumbnail("photo5.png", 64, 64, Color.ORANGE);
+
+    SpritesheetAssembler.Layout layout = assembler.update("bucket", PREFIX, SHEET_ID, 7);
+    Assert.assertEquals(3, layout.columns);
+    Assert.assertEquals(3, layout.rows);
+
+    BufferedImage sheet =
+        ImageIO.read(new ByteArrayInputStream(storage.readAllBytes(SHEET_ID)));
+    Color[] expected = {Color.RED, Color.GREEN, Color.BLUE, Color.MAGENTA, Color.YELLOW,
+        Color.CYAN, Color.ORANGE};
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i].getRGB(), sheet.getRGB((i % 3) * 64 + 32, (i / 3) * 64 + 32));
+    }
+    // The scaled thumbnail keeps its transparent border
+    Assert.assertEquals(0, sheet.getRGB(2 * 64 + 32, 5) >>> 24);
+
+    // With nothing new, the sheet is left as it is
+    long generation = storage.get(SHEET_ID).getGeneration();
+    assembler.update("bucket", PREFIX, SHEET_ID, 7);
+    Assert.assertEquals(generation, (long) storage.get(SHEET_ID).getGeneration());
+  }
+
+  @Test
+  public void streamedPngRoundTrips() throws Exception {
+    // Test to show rows written one at a time decode to the same pixels, across IDAT chunks,
+    // whether the image is read whole or a row at a time.
+
+    int width = 300;
+    int height = 200;
+    int[] pixels = new int[width * height];
+    Random random = new Random(1);
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = random.nextInt();
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PngStreamWriter png = new PngStreamWriter(out, width, height)) {
+      for (int y = 0; y < height; y++) {
+        png.writeRow(pixels, y * width);
+      }
+    }
+
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    Assert.assertArrayEquals(pixels, image.getRGB(0, 0, width, height, null, 0, width));
+
+    // ImageIO picks a filter per row, so this covers the filters PngStreamWriter doesn't use
+    ByteArrayOutputStream filtered = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", filtered);
+    for (byte[] encoded : new byte[][] {out.toByteArray(), filtered.toByteArray()}) {
+      int[] read = new int[width * height];
+      try (PngStreamReader png = new PngStreamReader(new ByteArrayInputStream(encoded))) {
+        for (int y = 0; y < height; y++) {
+          png.readRow(read, y * width);
+        }
+      }
+      Assert.assertArrayEquals(pixels, read);
+    }
+  }
+
+  private void writeThumbnail(String name, int width, int height, Color color)
+      throws Exception {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, color.getRGB());
+      }
+    }
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", png);
+    try (WriteChannel writer =
+        storage.writer(BlobInfo.newBuilder("bucket", PREFIX + name).build())) {
+      writer.write(ByteBuffer.wrap(png.toByteArray()));
+    }
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.gson.Gson;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.SpritesheetAtlas;
+
+public class SpritesheetAtlasTest {
+
+  private static final String THUMBNAILS = "user/set/thumbnails/";
+  private static final String ATLAS = "user/set/";
+  private static final Color[] COLORS =
+      {Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.MAGENTA};
+
+  private Storage storage;
+  private SpritesheetAtlas atlas;
+
+  @Before
+  public void setUp() throws Exception {
+    storage = LocalStorageHelper.getOptions().getService();
+    // 8px cells in 16px tiles: four thumbnails per tile at level 0, sixteen at level 1
+    atlas = new SpritesheetAtlas(storage, 8, 16);
+    for (int i = 0; i < COLORS.length; i++) {
+      writeThumbnail("photo" + i + ".png", COLORS[i]);
+    }
+  }
+
+  @Test
+  public void layoutLevels() {
+    // Test to show each level halves the cell size until a single tile holds every thumbnail.
+
+    SpritesheetAtlas.Manifest manifest =
+        SpritesheetAtlas.layout(Arrays.asList(new String[300]), 64, 256);
+
+    Assert.assertEquals(4, manifest.levels.size());
+    Assert.assertEquals(16, manifest.levels.get(0).imagesPerTile);
+    Assert.assertEquals(19, manifest.levels.get(0).tileCount);
+    Assert.assertEquals(32, manifest.levels.get(1).cellSize);
+    Assert.assertEquals(5, manifest.levels.get(1).tileCount);
+    Assert.assertEquals(16, manifest.levels.get(2).columns);
+    Assert.assertEquals(2, manifest.levels.get(2).tileCount);
+    Assert.assertEquals(1, manifest.levels.get(3).tileCount);
+  }
+
+  @Test
+  public void mipChainFitsCell() {
+    // Test to show a non-square thumbnail keeps its aspect ratio and halves at each level.
+
+    BufferedImage[] mips =
+        SpritesheetAtlas.mipChain(new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB), 16, 3);
+
+    Assert.assertEquals(16, mips[0].getWidth());
+    Assert.assertEquals(8, mips[0].getHeight());
+    Assert.assertEquals(4, mips[2].getWidth());
+    Assert.assertEquals(2, mips[2].getHeight());
+  }
+
+  @Test
+  public void tilesAndManifestWritten() throws Exception {
+    // Test to show thumbnails land in name order in the expected cell of every level's tiles.
+
+    SpritesheetAtlas.Manifest manifest =
+        atlas.build("thumbs", THUMBNAILS, "atlas", ATLAS, 5, 2);
+
+    Assert.assertEquals(5, manifest.imageCount);
+    Assert.assertEquals(2, manifest.levels.size());
+    Assert.assertEquals(2, manifest.levels.get(0).tileCount);
+    Assert.assertEquals(1, manifest.levels.get(1).tileCount);
+
+    // Level 0: photo1 is the top right cell of tile 0, photo4 the top left of tile 1
+    BufferedImage tile = readTile(0, 0);
+    Assert.assertEquals(Color.RED.getRGB(), tile.getRGB(4, 4));
+    Assert.assertEquals(Color.GREEN.getRGB(), tile.getRGB(12, 4));
+    Assert.assertEquals(Color.YELLOW.getRGB(), tile.getRGB(12, 12));
+    Assert.assertEquals(Color.MAGENTA.getRGB(), readTile(0, 1).getRGB(4, 4));
+    Assert.assertEquals(0, readTile(0, 1).getRGB(12, 4));
+
+    // Level 1: 4px cells, four to a row
+    tile = readTile(1, 0);
+    Assert.assertEquals(Color.BLUE.getRGB(), tile.getRGB(10, 2));
+    Assert.assertEquals(Color.MAGENTA.getRGB(), tile.getRGB(2, 6));
+
+    byte[] json = storage.readAllBytes(
+        BlobId.of("atlas", SpritesheetAtlas.manifestName(ATLAS)));
+    SpritesheetAtlas.Manifest stored = new Gson().fromJson(
+        new String(json, StandardCharsets.UTF_8), SpritesheetAtlas.Manifest.class);
+    Assert.assertEquals(THUMBNAILS + "photo3.png", stored.images.get(3));
+    Assert.assertEquals(4, stored.levels.get(1).columns);
+    Assert.assertEquals(2, SpritesheetAtlas.generationOf(
+        storage.get(BlobId.of("atlas", SpritesheetAtlas.manifestName(ATLAS)))));
+  }
+
+  @Test
+  public void notBuiltWhileThumbnailsMissing() throws Exception {
+    // Test to show nothing is written until every expected thumbnail exists.
+
+    Assert.assertNull(atlas.build("thumbs", THUMBNAILS, "atlas", ATLAS, 6, 1));
+    Assert.assertNull(storage.get(BlobId.of("atlas", SpritesheetAtlas.manifestName(ATLAS))));
+    Assert.assertNull(storage.get(BlobId.of("atlas", SpritesheetAtlas.tileName(ATLAS, 0, 0))));
+  }
+
+  private void writeThumbnail(String name, Color color) throws Exception {
+    BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+    for (int x = 0; x < 8; x++) {
+      for (int y = 0; y < 8; y++) {
+        image.setRGB(x, y, color.getRGB());
+      }
+    }
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", png);
+    try (WriteChannel writer =
+        storage.writer(BlobInfo.newBuilder("thumbs", THUMBNAILS + name).build())) {
+      writer.write(ByteBuffer.wrap(png.toByteArray()));
+    }
+  }
+
+  private BufferedImage readTile(int level, int tile) throws Exception {
+    byte[] png =
+        storage.readAllBytes(BlobId.of("atlas", SpritesheetAtlas.tileName(ATLAS, level, tile)));
+    return ImageIO.read(new ByteArrayInputStream(png));
+  }
+}
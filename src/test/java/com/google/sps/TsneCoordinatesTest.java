@@ -0,0 +1,121 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.sps.servlets.TsneCoordinates;
+
+public class TsneCoordinatesTest {
+
+  private static final String PREFIX = "user/set/embeddings/";
+  private static final BlobId COORDINATES_ID =
+      BlobId.of("coordinates", "user/set/coordinates.json");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Storage storage;
+  private ForkJoinPool pool;
+  private TsneCoordinates coordinates;
+  private Random random = new Random(5);
+
+  @Before
+  public void setUp() throws Exception {
+    storage = LocalStorageHelper.getOptions().getService();
+    pool = new ForkJoinPool(2);
+    coordinates = new TsneCoordinates(storage,
+        new PackedEmbeddings(storage, pool, folder.getRoot().toPath()),
+        new BarnesHutTsne(pool, 5, 0.5, 300));
+    for (int i = 0; i < 30; i++) {
+      writeEmbedding("image" + i + ".jpg");
+    }
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void writesCoordinatesJson() throws Exception {
+    // Test to show the output has one named point per embedding and parses like tsne_embed's.
+
+    Assert.assertEquals(30, coordinates.compute("bucket", PREFIX, COORDINATES_ID, false));
+
+    String json = new String(storage.readAllBytes(COORDINATES_ID), StandardCharsets.UTF_8);
+    Assert.assertEquals(3 * 30, PackedCoordinates.parsePoints(new StringReader(json)).length);
+    Map<String, float[]> points = TsneCoordinates.readNamedPoints(new StringReader(json));
+    Assert.assertEquals(30, points.size());
+    Assert.assertTrue(points.containsKey("image0.jpg"));
+  }
+
+  @Test
+  public void incrementalRunKeepsExistingPoints() throws Exception {
+    // Test to show images placed by an earlier run keep their coordinates.
+
+    coordinates.compute("bucket", PREFIX, COORDINATES_ID, false);
+    Map<String, float[]> before = TsneCoordinates.readNamedPoints(new StringReader(
+        new String(storage.readAllBytes(COORDINATES_ID), StandardCharsets.UTF_8)));
+    writeEmbedding("image30.jpg");
+    writeEmbedding("new.jpg");
+
+    Assert.assertEquals(32, coordinates.compute("bucket", PREFIX, COORDINATES_ID, true));
+    Map<String, float[]> after = TsneCoordinates.readNamedPoints(new StringReader(
+        new String(storage.readAllBytes(COORDINATES_ID), StandardCharsets.UTF_8)));
+    Assert.assertEquals(32, after.size());
+    for (Map.Entry<String, float[]> point : before.entrySet()) {
+      Assert.assertArrayEquals(point.getValue(), after.get(point.getKey()), 0f);
+    }
+  }
+
+  @Test
+  public void noEmbeddings() throws Exception {
+    // Test to show a dataset without embeddings gets no coordinates.
+
+    Assert.assertEquals(-1, coordinates.compute("bucket", "user/other/embeddings/",
+        COORDINATES_ID, false));
+    Assert.assertNull(storage.get(COORDINATES_ID));
+  }
+
+  private void writeEmbedding(String image) throws Exception {
+    ByteBuffer npy = NpyTest.npy("{'descr': '<f4', 'fortran_order': False, 'shape': (4,), }",
+        4, 4, ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < 4; i++) {
+      npy.putFloat((float) random.nextGaussian());
+    }
+    npy.flip();
+    try (WriteChannel writer =
+        storage.writer(BlobInfo.newBuilder("bucket", PREFIX + image + ".npy").build())) {
+      writer.write(npy);
+    }
+  }
+}
@@ -0,0 +1,404 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.Part;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.DatasetProgress.Stage;
+import com.google.sps.servlets.ServiceRegistry;
+import com.google.sps.servlets.UploadServlet;
+
+public class UploadServletTest {
+
+  private static final String USER = "user@example.com";
+  private static final String FOLDER = USER + "/set/original_images/";
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+      .setEnvIsLoggedIn(true).setEnvEmail(USER).setEnvAuthDomain("example.com");
+
+  private final StringWriter output = new StringWriter();
+
+  private Storage storage;
+  private ServiceRegistry services;
+  private UploadServlet servlet;
+
+  @Before
+  public void setUp() throws Exception {
+    helper.setUp();
+    storage = LocalStorageHelper.getOptions().getService();
+    services = new ServiceRegistry(storage, DatastoreServiceFactory.getDatastoreService(),
+        UserServiceFactory.getUserService(), mock(BlobstoreService.class));
+    ServletContext context = mock(ServletContext.class);
+    when(context.getAttribute(ServiceRegistry.ATTRIBUTE)).thenReturn(services);
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+    servlet = new UploadServlet();
+    servlet.init(config);
+  }
+
+  @After
+  public void tearDown() {
+    services.shutdown();
+    helper.tearDown();
+  }
+
+  @Test
+  public void appendSkipsExistingFormParts() throws Exception {
+    // Test to show an append only writes and counts the form parts whose name the dataset
+    // doesn't have yet, and moves the dataset on to its next generation.
+
+    post("set", false, ImmutableMap.of("cat.jpg", jpeg("cat"), "dog.jpg", jpeg("dog")));
+    post("set", true, ImmutableMap.of("cat.jpg", jpeg("other cat"), "bird.jpg", jpeg("bird")));
+
+    Metadata metadata = services.metadataStore().retrieveMetadata("set", USER);
+    Assert.assertEquals(3, metadata.numberOfImages());
+    Assert.assertEquals(2, metadata.generation());
+    Assert.assertArrayEquals(jpeg("cat"), read(FOLDER + "cat.jpg"));
+    Assert.assertArrayEquals(jpeg("bird"), read(FOLDER + "bird.jpg"));
+    Assert.assertEquals(ImmutableSet.of("cat.jpg", "dog.jpg", "bird.jpg"),
+        services.contentIndex().imageHashes(USER, "set").keySet());
+  }
+
+  @Test
+  public void appendSkipsExistingArchiveEntries() throws Exception {
+    // Test to show an appended archive is filtered on the dataset's names the same way.
+
+    post("set", false, ImmutableMap.of("cat.jpg", jpeg("cat")));
+    postArchive("set", ImmutableMap.of("cat.jpg", jpeg("other cat"), "bird.jpg", jpeg("bird")));
+
+    Metadata metadata = services.metadataStore().retrieveMetadata("set", USER);
+    Assert.assertEquals(2, metadata.numberOfImages());
+    Assert.assertEquals(2, metadata.generation());
+    Assert.assertArrayEquals(jpeg("cat"), read(FOLDER + "cat.jpg"));
+    Assert.assertArrayEquals(jpeg("bird"), read(FOLDER + "bird.jpg"));
+  }
+
+  @Test
+  public void existingImagesListedWithoutIndex() throws Exception {
+    // Test to show the names of a dataset uploaded before the content index are read from its
+    // original_images folder.
+
+    services.metadataStore().storeData(Metadata.of(USER, "set", "DELG", "t-SNE", 1, 1));
+    write(FOLDER + "cat.jpg", jpeg("cat"));
+
+    post("set", true, ImmutableMap.of("cat.jpg", jpeg("other cat"), "bird.jpg", jpeg("bird")));
+
+    Metadata metadata = services.metadataStore().retrieveMetadata("set", USER);
+    Assert.assertEquals(2, metadata.numberOfImages());
+    Assert.assertArrayEquals(jpeg("cat"), read(FOLDER + "cat.jpg"));
+    Assert.assertArrayEquals(jpeg("bird"), read(FOLDER + "bird.jpg"));
+  }
+
+  @Test
+  public void appendCountsReusedAndWrittenImages() throws Exception {
+    // Test to show appended images already processed elsewhere are reused rather than written,
+    // and count towards the dataset and its progress together with the written ones.
+
+    post("first", false, ImmutableMap.of("cat.jpg", jpeg("cat")));
+    write(ContentIndex.DERIVED_BUCKET, USER + "/first/thumbnails/cat.jpg", bytes("thumbnail"));
+    write(ContentIndex.DERIVED_BUCKET, USER + "/first/embeddings/cat.jpg.npy",
+        bytes("embedding"));
+    post("set", false, ImmutableMap.of("dog.jpg", jpeg("dog")));
+
+    post("set", true, ImmutableMap.of("kitten.jpg", jpeg("cat"), "bird.jpg", jpeg("bird")));
+
+    Metadata metadata = services.metadataStore().retrieveMetadata("set", USER);
+    Assert.assertEquals(3, metadata.numberOfImages());
+    Assert.assertEquals(2, metadata.generation());
+    Assert.assertNull(storage.get(BlobId.of(UploadServlet.BUCKET_NAME, FOLDER + "kitten.jpg")));
+    Assert.assertArrayEquals(bytes("thumbnail"), storage.readAllBytes(
+        BlobId.of(ContentIndex.DERIVED_BUCKET, USER + "/set/thumbnails/kitten.jpg")));
+    Map<Stage, Long> counts = services.datasetProgress().status(USER, "set").counts();
+    Assert.assertEquals(3L, (long) counts.get(Stage.UPLOADED));
+    Assert.assertEquals(1L, (long) counts.get(Stage.THUMBNAILED));
+    Assert.assertEquals(1L, (long) counts.get(Stage.EMBEDDED));
+  }
+
+  @Test
+  public void appendToDeletedDatasetStoresNothing() throws Exception {
+    // Test to show an append whose dataset is gone by the time it is counted leaves it gone
+    // and reports no progress, even though the cache still said it existed.
+
+    post("set", false, ImmutableMap.of("cat.jpg", jpeg("cat")));
+    Assert.assertTrue(services.metadataStore().metadataExists("set", USER));
+    services.datastore().delete(DatastoreMetadataStore.metadataKey("set", USER));
+
+    HttpServletResponse response =
+        post("set", true, ImmutableMap.of("bird.jpg", jpeg("bird")));
+
+    verify(response).sendRedirect("/index.html");
+    Assert.assertNull(services.metadataBackend().retrieveMetadata("set", USER));
+    Assert.assertEquals(1L,
+        (long) services.datasetProgress().status(USER, "set").counts().get(Stage.UPLOADED));
+  }
+
+  @Test
+  public void existingDatasetTurnedAwayWithoutAppend() throws Exception {
+    // Test to show a new upload under a name the user already has is turned away untouched.
+
+    post("set", false, ImmutableMap.of("cat.jpg", jpeg("cat")));
+    HttpServletResponse response = post("set", false, ImmutableMap.of("cat.jpg", jpeg("new")));
+
+    verify(response).sendRedirect("/already_exists.html");
+    verify(response, never()).sendRedirect("/index.html");
+    Assert.assertArrayEquals(jpeg("cat"), read(FOLDER + "cat.jpg"));
+    Assert.assertEquals(1, services.metadataStore().retrieveMetadata("set", USER).generation());
+  }
+
+  @Test
+  public void reservedNameTurnedAway() throws Exception {
+    // Test to show a new dataset isn't uploaded under a name reserved by another upload, and
+    // that an upload releases the name it reserved once it is over.
+
+    services.uploadSessions().reserve(USER, "set");
+    HttpServletResponse response = post("set", false, ImmutableMap.of("cat.jpg", jpeg("cat")));
+
+    verify(response).sendRedirect("/already_exists.html");
+    Assert.assertNull(storage.get(BlobId.of(UploadServlet.BUCKET_NAME, FOLDER + "cat.jpg")));
+
+    services.uploadSessions().abort(USER, "set");
+    post("set", false, ImmutableMap.of("cat.jpg", jpeg("cat")));
+
+    Assert.assertTrue(services.metadataStore().metadataExists("set", USER));
+    Assert.assertFalse(services.uploadSessions().isOpen(USER, "set"));
+  }
+
+  @Test
+  public void failedPartKeepsNothing() throws Exception {
+    // Test to show a form with a file that can't be written is answered with a 502 naming it,
+    // and neither the dataset nor the files that were written are kept.
+
+    Part cat = part("cat.jpg");
+    when(cat.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(jpeg("cat")));
+    // The container buffered the part, so it can be hashed, but the write can't read it
+    Part dog = part("dog.jpg");
+    when(dog.getInputStream()).thenReturn(new ByteArrayInputStream(jpeg("dog")))
+        .thenThrow(new IOException("part lost"));
+
+    HttpServletResponse response = post("set", false, ImmutableList.of(cat, dog));
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+    verify(response, never()).sendRedirect("/index.html");
+    Assert.assertEquals("{\"failed\":[\"dog.jpg\"]}", output.toString());
+    Assert.assertFalse(services.metadataBackend().metadataExists("set", USER));
+    Assert.assertNull(storage.get(BlobId.of(UploadServlet.BUCKET_NAME, FOLDER + "cat.jpg")));
+    Assert.assertTrue(services.contentIndex().imageHashes(USER, "set").isEmpty());
+  }
+
+  @Test
+  public void failedAppendKeepsDataset() throws Exception {
+    // Test to show a failed append takes back only what it wrote, leaving the dataset as it was.
+
+    post("set", false, ImmutableMap.of("cat.jpg", jpeg("cat")));
+    Part bird = part("bird.jpg");
+    when(bird.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(jpeg("bird")));
+    Part dog = part("dog.jpg");
+    when(dog.getInputStream()).thenReturn(new ByteArrayInputStream(jpeg("dog")))
+        .thenThrow(new IOException("part lost"));
+
+    HttpServletResponse response = post("set", true, ImmutableList.of(bird, dog));
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+    Metadata metadata = services.metadataBackend().retrieveMetadata("set", USER);
+    Assert.assertEquals(1, metadata.numberOfImages());
+    Assert.assertEquals(1, metadata.generation());
+    Assert.assertArrayEquals(jpeg("cat"), read(FOLDER + "cat.jpg"));
+    Assert.assertNull(storage.get(BlobId.of(UploadServlet.BUCKET_NAME, FOLDER + "bird.jpg")));
+  }
+
+  @Test
+  public void truncatedArchiveKeepsNothing() throws Exception {
+    // Test to show an archive cut off part way is turned away, and none of the images read
+    // from it before it broke off are left in the bucket.
+
+    byte[] archive = zip(ImmutableMap.of(
+        "cat.jpg", jpeg("cat"), "dog.jpg", jpeg("dog"), "bird.jpg", jpeg("bird")));
+
+    HttpServletResponse response =
+        postArchive("set", false, Arrays.copyOf(archive, archive.length - 200));
+
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    Assert.assertFalse(services.metadataBackend().metadataExists("set", USER));
+    for (Blob blob : storage.list(UploadServlet.BUCKET_NAME,
+        Storage.BlobListOption.prefix(FOLDER)).iterateAll()) {
+      Assert.assertEquals(FOLDER, blob.getName());
+    }
+  }
+
+  /** Posts a form with one file part per image, and returns the response. */
+  private HttpServletResponse post(String datasetName, boolean append,
+      Map<String, byte[]> images) throws Exception {
+    List<Part> parts = new ArrayList<Part>();
+    for (Map.Entry<String, byte[]> image : images.entrySet()) {
+      Part part = part(image.getKey());
+      when(part.getInputStream())
+          .thenAnswer(invocation -> new ByteArrayInputStream(image.getValue()));
+      parts.add(part);
+    }
+    return post(datasetName, append, parts);
+  }
+
+  private HttpServletResponse post(String datasetName, boolean append, List<Part> parts)
+      throws Exception {
+    HttpServletRequest request = request(datasetName, append);
+    when(request.getContentType()).thenReturn("multipart/form-data; boundary=x");
+    when(request.getParts()).thenReturn((Collection<Part>) parts);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+    servlet.doPost(request, response);
+    return response;
+  }
+
+  private static Part part(String fileName) {
+    Part part = mock(Part.class);
+    when(part.getName()).thenReturn("file-upload-dialog");
+    when(part.getSubmittedFileName()).thenReturn(fileName);
+    return part;
+  }
+
+  /** Posts a ZIP archive of the images appending to a dataset, and returns the response. */
+  private HttpServletResponse postArchive(String datasetName, Map<String, byte[]> images)
+      throws Exception {
+    return postArchive(datasetName, true, zip(images));
+  }
+
+  private HttpServletResponse postArchive(String datasetName, boolean append, byte[] archive)
+      throws Exception {
+    HttpServletRequest request = request(datasetName, append);
+    when(request.getContentType()).thenReturn("application/zip");
+    when(request.getInputStream()).thenReturn(body(archive));
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    servlet.doPost(request, response);
+    return response;
+  }
+
+  private static byte[] zip(Map<String, byte[]> images) throws IOException {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+      for (Map.Entry<String, byte[]> image : images.entrySet()) {
+        zip.putNextEntry(new ZipEntry(image.getKey()));
+        zip.write(image.getValue());
+        zip.closeEntry();
+      }
+    }
+    return archive.toByteArray();
+  }
+
+  private static HttpServletRequest request(String datasetName, boolean append) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("dataset-namer")).thenReturn(datasetName);
+    when(request.getParameter("append")).thenReturn(Boolean.toString(append));
+    return request;
+  }
+
+  private static ServletInputStream body(byte[] bytes) {
+    ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+    return new ServletInputStream() {
+      @Override
+      public int read() {
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) {
+        return in.read(buffer, offset, length);
+      }
+
+      @Override
+      public boolean isFinished() {
+        return in.available() == 0;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setReadListener(ReadListener listener) {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private byte[] read(String objectName) {
+    return storage.readAllBytes(BlobId.of(UploadServlet.BUCKET_NAME, objectName));
+  }
+
+  private void write(String objectName, byte[] contents) {
+    write(UploadServlet.BUCKET_NAME, objectName, contents);
+  }
+
+  private void write(String bucketName, String objectName, byte[] contents) {
+    storage.create(BlobInfo.newBuilder(BlobId.of(bucketName, objectName)).build(), contents);
+  }
+
+  private static byte[] jpeg(String pixels) {
+    byte[] rest = bytes(pixels);
+    byte[] bytes = Arrays.copyOf(new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff},
+        3 + rest.length);
+    System.arraycopy(rest, 0, bytes, 3, rest.length);
+    return bytes;
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
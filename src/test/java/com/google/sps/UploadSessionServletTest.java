@@ -0,0 +1,109 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.ServiceRegistry;
+import com.google.sps.servlets.UploadSessionServlet;
+
+public class UploadSessionServletTest {
+
+  private static final String USER = "user@example.com";
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+      .setEnvIsLoggedIn(true).setEnvEmail(USER).setEnvAuthDomain("example.com");
+
+  private ServiceRegistry services;
+  private UploadSessionServlet servlet;
+
+  @Before
+  public void setUp() throws Exception {
+    helper.setUp();
+    services = new ServiceRegistry(LocalStorageHelper.getOptions().getService(),
+        DatastoreServiceFactory.getDatastoreService(), UserServiceFactory.getUserService(),
+        mock(BlobstoreService.class));
+    ServletContext context = mock(ServletContext.class);
+    when(context.getAttribute(ServiceRegistry.ATTRIBUTE)).thenReturn(services);
+    ServletConfig config = mock(ServletConfig.class);
+    when(config.getServletContext()).thenReturn(context);
+    servlet = new UploadSessionServlet();
+    servlet.init(config);
+  }
+
+  @After
+  public void tearDown() {
+    services.shutdown();
+    helper.tearDown();
+  }
+
+  @Test
+  public void sessionWithoutDatasetNameRejected() throws Exception {
+    // Test to show opening a session without a dataset name is a bad request.
+
+    for (String datasetName : new String[] {null, ""}) {
+      HttpServletRequest request = mock(HttpServletRequest.class);
+      when(request.getParameter("dataset-name")).thenReturn(datasetName);
+      HttpServletResponse response = mock(HttpServletResponse.class);
+
+      servlet.doPost(request, response);
+
+      verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    }
+  }
+
+  @Test
+  public void chunkWithoutFileRejected() throws Exception {
+    // Test to show a chunk without a file name is a bad request, and the session is untouched.
+
+    services.uploadSessions().open(USER, "set");
+    for (String fileName : new String[] {null, ""}) {
+      HttpServletRequest request = mock(HttpServletRequest.class);
+      when(request.getParameter("dataset-name")).thenReturn("set");
+      when(request.getParameter("offset")).thenReturn("0");
+      when(request.getParameter("file")).thenReturn(fileName);
+      when(request.getHeader(UploadSessionServlet.CHECKSUM_HEADER)).thenReturn("AAAAAA==");
+      HttpServletResponse response = mock(HttpServletResponse.class);
+
+      servlet.doPut(request, response);
+
+      verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+      verify(response, never()).getWriter();
+    }
+    Assert.assertTrue(services.uploadSessions().progress(USER, "set").isEmpty());
+  }
+}
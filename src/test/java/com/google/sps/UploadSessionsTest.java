@@ -0,0 +1,320 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.spi.ServiceRpcFactory;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.sps.servlets.UploadSessions;
+import com.google.sps.servlets.UploadSessions.FileProgress;
+import com.google.sps.servlets.UploadSessions.OffsetMismatchException;
+
+public class UploadSessionsTest {
+
+  private static final String BUCKET_NAME = "test-bucket";
+  private static final int CHUNK = 300 * 1024;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private Storage storage;
+  private MetadataStore metadataStore;
+  private UploadSessions sessions;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    // Upload state carries the client's options, so their RPC factory must be re-creatable
+    storage = StorageOptions.newBuilder().setProjectId("test-project")
+        .setCredentials(NoCredentials.getInstance())
+        .setServiceRpcFactory(new SharedFakeRpcFactory()).build().getService();
+    metadataStore = new DatastoreMetadataStore(DatastoreServiceFactory.getDatastoreService());
+    sessions = new UploadSessions(storage, DatastoreServiceFactory.getDatastoreService(),
+        metadataStore, BUCKET_NAME, 1024 * 1024);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void chunksResumeAndCommit() throws Exception {
+    // Test to show a file sent in chunks, each resumed from stored state, is written whole and
+    // counted when the session is committed.
+
+    byte[] photo = new byte[CHUNK * 2 + 1234];
+    new Random(7).nextBytes(photo);
+    sessions.open("user", "set");
+
+    for (int offset = 0; offset < photo.length; offset += CHUNK) {
+      byte[] chunk = Arrays.copyOfRange(photo, offset, Math.min(photo.length, offset + CHUNK));
+      boolean last = offset + CHUNK >= photo.length;
+      FileProgress progress = sessions.writeChunk("user", "set", "photo.jpg", offset, chunk,
+          UploadSessions.crc32c(chunk), last);
+      Assert.assertEquals(offset + chunk.length, progress.offset());
+      Assert.assertEquals(last, progress.complete());
+    }
+    Metadata metadata = sessions.commit("user", "set");
+
+    Assert.assertArrayEquals(photo,
+        storage.readAllBytes(BlobId.of(BUCKET_NAME, "user/set/original_images/photo.jpg")));
+    Assert.assertEquals(1, metadata.numberOfImages());
+    Assert.assertTrue(metadataStore.metadataExists("set", "user"));
+    Assert.assertNull(sessions.progress("user", "set"));
+  }
+
+  @Test
+  public void badChunksRejected() throws Exception {
+    // Test to show a chunk at the wrong offset or with the wrong checksum changes nothing.
+
+    byte[] chunk = {1, 2, 3};
+    sessions.open("user", "set");
+    sessions.writeChunk("user", "set", "a.jpg", 0, chunk, UploadSessions.crc32c(chunk), false);
+
+    try {
+      sessions.writeChunk("user", "set", "a.jpg", 0, chunk, UploadSessions.crc32c(chunk), false);
+      Assert.fail();
+    } catch (OffsetMismatchException e) {
+      Assert.assertEquals(3, e.expectedOffset());
+    }
+    try {
+      sessions.writeChunk("user", "set", "a.jpg", 3, chunk, "AAAAAA==", false);
+      Assert.fail();
+    } catch (IllegalArgumentException expected) {
+      // Checksum mismatch
+    }
+    Map<String, FileProgress> progress = sessions.open("user", "set");
+    Assert.assertEquals(3, progress.get("a.jpg").offset());
+    Assert.assertFalse(progress.get("a.jpg").complete());
+  }
+
+  @Test
+  public void incompleteSessionCannotCommit() throws Exception {
+    // Test to show a session with an unfinished file isn't committed, and its name stays taken.
+
+    byte[] chunk = {1};
+    sessions.open("user", "set");
+    sessions.writeChunk("user", "set", "a.jpg", 0, chunk, UploadSessions.crc32c(chunk), false);
+
+    try {
+      sessions.commit("user", "set");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // a.jpg is incomplete
+    }
+    Assert.assertFalse(metadataStore.metadataExists("set", "user"));
+    Assert.assertTrue(sessions.isOpen("user", "set"));
+  }
+
+  @Test
+  public void nameReservedAgainstDatastore() throws Exception {
+    // Test to show a name is checked against the dataset's key in the reserving transaction,
+    // even when the store in front of it still caches the name as free.
+
+    MetadataStore caching = new CachingMetadataStore(metadataStore, 100, 60000);
+    UploadSessions stale = new UploadSessions(storage,
+        DatastoreServiceFactory.getDatastoreService(), caching, BUCKET_NAME, 1024 * 1024);
+    Assert.assertFalse(caching.metadataExists("set", "user"));
+    metadataStore.storeData(Metadata.of("user", "set", "DELG", "t-SNE", 5, 1));
+
+    try {
+      stale.open("user", "set");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // set already exists
+    }
+    try {
+      stale.reserve("user", "set");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // set already exists
+    }
+    Assert.assertFalse(stale.isOpen("user", "set"));
+  }
+
+  @Test
+  public void singleRequestReservationExcludesSessions() throws Exception {
+    // Test to show a name reserved for an upload within one request can't be opened, reserved
+    // again or committed as a session until that upload releases it.
+
+    sessions.reserve("user", "set");
+
+    try {
+      sessions.open("user", "set");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // set is being uploaded
+    }
+    try {
+      sessions.reserve("user", "set");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // set is being uploaded
+    }
+    try {
+      sessions.commit("user", "set");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // No session for set
+    }
+    sessions.abort("user", "set");
+    Assert.assertTrue(sessions.open("user", "set").isEmpty());
+  }
+
+  @Test
+  public void commitRefusedOnceDatasetStored() throws Exception {
+    // Test to show a session isn't committed over a dataset of its name stored in the meantime.
+
+    byte[] chunk = {1};
+    sessions.open("user", "set");
+    sessions.writeChunk("user", "set", "a.jpg", 0, chunk, UploadSessions.crc32c(chunk), true);
+    metadataStore.storeData(Metadata.of("user", "set", "DELG", "t-SNE", 5, 1));
+
+    try {
+      sessions.commit("user", "set");
+      Assert.fail();
+    } catch (IllegalStateException expected) {
+      // set already exists
+    }
+    Assert.assertEquals(5, metadataStore.retrieveMetadata("set", "user").numberOfImages());
+  }
+
+  @Test
+  public void fileNameRequired() throws Exception {
+    // Test to show a chunk without a file name is rejected as a bad argument.
+
+    byte[] chunk = {1};
+    sessions.open("user", "set");
+    for (String fileName : Arrays.asList(null, "", "/")) {
+      try {
+        sessions.writeChunk("user", "set", fileName, 0, chunk, UploadSessions.crc32c(chunk),
+            true);
+        Assert.fail(fileName);
+      } catch (IllegalArgumentException expected) {
+        // No file name
+      }
+    }
+    Assert.assertTrue(sessions.progress("user", "set").isEmpty());
+  }
+
+  @Test
+  public void failedRecordLeavesChunkToResend() throws Exception {
+    // Test to show a chunk written to GCS but not recorded in Datastore can be sent again, and
+    // a last chunk that did finish the file in GCS is found there.
+
+    byte[] photo = new byte[CHUNK + 1234];
+    new Random(11).nextBytes(photo);
+    byte[] first = Arrays.copyOfRange(photo, 0, CHUNK);
+    byte[] rest = Arrays.copyOfRange(photo, CHUNK, photo.length);
+    AtomicInteger failNextCommit = new AtomicInteger();
+    UploadSessions failing = new UploadSessions(storage,
+        failingCommits(DatastoreServiceFactory.getDatastoreService(), failNextCommit),
+        metadataStore, BUCKET_NAME, 1024 * 1024);
+    failing.open("user", "set");
+
+    // Claiming is the first commit of a chunk, recording it the second
+    failNextCommit.set(2);
+    try {
+      failing.writeChunk("user", "set", "photo.jpg", 0, first, UploadSessions.crc32c(first),
+          false);
+      Assert.fail();
+    } catch (ConcurrentModificationException expected) {
+      // Recording the chunk failed
+    }
+    Assert.assertEquals(0, failing.progress("user", "set").get("photo.jpg").offset());
+    failing.writeChunk("user", "set", "photo.jpg", 0, first, UploadSessions.crc32c(first),
+        false);
+
+    failNextCommit.set(2);
+    try {
+      failing.writeChunk("user", "set", "photo.jpg", CHUNK, rest, UploadSessions.crc32c(rest),
+          true);
+      Assert.fail();
+    } catch (ConcurrentModificationException expected) {
+      // Recording the chunk failed
+    }
+    Assert.assertEquals(FileProgress.of(photo.length, true),
+        failing.progress("user", "set").get("photo.jpg"));
+    Assert.assertArrayEquals(photo,
+        storage.readAllBytes(BlobId.of(BUCKET_NAME, "user/set/original_images/photo.jpg")));
+    Assert.assertEquals(1, failing.commit("user", "set").numberOfImages());
+  }
+
+  /**
+   * Wraps a DatastoreService so that, once failNextCommit is set to n, the nth transaction
+   * committed from then on fails as if contended, without committing.
+   */
+  private static DatastoreService failingCommits(DatastoreService datastore,
+      AtomicInteger failNextCommit) {
+    return (DatastoreService) Proxy.newProxyInstance(DatastoreService.class.getClassLoader(),
+        new Class<?>[] {DatastoreService.class}, (proxy, method, args) -> {
+          Object result = invoke(datastore, method, args);
+          if (!method.getName().equals("beginTransaction")) {
+            return result;
+          }
+          Transaction txn = (Transaction) result;
+          return Proxy.newProxyInstance(Transaction.class.getClassLoader(),
+              new Class<?>[] {Transaction.class}, (txnProxy, txnMethod, txnArgs) -> {
+                if (txnMethod.getName().equals("commit") && failNextCommit.get() > 0
+                    && failNextCommit.decrementAndGet() == 0) {
+                  throw new ConcurrentModificationException("Too much contention");
+                }
+                return invoke(txn, txnMethod, txnArgs);
+              });
+        });
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /** Gives every client, including ones restored from upload state, the same fake storage. */
+  public static class SharedFakeRpcFactory implements ServiceRpcFactory<StorageOptions> {
+    private static final StorageRpc RPC =
+        (StorageRpc) LocalStorageHelper.getOptions().getRpc();
+
+    @Override
+    public StorageRpc create(StorageOptions options) {
+      return RPC;
+    }
+  }
+}